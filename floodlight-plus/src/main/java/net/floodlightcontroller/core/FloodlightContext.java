@@ -17,19 +17,116 @@
 
 package net.floodlightcontroller.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is a context object where floodlight listeners can register 
  * and later retrieve context information associated with an
  * event
+ *
+ * Every key is given a slot number the first time it is registered, and
+ * values are kept in an array indexed by slot, so lookups do not hash and
+ * reset only touches the slots that were used. A context is not thread
+ * safe; it belongs to the dispatch of a single event.
  * @author readams
  */
 public class FloodlightContext {
-    protected ConcurrentHashMap<String, Object> storage =
-            new ConcurrentHashMap<String, Object>();
+    // Slot numbers of all registered keys, shared by every context
+    private static final ConcurrentHashMap<String, Integer> slots =
+            new ConcurrentHashMap<String, Integer>();
+    private static final List<String> slotNames = new ArrayList<String>();
 
+    protected Object[] values = new Object[16];
+    // Slots set since the last reset, possibly with repeats
+    protected int[] usedSlots = new int[16];
+    protected int usedCount;
+
+    /**
+     * Get the slot of a key, registering the key if it is new
+     * @param key the key
+     * @return the slot number of the key
+     */
+    public static int getSlot(String key) {
+        Integer slot = slots.get(key);
+        if (slot != null)
+            return slot;
+        synchronized (slotNames) {
+            slot = slots.get(key);
+            if (slot == null) {
+                slot = slotNames.size();
+                slotNames.add(key);
+                slots.put(key, slot);
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * Get the value in a slot, computing it first if it was stored lazily
+     * @param slot the slot number
+     * @return the value, or null
+     */
+    public Object get(int slot) {
+        if (slot >= values.length)
+            return null;
+        Object value = values[slot];
+        if (value instanceof FloodlightContextStore.Lazy) {
+            value = ((FloodlightContextStore.Lazy<?>)value).compute();
+            values[slot] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Set the value in a slot
+     * @param slot the slot number
+     * @param value the value, or null to clear the slot
+     */
+    public void put(int slot, Object value) {
+        if (slot >= values.length)
+            values = Arrays.copyOf(values,
+                                   Math.max(slot + 1, values.length * 2));
+        if (values[slot] == null && value != null) {
+            if (usedCount == usedSlots.length)
+                usedSlots = Arrays.copyOf(usedSlots, usedCount * 2);
+            usedSlots[usedCount++] = slot;
+        }
+        values[slot] = value;
+    }
+
+    public void remove(int slot) {
+        if (slot < values.length)
+            values[slot] = null;
+    }
+
+    /**
+     * Clear every value so the context can be reused
+     */
+    public void reset() {
+        for (int i = 0; i < usedCount; i++)
+            values[usedSlots[i]] = null;
+        usedCount = 0;
+    }
+
+    /**
+     * Get a copy of the values in this context by key. Changes to the
+     * returned map do not change the context.
+     * @deprecated use FloodlightContextStore or FloodlightContextKey
+     */
+    @Deprecated
     public ConcurrentHashMap<String, Object> getStorage() {
+        ConcurrentHashMap<String, Object> storage =
+                new ConcurrentHashMap<String, Object>();
+        synchronized (slotNames) {
+            for (int slot = 0; slot < values.length; slot++) {
+                Object value = get(slot);
+                if (value != null)
+                    storage.put(slotNames.get(slot), value);
+            }
+        }
         return storage;
     }
 }
@@ -0,0 +1,56 @@
+package net.floodlightcontroller.core;
+
+/**
+ * A typed key for a value in a FloodlightContext. The key is given its
+ * context slot once, when it is created, so reading and writing the value
+ * is an array access. A key shares its slot with FloodlightContextStore
+ * lookups of the same name.
+ * @param <V> the type of the value
+ */
+public final class FloodlightContextKey<V> {
+    private final String name;
+    private final int slot;
+
+    private FloodlightContextKey(String name) {
+        this.name = name;
+        this.slot = FloodlightContext.getSlot(name);
+    }
+
+    /**
+     * Create a key; this is meant to be done once, in a static field
+     * @param name the name of the key
+     */
+    public static <V> FloodlightContextKey<V> create(String name) {
+        return new FloodlightContextKey<V>(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(FloodlightContext bc) {
+        return (V)bc.get(slot);
+    }
+
+    public void put(FloodlightContext bc, V value) {
+        bc.put(slot, value);
+    }
+
+    /**
+     * Store a value that is computed the first time it is read with get
+     */
+    public void putLazy(FloodlightContext bc,
+                        FloodlightContextStore.Lazy<V> value) {
+        bc.put(slot, value);
+    }
+
+    public void remove(FloodlightContext bc) {
+        bc.remove(slot);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
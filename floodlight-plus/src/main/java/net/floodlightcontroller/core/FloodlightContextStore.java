@@ -17,18 +17,71 @@
 
 package net.floodlightcontroller.core;
 
+import java.util.Arrays;
+
+/**
+ * Access to the values of a FloodlightContext by key name. Each name is
+ * mapped to its context slot; FloodlightContextKey skips that lookup.
+ */
 public class FloodlightContextStore<V> {
-    
+
+    /**
+     * A context value that is only computed when it is first read. This is
+     * a class rather than an interface because every context read checks
+     * for it, and a class check is cheaper.
+     */
+    public static abstract class Lazy<V> {
+        public abstract V compute();
+    }
+
+    // Keys this store has been used with and their slots. A store is
+    // normally used with a few constant keys, so a short list scanned by
+    // identity first is cheaper than looking each key up again.
+    private static final int MAX_KEY_SLOTS = 8;
+    private volatile KeySlot[] keySlots = new KeySlot[0];
+
+    private static final class KeySlot {
+        final String key;
+        final int slot;
+
+        KeySlot(String key, int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+    }
+
+    private int getSlot(String key) {
+        KeySlot[] ks = keySlots;
+        for (int i = 0; i < ks.length; i++) {
+            if (ks[i].key == key)
+                return ks[i].slot;
+        }
+        int slot = FloodlightContext.getSlot(key);
+        if (ks.length < MAX_KEY_SLOTS) {
+            KeySlot[] grown = Arrays.copyOf(ks, ks.length + 1);
+            grown[ks.length] = new KeySlot(key, slot);
+            keySlots = grown;
+        }
+        return slot;
+    }
+
     @SuppressWarnings("unchecked")
     public V get(FloodlightContext bc, String key) {
-        return (V)bc.storage.get(key);
+        return (V)bc.get(getSlot(key));
     }
     
     public void put(FloodlightContext bc, String key, V value) {
-        bc.storage.put(key, value);
+        bc.put(getSlot(key), value);
     }
     
+    /**
+     * Store a value that is computed the first time it is read with get
+     */
+    public void putLazy(FloodlightContext bc, String key, Lazy<V> value) {
+        bc.put(getSlot(key), value);
+    }
+
     public void remove(FloodlightContext bc, String key) {
-        bc.storage.remove(key);
+        bc.remove(getSlot(key));
     }
 }
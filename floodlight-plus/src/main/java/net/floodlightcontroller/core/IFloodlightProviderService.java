@@ -25,6 +25,7 @@ import java.util.Map;
 
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketHeaderView;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
@@ -47,6 +48,14 @@ public interface IFloodlightProviderService extends
     public static final String CONTEXT_PI_PAYLOAD =
             "net.floodlightcontroller.core.IFloodlightProvider.piPayload";
 
+    /**
+     * A value stored in the floodlight context containing a view of the
+     * headers of the payload of a packet-in message, which reads header
+     * fields without parsing the whole payload.
+     */
+    public static final String CONTEXT_PI_HEADERS =
+            "net.floodlightcontroller.core.IFloodlightProvider.piHeaders";
+
     /**
      * The role of the controller as used by the OF 1.2 and OVS failover and
      * load-balancing mechanism.
@@ -85,6 +94,22 @@ public interface IFloodlightProviderService extends
     public static final FloodlightContextStore<Ethernet> bcStore =
             new FloodlightContextStore<Ethernet>();
 
+    /**
+     * A FloodlightContextStore object that can be used to retrieve the
+     * packet-in payload headers
+     */
+    public static final FloodlightContextStore<PacketHeaderView> headerStore =
+            new FloodlightContextStore<PacketHeaderView>();
+
+    /**
+     * Typed keys for the packet-in payload and headers, sharing their
+     * values with bcStore and headerStore
+     */
+    public static final FloodlightContextKey<Ethernet> piPayloadKey =
+            FloodlightContextKey.create(CONTEXT_PI_PAYLOAD);
+    public static final FloodlightContextKey<PacketHeaderView> piHeadersKey =
+            FloodlightContextKey.create(CONTEXT_PI_HEADERS);
+
     /**
      * Adds an OpenFlow message listener
      * @param type The OFType the component wants to listen for
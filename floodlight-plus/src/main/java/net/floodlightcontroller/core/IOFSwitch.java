@@ -32,6 +32,8 @@ import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.util.OrderedCollection;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.openflow.protocol.OFBarrierReply;
 import org.openflow.protocol.OFFeaturesReply;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPortStatus;
@@ -173,6 +175,15 @@ public interface IOFSwitch {
      */
     public void setChannel(Channel channel);
 
+    /**
+     * Set the queue that holds back messages to the switch while its
+     * channel is not writable. Called right after setChannel; without a
+     * queue messages are written to the channel directly.
+     *
+     * @param writeQueue
+     */
+    public void setWriteQueue(OFWriteQueue writeQueue);
+
     /**
      * Called when OFMessage enters pipeline. Returning true cause the message
      * to be dropped.
@@ -189,6 +200,13 @@ public interface IOFSwitch {
      */
     boolean isOverloaded();
 
+    /**
+     * Return the packet in throttling thresholds and state of the switch,
+     * with the hosts, flows and ports that currently send the most
+     * @return
+     */
+    Map<String, Object> getInputThrottleInfo();
+
     /**
      * Write OFMessage to the output stream, subject to switch rate limiting.
      * The message will be handed to the floodlightProvider for possible filtering
@@ -230,6 +248,41 @@ public interface IOFSwitch {
      */
     public void write(List<OFMessage> msglist, FloodlightContext bc) throws IOException;
 
+    /**
+     * Writes the message through the write queue of the switch, after the
+     * messages buffered for the switch in the current thread. The message
+     * will be handed to the floodlightProvider for possible filtering and
+     * processing by message listeners.
+     * @param m
+     * @param bc
+     * @return a future done once the message is written to the channel, or
+     * failed if it was dropped because the write queue was full or the
+     * switch is not connected; null if the switch has no channel yet
+     */
+    public ChannelFuture writeAsync(OFMessage m, FloodlightContext bc);
+
+    /**
+     * Writes the list of messages through the write queue of the switch,
+     * as writeAsync(OFMessage, FloodlightContext)
+     * @param msglist
+     * @param bc
+     * @return a future for the whole list
+     */
+    public ChannelFuture writeAsync(List<OFMessage> msglist,
+                                    FloodlightContext bc);
+
+    /**
+     * Return whether the write queue of the switch is above its high
+     * watermark, and has not yet drained to its low watermark. Listeners
+     * should hold back optional messages, such as packet-outs, meanwhile.
+     */
+    public boolean isWriteBackpressured();
+
+    /**
+     * Return the bytes held back in the write queue of the switch
+     */
+    public int getWriteQueueBytes();
+
     /**
      *
      * @throws IOException
@@ -449,6 +502,32 @@ public interface IOFSwitch {
      */
     public void cancelFeaturesReply(int transactionId);
 
+    /**
+     * Writes a list of messages to the switch in a single write, followed
+     * by a barrier request. Returns a Future object that completes when the
+     * switch replies to the barrier, i.e. once it has processed every
+     * message in the list.
+     *
+     * @param msglist the messages to send
+     * @param bc the FloodlightContext, may be null
+     * @return Future object wrapping the OFBarrierReply
+     * @throws IOException
+     */
+    public Future<OFBarrierReply> writeWithBarrier(List<OFMessage> msglist,
+            FloodlightContext bc) throws IOException;
+
+    /**
+     * Deliver the barrierReply future reply
+     * @param reply the reply to deliver
+     */
+    void deliverOFBarrierReply(OFMessage reply);
+
+    /**
+     * Cancel barrier reply with a specific transaction ID
+     * @param transactionId the transaction ID
+     */
+    public void cancelBarrierReply(int transactionId);
+
     /**
      * Check if the switch is connected to this controller. Whether a switch
      * is connected is independent of whether the switch is active
@@ -34,10 +34,16 @@ package net.floodlightcontroller.core;
  * a switchAdded() (which happens if the switch has been added and then
  * removed and the remove hasn't been dispatched yet).
  *
- * These lifecycle notification methods are called by a single thread and they
- * will always be called by the same thread.
+ * By default these lifecycle notification methods are called by a single
+ * thread and they will always be called by the same thread.
  * The calls are always in order.
  *
+ * If the controller is configured with more than one update partition
+ * (FloodlightProvider.updatepartitions), the notifications for a switch
+ * are still called in order by one thread, but the notifications for
+ * different switches are called concurrently by different threads. A
+ * listener must then guard any state it shares between switches.
+ *
  */
 public interface IOFSwitchListener {
     /**
@@ -20,7 +20,6 @@ package net.floodlightcontroller.core;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -38,6 +37,7 @@ import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.core.annotations.LogMessageDocs;
 import net.floodlightcontroller.core.internal.Controller;
+import net.floodlightcontroller.core.internal.OFBarrierReplyFuture;
 import net.floodlightcontroller.core.internal.OFFeaturesReplyFuture;
 import net.floodlightcontroller.core.internal.OFStatisticsFuture;
 import net.floodlightcontroller.core.util.AppCookie;
@@ -48,7 +48,6 @@ import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterExcepti
 import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterType;
 import net.floodlightcontroller.debugcounter.NullDebugCounter;
 import net.floodlightcontroller.devicemanager.SwitchPort;
-import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.routing.ForwardingBase;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.util.LinkedHashSetWrapper;
@@ -62,6 +61,9 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.openflow.protocol.OFBarrierReply;
 import org.openflow.protocol.OFFeaturesReply;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
@@ -111,6 +113,9 @@ public abstract class OFSwitchBase implements IOFSwitch {
 
     private boolean startDriverHandshakeCalled = false;
     protected Channel channel;
+    // Holds back writes while the channel is not writable, or null to
+    // write to the channel directly
+    protected volatile OFWriteQueue writeQueue;
 
     /**
      * Members hidden from subclasses
@@ -119,6 +124,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
     private final Map<Integer,OFStatisticsFuture> statsFutureMap;
     private final Map<Integer, IOFMessageListener> iofMsgListenersMap;
     private final Map<Integer,OFFeaturesReplyFuture> featuresFutureMap;
+    private final Map<Integer,OFBarrierReplyFuture> barrierFutureMap;
     private volatile boolean connected;
     private volatile Role role;
     private final TimedCache<Long> timedCache;
@@ -129,20 +135,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
     // Private members for throttling
     private boolean writeThrottleEnabled = false;
     protected boolean packetInThrottleEnabled = false; // used by test
-    private int packetInRateThresholdHigh =
-            Integer.parseInt(System.getProperty("input_threshold", "1000"));
-    private int packetInRateThresholdLow = 1;
-    private int packetInRatePerMacThreshold = 50;
-    private int packetInRatePerPortThreshold = 100;
-    private long messageCount = 0;
-    private long messageCountUniqueOFMatch = 0;
-    private long lastMessageTime;
-    private int currentRate = 0;
-    private TimedCache<OFMatch> ofMatchCache;
-    private TimedCache<Long> macCache;
-    private TimedCache<Long> macBlockedCache;
-    private TimedCache<Integer> portCache;
-    private TimedCache<Integer> portBlockedCache;
+    private final PacketInThrottle packetInThrottle;
     private boolean flowTableFull = false;
 
     protected OFDescriptionStatistics description;
@@ -176,23 +169,24 @@ public abstract class OFSwitchBase implements IOFSwitch {
         this.connected = false;
         this.statsFutureMap = new ConcurrentHashMap<Integer,OFStatisticsFuture>();
         this.featuresFutureMap = new ConcurrentHashMap<Integer,OFFeaturesReplyFuture>();
+        this.barrierFutureMap = new ConcurrentHashMap<Integer,OFBarrierReplyFuture>();
         this.iofMsgListenersMap = new ConcurrentHashMap<Integer,IOFMessageListener>();
         this.role = null;
         this.timedCache = new TimedCache<Long>(100, 5*1000 );  // 5 seconds interval
         this.portBroadcastCacheHitMap = new ConcurrentHashMap<Integer, AtomicLong>();
         this.description = new OFDescriptionStatistics();
-        this.lastMessageTime = System.currentTimeMillis();
 
         this.portManager = new PortManager();
 
         // Defaults properties for an ideal switch
         this.setAttribute(PROP_SUPPORTS_OFPP_FLOOD, Boolean.valueOf(true));
         this.setAttribute(PROP_SUPPORTS_OFPP_TABLE, Boolean.valueOf(true));
-        if (packetInRateThresholdHigh == 0) {
-            packetInRateThresholdHigh = Integer.MAX_VALUE;
-        } else {
-            packetInRateThresholdLow = packetInRateThresholdHigh / 2;
-        }
+        int packetInRateThresholdHigh =
+                Integer.parseInt(System.getProperty("input_threshold", "1000"));
+        this.packetInThrottle = new PacketInThrottle(packetInRateThresholdHigh,
+                (packetInRateThresholdHigh == 0) ?
+                        1 : packetInRateThresholdHigh / 2,
+                50, 100);
     }
 
 
@@ -713,6 +707,14 @@ public abstract class OFSwitchBase implements IOFSwitch {
         this.channel = channel;
     }
 
+    @Override
+    @JsonIgnore
+    public void setWriteQueue(OFWriteQueue writeQueue) {
+        this.writeQueue = writeQueue;
+        if (writeQueue != null)
+            writeQueue.setDropCounter(ctrSwitchWriteDrops);
+    }
+
     // For driver subclass to set throttling
     protected void enableWriteThrottle(boolean enable) {
         this.writeThrottleEnabled = enable;
@@ -737,14 +739,15 @@ public abstract class OFSwitchBase implements IOFSwitch {
         if (channel == null || !isConnected())
             return;
         /**
-         * By default, channel uses an unbounded send queue. Enable throttling
-         * prevents the queue from growing big.
+         * Without a write queue, channel uses an unbounded send queue.
+         * Enable throttling prevents the queue from growing big.
          *
-         * channel.isWritable() returns true when queue length is less than
-         * high water mark (64 kbytes). Once exceeded, isWritable() becomes
-         * false after queue length drops below low water mark (32 kbytes).
+         * The switch is backpressured once the write queue reaches its
+         * high water mark, until it drains to its low water mark. Without
+         * a write queue, the channel's own water marks (64 and 32 kbytes)
+         * are used.
          */
-        if (!writeThrottleEnabled || channel.isWritable()) {
+        if (!writeThrottleEnabled || !isWriteBackpressured()) {
             write(m, bc);
         } else {
             // Let logback duplicate filtering take care of excessive logs
@@ -756,7 +759,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
     @Override
     public void writeThrottled(List<OFMessage> msglist, FloodlightContext bc)
             throws IOException {
-        if (!writeThrottleEnabled || channel.isWritable()) {
+        if (!writeThrottleEnabled || !isWriteBackpressured()) {
             write(msglist, bc);
         } else {
             // Let logback duplicate filtering take care of excessive logs
@@ -782,8 +785,9 @@ public abstract class OFSwitchBase implements IOFSwitch {
 
         if ((msg_buffer.size() >= Controller.BATCH_MAX_SIZE) ||
             ((m.getType() != OFType.PACKET_OUT) && (m.getType() != OFType.FLOW_MOD))) {
+            // The list is handed over to the channel or the write queue
+            msg_buffer_map.put(this, new ArrayList<OFMessage>());
             this.write(msg_buffer);
-            msg_buffer.clear();
         }
     }
     @Override
@@ -795,8 +799,23 @@ public abstract class OFSwitchBase implements IOFSwitch {
                    recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
     public void write(List<OFMessage> msglist,
                       FloodlightContext bc) {
+        writeAsync(msglist, bc);
+    }
+
+    @Override
+    public ChannelFuture writeAsync(OFMessage m, FloodlightContext bc) {
+        List<OFMessage> msglist = new ArrayList<OFMessage>(1);
+        msglist.add(m);
+        return writeAsync(msglist, bc);
+    }
+
+    @Override
+    public ChannelFuture writeAsync(List<OFMessage> msglist,
+                                    FloodlightContext bc) {
         if (channel == null || !isConnected())
-            return;
+            return notConnected();
+        // Keep the order with the messages buffered in this thread
+        flush();
         for (OFMessage m : msglist) {
             if (role == Role.SLAVE) {
                 switch (m.getType()) {
@@ -813,18 +832,44 @@ public abstract class OFSwitchBase implements IOFSwitch {
             }
             this.floodlightProvider.handleOutgoingMessage(this, m, bc);
         }
-        this.write(msglist);
+        return this.write(new ArrayList<OFMessage>(msglist));
     }
 
     /**
      * Not callable by writers, but allow IOFSwitch implementation to override
-     * @param msglist
-     * @throws IOException
+     * @param msglist the messages, which the caller must not change after
+     * @return a future done once the messages are written to the channel
      */
-    protected void write(List<OFMessage> msglist) {
+    protected ChannelFuture write(List<OFMessage> msglist) {
         if (channel == null || !isConnected())
-            return;
-        this.channel.write(msglist);
+            return notConnected();
+        OFWriteQueue queue = this.writeQueue;
+        if (queue != null)
+            return queue.write(msglist);
+        return this.channel.write(msglist);
+    }
+
+    private ChannelFuture notConnected() {
+        if (channel == null)
+            return null;
+        return Channels.failedFuture(channel, new IOException(
+                "Switch " + stringId + " is not connected"));
+    }
+
+    @Override
+    @JsonIgnore
+    public boolean isWriteBackpressured() {
+        OFWriteQueue queue = this.writeQueue;
+        if (queue != null)
+            return queue.isBackpressured();
+        return channel != null && !channel.isWritable();
+    }
+
+    @Override
+    @JsonIgnore
+    public int getWriteQueueBytes() {
+        OFWriteQueue queue = this.writeQueue;
+        return (queue == null) ? 0 : queue.getQueuedBytes();
     }
 
     @Override
@@ -1143,7 +1188,7 @@ public abstract class OFSwitchBase implements IOFSwitch {
         List<OFMessage> msglist = new ArrayList<OFMessage>(2);
         msglist.add(fm);
         msglist.add(barrierMsg);
-        channel.write(msglist);
+        this.write(msglist);
     }
 
     @Override
@@ -1181,22 +1226,12 @@ public abstract class OFSwitchBase implements IOFSwitch {
         Map<IOFSwitch,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
         List<OFMessage> msglist = msg_buffer_map.get(this);
         if ((msglist != null) && (msglist.size() > 0)) {
-            /* ============================ BIG CAVEAT ===============================
-             * This code currently works, but relies on undocumented behavior of
-             * netty.
-             *
-             * The method org.jboss.netty.channel.Channel.write(Object)
-             * (invoked from this.write(List<OFMessage> msg) is currently
-             * documented to be <emph>asynchronous</emph>. If the method /were/ truely
-             * asynchronous, this would break our code (because we are clearing the
-             * msglist right after calling write.
-             *
-             * For now, Netty actually invokes the conversion pipeline before doing
-             * anything asynchronous, so we are safe. But we should probably change
-             * that behavior.
-             */
+            // The list is handed over to the channel or the write queue,
+            // which may still hold it after write returns. Replacing the
+            // entry is not a structural change to the map, so flush_all
+            // can iterate over it meanwhile.
+            msg_buffer_map.put(this, new ArrayList<OFMessage>());
             this.write(msglist);
-            msglist.clear();
         }
     }
 
@@ -1253,6 +1288,45 @@ public abstract class OFSwitchBase implements IOFSwitch {
         this.featuresFutureMap.remove(transactionId);
     }
 
+    @Override
+    public Future<OFBarrierReply> writeWithBarrier(List<OFMessage> msglist,
+            FloodlightContext bc) throws IOException {
+        OFMessage barrier =
+                floodlightProvider.getOFMessageFactory().
+                    getMessage(OFType.BARRIER_REQUEST);
+        barrier.setXid(getNextTransactionId());
+        OFBarrierReplyFuture future =
+                new OFBarrierReplyFuture(threadPool, this, barrier.getXid());
+        this.barrierFutureMap.put(barrier.getXid(), future);
+        if (channel == null || !isConnected()) {
+            future.cancel(true);
+            return future;
+        }
+        // Anything still buffered for this switch must go out first
+        this.flush();
+        List<OFMessage> batch = new ArrayList<OFMessage>(msglist.size() + 1);
+        batch.addAll(msglist);
+        batch.add(barrier);
+        this.write(batch, bc);
+        return future;
+    }
+
+    @Override
+    public void deliverOFBarrierReply(OFMessage reply) {
+        OFBarrierReplyFuture future = this.barrierFutureMap.get(reply.getXid());
+        if (future != null) {
+            future.deliverFuture(this, reply);
+            // The future will ultimately unregister itself and call
+            // cancelBarrierReply
+        }
+        // Barriers sent without a future (e.g. clearAllFlowMods) land here
+    }
+
+    @Override
+    public void cancelBarrierReply(int transactionId) {
+        this.barrierFutureMap.remove(transactionId);
+    }
+
 
     @Override
     public int getBuffers() {
@@ -1286,6 +1360,8 @@ public abstract class OFSwitchBase implements IOFSwitch {
     @Override
     public void setFloodlightProvider(Controller controller) {
         floodlightProvider = controller;
+        int high = controller.getInputThreshold();
+        setInputThrottleThresholds(high, (high == 0) ? 1 : high / 2, 50, 100);
     }
 
 
@@ -1299,10 +1375,14 @@ public abstract class OFSwitchBase implements IOFSwitch {
     @JsonIgnore
     protected void setInputThrottleThresholds(int pktInHigh, int pktInLow,
             int pktInPerMac, int pktInPerPort) {
-        packetInRateThresholdHigh = pktInHigh;
-        packetInRateThresholdLow = pktInLow;
-        packetInRatePerMacThreshold = pktInPerMac;
-        packetInRatePerPortThreshold = pktInPerPort;
+        packetInThrottle.setThresholds(pktInHigh, pktInLow,
+                                       pktInPerMac, pktInPerPort);
+    }
+
+    @Override
+    @JsonIgnore
+    public Map<String, Object> getInputThrottleInfo() {
+        return packetInThrottle.getInfo();
     }
 
     /**
@@ -1317,14 +1397,12 @@ public abstract class OFSwitchBase implements IOFSwitch {
     /**
      * Determine if this message should be dropped.
      *
-     * We compute the current rate by taking a timestamp every 100 messages.
-     * Could change to a more complex scheme if more accuracy is needed.
-     *
-     * Enable throttling if the rate goes above packetInRateThresholdHigh
-     * Disable throttling when the rate drops below packetInRateThresholdLow
+     * Packet-ins are counted against a token bucket at
+     * packetInRateThresholdHigh. Throttling is enabled when the bucket runs
+     * out and disabled when the rate drops below packetInRateThresholdLow.
      *
-     * While throttling is enabled, we do the following:
-     *  - Remove duplicate packetIn's mapped to the same OFMatch
+     * While throttling is enabled, PacketInThrottle does the following:
+     *  - Remove duplicate packetIn's of the same flow within a second
      *  - After filtering, if packetIn rate per host (mac) is above
      *    packetInRatePerMacThreshold, push a flow mod to block mac on port
      *  - After filtering, if packetIn rate per port is above
@@ -1342,46 +1420,34 @@ public abstract class OFSwitchBase implements IOFSwitch {
             return false;
         }
         ctrSwitchPktin.updateCounterNoFlush();
-        // Compute current packet in rate
-        messageCount++;
-        if (messageCount % 1000 == 0) {
-            long now = System.currentTimeMillis();
-            if (now != lastMessageTime) {
-                currentRate = (int) (1000000 / (now - lastMessageTime));
-                lastMessageTime = now;
-            } else {
-                currentRate = Integer.MAX_VALUE;
-            }
+        long now = System.nanoTime();
+        boolean pass = packetInThrottle.admit(now);
+        if (packetInThrottle.isThrottling() != packetInThrottleEnabled) {
+            if (packetInThrottle.isThrottling())
+                enablePacketInThrottle();
+            else
+                disablePacketInThrottle();
         }
-        if (!packetInThrottleEnabled) {
-            if (currentRate <= packetInRateThresholdHigh) {
-                return false; // most common case
-            }
-            enablePacketInThrottle();
-        } else if (currentRate < packetInRateThresholdLow) {
-            disablePacketInThrottle();
-            return false;
+        if (pass) {
+            return false; // most common case
         }
 
         // Now we are in the slow path where we need to do filtering
-        // First filter based on OFMatch
         OFPacketIn pin = (OFPacketIn)ofm;
-        OFMatch match = new OFMatch();
-        match.loadFromPacket(pin.getPacketData(), pin.getInPort());
-        if (ofMatchCache.update(match)) {
-           ctrSwitchPktinDrops.updateCounterNoFlush();
-            return true;
-        }
-
-        // We have packet in with a distinct flow, check per mac rate
-        messageCountUniqueOFMatch++;
-        if ((messageCountUniqueOFMatch % packetInRatePerMacThreshold) == 1) {
-            checkPerSourceMacRate(pin);
-        }
-
-        // Check per port rate
-        if ((messageCountUniqueOFMatch % packetInRatePerPortThreshold) == 1) {
-            checkPerPortRate(pin);
+        switch (packetInThrottle.filter(pin.getPacketDataView(),
+                                        pin.getInPort(), now)) {
+            case DROP:
+                ctrSwitchPktinDrops.updateCounterNoFlush();
+                return true;
+            case BLOCK_HOST:
+                blockSourceMac(pin.getInPort(),
+                               packetInThrottle.getLastSourceMac());
+                break;
+            case BLOCK_PORT:
+                blockPort(pin.getInPort());
+                break;
+            default:
+                break;
         }
         return false;
     }
@@ -1391,12 +1457,8 @@ public abstract class OFSwitchBase implements IOFSwitch {
      * per packet-in, so no locking is necessary.
      */
     private void disablePacketInThrottle() {
-        ofMatchCache = null;
-        macCache = null;
-        macBlockedCache = null;
-        portCache = null;
-        portBlockedCache = null;
         packetInThrottleEnabled = false;
+        int currentRate = packetInThrottle.getCurrentRate();
         floodlightProvider.addSwitchEvent(this.datapathId,
                 "SWITCH_OVERLOAD_THROTTLE_DISABLED ==>" +
                 "Pktin rate " + currentRate + "/s", false);
@@ -1405,13 +1467,8 @@ public abstract class OFSwitchBase implements IOFSwitch {
     }
 
     private void enablePacketInThrottle() {
-        ofMatchCache = new TimedCache<OFMatch>(2048, 5000); // 5 second interval
-        macCache = new TimedCache<Long>(64, 1000 );  // remember last second
-        macBlockedCache = new TimedCache<Long>(256, 5000 );  // 5 second interval
-        portCache = new TimedCache<Integer>(16, 1000 );  // rememeber last second
-        portBlockedCache = new TimedCache<Integer>(64, 5000 );  // 5 second interval
         packetInThrottleEnabled = true;
-        messageCountUniqueOFMatch = 0;
+        int currentRate = packetInThrottle.getCurrentRate();
         floodlightProvider.addSwitchEvent(this.datapathId,
                 "SWITCH_OVERLOAD_THROTTLE_ENABLED ==>" +
                 "Pktin rate " + currentRate + "/s", false);
@@ -1452,72 +1509,46 @@ public abstract class OFSwitchBase implements IOFSwitch {
                                    "Switch write throttle drop count",
                                    CounterType.ALWAYS_COUNT,
                                    IDebugCounterService.CTR_MDATA_WARN);
+        OFWriteQueue queue = this.writeQueue;
+        if (queue != null)
+            queue.setDropCounter(ctrSwitchWriteDrops);
     }
 
     /**
-     * Check if we have sampled this mac in the last second.
-     * Since we check every packetInRatePerMacThreshold packets,
-     * the presence of the mac in the macCache means the rate is
-     * above the threshold in a statistical sense.
-     *
-     * Take care not to block topology probing packets. Also don't
-     * push blocking flow mod if we have already done so within the
-     * last 5 seconds.
-     *
-     * @param pin
-     * @return
+     * Push a flow mod to block a host that starts too many flows.
+     * PacketInThrottle takes care not to block topology probing packets,
+     * and not to block the same host again within the block time.
      */
-    private void checkPerSourceMacRate(OFPacketIn pin) {
-        byte[] data = pin.getPacketData();
-        byte[] mac = Arrays.copyOfRange(data, 6, 12);
+    private void blockSourceMac(int port, long mac) {
         MACAddress srcMac = MACAddress.valueOf(mac);
-        short ethType = (short) (((data[12] & 0xff) << 8) + (data[13] & 0xff));
-        if (ethType != Ethernet.TYPE_LLDP && ethType != Ethernet.TYPE_BSN &&
-                macCache.update(srcMac.toLong())) {
-            // Check if we already pushed a flow in the last 5 seconds
-            if (macBlockedCache.update(srcMac.toLong())) {
-                return;
-            }
-            // write out drop flow per srcMac
-            int port = pin.getInPort();
-            SwitchPort swPort = new SwitchPort(getId(), port);
-            ForwardingBase.blockHost(floodlightProvider,
-                    swPort, srcMac.toLong(), (short) 5,
-                    AppCookie.makeCookie(OFSWITCH_APP_ID, 0));
-            floodlightProvider.addSwitchEvent(this.datapathId,
-                    "SWITCH_PORT_BLOCKED_TEMPORARILY " +
-                    "OFPort " + port + " mac " + srcMac, false);
-            log.info("Excessive packet in from {} on {}, block host for 5 sec",
-                    srcMac.toString(), swPort);
-        }
+        // write out drop flow per srcMac
+        SwitchPort swPort = new SwitchPort(getId(), port);
+        ForwardingBase.blockHost(floodlightProvider,
+                swPort, mac, PacketInThrottle.BLOCK_SECONDS,
+                AppCookie.makeCookie(OFSWITCH_APP_ID, 0));
+        floodlightProvider.addSwitchEvent(this.datapathId,
+                "SWITCH_PORT_BLOCKED_TEMPORARILY " +
+                "OFPort " + port + " mac " + srcMac, false);
+        log.info("Excessive packet in from {} on {}, block host for 5 sec",
+                srcMac.toString(), swPort);
     }
 
     /**
-     * Works in a similar way as checkPerSourceMacRate().
+     * Works in a similar way as blockSourceMac().
      *
      * TODO Don't block ports with links?
-     *
-     * @param pin
-     * @return
      */
-    private void checkPerPortRate(OFPacketIn pin) {
-        Integer port = pin.getInPort();
-        if (portCache.update(port)) {
-            // Check if we already pushed a flow in the last 5 seconds
-            if (portBlockedCache.update(port)) {
-                return;
-            }
-            // write out drop flow per port
-            SwitchPort swPort = new SwitchPort(getId(), port);
-            ForwardingBase.blockHost(floodlightProvider,
-                    swPort, -1L, (short) 5,
-                    AppCookie.makeCookie(OFSWITCH_APP_ID, 1));
-            floodlightProvider.addSwitchEvent(this.datapathId,
-                    "SWITCH_PORT_BLOCKED_TEMPORARILY " +
-                    "OFPort " + port, false);
-            log.info("Excessive packet in from {}, block port for 5 sec",
-                    swPort);
-        }
+    private void blockPort(int port) {
+        // write out drop flow per port
+        SwitchPort swPort = new SwitchPort(getId(), port);
+        ForwardingBase.blockHost(floodlightProvider,
+                swPort, -1L, PacketInThrottle.BLOCK_SECONDS,
+                AppCookie.makeCookie(OFSWITCH_APP_ID, 1));
+        floodlightProvider.addSwitchEvent(this.datapathId,
+                "SWITCH_PORT_BLOCKED_TEMPORARILY " +
+                "OFPort " + port, false);
+        log.info("Excessive packet in from {}, block port for 5 sec",
+                swPort);
     }
 
     @Override
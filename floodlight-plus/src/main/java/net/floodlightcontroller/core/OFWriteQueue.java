@@ -0,0 +1,270 @@
+package net.floodlightcontroller.core;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.Channels;
+import org.openflow.protocol.OFMessage;
+
+/**
+ * Holds back the messages to a switch while its channel is not writable,
+ * instead of handing them all to netty's unbounded send buffer. Messages
+ * go straight to the channel while it is writable and nothing is held
+ * back; otherwise they are queued and sent, in order, once the channel
+ * reports that it is writable again.
+ *
+ * The queue is backpressured from when it holds highWatermark bytes until
+ * it drains to lowWatermark bytes, which writers can check to slow down.
+ * If the queue has a capacity, a write that does not fit is handled by the
+ * FullPolicy.
+ */
+public class OFWriteQueue {
+    public enum FullPolicy {
+        // Wait up to the block timeout for room, then fail. The queue is
+        // drained on the thread that handles the channel's events, so a
+        // write from a thread dispatching switch messages fails at once
+        // instead of waiting; the controller falls back to FAIL when
+        // dispatch lanes are on.
+        BLOCK,
+        // Drop queued writes of lower or equal priority, oldest first
+        DROP_LOWEST,
+        // Fail the write
+        FAIL
+    }
+
+    protected final Channel channel;
+    protected final int highWatermark;
+    protected final int lowWatermark;
+    protected final int capacity;
+    protected final FullPolicy policy;
+    protected final long blockTimeoutMs;
+
+    // Set while the current thread dispatches messages from a switch
+    protected static final ThreadLocal<Boolean> dispatching =
+            new ThreadLocal<Boolean>();
+
+    protected final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+    protected int queuedBytes = 0;
+    protected volatile boolean backpressured = false;
+    protected volatile IDebugCounter dropCounter;
+
+    protected static class Pending {
+        protected final List<OFMessage> messages;
+        protected final int bytes;
+        protected final int priority;
+        protected final ChannelFuture future;
+
+        protected Pending(List<OFMessage> messages, int bytes, int priority,
+                          ChannelFuture future) {
+            this.messages = messages;
+            this.bytes = bytes;
+            this.priority = priority;
+            this.future = future;
+        }
+    }
+
+    /**
+     * @param channel the channel to the switch
+     * @param highWatermark queued bytes from which the queue is
+     *        backpressured
+     * @param lowWatermark queued bytes below which it no longer is
+     * @param capacity the most bytes the queue holds, or 0 for no limit
+     * @param policy what to do with a write that does not fit
+     * @param blockTimeoutMs how long a write waits for room with BLOCK
+     */
+    public OFWriteQueue(Channel channel, int highWatermark, int lowWatermark,
+                        int capacity, FullPolicy policy, long blockTimeoutMs) {
+        if (lowWatermark > highWatermark)
+            throw new IllegalArgumentException("lowWatermark is above " +
+                                               "highWatermark");
+        this.channel = channel;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+    }
+
+    /**
+     * Mark whether the current thread is dispatching messages from a
+     * switch, so BLOCK writes from it do not wait for a drain that can
+     * only run once it returns
+     */
+    public static void setDispatching(boolean value) {
+        if (value)
+            dispatching.set(Boolean.TRUE);
+        else
+            dispatching.remove();
+    }
+
+    /**
+     * Count the messages dropped or failed because the queue was full
+     */
+    public void setDropCounter(IDebugCounter dropCounter) {
+        this.dropCounter = dropCounter;
+    }
+
+    /**
+     * Write the messages, or queue them if the channel is not writable.
+     * The list is owned by the queue from then on.
+     * @return a future done when the messages have been written to the
+     *         channel, or failed if they were dropped
+     */
+    public ChannelFuture write(List<OFMessage> messages) {
+        int bytes = 0;
+        int priority = 0;
+        for (OFMessage m : messages) {
+            bytes += m.getLengthU();
+            priority = Math.max(priority, getPriority(m));
+        }
+        synchronized (this) {
+            if (queue.isEmpty() && channel.isWritable())
+                return channel.write(messages);
+            if (capacity > 0 && queuedBytes + bytes > capacity &&
+                    !makeRoom(bytes, priority)) {
+                countDrops(messages.size());
+                return Channels.failedFuture(channel, new IOException(
+                        "Write queue to " + channel.getRemoteAddress() +
+                        " is full"));
+            }
+            Pending pending = new Pending(messages, bytes, priority,
+                                          Channels.future(channel));
+            queue.add(pending);
+            queuedBytes += bytes;
+            if (queuedBytes >= highWatermark)
+                backpressured = true;
+            // The channel may have become writable before there was
+            // anything to drain
+            drain();
+            return pending.future;
+        }
+    }
+
+    /**
+     * Send what the channel has room for. Called when the channel reports
+     * a change in writability.
+     */
+    public synchronized void drain() {
+        while (!queue.isEmpty() && channel.isWritable()) {
+            final Pending pending = queue.poll();
+            queuedBytes -= pending.bytes;
+            channel.write(pending.messages).addListener(
+                    new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) {
+                            if (future.isSuccess())
+                                pending.future.setSuccess();
+                            else
+                                pending.future.setFailure(future.getCause());
+                        }
+                    });
+        }
+        if (backpressured && queuedBytes <= lowWatermark)
+            backpressured = false;
+        notifyAll();
+    }
+
+    /**
+     * Fail everything still queued, once the channel is closed
+     */
+    public synchronized void close() {
+        for (Pending pending : queue)
+            pending.future.setFailure(new IOException("Channel to " +
+                    channel.getRemoteAddress() + " closed"));
+        queue.clear();
+        queuedBytes = 0;
+        backpressured = false;
+        notifyAll();
+    }
+
+    public boolean isBackpressured() {
+        return backpressured;
+    }
+
+    public synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Make room for a write of the given size and priority, as the policy
+     * says. Called with the lock held.
+     */
+    protected boolean makeRoom(int bytes, int priority) {
+        switch (policy) {
+            case BLOCK:
+                if (dispatching.get() != null)
+                    return false;
+                long deadline = System.currentTimeMillis() + blockTimeoutMs;
+                try {
+                    while (queuedBytes + bytes > capacity &&
+                            channel.isConnected()) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0)
+                            return false;
+                        wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return queuedBytes + bytes <= capacity;
+            case DROP_LOWEST:
+                // Drop nothing unless that makes enough room
+                int droppable = 0;
+                for (Pending pending : queue) {
+                    if (pending.priority <= priority)
+                        droppable += pending.bytes;
+                }
+                if (queuedBytes - droppable + bytes > capacity)
+                    return false;
+                for (int p = 0; p <= priority; p++) {
+                    Iterator<Pending> it = queue.iterator();
+                    while (it.hasNext() && queuedBytes + bytes > capacity) {
+                        Pending pending = it.next();
+                        if (pending.priority != p)
+                            continue;
+                        it.remove();
+                        queuedBytes -= pending.bytes;
+                        countDrops(pending.messages.size());
+                        pending.future.setFailure(new IOException(
+                                "Dropped from full write queue to " +
+                                channel.getRemoteAddress()));
+                    }
+                }
+                return queuedBytes + bytes <= capacity;
+            case FAIL:
+            default:
+                return false;
+        }
+    }
+
+    protected void countDrops(int messages) {
+        IDebugCounter counter = dropCounter;
+        if (counter != null)
+            counter.updateCounterNoFlush(messages);
+    }
+
+    /**
+     * Packet-outs are dropped first, then flow table changes; the messages
+     * that keep the connection and the switch state working come last
+     */
+    protected static int getPriority(OFMessage m) {
+        switch (m.getType()) {
+            case PACKET_OUT:
+                return 0;
+            case FLOW_MOD:
+            case GROUP_MOD:
+            case METER_MOD:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package net.floodlightcontroller.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.CountMinSketch;
+import net.floodlightcontroller.util.MACAddress;
+import net.floodlightcontroller.util.TokenBucket;
+
+/**
+ * Decides which packet-ins of a switch to drop, and which hosts and ports
+ * to block, when the switch sends more packet-ins than the controller
+ * should handle.
+ *
+ * A token bucket at the high threshold guards the switch. Once it runs
+ * out, throttling starts and lasts until the measured rate falls below the
+ * low threshold. While throttling:
+ *  - a packet-in for a flow already seen in the current second is dropped,
+ *    as counted by a count-min sketch of the packet headers
+ *  - a source mac that sent more new flows this second than the per mac
+ *    threshold is blocked on its port, as counted by a second sketch
+ *  - a port whose token bucket of new flows at the per port threshold runs
+ *    out is blocked
+ *
+ * Every decision takes constant time and, once throttling has started,
+ * allocates nothing. The heaviest macs and 5-tuples are kept for display.
+ *
+ * Times are in nanoseconds, as from System.nanoTime(). Not thread safe:
+ * the messages of a switch are handled by one thread at a time. getInfo
+ * may be called from other threads and then shows a racy but harmless
+ * snapshot.
+ */
+public class PacketInThrottle {
+    public enum Verdict {
+        PASS,
+        DROP,
+        // Pass the packet-in, and block its source mac on its port
+        BLOCK_HOST,
+        // Pass the packet-in, and block its port
+        BLOCK_PORT
+    }
+
+    /** How long a blocked host or port stays blocked */
+    public static final short BLOCK_SECONDS = 5;
+
+    protected static final long RATE_WINDOW_NS =
+            TimeUnit.MILLISECONDS.toNanos(100);
+    protected static final long SKETCH_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+    protected static final long BLOCK_NS =
+            TimeUnit.SECONDS.toNanos(BLOCK_SECONDS);
+    protected static final int SKETCH_DEPTH = 4;
+    protected static final int SKETCH_WIDTH = 2048;
+    protected static final int MAX_OFFENDERS = 16;
+    // Ports with a bucket of their own; any others share one more
+    protected static final int MAX_PORTS = 256;
+
+    // All rates in per second
+    protected int rateThresholdHigh;
+    protected int rateThresholdLow;
+    protected int ratePerMacThreshold;
+    protected int ratePerPortThreshold;
+
+    protected final TokenBucket switchBucket;
+    protected boolean throttling = false;
+    protected long windowStart;
+    protected int windowCount = 0;
+    protected int currentRate = 0;
+
+    // Allocated when throttling starts for the first time
+    protected CountMinSketch flows;
+    protected CountMinSketch macs;
+    protected Offenders macOffenders;
+    protected Offenders flowOffenders;
+    protected int[] portNumbers;
+    protected TokenBucket[] portBuckets;
+    protected long[] portBlockedUntil;
+    protected long sketchWindowStart;
+
+    protected long lastSourceMac;
+
+    /**
+     * @param high start throttling above this rate, 0 for never
+     * @param low stop throttling below this rate
+     * @param perMac block a host that starts more new flows a second
+     * @param perPort block a port that starts more new flows a second
+     */
+    public PacketInThrottle(int high, int low, int perMac, int perPort) {
+        this.switchBucket = new TokenBucket(0, 0);
+        this.windowStart = System.nanoTime();
+        setThresholds(high, low, perMac, perPort);
+    }
+
+    public void setThresholds(int high, int low, int perMac, int perPort) {
+        this.rateThresholdHigh = (high == 0) ? Integer.MAX_VALUE : high;
+        this.rateThresholdLow = low;
+        this.ratePerMacThreshold = perMac;
+        this.ratePerPortThreshold = perPort;
+        switchBucket.setRate(rateThresholdHigh, rateThresholdHigh);
+        if (portBuckets != null) {
+            for (TokenBucket bucket : portBuckets)
+                if (bucket != null)
+                    bucket.setRate(perPort, perPort);
+        }
+    }
+
+    public boolean isThrottling() {
+        return throttling;
+    }
+
+    /**
+     * The packet-in rate measured over the last window
+     */
+    public int getCurrentRate() {
+        return currentRate;
+    }
+
+    /**
+     * The source mac of the last packet-in filtered, which BLOCK_HOST
+     * refers to
+     */
+    public long getLastSourceMac() {
+        return lastSourceMac;
+    }
+
+    /**
+     * Count a packet-in and update whether the switch is throttled
+     * @param now the current time
+     * @return true if the packet-in passes without looking at it, false if
+     *         it has to be filtered
+     */
+    public boolean admit(long now) {
+        windowCount++;
+        long elapsed = now - windowStart;
+        if (elapsed >= RATE_WINDOW_NS) {
+            currentRate = (int) Math.min(Integer.MAX_VALUE,
+                    windowCount * 1000000000L / elapsed);
+            windowCount = 0;
+            windowStart = now;
+            if (throttling && currentRate < rateThresholdLow)
+                throttling = false;
+        }
+        boolean allowed = switchBucket.tryTake(now);
+        if (!throttling) {
+            if (allowed)
+                return true;
+            startThrottling(now);
+        }
+        if (now - sketchWindowStart >= SKETCH_WINDOW_NS) {
+            flows.clear();
+            macs.clear();
+            macOffenders.decay(now);
+            flowOffenders.decay(now);
+            sketchWindowStart = now;
+        }
+        return false;
+    }
+
+    /**
+     * Decide on a packet-in while throttling
+     * @param data the packet, from its position to its limit
+     * @param inPort the port the packet came in on
+     * @param now the current time
+     */
+    public Verdict filter(ByteBuffer data, int inPort, long now) {
+        int base = data.position();
+        int limit = data.limit();
+        if (limit - base < 14)
+            return Verdict.PASS;
+        long dstMac = getMAC(data, base);
+        long srcMac = getMAC(data, base + 6);
+        int etherType = data.getShort(base + 12) & 0xffff;
+        int l3 = base + 14;
+        int vlan = 0;
+        if (etherType == 0x8100 && limit - base >= 18) {
+            vlan = data.getShort(base + 14) & 0xffff;
+            etherType = data.getShort(base + 16) & 0xffff;
+            l3 = base + 18;
+        }
+
+        // The headers a flow match would be loaded from
+        long flowKey = CountMinSketch.mix(dstMac) ^ (inPort & 0xffffffffL);
+        flowKey = CountMinSketch.mix(flowKey) ^ srcMac ^
+                ((long) etherType << 48);
+        flowKey = CountMinSketch.mix(flowKey) ^ vlan;
+        boolean isIp = false;
+        long addresses = 0;
+        long protocolPorts = 0;
+        if (etherType == (Ethernet.TYPE_IPv4 & 0xffff) && limit - l3 >= 20) {
+            isIp = true;
+            int headerLength = (data.get(l3) & 0xf) * 4;
+            int protocol = data.get(l3 + 9) & 0xff;
+            addresses = ((long) data.getInt(l3 + 12) << 32) |
+                    (data.getInt(l3 + 16) & 0xffffffffL);
+            int l4 = l3 + headerLength;
+            long ports = 0;
+            if (protocol == 1 && limit - l4 >= 2) {
+                // icmp type and code
+                ports = data.getShort(l4) & 0xffffL;
+            } else if ((protocol == 6 || protocol == 17 || protocol == 132) &&
+                    limit - l4 >= 4) {
+                ports = data.getInt(l4) & 0xffffffffL;
+            }
+            protocolPorts = ((long) protocol << 32) | ports;
+            flowKey = CountMinSketch.mix(flowKey ^ addresses);
+            flowKey ^= protocolPorts ^ ((long) data.get(l3 + 1) << 40);
+        }
+
+        int seen = flows.add(flowKey);
+        if (seen > 1) {
+            if (isIp)
+                flowOffenders.offer(addresses, protocolPorts, seen);
+            return Verdict.DROP;
+        }
+
+        // A new flow
+        lastSourceMac = srcMac;
+        if (ratePerMacThreshold > 0 &&
+                etherType != (Ethernet.TYPE_LLDP & 0xffff) &&
+                etherType != (Ethernet.TYPE_BSN & 0xffff)) {
+            int count = macs.add(srcMac);
+            int slot = macOffenders.offer(srcMac, inPort, count);
+            if (count >= ratePerMacThreshold && slot >= 0 &&
+                    macOffenders.block(slot, now))
+                return Verdict.BLOCK_HOST;
+        }
+        int port = getPortSlot(inPort);
+        if (!portBuckets[port].tryTake(now) &&
+                (portBlockedUntil[port] == 0 ||
+                 portBlockedUntil[port] - now <= 0)) {
+            portBlockedUntil[port] = now + BLOCK_NS;
+            return Verdict.BLOCK_PORT;
+        }
+        return Verdict.PASS;
+    }
+
+    protected void startThrottling(long now) {
+        if (flows == null) {
+            flows = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+            macs = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+            macOffenders = new Offenders(MAX_OFFENDERS);
+            flowOffenders = new Offenders(MAX_OFFENDERS);
+            portNumbers = new int[MAX_PORTS + 1];
+            portBuckets = new TokenBucket[MAX_PORTS + 1];
+            portBlockedUntil = new long[MAX_PORTS + 1];
+            portBuckets[MAX_PORTS] = new TokenBucket(ratePerPortThreshold,
+                                                     ratePerPortThreshold);
+        }
+        // Start from a clean window
+        sketchWindowStart = now - SKETCH_WINDOW_NS;
+        throttling = true;
+    }
+
+    /**
+     * Find the bucket of a port by open addressing, adding it the first
+     * time the port is seen
+     */
+    protected int getPortSlot(int port) {
+        int mask = MAX_PORTS - 1;
+        int i = (port * 0x9e3779b9) >>> 24 & mask;
+        for (int n = 0; n < MAX_PORTS / 2; n++, i = (i + 1) & mask) {
+            if (portBuckets[i] == null) {
+                portNumbers[i] = port;
+                portBuckets[i] = new TokenBucket(ratePerPortThreshold,
+                                                 ratePerPortThreshold);
+                return i;
+            }
+            if (portNumbers[i] == port)
+                return i;
+        }
+        return MAX_PORTS;
+    }
+
+    private static long getMAC(ByteBuffer data, int offset) {
+        return ((data.getShort(offset) & 0xffffL) << 32) |
+                (data.getInt(offset + 2) & 0xffffffffL);
+    }
+
+    /**
+     * The thresholds, the state and the heaviest senders, for display
+     */
+    public Map<String, Object> getInfo() {
+        long now = System.nanoTime();
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("rateThresholdHigh", rateThresholdHigh);
+        info.put("rateThresholdLow", rateThresholdLow);
+        info.put("ratePerMacThreshold", ratePerMacThreshold);
+        info.put("ratePerPortThreshold", ratePerPortThreshold);
+        info.put("blockSeconds", BLOCK_SECONDS);
+        info.put("throttling", throttling);
+        info.put("currentRate", currentRate);
+        info.put("tokens", switchBucket.getTokens(now));
+
+        List<Map<String, Object>> hosts = new ArrayList<Map<String, Object>>();
+        List<Map<String, Object>> flowList =
+                new ArrayList<Map<String, Object>>();
+        List<Map<String, Object>> ports = new ArrayList<Map<String, Object>>();
+        Offenders macOffenders = this.macOffenders;
+        Offenders flowOffenders = this.flowOffenders;
+        TokenBucket[] portBuckets = this.portBuckets;
+        if (macOffenders != null) {
+            for (int i = 0; i < macOffenders.size; i++) {
+                Map<String, Object> host = new HashMap<String, Object>();
+                host.put("mac", MACAddress.valueOf(macOffenders.keys[i])
+                         .toString());
+                host.put("port", (int) macOffenders.aux[i]);
+                host.put("newFlows", macOffenders.counts[i]);
+                host.put("blocked", macOffenders.isBlocked(i, now));
+                hosts.add(host);
+            }
+            for (int i = 0; i < flowOffenders.size; i++) {
+                long addresses = flowOffenders.keys[i];
+                long protocolPorts = flowOffenders.aux[i];
+                Map<String, Object> flow = new HashMap<String, Object>();
+                flow.put("src", IPv4.fromIPv4Address((int) (addresses >>> 32)));
+                flow.put("dst", IPv4.fromIPv4Address((int) addresses));
+                flow.put("protocol", (int) (protocolPorts >>> 32));
+                flow.put("srcPort", (int) ((protocolPorts >>> 16) & 0xffff));
+                flow.put("dstPort", (int) (protocolPorts & 0xffff));
+                flow.put("duplicates", flowOffenders.counts[i]);
+                flowList.add(flow);
+            }
+            for (int i = 0; i < portBuckets.length; i++) {
+                if (portBuckets[i] == null)
+                    continue;
+                Map<String, Object> port = new HashMap<String, Object>();
+                port.put("port", (i == MAX_PORTS) ? "other" :
+                         (Object) portNumbers[i]);
+                port.put("tokens", portBuckets[i].getTokens(now));
+                port.put("blocked", portBlockedUntil[i] != 0 &&
+                         portBlockedUntil[i] - now > 0);
+                ports.add(port);
+            }
+        }
+        info.put("hosts", hosts);
+        info.put("flows", flowList);
+        info.put("ports", ports);
+        return info;
+    }
+
+    /**
+     * The keys with the highest counts offered, in a fixed number of slots.
+     * Counts are halved every window so that old offenders make way.
+     */
+    protected static class Offenders {
+        protected final long[] keys;
+        protected final long[] aux;
+        protected final int[] counts;
+        protected final long[] blockedUntil;
+        protected int size = 0;
+
+        protected Offenders(int capacity) {
+            keys = new long[capacity];
+            aux = new long[capacity];
+            counts = new int[capacity];
+            blockedUntil = new long[capacity];
+        }
+
+        /**
+         * @return the slot of the key, or -1 if its count is too low to
+         *         take one
+         */
+        protected int offer(long key, long aux, int count) {
+            int min = -1;
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key && this.aux[i] == aux) {
+                    if (count > counts[i])
+                        counts[i] = count;
+                    return i;
+                }
+                if (min < 0 || counts[i] < counts[min])
+                    min = i;
+            }
+            int slot;
+            if (size < keys.length) {
+                slot = size++;
+            } else if (count > counts[min]) {
+                slot = min;
+            } else {
+                return -1;
+            }
+            keys[slot] = key;
+            this.aux[slot] = aux;
+            counts[slot] = count;
+            blockedUntil[slot] = 0;
+            return slot;
+        }
+
+        protected boolean isBlocked(int slot, long now) {
+            return blockedUntil[slot] != 0 && blockedUntil[slot] - now > 0;
+        }
+
+        /**
+         * @return false if the slot is blocked already
+         */
+        protected boolean block(int slot, long now) {
+            if (isBlocked(slot, now))
+                return false;
+            blockedUntil[slot] = now + BLOCK_NS;
+            return true;
+        }
+
+        /**
+         * Halve the counts, dropping the keys that reach 0 unless they are
+         * blocked
+         */
+        protected void decay(long now) {
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                int count = counts[i] >> 1;
+                if (count == 0 && !isBlocked(i, now))
+                    continue;
+                keys[j] = keys[i];
+                aux[j] = aux[i];
+                counts[j] = count;
+                blockedUntil[j] = blockedUntil[i];
+                j++;
+            }
+            size = j;
+        }
+    }
+}
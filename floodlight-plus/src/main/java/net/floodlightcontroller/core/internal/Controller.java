@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Arrays;
@@ -36,7 +38,6 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Stack;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -47,6 +48,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
 import net.floodlightcontroller.core.HAListenerTypeMarker;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IHAListener;
@@ -61,6 +63,7 @@ import net.floodlightcontroller.core.IOFSwitchListener;
 import net.floodlightcontroller.core.IReadyForReconcileListener;
 import net.floodlightcontroller.core.ImmutablePort;
 import net.floodlightcontroller.core.OFSwitchBase;
+import net.floodlightcontroller.core.OFWriteQueue;
 import net.floodlightcontroller.core.RoleInfo;
 import net.floodlightcontroller.core.SwitchSyncRepresentation;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
@@ -83,6 +86,7 @@ import net.floodlightcontroller.debugevent.IDebugEventService.MaxEventsRegistere
 import net.floodlightcontroller.notification.INotificationManager;
 import net.floodlightcontroller.notification.NotificationManagerFactory;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketHeaderView;
 import net.floodlightcontroller.perfmon.IPktInProcessingTimeService;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.storage.IResultSet;
@@ -94,6 +98,7 @@ import net.floodlightcontroller.util.LoadMonitor;
 import net.floodlightcontroller.util.TimedCache;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
@@ -169,6 +174,43 @@ public class Controller implements IFloodlightProviderService,
     protected String openFlowHost = null;
     protected int openFlowPort = 6633;
     protected int workerThreads = 0;
+    // Whether packet-in data is left in the received frame instead of copied
+    protected boolean zeroCopyPacketIn = false;
+    // Pool OpenFlow messages are encoded into for writing, or null to
+    // allocate a buffer for every write
+    protected DirectBufferPool writeBufferPool = null;
+    // Size of the pooled buffers a batch of writes is packed into, or 0 for
+    // one buffer per batch
+    protected int writeChunkSize = 0;
+    // Queued bytes from which a switch's write queue is backpressured, or
+    // 0 to write to switch channels directly
+    protected int writeQueueHigh = 0;
+    protected int writeQueueLow = 0;
+    // The most bytes a write queue holds, or 0 for no limit
+    protected int writeQueueSize = 0;
+    protected OFWriteQueue.FullPolicy writeQueuePolicy =
+            OFWriteQueue.FullPolicy.FAIL;
+    protected long writeQueueBlockMs = 100;
+    // Hands switch messages from the I/O threads to ordered dispatch lanes,
+    // or null to dispatch them on the I/O threads
+    protected OrderedDispatchHandler dispatchHandler = null;
+    // Dispatches updates on per switch partitions, or null to dispatch
+    // them all from the main loop
+    protected UpdateEventBus updateBus = null;
+    // Whether packet-in payloads are only parsed when a listener asks for
+    // CONTEXT_PI_PAYLOAD
+    protected boolean lazyPacketDecode = false;
+    // Packet-in rate per second above which a switch is throttled
+    protected int inputThreshold =
+            Integer.parseInt(System.getProperty("input_threshold", "1000"));
+    // Per I/O thread array packet-in data is decoded from in zero-copy mode
+    protected static final ThreadLocal<byte[]> packetInScratch =
+            new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[0];
+                }
+            };
 
 
     // This controller's current role that modules can use/query to decide
@@ -1436,6 +1478,21 @@ public class Controller implements IFloodlightProviderService,
         public void dispatch();
     }
 
+    /**
+     * Updates about a single switch. With update partitions these are
+     * dispatched in order with the other updates of the same switch, but
+     * in parallel with those of other switches.
+     */
+    interface ISwitchUpdate extends IUpdate {
+        public long getSwitchId();
+
+        /**
+         * @return true if dispatching this update makes dispatching the
+         * pending update of the same switch unnecessary
+         */
+        public boolean supersedes(ISwitchUpdate pending);
+    }
+
     /**
      * Update message that indicates that the controller can now start
      * flow reconciliation after a SLAVE->MASTER transition
@@ -1464,7 +1521,7 @@ public class Controller implements IFloodlightProviderService,
     /**
      * Update message indicating a switch was added or removed
      */
-    private class SwitchUpdate implements IUpdate {
+    private class SwitchUpdate implements ISwitchUpdate {
         private final long swId;
         private final SwitchUpdateType switchUpdateType;
         private final ImmutablePort port;
@@ -1500,6 +1557,29 @@ public class Controller implements IFloodlightProviderService,
             this.changeType = changeType;
         }
         @Override
+        public long getSwitchId() {
+            return swId;
+        }
+        @Override
+        public boolean supersedes(ISwitchUpdate pending) {
+            if (!(pending instanceof SwitchUpdate))
+                return false;
+            SwitchUpdate other = (SwitchUpdate) pending;
+            if (other.swId != swId ||
+                    other.switchUpdateType != switchUpdateType)
+                return false;
+            switch (switchUpdateType) {
+                case PORTCHANGED:
+                    // The listeners only see the latest state of the port
+                    return other.changeType == changeType &&
+                            other.port.getPortNumber() == port.getPortNumber();
+                case OTHERCHANGE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        @Override
         public void dispatch() {
             if (log.isTraceEnabled()) {
                 log.trace("Dispatching switch update {} {}",
@@ -1703,11 +1783,11 @@ public class Controller implements IFloodlightProviderService,
     /**
      * flcontext_cache - Keep a thread local stack of contexts
      */
-    protected static final ThreadLocal<Stack<FloodlightContext>> flcontext_cache =
-        new ThreadLocal <Stack<FloodlightContext>> () {
+    protected static final ThreadLocal<ArrayDeque<FloodlightContext>> flcontext_cache =
+        new ThreadLocal <ArrayDeque<FloodlightContext>> () {
             @Override
-            protected Stack<FloodlightContext> initialValue() {
-                return new Stack<FloodlightContext>();
+            protected ArrayDeque<FloodlightContext> initialValue() {
+                return new ArrayDeque<FloodlightContext>();
             }
         };
 
@@ -1716,14 +1796,11 @@ public class Controller implements IFloodlightProviderService,
      * @return FloodlightContext
      */
     protected static FloodlightContext flcontext_alloc() {
-        FloodlightContext flcontext = null;
+        FloodlightContext flcontext = flcontext_cache.get().pollFirst();
 
-        if (flcontext_cache.get().empty()) {
+        if (flcontext == null) {
             flcontext = new FloodlightContext();
         }
-        else {
-            flcontext = flcontext_cache.get().pop();
-        }
 
         return flcontext;
     }
@@ -1733,8 +1810,8 @@ public class Controller implements IFloodlightProviderService,
      * @param flcontext
      */
     protected void flcontext_free(FloodlightContext flcontext) {
-        flcontext.getStorage().clear();
-        flcontext_cache.get().push(flcontext);
+        flcontext.reset();
+        flcontext_cache.get().addFirst(flcontext);
     }
 
 
@@ -1769,6 +1846,7 @@ public class Controller implements IFloodlightProviderService,
                                  FloodlightContext bContext)
             throws IOException {
         Ethernet eth = null;
+        PacketHeaderView headers = null;
 
         if (this.notifiedRole == Role.SLAVE) {
             counters.dispatchMessageWhileSlave.updateCounterNoFlush();
@@ -1781,16 +1859,37 @@ public class Controller implements IFloodlightProviderService,
             case PACKET_IN:
                 OFPacketIn pi = (OFPacketIn)m;
 
-                if (pi.getPacketData().length <= 0) {
+                if (pi.getPacketDataLength() <= 0) {
                     log.error("Ignoring PacketIn (Xid = " + pi.getXid() +
                               ") because the data field is empty.");
                     return;
                 }
 
-                if (Controller.ALWAYS_DECODE_ETH) {
+                if (lazyPacketDecode) {
+                    // Only lazy decoding pays for the header view; the
+                    // eager path leaves listeners the decoded frame
+                    headers = new PacketHeaderView(zeroCopyPacketIn
+                            ? pi.getSharedPacketData()
+                            : ByteBuffer.wrap(pi.getPacketData()));
+                    counterStore.updatePacketInCountersLocal(sw, m, headers);
+                } else if (Controller.ALWAYS_DECODE_ETH) {
                     eth = new Ethernet();
-                    eth.deserialize(pi.getPacketData(), 0,
-                            pi.getPacketData().length);
+                    int dataLength = pi.getPacketDataLength();
+                    byte[] data;
+                    if (zeroCopyPacketIn) {
+                        // Packet classes copy whatever they keep, so the
+                        // data can be read from a reused array instead of
+                        // retaining it
+                        data = packetInScratch.get();
+                        if (data.length < dataLength) {
+                            data = new byte[dataLength];
+                            packetInScratch.set(data);
+                        }
+                        pi.getPacketDataView().get(data, 0, dataLength);
+                    } else {
+                        data = pi.getPacketData();
+                    }
+                    eth.deserialize(data, 0, dataLength);
                     counterStore.updatePacketInCountersLocal(sw, m, eth);
                 }
                 // fall through to default case...
@@ -1814,9 +1913,20 @@ public class Controller implements IFloodlightProviderService,
                         bc = bContext;
                     }
                     if (eth != null) {
-                        IFloodlightProviderService.bcStore.put(bc,
-                                IFloodlightProviderService.CONTEXT_PI_PAYLOAD,
-                                eth);
+                        IFloodlightProviderService.piPayloadKey.put(bc, eth);
+                    } else if (headers != null) {
+                        final PacketHeaderView view = headers;
+                        IFloodlightProviderService.piPayloadKey.putLazy(bc,
+                                new FloodlightContextStore.Lazy<Ethernet>() {
+                                    @Override
+                                    public Ethernet compute() {
+                                        return view.getEthernet();
+                                    }
+                                });
+                    }
+                    if (headers != null) {
+                        IFloodlightProviderService.piHeadersKey.put(bc,
+                                headers);
                     }
 
                     // Get the starting time (overall and per-component) of
@@ -2014,6 +2124,9 @@ public class Controller implements IFloodlightProviderService,
     @LogMessageDoc(message="Calling System.exit",
                    explanation="The controller is terminating")
     public synchronized void terminate() {
+        if (updateBus != null) {
+            updateBus.shutdown();
+        }
         log.info("Calling System.exit");
         System.exit(1);
     }
@@ -2177,6 +2290,12 @@ public class Controller implements IFloodlightProviderService,
             throw new RuntimeException(e);
         }
 
+        // Updates posted so far wait in the partitions until now. The main
+        // loop below then only sees updates if there are no partitions.
+        if (updateBus != null) {
+            updateBus.start();
+        }
+
         // main loop
         while (true) {
             try {
@@ -2221,6 +2340,97 @@ public class Controller implements IFloodlightProviderService,
             this.workerThreads = Integer.parseInt(threads);
         }
         log.debug("Number of worker threads set to {}", this.workerThreads);
+        String zeroCopy = configParams.get("zerocopypacketin");
+        if (zeroCopy != null) {
+            this.zeroCopyPacketIn = Boolean.parseBoolean(zeroCopy);
+        }
+        log.debug("Zero-copy packet-in set to {}", this.zeroCopyPacketIn);
+        String bufferPool = configParams.get("writebufferpool");
+        if (bufferPool != null && Boolean.parseBoolean(bufferPool)) {
+            this.writeBufferPool = new DirectBufferPool();
+        }
+        log.debug("Pooled write buffers set to {}",
+                  this.writeBufferPool != null);
+        String chunkSize = configParams.get("writechunksize");
+        if (chunkSize != null) {
+            this.writeChunkSize = Integer.parseInt(chunkSize);
+        }
+        log.debug("Write chunk size set to {}", this.writeChunkSize);
+        String queueHigh = configParams.get("writequeuehigh");
+        if (queueHigh != null) {
+            this.writeQueueHigh = Integer.parseInt(queueHigh);
+            this.writeQueueLow = this.writeQueueHigh / 2;
+        }
+        String queueLow = configParams.get("writequeuelow");
+        if (queueLow != null) {
+            this.writeQueueLow = Integer.parseInt(queueLow);
+        }
+        String queueMax = configParams.get("writequeuesize");
+        if (queueMax != null) {
+            this.writeQueueSize = Integer.parseInt(queueMax);
+        }
+        String queuePolicy = configParams.get("writequeuepolicy");
+        if (queuePolicy != null) {
+            try {
+                this.writeQueuePolicy = OFWriteQueue.FullPolicy.valueOf(
+                        queuePolicy.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                log.warn("Error parsing write queue policy {}, using " +
+                         "default of {}", queuePolicy, this.writeQueuePolicy);
+            }
+        }
+        String blockMs = configParams.get("writequeueblockms");
+        if (blockMs != null) {
+            this.writeQueueBlockMs = Long.parseLong(blockMs);
+        }
+        if (this.writeQueueHigh > 0) {
+            log.debug("Switch write queues backpressured from {} to {} " +
+                      "bytes, holding at most {} bytes, {} when full",
+                      new Object[] { this.writeQueueHigh, this.writeQueueLow,
+                                     this.writeQueueSize,
+                                     this.writeQueuePolicy });
+        }
+        String lazyDecode = configParams.get("lazypacketdecode");
+        if (lazyDecode != null) {
+            this.lazyPacketDecode = Boolean.parseBoolean(lazyDecode);
+        }
+        log.debug("Lazy packet-in decoding set to {}", this.lazyPacketDecode);
+        String threshold = configParams.get("inputthreshold");
+        if (threshold != null) {
+            this.inputThreshold = Integer.parseInt(threshold);
+        }
+        log.debug("Packet-in throttling threshold set to {}",
+                  this.inputThreshold);
+        String lanes = configParams.get("dispatchlanes");
+        if (lanes != null && Integer.parseInt(lanes) > 0) {
+            int queueSize = 1024;
+            String size = configParams.get("dispatchqueuesize");
+            if (size != null) {
+                queueSize = Integer.parseInt(size);
+            }
+            String pause = configParams.get("dispatchpausereads");
+            boolean pauseReads = (pause == null) || Boolean.parseBoolean(pause);
+            this.dispatchHandler = new OrderedDispatchHandler(
+                    Integer.parseInt(lanes), queueSize, pauseReads);
+            log.debug("Dispatching switch messages on {} lanes of {} " +
+                      "events, pausing reads when full {}",
+                      new Object[] { lanes, queueSize, pauseReads });
+            // A listener on a lane would wait for the lane to drain the
+            // queue of its own switch
+            if (this.writeQueuePolicy == OFWriteQueue.FullPolicy.BLOCK) {
+                log.warn("Write queue policy {} cannot be used with " +
+                         "dispatch lanes, using {}",
+                         OFWriteQueue.FullPolicy.BLOCK,
+                         OFWriteQueue.FullPolicy.FAIL);
+                this.writeQueuePolicy = OFWriteQueue.FullPolicy.FAIL;
+            }
+        }
+        String partitions = configParams.get("updatepartitions");
+        if (partitions != null && Integer.parseInt(partitions) > 0) {
+            this.updateBus = new UpdateEventBus(Integer.parseInt(partitions),
+                                                this);
+            log.debug("Dispatching updates on {} partitions", partitions);
+        }
 
     }
 
@@ -2340,6 +2550,10 @@ public class Controller implements IFloodlightProviderService,
 
         try {
             this.counters.createCounters(debugCounters);
+            if (this.dispatchHandler != null)
+                this.dispatchHandler.createCounters(debugCounters);
+            if (this.updateBus != null)
+                this.updateBus.createCounters(debugCounters);
         } catch (CounterException e) {
             throw new FloodlightModuleException(e.getMessage());
         }
@@ -2577,6 +2791,62 @@ public class Controller implements IFloodlightProviderService,
         this.alwaysClearFlowsOnSwActivate = value;
     }
 
+    /**
+     * Whether packet-in data is left in the received frame during dispatch
+     * instead of being copied
+     */
+    boolean isZeroCopyPacketIn() {
+        return this.zeroCopyPacketIn;
+    }
+
+    /**
+     * The pool OpenFlow messages are encoded into, or null if writes
+     * allocate their own buffers
+     */
+    DirectBufferPool getWriteBufferPool() {
+        return this.writeBufferPool;
+    }
+
+    int getWriteChunkSize() {
+        return this.writeChunkSize;
+    }
+
+    /**
+     * The packet-in rate per second above which switches are throttled,
+     * or 0 to never throttle
+     */
+    public int getInputThreshold() {
+        return this.inputThreshold;
+    }
+
+    /**
+     * Create the write queue for a switch channel, or return null if
+     * writes go to the channel directly
+     */
+    OFWriteQueue createWriteQueue(Channel channel) {
+        if (this.writeQueueHigh <= 0)
+            return null;
+        return new OFWriteQueue(channel, this.writeQueueHigh,
+                                this.writeQueueLow, this.writeQueueSize,
+                                this.writeQueuePolicy, this.writeQueueBlockMs);
+    }
+
+    /**
+     * The handler that moves switch messages onto dispatch lanes, or null if
+     * they are dispatched on the I/O threads
+     */
+    OrderedDispatchHandler getDispatchHandler() {
+        return this.dispatchHandler;
+    }
+
+    /**
+     * The partitions updates are dispatched on, or null if they are
+     * dispatched by the main loop
+     */
+    UpdateEventBus getUpdateBus() {
+        return this.updateBus;
+    }
+
 
     @Override
     public Map<String, Long> getMemory() {
@@ -2584,6 +2854,13 @@ public class Controller implements IFloodlightProviderService,
         Runtime runtime = Runtime.getRuntime();
         m.put("total", runtime.totalMemory());
         m.put("free", runtime.freeMemory());
+        DirectBufferPool pool = this.writeBufferPool;
+        if (pool != null) {
+            m.put("writeBufferHits", pool.getHits());
+            m.put("writeBufferMisses", pool.getMisses());
+            m.put("writeBufferRequested", pool.getRequestedBytes());
+            m.put("writeBufferReserved", pool.getReservedBytes());
+        }
         return m;
     }
 
@@ -2624,6 +2901,10 @@ public class Controller implements IFloodlightProviderService,
                         " to its message queue but the add failed.",
             recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
     private void addUpdateToQueue(IUpdate update) {
+        if (this.updateBus != null) {
+            this.updateBus.post(update);
+            return;
+        }
         try {
             this.updates.put(update);
         } catch (InterruptedException e) {
@@ -2691,6 +2972,12 @@ public class Controller implements IFloodlightProviderService,
         Map<String, Object> info = new HashMap<String, Object>();
 
         info.put("# Switches", this.getAllSwitchDpids().size());
+        if (this.updateBus != null) {
+            int[] depths = new int[this.updateBus.getPartitionCount()];
+            for (int i = 0; i < depths.length; i++)
+                depths[i] = this.updateBus.getDepth(i);
+            info.put("# Pending updates per partition", depths);
+        }
         return info;
     }
 }
@@ -0,0 +1,151 @@
+package net.floodlightcontroller.core.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers for encoding OpenFlow messages, so that writes do
+ * not allocate and free direct memory every time.
+ *
+ * Buffers come in power of two size classes. A request is served from the
+ * smallest class that fits; requests larger than the largest class get a
+ * buffer of their own which is not pooled. Each class keeps at most a fixed
+ * number of bytes of free buffers.
+ *
+ * Buffers are acquired by whichever thread writes to a switch and released
+ * by the netty I/O thread once the write completes, so the free lists are
+ * shared between threads rather than kept per thread.
+ */
+public class DirectBufferPool {
+    public static final int MIN_CLASS_SIZE = 512;
+    public static final int MAX_CLASS_SIZE = 64 * 1024;
+    public static final int DEFAULT_BYTES_PER_CLASS = 1024 * 1024;
+
+    private final List<Queue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCount;
+    private final int[] maxFree;
+
+    // Requests served from a free list, and requests that allocated
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // Bytes asked for, and bytes handed out; the difference is lost to
+    // rounding up to a size class
+    private final AtomicLong requestedBytes = new AtomicLong();
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEFAULT_BYTES_PER_CLASS);
+    }
+
+    /**
+     * @param bytesPerClass the most bytes of free buffers kept in each size
+     *        class; each class keeps at least one buffer
+     */
+    public DirectBufferPool(int bytesPerClass) {
+        int classes = classOf(MAX_CLASS_SIZE) + 1;
+        this.free = new ArrayList<Queue<ByteBuffer>>(classes);
+        this.freeCount = new AtomicInteger[classes];
+        this.maxFree = new int[classes];
+        for (int c = 0; c < classes; c++) {
+            this.free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            this.freeCount[c] = new AtomicInteger();
+            this.maxFree[c] = Math.max(1, bytesPerClass / classSize(c));
+        }
+    }
+
+    /**
+     * Get a direct buffer with room for at least size bytes
+     * @param size the number of bytes needed
+     * @return a buffer positioned at 0 with its limit at size
+     */
+    public ByteBuffer acquire(int size) {
+        requestedBytes.addAndGet(size);
+        ByteBuffer buffer = null;
+        if (size <= MAX_CLASS_SIZE) {
+            int c = classOf(size);
+            buffer = free.get(c).poll();
+            if (buffer != null) {
+                freeCount[c].decrementAndGet();
+                hits.incrementAndGet();
+            } else {
+                buffer = ByteBuffer.allocateDirect(classSize(c));
+                misses.incrementAndGet();
+            }
+        } else {
+            buffer = ByteBuffer.allocateDirect(size);
+            misses.incrementAndGet();
+        }
+        reservedBytes.addAndGet(buffer.capacity());
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer from acquire once nothing reads or writes it any
+     * more. Buffers beyond what the pool keeps are left to the collector.
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_CLASS_SIZE || capacity != classSize(classOf(capacity)))
+            return;
+        int c = classOf(capacity);
+        if (freeCount[c].incrementAndGet() > maxFree[c]) {
+            freeCount[c].decrementAndGet();
+            return;
+        }
+        free.get(c).offer(buffer);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRequestedBytes() {
+        return requestedBytes.get();
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Get the share of the bytes handed out that were not asked for, from
+     * rounding requests up to a size class
+     * @return a fraction between 0 and 1
+     */
+    public double getFragmentation() {
+        long reserved = reservedBytes.get();
+        if (reserved == 0)
+            return 0;
+        return (double) (reserved - requestedBytes.get()) / reserved;
+    }
+
+    private static int classOf(int size) {
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1)
+                - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    }
+
+    private static int classSize(int c) {
+        return MIN_CLASS_SIZE << c;
+    }
+
+    @Override
+    public String toString() {
+        return "DirectBufferPool [hits=" + hits + ", misses=" + misses
+                + ", requestedBytes=" + requestedBytes
+                + ", reservedBytes=" + reservedBytes + "]";
+    }
+}
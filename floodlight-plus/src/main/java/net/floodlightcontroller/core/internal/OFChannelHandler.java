@@ -1,6 +1,7 @@
 package net.floodlightcontroller.core.internal;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -13,6 +14,7 @@ import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.IOFSwitch.PortChangeEvent;
+import net.floodlightcontroller.core.OFWriteQueue;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.core.annotations.LogMessageDocs;
 import net.floodlightcontroller.core.internal.Controller.Counters;
@@ -86,6 +88,9 @@ class OFChannelHandler
     private final Counters counters;
     private IOFSwitch sw;
     private Channel channel;
+    // Holds back writes to the switch while the channel is not writable,
+    // or null if there is none
+    private OFWriteQueue writeQueue;
     // State needs to be volatile because the HandshakeTimeoutHandler
     // needs to check if the handshake is complete
     private volatile ChannelState state;
@@ -716,6 +721,8 @@ class OFChannelHandler
                 h.sw.setPortDescriptions(h.portDescriptions);
                 h.sw.setConnected(true);
                 h.sw.setChannel(h.channel);
+                h.writeQueue = h.controller.createWriteQueue(h.channel);
+                h.sw.setWriteQueue(h.writeQueue);
                 h.sw.setFloodlightProvider(h.controller);
                 h.sw.setThreadPoolService(h.controller.getThreadPoolService());
                 try {
@@ -938,6 +945,7 @@ class OFChannelHandler
             }
             @Override
             void processOFBarrierReply(OFChannelHandler h, OFBarrierReply m) throws IOException{
+                h.sw.deliverOFBarrierReply(m);
                 h.dispatchMessage(m);
             }
         },
@@ -1415,12 +1423,23 @@ class OFChannelHandler
         setState(ChannelState.WAIT_HELLO);
     }
 
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx,
+                                       ChannelStateEvent e) throws Exception {
+        // Send what was held back once the channel is writable again
+        if (this.writeQueue != null)
+            this.writeQueue.drain();
+        super.channelInterestChanged(ctx, e);
+    }
+
     @Override
     @LogMessageDoc(message="Disconnected switch {switch information}",
                    explanation="The specified switch has disconnected.")
     public void channelDisconnected(ChannelHandlerContext ctx,
                                     ChannelStateEvent e) throws Exception {
         controller.removeSwitchChannel(this);
+        if (this.writeQueue != null)
+            this.writeQueue.close();
         if (this.sw != null) {
             // TODO: switchDisconnected() will check if we've previously
             // activated the switch. Nevertheless, we might want to check
@@ -1556,76 +1575,91 @@ class OFChannelHandler
                 loadlevel = LoadMonitor.LoadLevel.OK;
             }
 
-            for (OFMessage ofm : msglist) {
-                counters.messageReceived.updateCounterNoFlush();
-                // Per-switch input throttling
-                if (sw != null && sw.inputThrottled(ofm)) {
-                    counters.messageInputThrottled.updateCounterNoFlush();
-                    continue;
-                }
-                try {
-                    if (this.controller.overload_drop &&
-                        !loadlevel.equals(LoadMonitor.LoadLevel.OK)) {
-                        switch (ofm.getType()) {
-                        case PACKET_IN:
-                            switch (loadlevel) {
-                            case VERYHIGH:
-                                // Drop all packet-ins, including LLDP/BDDPs
-                                packets_dropped++;
-                                continue;
-                            case HIGH:
-                                // Drop all packet-ins, except LLDP/BDDPs
-                                byte[] data = ((OFPacketIn)ofm).getPacketData();
-                                if (data.length > 14) {
-                                    if (((data[12] == (byte)0x88) &&
-                                         (data[13] == (byte)0xcc)) ||
-                                        ((data[12] == (byte)0x89) &&
-                                         (data[13] == (byte)0x42))) {
-                                        lldps_allowed++;
-                                        packets_allowed++;
-                                        break;
+            // Writes from listeners must not wait for this thread to drain
+            // the write queue
+            OFWriteQueue.setDispatching(true);
+            try {
+                for (OFMessage ofm : msglist) {
+                    counters.messageReceived.updateCounterNoFlush();
+                    // Per-switch input throttling
+                    if (sw != null && sw.inputThrottled(ofm)) {
+                        counters.messageInputThrottled.updateCounterNoFlush();
+                        continue;
+                    }
+                    try {
+                        if (this.controller.overload_drop &&
+                            !loadlevel.equals(LoadMonitor.LoadLevel.OK)) {
+                            switch (ofm.getType()) {
+                            case PACKET_IN:
+                                switch (loadlevel) {
+                                case VERYHIGH:
+                                    // Drop all packet-ins, including LLDP/BDDPs
+                                    packets_dropped++;
+                                    continue;
+                                case HIGH:
+                                    // Drop all packet-ins, except LLDP/BDDPs
+                                    ByteBuffer data = ((OFPacketIn)ofm)
+                                            .getPacketDataView();
+                                    if (data.remaining() > 14) {
+                                        if (((data.get(12) == (byte)0x88) &&
+                                             (data.get(13) == (byte)0xcc)) ||
+                                            ((data.get(12) == (byte)0x89) &&
+                                             (data.get(13) == (byte)0x42))) {
+                                            lldps_allowed++;
+                                            packets_allowed++;
+                                            break;
+                                        }
                                     }
+                                    packets_dropped++;
+                                    continue;
+                                default:
+                                    // Load not high, go ahead and process msg
+                                    packets_allowed++;
+                                    break;
                                 }
-                                packets_dropped++;
-                                continue;
+                                break;
                             default:
-                                // Load not high, go ahead and process msg
+                                // Process all non-packet-ins
                                 packets_allowed++;
                                 break;
                             }
-                            break;
-                        default:
-                            // Process all non-packet-ins
-                            packets_allowed++;
-                            break;
                         }
-                    }
 
-                    // Do the actual packet processing
-                    state.processOFMessage(this, ofm);
+                        // Do the actual packet processing
+                        state.processOFMessage(this, ofm);
 
+                    }
+                    catch (Exception ex) {
+                        // We are the last handler in the stream, so run the
+                        // exception through the channel again by passing in
+                        // ctx.getChannel().
+                        Channels.fireExceptionCaught(ctx.getChannel(), ex);
+                    }
                 }
-                catch (Exception ex) {
-                    // We are the last handler in the stream, so run the
-                    // exception through the channel again by passing in
-                    // ctx.getChannel().
-                    Channels.fireExceptionCaught(ctx.getChannel(), ex);
+
+                if (loadlevel != LoadMonitor.LoadLevel.OK) {
+                    if (log.isDebugEnabled()) {
+                        log.debug(
+                            "Overload: Detected {}, packets dropped={}",
+                            loadlevel.toString(), packets_dropped);
+                        log.debug("Overload: Packets allowed={} " +
+                                  "(LLDP/BDDPs allowed={})",
+                                  packets_allowed, lldps_allowed);
+                    }
                 }
+                // Flush all thread local queues etc. generated by this train
+                // of messages.
+                this.controller.flushAll();
+            } finally {
+                OFWriteQueue.setDispatching(false);
             }
 
-            if (loadlevel != LoadMonitor.LoadLevel.OK) {
-                if (log.isDebugEnabled()) {
-                    log.debug(
-                        "Overload: Detected {}, packets dropped={}",
-                        loadlevel.toString(), packets_dropped);
-                    log.debug(
-                        "Overload: Packets allowed={} (LLDP/BDDPs allowed={})",
-                        packets_allowed, lldps_allowed);
-                }
+            // Packet-in data that is a view over the received frame is only
+            // valid until here; listeners that kept it have retained a copy
+            for (OFMessage ofm : msglist) {
+                if (ofm instanceof OFPacketIn)
+                    ((OFPacketIn)ofm).releasePacketData();
             }
-            // Flush all thread local queues etc. generated by this train
-            // of messages.
-            this.controller.flushAll();
         }
         else {
             Channels.fireExceptionCaught(ctx.getChannel(),
@@ -25,6 +25,7 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.factory.BasicFactory;
 import org.openflow.protocol.factory.FloodlightFactory;
 import org.openflow.protocol.factory.OFMessageFactory;
 
@@ -36,6 +37,23 @@ import org.openflow.protocol.factory.OFMessageFactory;
 public class OFMessageDecoder extends FrameDecoder {
 
     OFMessageFactory factory = FloodlightFactory.getInstance();
+
+    // Leave the data of packet-ins in the received frame instead of copying
+    // it; only safe if messages are dispatched before decode returns
+    protected boolean viewPacketData;
+
+    public OFMessageDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param viewPacketData if true, packet-in data is exposed as a view over
+     *        the received frame, which is only valid until the packet-in has
+     *        been dispatched and released
+     */
+    public OFMessageDecoder(boolean viewPacketData) {
+        this.viewPacketData = viewPacketData;
+    }
     
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel,
@@ -47,7 +65,11 @@ public class OFMessageDecoder extends FrameDecoder {
         }
 
         ByteBuffer data = buffer.toByteBuffer();
-        List<OFMessage> message = factory.parseMessages(data);
+        List<OFMessage> message;
+        if (viewPacketData && factory instanceof BasicFactory)
+            message = ((BasicFactory) factory).parseMessages(data, 0, true);
+        else
+            message = factory.parseMessages(data);
         if (message.size() == 0)
         	return null;
         else {
@@ -17,23 +17,129 @@
 
 package net.floodlightcontroller.core.internal;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.nio.ByteBuffer;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import org.openflow.protocol.OFMessage;
 
 /**
  * Encode an openflow message for output into a ChannelBuffer, for use in a
  * netty pipeline
+ *
+ * Given a DirectBufferPool, messages are encoded into pooled buffers which
+ * go back to the pool when their write completes. With a chunk size, a batch
+ * of messages is packed into as many chunks of that size as it needs instead
+ * of one buffer sized to the whole batch.
  * @author readams
  */
 public class OFMessageEncoder extends OneToOneEncoder {
 
+    protected DirectBufferPool pool;
+    protected int chunkSize;
+
+    public OFMessageEncoder() {
+        this(null, 0);
+    }
+
+    /**
+     * @param pool the pool to take buffers from, or null to allocate a new
+     *        buffer for every write
+     * @param chunkSize the size of the buffers a batch is packed into, or 0
+     *        to encode each batch into a single buffer
+     */
+    public OFMessageEncoder(DirectBufferPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent evt)
+            throws Exception {
+        if (pool == null || !(evt instanceof MessageEvent) ||
+                !(((MessageEvent) evt).getMessage() instanceof List)) {
+            super.handleDownstream(ctx, evt);
+            return;
+        }
+
+        MessageEvent e = (MessageEvent) evt;
+        @SuppressWarnings("unchecked")
+        List<OFMessage> msglist = (List<OFMessage>) e.getMessage();
+        List<ByteBuffer> chunks = encodeChunks(msglist);
+        if (chunks.isEmpty()) {
+            e.getFuture().setSuccess();
+            return;
+        }
+
+        // Writes on a channel complete in order, so the caller's future is
+        // given to the last chunk
+        for (int i = 0; i < chunks.size(); i++) {
+            final ByteBuffer chunk = chunks.get(i);
+            ChannelFuture future = (i == chunks.size() - 1) ? e.getFuture()
+                    : Channels.future(e.getChannel());
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture f) {
+                    pool.release(chunk);
+                }
+            });
+            Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(chunk),
+                           e.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Encode messages into pooled buffers, each flipped and ready to write
+     */
+    protected List<ByteBuffer> encodeChunks(List<OFMessage> msglist) {
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        int total = 0;
+        for (OFMessage ofm : msglist) {
+            ofm.computeLength();
+            total += ofm.getLengthU();
+        }
+        if (total == 0)
+            return chunks;
+
+        try {
+            ByteBuffer chunk = null;
+            for (OFMessage ofm : msglist) {
+                int length = ofm.getLengthU();
+                if (chunk == null || chunk.remaining() < length) {
+                    int size = (chunkSize > 0) ? Math.max(chunkSize, length)
+                            : total;
+                    chunk = pool.acquire(size);
+                    // Listed before anything is written, so it is released
+                    // if a message fails to encode
+                    chunks.add(chunk);
+                }
+                // Write through a view limited to the message, so a message
+                // longer than its computed length fails as it did before
+                ByteBuffer data = chunk.duplicate();
+                data.limit(data.position() + length);
+                ofm.writeTo(data);
+                chunk.position(data.position());
+            }
+            for (ByteBuffer c : chunks)
+                c.flip();
+        } catch (RuntimeException ex) {
+            for (ByteBuffer chunk : chunks)
+                pool.release(chunk);
+            throw ex;
+        }
+        return chunks;
+    }
+
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel,
                             Object msg) throws Exception {
@@ -57,8 +57,16 @@ public class OpenflowPipelineFactory
         OFChannelHandler handler = new OFChannelHandler(controller);
         
         ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast("ofmessagedecoder", new OFMessageDecoder());
-        pipeline.addLast("ofmessageencoder", new OFMessageEncoder());
+        OrderedDispatchHandler dispatchHandler =
+                controller.getDispatchHandler();
+        // Packet-in data can only be a view over the frame if messages are
+        // dispatched on the I/O thread, before the frame buffer is reused
+        pipeline.addLast("ofmessagedecoder", new OFMessageDecoder(
+                pipelineExecutor == null && dispatchHandler == null &&
+                controller.isZeroCopyPacketIn()));
+        pipeline.addLast("ofmessageencoder", new OFMessageEncoder(
+                controller.getWriteBufferPool(),
+                controller.getWriteChunkSize()));
         pipeline.addLast("idle", idleHandler);
         pipeline.addLast("timeout", readTimeoutHandler);
         pipeline.addLast("handshaketimeout",
@@ -66,12 +74,18 @@ public class OpenflowPipelineFactory
         if (pipelineExecutor != null)
             pipeline.addLast("pipelineExecutor",
                              new ExecutionHandler(pipelineExecutor));
+        else if (dispatchHandler != null)
+            pipeline.addLast("dispatch", dispatchHandler);
         pipeline.addLast("handler", handler);
         return pipeline;
     }
 
     @Override
     public void releaseExternalResources() {
-        timer.stop();        
+        timer.stop();
+        OrderedDispatchHandler dispatchHandler =
+                controller.getDispatchHandler();
+        if (dispatchHandler != null)
+            dispatchHandler.releaseExternalResources();
     }
 }
@@ -0,0 +1,236 @@
+package net.floodlightcontroller.core.internal;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterException;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterType;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+/**
+ * Hands the upstream events of each switch connection to one of a fixed
+ * number of single threaded lanes, so that slow message listeners do not
+ * hold up reads on the netty I/O threads. A connection always uses the same
+ * lane, so its messages are still handled in the order they arrive, while
+ * different switches are handled in parallel.
+ *
+ * Each lane holds a bounded number of events. When a lane is full either
+ * reads are paused on the connection that filled it until the lane has
+ * drained to half, or the I/O thread waits for room in the lane.
+ */
+@Sharable
+public class OrderedDispatchHandler
+        implements ChannelUpstreamHandler, ExternalResourceReleasable {
+    protected static final String PACKAGE =
+            OrderedDispatchHandler.class.getPackage().getName();
+
+    protected final Lane[] lanes;
+    protected final int queueSize;
+    protected final boolean pauseReads;
+
+    /**
+     * @param lanes the number of lanes
+     * @param queueSize the most events a lane holds
+     * @param pauseReads whether to pause reads on a connection when its lane
+     *        is full, rather than make the I/O thread wait
+     */
+    public OrderedDispatchHandler(int lanes, int queueSize,
+                                  boolean pauseReads) {
+        if (lanes < 1 || queueSize < 1)
+            throw new IllegalArgumentException("lanes and queueSize must " +
+                                               "be positive");
+        this.queueSize = queueSize;
+        this.pauseReads = pauseReads;
+        this.lanes = new Lane[lanes];
+        ThreadGroup tg = new ThreadGroup("Dispatch Lanes");
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new Lane(tg, "DispatchLane-" + i);
+    }
+
+    /**
+     * Register the per lane debug counters
+     * @param debugCounters the debug counter service
+     * @throws CounterException
+     */
+    public void createCounters(IDebugCounterService debugCounters)
+            throws CounterException {
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i].createCounters(debugCounters, "dispatch-lane-" + i);
+    }
+
+    protected Lane getLane(Channel channel) {
+        int h = channel.getId().hashCode();
+        h ^= (h >>> 16);
+        return lanes[(h & 0x7fffffff) % lanes.length];
+    }
+
+    @Override
+    public void handleUpstream(final ChannelHandlerContext ctx,
+                               final ChannelEvent e) throws Exception {
+        getLane(e.getChannel()).dispatch(ctx, e);
+    }
+
+    @Override
+    public void releaseExternalResources() {
+        for (Lane lane : lanes)
+            lane.executor.shutdownNow();
+    }
+
+    /**
+     * The number of events waiting in or being handled by a lane
+     */
+    public int getDepth(int lane) {
+        return lanes[lane].depth.get();
+    }
+
+    protected class Lane {
+        protected final ExecutorService executor;
+        protected volatile Thread thread;
+        protected final AtomicInteger depth = new AtomicInteger();
+        protected final Semaphore room;
+        // Connections whose reads were paused because the lane was full
+        protected final Set<Channel> paused = Collections.newSetFromMap(
+                new ConcurrentHashMap<Channel, Boolean>());
+
+        // Depth is enqueued minus dequeued
+        protected IDebugCounter ctrEnqueued;
+        protected IDebugCounter ctrDequeued;
+        protected IDebugCounter ctrQueueTime;
+        protected IDebugCounter ctrRunTime;
+        protected IDebugCounter ctrReadsPaused;
+
+        protected Lane(final ThreadGroup tg, final String name) {
+            this.executor = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            thread = new Thread(tg, runnable, name);
+                            return thread;
+                        }
+                    });
+            this.room = pauseReads ? null : new Semaphore(queueSize);
+        }
+
+        protected void createCounters(IDebugCounterService debugCounters,
+                                      String name) throws CounterException {
+            // every level of the hierarchical counter has to be registered
+            debugCounters.registerCounter(PACKAGE, name,
+                    "Counter for this dispatch lane",
+                    CounterType.ALWAYS_COUNT);
+            ctrEnqueued = debugCounters.registerCounter(PACKAGE,
+                    name + "/enqueued",
+                    "Events handed to this dispatch lane",
+                    CounterType.ALWAYS_COUNT);
+            ctrDequeued = debugCounters.registerCounter(PACKAGE,
+                    name + "/dequeued",
+                    "Events this dispatch lane has finished handling",
+                    CounterType.ALWAYS_COUNT);
+            ctrQueueTime = debugCounters.registerCounter(PACKAGE,
+                    name + "/queue-time-us",
+                    "Total microseconds events waited in this dispatch lane",
+                    CounterType.ALWAYS_COUNT);
+            ctrRunTime = debugCounters.registerCounter(PACKAGE,
+                    name + "/run-time-us",
+                    "Total microseconds spent handling events in this " +
+                    "dispatch lane",
+                    CounterType.ALWAYS_COUNT);
+            ctrReadsPaused = debugCounters.registerCounter(PACKAGE,
+                    name + "/reads-paused",
+                    "Times reads on a switch connection were paused " +
+                    "because this dispatch lane was full",
+                    CounterType.ALWAYS_COUNT,
+                    IDebugCounterService.CTR_MDATA_WARN);
+        }
+
+        protected void dispatch(final ChannelHandlerContext ctx,
+                                final ChannelEvent e) {
+            // Events raised by the lane's own thread, such as a failed
+            // write, must not wait for the lane to make room
+            final boolean reserved =
+                    room != null && Thread.currentThread() != thread;
+            if (reserved)
+                room.acquireUninterruptibly();
+            final long queued = System.nanoTime();
+            int d = depth.incrementAndGet();
+            if (ctrEnqueued != null)
+                ctrEnqueued.updateCounterWithFlush();
+            if (room == null && d >= queueSize && !isInterestEvent(e))
+                pause(e.getChannel());
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        ctx.sendUpstream(e);
+                    } finally {
+                        long end = System.nanoTime();
+                        if (ctrDequeued != null) {
+                            ctrQueueTime.updateCounterWithFlush(
+                                toMicros(start - queued));
+                            ctrRunTime.updateCounterWithFlush(
+                                toMicros(end - start));
+                            ctrDequeued.updateCounterWithFlush();
+                        }
+                        if (reserved)
+                            room.release();
+                        if (depth.decrementAndGet() <= queueSize / 2)
+                            resumeAll();
+                    }
+                }
+            });
+        }
+
+        protected void pause(Channel channel) {
+            // Pause before the connection becomes visible to resumeAll so
+            // that a resume can never be overtaken by the pause
+            channel.setReadable(false);
+            paused.add(channel);
+            if (ctrReadsPaused != null)
+                ctrReadsPaused.updateCounterWithFlush();
+            // The lane may have drained before the connection was added
+            if (depth.get() <= queueSize / 2 && paused.remove(channel))
+                channel.setReadable(true);
+        }
+
+        protected void resumeAll() {
+            if (paused.isEmpty())
+                return;
+            for (Channel channel : paused) {
+                if (paused.remove(channel))
+                    channel.setReadable(true);
+            }
+        }
+    }
+
+    /**
+     * Whether the event reports a change to what the channel is reading,
+     * which pausing reads itself causes
+     */
+    private static boolean isInterestEvent(ChannelEvent e) {
+        return (e instanceof ChannelStateEvent) &&
+                ((ChannelStateEvent) e).getState() == ChannelState.INTEREST_OPS;
+    }
+
+    private static int toMicros(long nanos) {
+        return (int) Math.min(Integer.MAX_VALUE,
+                              TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+}
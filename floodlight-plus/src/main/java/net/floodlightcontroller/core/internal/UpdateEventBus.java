@@ -0,0 +1,319 @@
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.internal.Controller.ISwitchUpdate;
+import net.floodlightcontroller.core.internal.Controller.IUpdate;
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterException;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.CounterType;
+import net.floodlightcontroller.storage.StorageException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the controller's updates on a fixed number of partitions, each
+ * with its own thread, instead of on the main loop. The updates of a switch
+ * always go to the same partition, so they are dispatched in the order they
+ * were posted, while the updates of different switches are dispatched in
+ * parallel.
+ *
+ * Updates that are not about a single switch, such as role changes, are
+ * global: they are dispatched once every partition has dispatched the
+ * updates posted before them, and no partition dispatches anything posted
+ * after them until they are done.
+ *
+ * A switch update that supersedes the last update still waiting for the
+ * same switch replaces it in the queue instead of being added behind it.
+ *
+ * With more than one partition, switch listeners are called concurrently
+ * for different switches, so every listener must be safe to call that way;
+ * see {@link net.floodlightcontroller.core.IOFSwitchListener}.
+ */
+class UpdateEventBus {
+    protected static final Logger log =
+            LoggerFactory.getLogger(UpdateEventBus.class);
+    protected static final String PACKAGE =
+            UpdateEventBus.class.getPackage().getName();
+
+    protected final Partition[] partitions;
+    protected final IFloodlightProviderService floodlightProvider;
+    // Keeps global updates in the same order in every partition
+    private final Object globalLock = new Object();
+    // Set by shutdown; partitions waiting on a global update give up
+    protected volatile boolean stopped = false;
+
+    /**
+     * @param partitions the number of partitions
+     * @param floodlightProvider terminated on a storage exception, as by
+     *        the main loop
+     */
+    UpdateEventBus(int partitions,
+                   IFloodlightProviderService floodlightProvider) {
+        if (partitions < 1)
+            throw new IllegalArgumentException("partitions must be positive");
+        this.floodlightProvider = floodlightProvider;
+        this.partitions = new Partition[partitions];
+        ThreadGroup tg = new ThreadGroup("Update Partitions");
+        for (int i = 0; i < partitions; i++)
+            this.partitions[i] = new Partition(tg, "UpdatePartition-" + i);
+    }
+
+    /**
+     * Register the per partition debug counters
+     * @param debugCounters the debug counter service
+     * @throws CounterException
+     */
+    void createCounters(IDebugCounterService debugCounters)
+            throws CounterException {
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i].createCounters(debugCounters,
+                                         "update-partition-" + i);
+    }
+
+    /**
+     * Start dispatching. Updates posted before are kept until then.
+     */
+    void start() {
+        for (Partition partition : partitions)
+            partition.thread.start();
+    }
+
+    /**
+     * Stop dispatching. Updates still queued are dropped.
+     */
+    void shutdown() {
+        stopped = true;
+        for (Partition partition : partitions)
+            partition.thread.interrupt();
+    }
+
+    void post(IUpdate update) {
+        if (update instanceof ISwitchUpdate) {
+            ISwitchUpdate switchUpdate = (ISwitchUpdate) update;
+            getPartition(switchUpdate.getSwitchId()).post(switchUpdate);
+        } else {
+            Barrier barrier = new Barrier(update, partitions.length);
+            synchronized (globalLock) {
+                for (Partition partition : partitions)
+                    partition.post(barrier);
+            }
+        }
+    }
+
+    /**
+     * The number of updates waiting in a partition
+     */
+    int getDepth(int partition) {
+        return partitions[partition].getDepth();
+    }
+
+    int getPartitionCount() {
+        return partitions.length;
+    }
+
+    protected Partition getPartition(long switchId) {
+        int h = (int) (switchId ^ (switchId >>> 32));
+        h ^= (h >>> 16);
+        return partitions[(h & 0x7fffffff) % partitions.length];
+    }
+
+    protected static class Entry {
+        // Replaced by a newer update that supersedes it
+        protected IUpdate update;
+        protected final Barrier barrier;
+        protected final long queued = System.nanoTime();
+
+        protected Entry(IUpdate update, Barrier barrier) {
+            this.update = update;
+            this.barrier = barrier;
+        }
+    }
+
+    /**
+     * A global update, queued in every partition. The last partition to
+     * reach it dispatches it while the others wait, until it is done or the
+     * bus is stopped.
+     */
+    protected class Barrier {
+        protected final IUpdate update;
+        protected int waiting;
+        protected boolean done = false;
+
+        protected Barrier(IUpdate update, int partitions) {
+            this.update = update;
+            this.waiting = partitions;
+        }
+
+        protected void arrive() {
+            synchronized (this) {
+                if (--waiting > 0) {
+                    // The partitions still to arrive may never get here
+                    // once the bus is stopped
+                    while (!done && !stopped) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    return;
+                }
+            }
+            try {
+                update.dispatch();
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    protected class Partition implements Runnable {
+        protected final Thread thread;
+        protected final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+        // The last entry still queued for each switch
+        protected final Map<Long, Entry> pending = new HashMap<Long, Entry>();
+
+        // Depth is enqueued minus coalesced minus dispatched
+        protected IDebugCounter ctrEnqueued;
+        protected IDebugCounter ctrCoalesced;
+        protected IDebugCounter ctrDispatched;
+        protected IDebugCounter ctrQueueTime;
+        protected IDebugCounter ctrDispatchTime;
+
+        protected Partition(ThreadGroup tg, String name) {
+            this.thread = new Thread(tg, this, name);
+            this.thread.setDaemon(true);
+        }
+
+        protected void createCounters(IDebugCounterService debugCounters,
+                                      String name) throws CounterException {
+            // every level of the hierarchical counter has to be registered
+            debugCounters.registerCounter(PACKAGE, name,
+                    "Counter for this update partition",
+                    CounterType.ALWAYS_COUNT);
+            ctrEnqueued = debugCounters.registerCounter(PACKAGE,
+                    name + "/enqueued",
+                    "Updates posted to this update partition",
+                    CounterType.ALWAYS_COUNT);
+            ctrCoalesced = debugCounters.registerCounter(PACKAGE,
+                    name + "/coalesced",
+                    "Updates replaced by a newer update for the same " +
+                    "switch before they were dispatched",
+                    CounterType.ALWAYS_COUNT);
+            ctrDispatched = debugCounters.registerCounter(PACKAGE,
+                    name + "/dispatched",
+                    "Updates this update partition has dispatched",
+                    CounterType.ALWAYS_COUNT);
+            ctrQueueTime = debugCounters.registerCounter(PACKAGE,
+                    name + "/queue-time-us",
+                    "Total microseconds updates waited in this update " +
+                    "partition",
+                    CounterType.ALWAYS_COUNT);
+            ctrDispatchTime = debugCounters.registerCounter(PACKAGE,
+                    name + "/dispatch-time-us",
+                    "Total microseconds spent dispatching updates in this " +
+                    "update partition, including waiting for the other " +
+                    "partitions on global updates",
+                    CounterType.ALWAYS_COUNT);
+        }
+
+        protected void post(ISwitchUpdate update) {
+            Long switchId = update.getSwitchId();
+            synchronized (this) {
+                if (ctrEnqueued != null)
+                    ctrEnqueued.updateCounterWithFlush();
+                Entry last = pending.get(switchId);
+                if (last != null &&
+                        update.supersedes((ISwitchUpdate) last.update)) {
+                    // Keeps its place and the time it was first queued
+                    last.update = update;
+                    if (ctrCoalesced != null)
+                        ctrCoalesced.updateCounterWithFlush();
+                    return;
+                }
+                Entry entry = new Entry(update, null);
+                pending.put(switchId, entry);
+                queue.add(entry);
+                notify();
+            }
+        }
+
+        protected void post(Barrier barrier) {
+            synchronized (this) {
+                if (ctrEnqueued != null)
+                    ctrEnqueued.updateCounterWithFlush();
+                // Nothing posted after the barrier may move ahead of it
+                pending.clear();
+                queue.add(new Entry(barrier.update, barrier));
+                notify();
+            }
+        }
+
+        protected synchronized Entry take() throws InterruptedException {
+            while (queue.isEmpty())
+                wait();
+            Entry entry = queue.poll();
+            if (entry.barrier == null) {
+                Long switchId = ((ISwitchUpdate) entry.update).getSwitchId();
+                if (pending.get(switchId) == entry)
+                    pending.remove(switchId);
+            }
+            return entry;
+        }
+
+        protected synchronized int getDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                Entry entry;
+                try {
+                    entry = take();
+                } catch (InterruptedException e) {
+                    log.debug("{} interrupted; stopping", thread.getName());
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (entry.barrier != null)
+                        entry.barrier.arrive();
+                    else
+                        entry.update.dispatch();
+                } catch (StorageException e) {
+                    log.error("Storage exception in controller " +
+                              "updates loop; terminating process", e);
+                    floodlightProvider.terminate();
+                } catch (Exception e) {
+                    log.error("Exception in controller updates loop", e);
+                } finally {
+                    long end = System.nanoTime();
+                    if (ctrDispatched != null) {
+                        ctrQueueTime.updateCounterWithFlush(
+                            toMicros(start - entry.queued));
+                        ctrDispatchTime.updateCounterWithFlush(
+                            toMicros(end - start));
+                        ctrDispatched.updateCounterWithFlush();
+                    }
+                }
+            }
+        }
+    }
+
+    private static int toMicros(long nanos) {
+        return (int) Math.min(Integer.MAX_VALUE,
+                              TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+}
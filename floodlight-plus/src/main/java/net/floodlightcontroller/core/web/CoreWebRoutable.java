@@ -40,6 +40,7 @@ public class CoreWebRoutable implements RestletRoutable {
         router.attach("/module/all/json", ModuleLoaderResource.class);
         router.attach("/module/loaded/json", LoadedModuleLoaderResource.class);
         router.attach("/switch/{switchId}/role/json", SwitchRoleResource.class);
+        router.attach("/switch/{switchId}/throttle/json", SwitchThrottleResource.class);
         router.attach("/switch/all/{statType}/json", AllSwitchStatisticsResource.class);
         router.attach("/switch/{switchId}/{statType}/json", SwitchStatisticsResource.class);
         router.attach("/controller/switches/json", ControllerSwitchesResource.class);
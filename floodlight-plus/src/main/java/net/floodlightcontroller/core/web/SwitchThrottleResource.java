@@ -0,0 +1,42 @@
+package net.floodlightcontroller.core.web;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openflow.util.HexString;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Shows the packet in throttling thresholds and state of a switch, or of
+ * all switches, with the hosts, flows and ports that send the most
+ */
+public class SwitchThrottleResource extends ServerResource {
+
+    @Get("json")
+    public Object getThrottleInfo() {
+        IFloodlightProviderService floodlightProvider =
+                (IFloodlightProviderService)getContext().getAttributes().
+                    get(IFloodlightProviderService.class.getCanonicalName());
+
+        String switchId = (String) getRequestAttributes().get("switchId");
+
+        if (switchId.equalsIgnoreCase("all")) {
+            Map<String, Map<String, Object>> model =
+                    new HashMap<String, Map<String, Object>>();
+            for (IOFSwitch sw: floodlightProvider.getAllSwitchMap().values()) {
+                model.put(sw.getStringId(), sw.getInputThrottleInfo());
+            }
+            return model;
+        }
+
+        Long dpid = HexString.toLong(switchId);
+        IOFSwitch sw = floodlightProvider.getSwitch(dpid);
+        if (sw == null)
+            return null;
+        return sw.getInputThrottleInfo();
+    }
+}
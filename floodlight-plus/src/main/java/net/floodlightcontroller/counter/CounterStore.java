@@ -32,6 +32,7 @@ import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.counter.CounterValue.CounterType;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.PacketHeaderView;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
@@ -155,7 +156,7 @@ public class CounterStore implements IFloodlightModule, ICounterStoreService {
 
     @Override
     public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m, Ethernet eth) {
-        if (((OFPacketIn)m).getPacketData().length <= 0) {
+        if (((OFPacketIn)m).getPacketDataLength() <= 0) {
             return;
         }
         CounterKeyTuple countersKey = this.getCountersKey(sw, m, eth);
@@ -171,6 +172,30 @@ public class CounterStore implements IFloodlightModule, ICounterStoreService {
         return;
     }
 
+    @Override
+    public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m,
+                                            PacketHeaderView headers) {
+        if (headers.getLength() <= 0) {
+            return;
+        }
+        CounterKeyTuple countersKey = new CounterKeyTuple(
+                m.getType().getTypeValue(), sw.getId(),
+                headers.getEtherType(), headers.getIPv4Protocol());
+        Map<CounterKeyTuple, MutableInt> pktin_buffer = this.pktin_local_buffer.get();
+        MutableInt currval = pktin_buffer.get(countersKey);
+
+        if (currval == null) {
+            // The local buffer is cleared on every flush, so only parse the
+            // packet if its counters have never been created
+            if (!this.pktinCounters.containsKey(countersKey))
+                this.createPacketInCounters(sw, m, headers.getEthernet());
+            currval = new MutableInt();
+            pktin_buffer.put(countersKey, currval);
+        }
+        currval.increment();
+        return;
+    }
+
     @Override
     public void updatePktOutFMCounterStoreLocal(IOFSwitch sw, OFMessage m) {
         CounterKeyTuple countersKey = this.getCountersKey(sw, m, null);
@@ -25,6 +25,7 @@ import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.counter.CounterStore.NetworkLayer;
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.PacketHeaderView;
 
 public interface ICounterStoreService extends IFloodlightService {
 
@@ -48,6 +49,17 @@ public interface ICounterStoreService extends IFloodlightService {
      */
     public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m, Ethernet eth);
 
+    /**
+     * Update packetIn counters from the headers of the packet, parsing the
+     * whole packet only if its counters do not exist yet
+     *
+     * @param sw
+     * @param m
+     * @param headers
+     */
+    public void updatePacketInCountersLocal(IOFSwitch sw, OFMessage m,
+                                            PacketHeaderView headers);
+
     /**
      * This method can only be used to update packetOut and flowmod counters
      *
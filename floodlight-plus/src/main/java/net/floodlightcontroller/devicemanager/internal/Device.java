@@ -473,6 +473,30 @@ public class Device implements IDevice {
         return false;
     }
 
+    /**
+     * Refresh the last seen time of the attachment point a packet-in was
+     * seen from, in place, when it is the only attachment point of the
+     * device. This is what updateAttachmentPoint(sw, port, lastSeen) would
+     * do in that case, without copying and recomputing the lists.
+     * @param sw
+     * @param port
+     * @param lastSeen
+     * @return false if the full update is needed instead
+     */
+    protected boolean refreshAttachmentPoint(long sw, int port, long lastSeen) {
+        List<AttachmentPoint> apList = attachmentPoints;
+        if (apList == null || apList.size() != 1) return false;
+        AttachmentPoint ap = apList.get(0);
+        if (ap.getSw() != sw || ap.getPort() != port) return false;
+        List<AttachmentPoint> oldAPList = oldAPs;
+        if (oldAPList != null && oldAPList.contains(ap)) return false;
+        if (!deviceManager.isValidAttachmentPoint(sw, port)) return false;
+        // setLastSeen ignores timestamps older than the current one, so
+        // entities learned out of order never move it back
+        ap.setLastSeen(lastSeen);
+        return true;
+    }
+
     /**
      * Delete (sw,port) from the list of list of attachment points
      * and oldAPs.
@@ -0,0 +1,227 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+/**
+ * A device index on just the MAC address or just the IPv4 address, which
+ * both fit in a long. Keys go in an open addressing table of longs rather
+ * than being wrapped in an {@link IndexedEntity}, and each key maps to an
+ * array of device keys rather than to a set.
+ *
+ * Lookups take no lock. Updates are serialized, and replace the array of
+ * a key or, when the table fills up, the whole table.
+ */
+public class DeviceLongIndex extends DeviceIndex {
+    // MAC and IPv4 keys are never negative
+    private static final long EMPTY = -1;
+    private static final Long[] NONE = new Long[0];
+
+    private final DeviceField field;
+
+    private static class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Long[]> devices;
+        final int mask;
+        // Slots with a key, including those whose devices were removed
+        int used = 0;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++)
+                keys.set(i, EMPTY);
+            devices = new AtomicReferenceArray<Long[]>(capacity);
+            mask = capacity - 1;
+        }
+
+        /**
+         * The slot of key, or the empty slot where it would go
+         */
+        int find(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            int i = (int) (h ^ (h >>> 32)) & mask;
+            while (true) {
+                long k = keys.get(i);
+                if (k == key || k == EMPTY)
+                    return i;
+                i = (i + 1) & mask;
+            }
+        }
+    }
+
+    private volatile Table table = new Table(16);
+
+    /**
+     * @param keyFields a single field that {@link #isSupported} accepts
+     */
+    public DeviceLongIndex(EnumSet<DeviceField> keyFields) {
+        super(keyFields);
+        if (!isSupported(keyFields))
+            throw new IllegalArgumentException("Unsupported key fields " +
+                                               keyFields);
+        this.field = keyFields.iterator().next();
+    }
+
+    /**
+     * @return true if a DeviceLongIndex can index on the key fields
+     */
+    public static boolean isSupported(EnumSet<DeviceField> keyFields) {
+        return keyFields.size() == 1 &&
+               (keyFields.contains(DeviceField.MAC) ||
+                keyFields.contains(DeviceField.IPV4));
+    }
+
+    private long getKey(Entity entity) {
+        if (field == DeviceField.MAC)
+            return entity.macAddress;
+        if (entity.ipv4Address == null)
+            return EMPTY;
+        return entity.ipv4Address.intValue() & 0xffffffffL;
+    }
+
+    /**
+     * Look up the devices for a MAC or IPv4 address, without allocating
+     * @param key the MAC address, or the IPv4 address as an unsigned int
+     * @return the device keys, which must not be changed
+     */
+    public Long[] findByKey(long key) {
+        if (key < 0)
+            return NONE;
+        Table t = table;
+        int i = t.find(key);
+        if (t.keys.get(i) == EMPTY)
+            return NONE;
+        return t.devices.get(i);
+    }
+
+    // ***********
+    // DeviceIndex
+    // ***********
+
+    @Override
+    public Iterator<Long> queryByEntity(Entity entity) {
+        Long[] devices = findByKey(getKey(entity));
+        if (devices.length == 0)
+            return Collections.<Long>emptySet().iterator();
+        return Arrays.asList(devices).iterator();
+    }
+
+    @Override
+    public Iterator<Long> getAll() {
+        Table t = table;
+        List<Long> all = new ArrayList<Long>();
+        for (int i = 0; i <= t.mask; i++) {
+            Long[] devices = t.devices.get(i);
+            if (devices != null)
+                all.addAll(Arrays.asList(devices));
+        }
+        return all.iterator();
+    }
+
+    @Override
+    public boolean updateIndex(Device device, Long deviceKey) {
+        for (Entity e : device.entities) {
+            updateIndex(e, deviceKey);
+        }
+        return true;
+    }
+
+    @Override
+    public void updateIndex(Entity entity, Long deviceKey) {
+        long key = getKey(entity);
+        if (key == EMPTY) return;
+        synchronized (this) {
+            Table t = table;
+            int i = t.find(key);
+            if (t.keys.get(i) == EMPTY) {
+                if ((t.used + 1) * 2 > t.mask + 1) {
+                    t = resize();
+                    i = t.find(key);
+                }
+                // Readers that find the key must find its devices
+                t.devices.set(i, new Long[] { deviceKey });
+                t.keys.set(i, key);
+                t.used++;
+                return;
+            }
+            Long[] devices = t.devices.get(i);
+            for (Long d : devices) {
+                if (d.equals(deviceKey)) return;
+            }
+            Long[] added = Arrays.copyOf(devices, devices.length + 1);
+            added[devices.length] = deviceKey;
+            t.devices.set(i, added);
+        }
+    }
+
+    @Override
+    public void removeEntity(Entity entity) {
+        long key = getKey(entity);
+        if (key == EMPTY) return;
+        synchronized (this) {
+            Table t = table;
+            int i = t.find(key);
+            // The slot stays taken until the next resize
+            if (t.keys.get(i) != EMPTY)
+                t.devices.set(i, NONE);
+        }
+    }
+
+    @Override
+    public void removeEntity(Entity entity, Long deviceKey) {
+        long key = getKey(entity);
+        if (key == EMPTY) return;
+        synchronized (this) {
+            Table t = table;
+            int i = t.find(key);
+            if (t.keys.get(i) == EMPTY) return;
+            Long[] devices = t.devices.get(i);
+            for (int j = 0; j < devices.length; j++) {
+                if (!devices[j].equals(deviceKey)) continue;
+                Long[] removed = new Long[devices.length - 1];
+                System.arraycopy(devices, 0, removed, 0, j);
+                System.arraycopy(devices, j + 1, removed, j,
+                                 removed.length - j);
+                t.devices.set(i, (removed.length == 0) ? NONE : removed);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Move the keys that still have devices to a new table, big enough to
+     * be at most a quarter full. Called with the lock held.
+     */
+    private Table resize() {
+        Table t = table;
+        int live = 0;
+        for (int i = 0; i <= t.mask; i++) {
+            Long[] devices = t.devices.get(i);
+            if (devices != null && devices.length > 0)
+                live++;
+        }
+        int capacity = 16;
+        while (capacity < (live + 1) * 4)
+            capacity <<= 1;
+        Table resized = new Table(capacity);
+        for (int i = 0; i <= t.mask; i++) {
+            Long[] devices = t.devices.get(i);
+            if (devices == null || devices.length == 0) continue;
+            long key = t.keys.get(i);
+            int j = resized.find(key);
+            resized.devices.set(j, devices);
+            resized.keys.set(j, key);
+            resized.used++;
+        }
+        table = resized;
+        return resized;
+    }
+}
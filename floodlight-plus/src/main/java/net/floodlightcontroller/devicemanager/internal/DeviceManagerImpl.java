@@ -19,7 +19,6 @@ package net.floodlightcontroller.devicemanager.internal;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -93,6 +92,7 @@ import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyListener;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.util.MultiIterator;
+import net.floodlightcontroller.util.TimingWheel;
 import static net.floodlightcontroller.devicemanager.internal.
 DeviceManagerImpl.DeviceUpdate.Change.*;
 
@@ -156,6 +156,8 @@ IFlowReconcileListener, IInfoProvider {
     public IDebugCounter cntNewDevice;
     public IDebugCounter cntPacketOnInternalPortForKnownDevice;
     public IDebugCounter cntNewEntity;
+    public IDebugCounter cntKnownEntityRefreshed;
+    public IDebugCounter cntKnownEntityUpdated;
     public IDebugCounter cntDeviceChanged;
     public IDebugCounter cntDeviceMoved;
     public IDebugCounter cntCleanupEntitiesRuns;
@@ -215,7 +217,21 @@ IFlowReconcileListener, IInfoProvider {
     /**
      * Time in seconds between cleaning up old entities/devices
      */
-    protected static final int ENTITY_CLEANUP_INTERVAL = 60*60;
+    protected static final int ENTITY_CLEANUP_INTERVAL = 60;
+
+    /**
+     * Most devices to check for expired entities in one cleanup run. A run
+     * that stops there is followed by another right away, after the other
+     * scheduled tasks that are due.
+     */
+    protected static final int ENTITY_CLEANUP_BATCH = 1000;
+
+    /**
+     * The keys of the devices, by when their oldest entity expires. Entity
+     * timestamps are refreshed without rescheduling, so a device that is
+     * due is checked and scheduled again if none of its entities expired.
+     */
+    protected TimingWheel<Long> entityExpiry;
 
     /**
      * This is the master device map that maps device IDs to {@link Device}
@@ -287,8 +303,7 @@ IFlowReconcileListener, IInfoProvider {
             secondaryIndexMap =
                     new HashMap<EnumSet<DeviceField>, DeviceIndex>();
             for (EnumSet<DeviceField> fields : perClassIndices) {
-                secondaryIndexMap.put(fields,
-                                      new DeviceMultiIndex(fields));
+                secondaryIndexMap.put(fields, createIndex(fields));
             }
         }
     }
@@ -500,11 +515,19 @@ IFlowReconcileListener, IInfoProvider {
         if (perClass) {
             perClassIndices.add(keyFields);
         } else {
-            secondaryIndexMap.put(keyFields,
-                                  new DeviceMultiIndex(keyFields));
+            secondaryIndexMap.put(keyFields, createIndex(keyFields));
         }
     }
 
+    /**
+     * Create a secondary index on the given key fields
+     */
+    protected DeviceIndex createIndex(EnumSet<DeviceField> keyFields) {
+        if (DeviceLongIndex.isSupported(keyFields))
+            return new DeviceLongIndex(keyFields);
+        return new DeviceMultiIndex(keyFields);
+    }
+
     @Override
     public Iterator<? extends IDevice> queryDevices(Long macAddress,
                                                     Short vlan,
@@ -934,8 +957,14 @@ IFlowReconcileListener, IInfoProvider {
         isMaster = (floodlightProvider.getRole() == Role.MASTER);
         primaryIndex = new DeviceUniqueIndex(entityClassifier.getKeyFields());
         secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
+        // Looking up hosts by IP address, as for ARP replies, would scan
+        // every device otherwise
+        addIndex(false, EnumSet.of(DeviceField.IPV4));
 
         deviceMap = new ConcurrentHashMap<Long, Device>();
+        entityExpiry = new TimingWheel<Long>(ENTITY_CLEANUP_INTERVAL * 1000L,
+                                             ENTITY_TIMEOUT,
+                                             System.currentTimeMillis());
         classStateMap =
                 new ConcurrentHashMap<String, ClassState>();
         apComparator = new AttachmentPointComparator();
@@ -951,9 +980,11 @@ IFlowReconcileListener, IInfoProvider {
         Runnable ecr = new Runnable() {
             @Override
             public void run() {
-                cleanupEntities();
-                entityCleanupTask.reschedule(ENTITY_CLEANUP_INTERVAL,
-                                             TimeUnit.SECONDS);
+                if (cleanupEntities())
+                    entityCleanupTask.reschedule(0, TimeUnit.SECONDS);
+                else
+                    entityCleanupTask.reschedule(ENTITY_CLEANUP_INTERVAL,
+                                                 TimeUnit.SECONDS);
             }
         };
         entityCleanupTask = new SingletonTask(ses, ecr);
@@ -1065,6 +1096,16 @@ IFlowReconcileListener, IInfoProvider {
             cntNewEntity = debugCounters.registerCounter(PACKAGE, "new-entity",
                  "Number of times a new entity was learned for an existing device",
                  CounterType.ALWAYS_COUNT);
+            cntKnownEntityRefreshed = debugCounters.registerCounter(PACKAGE,
+                 "known-entity-refreshed",
+                 "Number of times a known entity was seen again and only its " +
+                 "timestamps were updated, in place",
+                 CounterType.ALWAYS_COUNT);
+            cntKnownEntityUpdated = debugCounters.registerCounter(PACKAGE,
+                 "known-entity-updated",
+                 "Number of times a known entity was seen again and the " +
+                 "attachment points of its device were recomputed",
+                 CounterType.ALWAYS_COUNT);
             cntDeviceChanged = debugCounters.registerCounter(PACKAGE, "device-changed",
                  "Number of times device properties have changed",
                  CounterType.ALWAYS_COUNT);
@@ -1648,6 +1689,7 @@ IFlowReconcileListener, IInfoProvider {
                 }
 
                 updateSecondaryIndices(entity, entityClass, deviceKey);
+                scheduleExpiry(device);
 
                 // We need to count and log here. If we log earlier we could
                 // hit a concurrent modification and restart the dev creation
@@ -1683,6 +1725,7 @@ IFlowReconcileListener, IInfoProvider {
                 break;
             }
             int entityindex = -1;
+            boolean knownEntity = false;
             if ((entityindex = device.entityIndex(entity)) >= 0) {
                 // Entity already exists
                 // update timestamp on the found entity
@@ -1692,6 +1735,7 @@ IFlowReconcileListener, IInfoProvider {
                     entity.setLastSeenTimestamp(lastSeen);
                 }
                 device.entities[entityindex].setLastSeenTimestamp(lastSeen);
+                knownEntity = true;
                 // we break the loop after checking for changes to the AP
             } else {
                 // New entity for this device
@@ -1720,6 +1764,7 @@ IFlowReconcileListener, IInfoProvider {
                 updateSecondaryIndices(entity,
                                        device.getEntityClass(),
                                        deviceKey);
+                scheduleExpiry(device);
 
                 // We need to count here after all the possible "continue"
                 // statements in this branch
@@ -1735,6 +1780,19 @@ IFlowReconcileListener, IInfoProvider {
             }
             // Update attachment point (will only be hit if the device
             // already existed and no concurrent modification)
+            if (knownEntity) {
+                // Most packet-ins come from a known entity at the only
+                // attachment point of its device, which just needs its
+                // timestamp refreshed
+                if (!entity.hasSwitchPort() ||
+                        device.refreshAttachmentPoint(entity.getSwitchDPID(),
+                                entity.getSwitchPort().shortValue(),
+                                entity.getLastSeenTimestamp().getTime())) {
+                    cntKnownEntityRefreshed.updateCounterNoFlush();
+                    break;
+                }
+                cntKnownEntityUpdated.updateCounterNoFlush();
+            }
             if (entity.hasSwitchPort()) {
                 boolean moved =
                         device.updateAttachmentPoint(entity.getSwitchDPID(),
@@ -1983,24 +2041,28 @@ IFlowReconcileListener, IInfoProvider {
     }
 
     /**
-     * Clean up expired entities/devices
+     * Clean up expired entities/devices. Only the devices whose oldest
+     * entity may have expired are checked, at most ENTITY_CLEANUP_BATCH
+     * of them.
+     * @return true if there are more devices to check
      */
-    protected void cleanupEntities () {
+    protected boolean cleanupEntities () {
         cntCleanupEntitiesRuns.updateCounterWithFlush();
 
-        Calendar c = Calendar.getInstance();
-        c.add(Calendar.MILLISECOND, -ENTITY_TIMEOUT);
-        Date cutoff = c.getTime();
+        long now = System.currentTimeMillis();
+        long cutoff = now - ENTITY_TIMEOUT;
 
         ArrayList<Entity> toRemove = new ArrayList<Entity>();
         ArrayList<Entity> toKeep = new ArrayList<Entity>();
 
-        Iterator<Device> diter = deviceMap.values().iterator();
         LinkedList<DeviceUpdate> deviceUpdates =
                 new LinkedList<DeviceUpdate>();
 
-        while (diter.hasNext()) {
-            Device d = diter.next();
+        List<Long> due = entityExpiry.expire(now, ENTITY_CLEANUP_BATCH);
+        for (Long deviceKey : due) {
+            Device d = deviceMap.get(deviceKey);
+            if (d == null)
+                continue;
 
             while (true) {
                 deviceUpdates.clear();
@@ -2008,7 +2070,7 @@ IFlowReconcileListener, IInfoProvider {
                 toKeep.clear();
                 for (Entity e : d.getEntities()) {
                     if (e.getLastSeenTimestamp() != null &&
-                         0 > e.getLastSeenTimestamp().compareTo(cutoff)) {
+                         e.getLastSeenTimestamp().getTime() < cutoff) {
                         // individual entity needs to be removed
                         toRemove.add(e);
                     } else {
@@ -2074,10 +2136,27 @@ IFlowReconcileListener, IInfoProvider {
                 processUpdates(deviceUpdates);
                 break;
             }
+            d = deviceMap.get(deviceKey);
+            if (d != null)
+                scheduleExpiry(d);
         }
         // Since cleanupEntities() is not called in the packet-in pipeline,
         // debugEvents need to be flushed explicitly
         debugEvents.flushEvents();
+        return due.size() >= ENTITY_CLEANUP_BATCH;
+    }
+
+    /**
+     * Schedule a device to be checked when its oldest entity expires
+     */
+    protected void scheduleExpiry(Device device) {
+        long oldest = Long.MAX_VALUE;
+        for (Entity e : device.getEntities()) {
+            if (e.getLastSeenTimestamp() != null)
+                oldest = Math.min(oldest, e.getLastSeenTimestamp().getTime());
+        }
+        if (oldest != Long.MAX_VALUE)
+            entityExpiry.schedule(device.getDeviceKey(), oldest + ENTITY_TIMEOUT);
     }
 
     protected void removeEntity(Entity removed,
@@ -2118,6 +2197,7 @@ IFlowReconcileListener, IInfoProvider {
             this.removeEntity(entity, device.getEntityClass(),
                 device.getDeviceKey(), emptyToKeep);
         }
+        entityExpiry.cancel(device.getDeviceKey());
         if (!deviceMap.remove(device.getDeviceKey(), device)) {
             if (logger.isDebugEnabled())
                 logger.debug("device map does not have this device -" +
@@ -19,12 +19,14 @@ package net.floodlightcontroller.firewall;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFOXMFieldType;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 
@@ -68,10 +70,19 @@ public class Firewall implements IFirewallService, IOFMessageListener,
     protected IRestApiService restApi;
     protected static Logger logger;
 
-    protected List<FirewallRule> rules; // protected by synchronized
+    // Replaced, never changed, when rules are added or deleted, so that
+    // packet-ins can use them without a lock
+    protected volatile List<FirewallRule> rules;
+    protected volatile FirewallClassifier classifier;
     protected boolean enabled;
     protected int subnet_mask = IPv4.toIPv4Address("255.255.255.0");
 
+    // Fields never wildcarded in flows of allowed packets, as forwarding
+    // decides on them
+    protected static final EnumSet<OFOXMFieldType> FORWARD_NON_WILDCARDS =
+            EnumSet.of(OFOXMFieldType.IN_PORT, OFOXMFieldType.ETH_SRC,
+                       OFOXMFieldType.ETH_DST, OFOXMFieldType.ETH_TYPE);
+
     // constant strings for storage/parsing
     public static final String TABLE_NAME = "controller_firewallrules";
     public static final String COLUMN_RULEID = "ruleid";
@@ -341,8 +352,8 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 .getServiceImpl(IFloodlightProviderService.class);
         storageSource = context.getServiceImpl(IStorageSourceService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
-        rules = new ArrayList<FirewallRule>();
         logger = LoggerFactory.getLogger(Firewall.class);
+        setRules(new ArrayList<FirewallRule>());
 
         // start disabled
         enabled = false;
@@ -359,7 +370,22 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // storage, create table and read rules
         storageSource.createTable(TABLE_NAME, null);
         storageSource.setTablePrimaryKeyName(TABLE_NAME, COLUMN_RULEID);
-        this.rules = readRulesFromStorage();
+        setRules(readRulesFromStorage());
+    }
+
+    /**
+     * Compile the rules and make them the current ones
+     * @param rules the sorted rules, which must not be changed afterwards
+     */
+    protected void setRules(List<FirewallRule> rules) {
+        List<FirewallRule> l = Collections.unmodifiableList(rules);
+        FirewallClassifier c = new FirewallClassifier(l);
+        if (logger.isDebugEnabled())
+            logger.debug("Compiled {} firewall rules into {} tuples",
+                         l.size(), c.getTupleCount());
+        // Readers take the classifier, so it goes last
+        this.rules = l;
+        this.classifier = c;
     }
 
     @Override
@@ -437,18 +463,20 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // may want to check conflict
         rule.ruleid = rule.genID();
         
+        List<FirewallRule> l = new ArrayList<FirewallRule>(this.rules);
         int i = 0;
         // locate the position of the new rule in the sorted arraylist
-        for (i = 0; i < this.rules.size(); i++) {
-            if (this.rules.get(i).priority >= rule.priority)
+        for (i = 0; i < l.size(); i++) {
+            if (l.get(i).priority >= rule.priority)
                 break;
         }
         // now, add rule to the list
-        if (i <= this.rules.size()) {
-            this.rules.add(i, rule);
+        if (i <= l.size()) {
+            l.add(i, rule);
         } else {
-            this.rules.add(rule);
+            l.add(rule);
         }
+        setRules(l);
         // add rule to database
         Map<String, Object> entry = new HashMap<String, Object>();
         entry.put(COLUMN_RULEID, Integer.toString(rule.ruleid));
@@ -491,12 +519,14 @@ public class Firewall implements IFirewallService, IOFMessageListener,
 
     @Override
     public synchronized void deleteRule(int ruleid) {
-        Iterator<FirewallRule> iter = this.rules.iterator();
+        List<FirewallRule> l = new ArrayList<FirewallRule>(this.rules);
+        Iterator<FirewallRule> iter = l.iterator();
         while (iter.hasNext()) {
             FirewallRule r = iter.next();
             if (r.ruleid == ruleid) {
                 // found the rule, now remove it
                 iter.remove();
+                setRules(l);
                 break;
             }
         }
@@ -505,26 +535,16 @@ public class Firewall implements IFirewallService, IOFMessageListener,
     }
 
     /**
-     * Iterates over the firewall rules and tries to match them with the
-     * incoming packet (flow). Uses the FirewallRule class's matchWithFlow
-     * method to perform matching. It maintains a pair of wildcards (allow and
-     * deny) which are assigned later to the firewall's decision, where 'allow'
-     * wildcards are applied if the matched rule turns out to be an ALLOW rule
-     * and 'deny' wildcards are applied otherwise. Wildcards are applied to
-     * firewall decision to optimize flows in the switch, ensuring least number
-     * of flows per firewall rule. So, if a particular field is not "ANY" (i.e.
-     * not wildcarded) in a higher priority rule, then if a lower priority rule
-     * matches the packet and wildcards it, it can't be wildcarded in the
-     * switch's flow entry, because otherwise some packets matching the higher
-     * priority rule might escape the firewall. The reason for keeping different
-     * two different wildcards is that if a field is not wildcarded in a higher
-     * priority allow rule, the same field shouldn't be wildcarded for packets
-     * matching the lower priority deny rule (non-wildcarded fields in higher
-     * priority rules override the wildcarding of those fields in lower priority
-     * rules of the opposite type). So, to ensure that wildcards are
-     * appropriately set for different types of rules (allow vs. deny), separate
-     * wildcards are maintained. Iteration is performed on the sorted list of
-     * rules (sorted in decreasing order of priority).
+     * Finds the first firewall rule that matches the incoming packet (flow),
+     * as FirewallRule.matchesFlow would iterating over the sorted list of
+     * rules (sorted in decreasing order of priority). The rules are compiled
+     * into a FirewallClassifier, which does not need to iterate over them.
+     * 
+     * The wildcards returned are those of the megaflow of the packet: only
+     * the fields that some rule up to the matching one had to consult are
+     * not wildcarded, so that every packet the flow matches gets the same
+     * rule, and the flow is as broad as that allows. Repeated packets of
+     * the same megaflow are answered from the classifier's cache.
      * 
      * @param sw
      *            the switch instance
@@ -533,42 +553,13 @@ public class Firewall implements IFirewallService, IOFMessageListener,
      * @param cntx
      *            the floodlight context
      * @return an instance of RuleWildcardsPair that specify rule that matches
-     *         and the wildcards for the firewall decision
+     *         and the wildcards of its megaflow
      */
     protected RuleWildcardsPair matchWithRule(IOFSwitch sw, OFPacketIn pi,
             FloodlightContext cntx) {
-        FirewallRule matched_rule = null;
         Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
                 IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
-        NonWildcardsPair nonWildcards = new NonWildcardsPair();
-
-        synchronized (rules) {
-            Iterator<FirewallRule> iter = this.rules.iterator();
-            FirewallRule rule = null;
-            // iterate through list to find a matching firewall rule
-            while (iter.hasNext()) {
-                // get next rule from list
-                rule = iter.next();
-
-                // check if rule matches
-                if (rule.matchesFlow(sw.getId(), pi.getInPort(), eth, nonWildcards) == true) {
-                    matched_rule = rule;
-                    break;
-                }
-            }
-        }
-
-        // make a pair of rule and wildcards, then return it
-        // TODO: Fix rule such that it only drops this flow,
-        // and not blanket block this switch
-        RuleWildcardsPair ret = new RuleWildcardsPair();
-        ret.rule = matched_rule;
-        if (matched_rule == null || matched_rule.action == FirewallRule.FirewallAction.DENY) {
-            ret.nonWildcards = nonWildcards.drop;
-        } else {
-            ret.nonWildcards = nonWildcards.allow;
-        }
-        return ret;
+        return this.classifier.match(sw.getId(), pi.getInPort(), eth);
     }
 
     /**
@@ -648,6 +639,8 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 		, IDeviceService.fcStore.
                         get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
                         IRoutingDecision.RoutingAction.DROP);
+                // The broadcast check above looked at the destination
+                match_ret.nonWildcards.add(OFOXMFieldType.ETH_DST);
                 decision.setNonWildcards(match_ret.nonWildcards);
                 decision.addToContext(cntx);
                 if (logger.isTraceEnabled()) {
@@ -665,6 +658,8 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 		, IDeviceService.fcStore.
                         get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
                         IRoutingDecision.RoutingAction.FORWARD_OR_FLOOD);
+                // The fields forwarding decides on as well
+                match_ret.nonWildcards.addAll(FORWARD_NON_WILDCARDS);
                 decision.setNonWildcards(match_ret.nonWildcards);
                 decision.addToContext(cntx);
                 if (logger.isTraceEnabled())
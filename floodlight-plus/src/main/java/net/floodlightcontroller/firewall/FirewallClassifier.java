@@ -0,0 +1,474 @@
+package net.floodlightcontroller.firewall;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openflow.protocol.OFOXMFieldType;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * The firewall rules compiled for lookup by tuple space search. Finds the
+ * same rule as walking the sorted rules with FirewallRule.matchesFlow,
+ * without looking at every rule.
+ *
+ * Each rule is turned into a pattern of the packets it matches, which
+ * tests some fields for equality and the IP addresses under a mask.
+ * Patterns that test the same fields under the same masks form a tuple,
+ * whose patterns are looked up with a single hash lookup of the masked
+ * packet. The winning rule is the first rule with a matching pattern.
+ *
+ * The fields tested by the tuples a lookup probes are all that decide its
+ * result, so every packet that agrees with the packet on them gets the
+ * same rule: they form a megaflow, as in Open vSwitch. The result is
+ * cached for the megaflow, and its fields are the ones a flow for the
+ * result must not wildcard.
+ *
+ * A classifier is not changed once built, apart from its cache, so lookups
+ * take no lock. The Firewall builds a new one whenever its rules change,
+ * which also drops the cache.
+ */
+public class FirewallClassifier {
+    public static final int DEFAULT_MEGAFLOWS = 8192;
+
+    // Fields a pattern tests
+    protected static final int DPID = 1 << 0;
+    protected static final int IN_PORT = 1 << 1;
+    protected static final int DL_SRC = 1 << 2;
+    protected static final int DL_DST = 1 << 3;
+    protected static final int DL_TYPE = 1 << 4;
+    protected static final int NW_SRC = 1 << 5;
+    protected static final int NW_DST = 1 << 6;
+    protected static final int NW_PROTO = 1 << 7;
+
+    protected final List<FirewallRule> rules;
+    // In the order of their first rule, so that a lookup stops at the
+    // first tuple that cannot change its result
+    protected final Tuple[] tuples;
+
+    // The megaflows seen so far, by mask. A new mask replaces the array.
+    protected volatile MegaflowTable[] megaflows = new MegaflowTable[0];
+    protected final AtomicInteger megaflowCount = new AtomicInteger();
+    protected final int megaflowCapacity;
+
+    /**
+     * The values of a packet, or of a pattern with the untested fields
+     * zeroed
+     */
+    protected static class Key {
+        protected long dpid;
+        protected int inPort;
+        protected long dlSrc;
+        protected long dlDst;
+        protected short dlType;
+        protected int nwSrc;
+        protected int nwDst;
+        protected byte nwProto;
+
+        @Override
+        public int hashCode() {
+            long h = dpid * 31 + inPort;
+            h = h * 31 + dlSrc;
+            h = h * 31 + dlDst;
+            h = h * 31 + dlType;
+            h = h * 31 + nwSrc;
+            h = h * 31 + nwDst;
+            h = h * 31 + nwProto;
+            h ^= h >>> 29;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key) obj;
+            return dpid == k.dpid && inPort == k.inPort &&
+                   dlSrc == k.dlSrc && dlDst == k.dlDst &&
+                   dlType == k.dlType && nwSrc == k.nwSrc &&
+                   nwDst == k.nwDst && nwProto == k.nwProto;
+        }
+    }
+
+    /**
+     * The fields tested, and the masks of the IP addresses
+     */
+    protected static class Mask {
+        protected final int tested;
+        protected final int nwSrcMask;
+        protected final int nwDstMask;
+
+        protected Mask(int tested, int nwSrcMask, int nwDstMask) {
+            this.tested = tested;
+            this.nwSrcMask = nwSrcMask;
+            this.nwDstMask = nwDstMask;
+        }
+
+        /**
+         * Set probe to the values of packet this mask tests
+         */
+        protected Key mask(Key packet, Key probe) {
+            probe.dpid = ((tested & DPID) != 0) ? packet.dpid : 0;
+            probe.inPort = ((tested & IN_PORT) != 0) ? packet.inPort : 0;
+            probe.dlSrc = ((tested & DL_SRC) != 0) ? packet.dlSrc : 0;
+            probe.dlDst = ((tested & DL_DST) != 0) ? packet.dlDst : 0;
+            probe.dlType = ((tested & DL_TYPE) != 0) ? packet.dlType : 0;
+            probe.nwSrc = packet.nwSrc & nwSrcMask;
+            probe.nwDst = packet.nwDst & nwDstMask;
+            probe.nwProto = ((tested & NW_PROTO) != 0) ? packet.nwProto : 0;
+            return probe;
+        }
+
+        protected boolean sameAs(Mask m) {
+            return tested == m.tested && nwSrcMask == m.nwSrcMask &&
+                   nwDstMask == m.nwDstMask;
+        }
+
+        @Override
+        public int hashCode() {
+            return (tested * 31 + nwSrcMask) * 31 + nwDstMask;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof Mask) && sameAs((Mask) obj);
+        }
+    }
+
+    /**
+     * The patterns of the rules with the same mask
+     */
+    protected static class Tuple extends Mask {
+        // Pattern to the first rule with it
+        protected final Map<Key, Integer> patterns =
+                new HashMap<Key, Integer>();
+        protected int first = Integer.MAX_VALUE;
+        // The ethertype of all the patterns, or 0 if they differ or do
+        // not test it
+        protected short dlType = 0;
+
+        protected Tuple(int tested, int nwSrcMask, int nwDstMask) {
+            super(tested, nwSrcMask, nwDstMask);
+        }
+    }
+
+    /**
+     * The result of a lookup, shared by the packets of a megaflow
+     */
+    protected static class Megaflow {
+        protected final FirewallRule rule;
+        protected final EnumSet<OFOXMFieldType> fields;
+
+        protected Megaflow(FirewallRule rule,
+                           EnumSet<OFOXMFieldType> fields) {
+            this.rule = rule;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * The megaflows with the same mask, by masked packet
+     */
+    protected static class MegaflowTable extends Mask {
+        protected final ConcurrentHashMap<Key, Megaflow> flows =
+                new ConcurrentHashMap<Key, Megaflow>();
+
+        protected MegaflowTable(Mask mask) {
+            super(mask.tested, mask.nwSrcMask, mask.nwDstMask);
+        }
+    }
+
+    /**
+     * @param rules the rules, sorted as in Firewall. The classifier keeps
+     *        the list, which must not be changed afterwards.
+     */
+    public FirewallClassifier(List<FirewallRule> rules) {
+        this(rules, DEFAULT_MEGAFLOWS);
+    }
+
+    /**
+     * @param rules the rules, sorted as in Firewall. The classifier keeps
+     *        the list, which must not be changed afterwards.
+     * @param megaflowCapacity the most megaflows cached, or 0 to cache none
+     */
+    public FirewallClassifier(List<FirewallRule> rules,
+                              int megaflowCapacity) {
+        this.rules = rules;
+        this.megaflowCapacity = megaflowCapacity;
+        Map<Mask, Tuple> building = new HashMap<Mask, Tuple>();
+        for (int i = 0; i < rules.size(); i++)
+            compile(building, rules.get(i), i);
+        tuples = building.values().toArray(new Tuple[building.size()]);
+        Arrays.sort(tuples, new Comparator<Tuple>() {
+            @Override
+            public int compare(Tuple a, Tuple b) {
+                return (a.first < b.first) ? -1 :
+                       ((a.first == b.first) ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Add the pattern of a rule, following the checks of
+     * FirewallRule.matchesFlow
+     */
+    protected void compile(Map<Mask, Tuple> building, FirewallRule r,
+                           int i) {
+        Key values = new Key();
+        int tested = 0;
+        int nwSrcMask = 0;
+        int nwDstMask = 0;
+
+        if (!r.wildcard_dpid) {
+            tested |= DPID;
+            values.dpid = r.dpid;
+        }
+        if (!r.wildcard_in_port) {
+            tested |= IN_PORT;
+            values.inPort = r.in_port;
+        }
+        if (!r.wildcard_dl_src) {
+            tested |= DL_SRC;
+            values.dlSrc = r.dl_src;
+        }
+        if (!r.wildcard_dl_dst) {
+            tested |= DL_DST;
+            values.dlDst = r.dl_dst;
+        }
+        if (!r.wildcard_dl_type) {
+            if (r.dl_type != Ethernet.TYPE_ARP &&
+                    r.dl_type != Ethernet.TYPE_IPv4)
+                return;
+            tested |= DL_TYPE;
+            values.dlType = r.dl_type;
+            if (!r.wildcard_nw_src) {
+                tested |= NW_SRC;
+                nwSrcMask = getMask(r.nw_src_maskbits);
+                values.nwSrc = r.nw_src_prefix;
+            }
+            if (!r.wildcard_nw_dst) {
+                tested |= NW_DST;
+                nwDstMask = getMask(r.nw_dst_maskbits);
+                values.nwDst = r.nw_dst_prefix;
+            }
+            if (!r.wildcard_nw_proto && r.dl_type == Ethernet.TYPE_IPv4) {
+                // matchesFlow never matches a TCP or UDP packet at the
+                // port checks, and does not check other protocols
+                if (r.nw_proto == IPv4.PROTOCOL_TCP ||
+                        r.nw_proto == IPv4.PROTOCOL_UDP)
+                    return;
+                if (r.nw_proto == IPv4.PROTOCOL_ICMP) {
+                    tested |= NW_PROTO;
+                    values.nwProto = IPv4.PROTOCOL_ICMP;
+                }
+            }
+        }
+
+        Mask mask = new Mask(tested, nwSrcMask, nwDstMask);
+        Tuple tuple = building.get(mask);
+        if (tuple == null) {
+            tuple = new Tuple(tested, nwSrcMask, nwDstMask);
+            building.put(tuple, tuple);
+        }
+        // Rules are added in order, so the first one stays
+        Key key = tuple.mask(values, new Key());
+        if (!tuple.patterns.containsKey(key))
+            tuple.patterns.put(key, i);
+        if (i < tuple.first) {
+            tuple.first = i;
+            tuple.dlType = values.dlType;
+        } else if (tuple.dlType != values.dlType) {
+            tuple.dlType = 0;
+        }
+    }
+
+    /**
+     * The mask matchIPAddress applies, shifts and all
+     */
+    protected static int getMask(int maskbits) {
+        int shift = 32 - maskbits;
+        return (shift > 0) ? (-1 << shift) : -1;
+    }
+
+    /**
+     * Extract the values the rules test from a packet
+     */
+    protected static Key getKey(long switchDpid, int inPort, Ethernet eth) {
+        Key k = new Key();
+        k.dpid = switchDpid;
+        k.inPort = inPort;
+        k.dlSrc = eth.getSourceMAC().toLong();
+        k.dlDst = eth.getDestinationMAC().toLong();
+        k.dlType = eth.getEtherType();
+        IPacket pkt = eth.getPayload();
+        if (k.dlType == Ethernet.TYPE_ARP && pkt instanceof ARP) {
+            ARP arp = (ARP) pkt;
+            k.nwSrc = ByteBuffer.wrap(arp.getSenderProtocolAddress()).getInt();
+            k.nwDst = ByteBuffer.wrap(arp.getTargetProtocolAddress()).getInt();
+        } else if (k.dlType == Ethernet.TYPE_IPv4 && pkt instanceof IPv4) {
+            IPv4 ip = (IPv4) pkt;
+            k.nwSrc = ip.getSourceAddress();
+            k.nwDst = ip.getDestinationAddress();
+            k.nwProto = ip.getProtocol();
+        }
+        return k;
+    }
+
+    /**
+     * Find the rule for a packet, and the fields of its megaflow: the
+     * fields a flow must not wildcard for the rules to give every packet
+     * it matches the same rule. IP addresses are kept whole, though the
+     * rules may only have tested a prefix.
+     * @return the rule, or null if none matches, with the megaflow fields
+     *         as nonWildcards
+     */
+    public RuleWildcardsPair match(long switchDpid, int inPort,
+                                   Ethernet eth) {
+        Key packet = getKey(switchDpid, inPort, eth);
+        Key probe = new Key();
+        Megaflow megaflow = null;
+        for (MegaflowTable table : megaflows) {
+            megaflow = table.flows.get(table.mask(packet, probe));
+            if (megaflow != null)
+                break;
+        }
+        if (megaflow == null)
+            megaflow = classify(packet, probe);
+
+        RuleWildcardsPair ret = new RuleWildcardsPair();
+        ret.rule = megaflow.rule;
+        ret.nonWildcards = EnumSet.copyOf(megaflow.fields);
+        return ret;
+    }
+
+    /**
+     * Look up the rules, and cache the result for its megaflow
+     */
+    protected Megaflow classify(Key packet, Key probe) {
+        int winner = rules.size();
+        int tested = 0;
+        int nwSrcMask = 0;
+        int nwDstMask = 0;
+        for (Tuple tuple : tuples) {
+            if (tuple.first >= winner)
+                break;
+            if (tuple.dlType != 0 && tuple.dlType != packet.dlType) {
+                // Only the ethertype kept the packet out of the tuple
+                tested |= DL_TYPE;
+                continue;
+            }
+            // Misses decide the result as much as hits
+            tested |= tuple.tested;
+            nwSrcMask |= tuple.nwSrcMask;
+            nwDstMask |= tuple.nwDstMask;
+            Integer rule = tuple.patterns.get(tuple.mask(packet, probe));
+            if (rule != null && rule < winner)
+                winner = rule;
+        }
+
+        boolean arp = (packet.dlType == Ethernet.TYPE_ARP);
+        EnumSet<OFOXMFieldType> fields = EnumSet.noneOf(OFOXMFieldType.class);
+        if ((tested & IN_PORT) != 0)
+            fields.add(OFOXMFieldType.IN_PORT);
+        if ((tested & DL_SRC) != 0)
+            fields.add(OFOXMFieldType.ETH_SRC);
+        if ((tested & DL_DST) != 0)
+            fields.add(OFOXMFieldType.ETH_DST);
+        if ((tested & DL_TYPE) != 0)
+            fields.add(OFOXMFieldType.ETH_TYPE);
+        if ((tested & NW_SRC) != 0)
+            fields.add(arp ? OFOXMFieldType.ARP_SPA : OFOXMFieldType.IPV4_SRC);
+        if ((tested & NW_DST) != 0)
+            fields.add(arp ? OFOXMFieldType.ARP_TPA : OFOXMFieldType.IPV4_DST);
+        if ((tested & NW_PROTO) != 0)
+            fields.add(OFOXMFieldType.IP_PROTO);
+        Megaflow megaflow = new Megaflow(
+                (winner < rules.size()) ? rules.get(winner) : null, fields);
+
+        if (megaflowCapacity > 0)
+            addMegaflow(new Mask(tested, nwSrcMask, nwDstMask), packet,
+                        megaflow);
+        return megaflow;
+    }
+
+    protected void addMegaflow(Mask mask, Key packet, Megaflow megaflow) {
+        MegaflowTable table = null;
+        synchronized (this) {
+            if (megaflowCount.incrementAndGet() > megaflowCapacity) {
+                // Start over rather than track which ones are in use
+                megaflows = new MegaflowTable[0];
+                megaflowCount.set(1);
+            }
+            MegaflowTable[] tables = megaflows;
+            for (MegaflowTable t : tables) {
+                if (t.sameAs(mask)) {
+                    table = t;
+                    break;
+                }
+            }
+            if (table == null) {
+                table = new MegaflowTable(mask);
+                MegaflowTable[] t = Arrays.copyOf(tables, tables.length + 1);
+                t[tables.length] = table;
+                megaflows = t;
+            }
+        }
+        table.flows.put(table.mask(packet, new Key()), megaflow);
+    }
+
+    /**
+     * Walk the rules in order until one matches, which is what the
+     * classifier replaces. Kept to check the classifier against.
+     */
+    public static RuleWildcardsPair scan(List<FirewallRule> rules,
+                                         long switchDpid, int inPort,
+                                         Ethernet eth) {
+        FirewallRule matched_rule = null;
+        NonWildcardsPair nonWildcards = new NonWildcardsPair();
+        for (FirewallRule rule : rules) {
+            if (rule.matchesFlow(switchDpid, inPort, eth, nonWildcards)) {
+                matched_rule = rule;
+                break;
+            }
+        }
+        RuleWildcardsPair ret = new RuleWildcardsPair();
+        ret.rule = matched_rule;
+        if (matched_rule == null ||
+                matched_rule.action == FirewallRule.FirewallAction.DENY) {
+            ret.nonWildcards = nonWildcards.drop;
+        } else {
+            ret.nonWildcards = nonWildcards.allow;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of tuples, which bounds the hash lookups per
+     *         packet that misses the megaflow cache
+     */
+    public int getTupleCount() {
+        return tuples.length;
+    }
+
+    /**
+     * @return the number of megaflows cached
+     */
+    public int getMegaflowCount() {
+        int n = 0;
+        for (MegaflowTable table : megaflows)
+            n += table.flows.size();
+        return n;
+    }
+}
@@ -85,6 +85,7 @@ import net.floodlightcontroller.packet.BSN;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.LLDP;
 import net.floodlightcontroller.packet.LLDPTLV;
+import net.floodlightcontroller.packet.PacketHeaderView;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.storage.IResultSet;
@@ -563,22 +564,30 @@ public class LinkDiscoveryManager implements IOFMessageListener,
 
     protected Command handlePacketIn(long sw, OFPacketIn pi,
                                      FloodlightContext cntx) {
-        Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
-                           IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+        PacketHeaderView headers =
+                IFloodlightProviderService.piHeadersKey.get(cntx);
+        short etherType;
+        long destMac;
+        long srcMac;
+        if (headers != null &&
+                headers.getEtherType() != Ethernet.TYPE_LLDP &&
+                headers.getEtherType() != Ethernet.TYPE_BSN) {
+            // Not a discovery packet, so the headers are all we need
+            etherType = headers.getEtherType();
+            destMac = headers.getDestinationMAC();
+            srcMac = headers.getSourceMAC();
+        } else {
+            Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
+                    IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
+            Command cmd = handleDiscoveryPacketIn(sw, pi, eth, cntx);
+            if (cmd != null)
+                return cmd;
+            etherType = eth.getEtherType();
+            destMac = eth.getDestinationMAC().toLong();
+            srcMac = eth.getSourceMAC().toLong();
+        }
 
-        if (eth.getPayload() instanceof BSN) {
-            BSN bsn = (BSN) eth.getPayload();
-            if (bsn == null) return Command.STOP;
-            if (bsn.getPayload() == null) return Command.STOP;
-            // It could be a packet other than BSN LLDP, therefore
-            // continue with the regular processing.
-            if (bsn.getPayload() instanceof LLDP == false)
-                return Command.CONTINUE;
-            return handleLldp((LLDP) bsn.getPayload(), sw, pi.getInPort(), false, cntx);
-        } else if (eth.getPayload() instanceof LLDP) {
-            return handleLldp((LLDP) eth.getPayload(), sw, pi.getInPort(), true, cntx);
-        } else if (eth.getEtherType() < 1500) {
-            long destMac = eth.getDestinationMAC().toLong();
+        if (etherType < 1500) {
             if ((destMac & LINK_LOCAL_MASK) == LINK_LOCAL_VALUE) {
                 ctrLinkLocalDrops.updateCounterNoFlush();
                 if (log.isTraceEnabled()) {
@@ -589,7 +598,7 @@ public class LinkDiscoveryManager implements IOFMessageListener,
             }
         }
 
-        if (ignorePacketInFromSource(eth.getSourceMAC().toLong())) {
+        if (ignorePacketInFromSource(srcMac)) {
             ctrIgnoreSrcMacDrops.updateCounterNoFlush();
             return Command.STOP;
         }
@@ -604,6 +613,28 @@ public class LinkDiscoveryManager implements IOFMessageListener,
         return Command.CONTINUE;
     }
 
+    /**
+     * Handle a packet-in carrying LLDP, directly or inside BSN
+     * @return the command, or null if the packet is not a discovery packet
+     */
+    private Command handleDiscoveryPacketIn(long sw, OFPacketIn pi,
+                                            Ethernet eth,
+                                            FloodlightContext cntx) {
+        if (eth.getPayload() instanceof BSN) {
+            BSN bsn = (BSN) eth.getPayload();
+            if (bsn == null) return Command.STOP;
+            if (bsn.getPayload() == null) return Command.STOP;
+            // It could be a packet other than BSN LLDP, therefore
+            // continue with the regular processing.
+            if (bsn.getPayload() instanceof LLDP == false)
+                return Command.CONTINUE;
+            return handleLldp((LLDP) bsn.getPayload(), sw, pi.getInPort(), false, cntx);
+        } else if (eth.getPayload() instanceof LLDP) {
+            return handleLldp((LLDP) eth.getPayload(), sw, pi.getInPort(), true, cntx);
+        }
+        return null;
+    }
+
     private boolean ignorePacketInFromSource(long srcMAC) {
         Iterator<MACRange> it = ignoreMACSet.iterator();
         while (it.hasNext()) {
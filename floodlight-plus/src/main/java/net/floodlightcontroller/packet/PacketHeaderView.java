@@ -0,0 +1,218 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of the headers of an Ethernet frame, which reads each
+ * field straight from the frame bytes when it is asked for instead of
+ * parsing the whole frame up front. Fields that lie past the end of the
+ * frame, or that do not apply to it (such as the IPv4 addresses of an ARP
+ * frame), read as 0.
+ *
+ * The full Ethernet packet is only parsed if getEthernet is called.
+ */
+public class PacketHeaderView {
+    protected static final int ETH_HEADER_LENGTH = 14;
+    protected static final short TYPE_VLAN = (short) 0x8100;
+
+    protected final ByteBuffer data;
+    protected final int offset;
+    protected final int length;
+    // Offset of the network header, or -1 until it is first needed
+    protected int networkOffset = -1;
+    protected Ethernet ethernet;
+
+    /**
+     * @param data the frame, from its position to its limit; the view reads
+     *        it with absolute gets and never moves its position
+     */
+    public PacketHeaderView(ByteBuffer data) {
+        this.data = data;
+        this.offset = data.position();
+        this.length = data.remaining();
+    }
+
+    /**
+     * @return the length of the frame
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public long getDestinationMAC() {
+        return getMAC(0);
+    }
+
+    public long getSourceMAC() {
+        return getMAC(6);
+    }
+
+    /**
+     * @return True if the Ethernet frame is broadcast, false otherwise
+     */
+    public boolean isBroadcast() {
+        return getDestinationMAC() == 0xffffffffffffL;
+    }
+
+    /**
+     * @return True is the Ethernet frame is multicast, False otherwise
+     */
+    public boolean isMulticast() {
+        return !isBroadcast() && (getByte(0) & 0x01) != 0;
+    }
+
+    /**
+     * @return the VLAN ID, or Ethernet.VLAN_UNTAGGED
+     */
+    public short getVlanID() {
+        if (!isVlanTagged())
+            return Ethernet.VLAN_UNTAGGED;
+        return (short) (getShort(14) & 0x0fff);
+    }
+
+    public byte getPriorityCode() {
+        if (!isVlanTagged())
+            return 0;
+        return (byte) ((getShort(14) >> 13) & 0x07);
+    }
+
+    /**
+     * @return the ether type of the payload, after any VLAN tag
+     */
+    public short getEtherType() {
+        return getShort(getNetworkOffset() - 2);
+    }
+
+    /**
+     * @return the offset of the network header from the start of the frame
+     */
+    public int getNetworkOffset() {
+        if (networkOffset < 0)
+            networkOffset = ETH_HEADER_LENGTH + (isVlanTagged() ? 4 : 0);
+        return networkOffset;
+    }
+
+    public boolean isIPv4() {
+        return getEtherType() == Ethernet.TYPE_IPv4 &&
+                ((getByte(getNetworkOffset()) >> 4) & 0xf) == 4;
+    }
+
+    public boolean isARP() {
+        return getEtherType() == Ethernet.TYPE_ARP;
+    }
+
+    public byte getIPv4Protocol() {
+        return isIPv4() ? getByte(getNetworkOffset() + 9) : 0;
+    }
+
+    public int getIPv4Source() {
+        return isIPv4() ? getInt(getNetworkOffset() + 12) : 0;
+    }
+
+    public int getIPv4Destination() {
+        return isIPv4() ? getInt(getNetworkOffset() + 16) : 0;
+    }
+
+    /**
+     * @return the ARP opcode, or 0 if this is not an ARP frame
+     */
+    public short getARPOpCode() {
+        return isARP() ? getShort(getNetworkOffset() + 6) : 0;
+    }
+
+    /**
+     * @return the TCP or UDP source port, or 0 if the frame carries neither
+     *         or is a fragment after the first
+     */
+    public short getTransportSource() {
+        int off = getTransportOffset();
+        return (off < 0) ? 0 : getShort(off);
+    }
+
+    /**
+     * @return the TCP or UDP destination port, or 0 if the frame carries
+     *         neither or is a fragment after the first
+     */
+    public short getTransportDestination() {
+        int off = getTransportOffset();
+        return (off < 0) ? 0 : getShort(off + 2);
+    }
+
+    /**
+     * Parse the whole frame, once
+     * @return the parsed frame
+     */
+    public Ethernet getEthernet() {
+        if (ethernet == null) {
+            Ethernet eth = new Ethernet();
+            if (data.hasArray()) {
+                eth.deserialize(data.array(), data.arrayOffset() + offset,
+                                length);
+            } else {
+                byte[] bytes = new byte[length];
+                ByteBuffer copy = data.duplicate();
+                copy.position(offset);
+                copy.get(bytes);
+                eth.deserialize(bytes, 0, length);
+            }
+            ethernet = eth;
+        }
+        return ethernet;
+    }
+
+    /**
+     * @return whether getEthernet has already parsed the frame
+     */
+    public boolean isParsed() {
+        return ethernet != null;
+    }
+
+    protected boolean isVlanTagged() {
+        return getShort(12) == TYPE_VLAN;
+    }
+
+    protected int getTransportOffset() {
+        if (!isIPv4())
+            return -1;
+        int net = getNetworkOffset();
+        byte proto = getByte(net + 9);
+        if (proto != IPv4.PROTOCOL_TCP && proto != IPv4.PROTOCOL_UDP)
+            return -1;
+        if ((getShort(net + 6) & 0x1fff) != 0)
+            return -1;
+        return net + (getByte(net) & 0xf) * 4;
+    }
+
+    protected long getMAC(int off) {
+        if (off + 6 > length)
+            return 0;
+        return ((data.getShort(offset + off) & 0xffffL) << 32) |
+                (data.getInt(offset + off + 2) & 0xffffffffL);
+    }
+
+    protected byte getByte(int off) {
+        return (off < length) ? data.get(offset + off) : 0;
+    }
+
+    protected short getShort(int off) {
+        return (off + 2 <= length) ? data.getShort(offset + off) : 0;
+    }
+
+    protected int getInt(int off) {
+        return (off + 4 <= length) ? data.getInt(offset + off) : 0;
+    }
+}
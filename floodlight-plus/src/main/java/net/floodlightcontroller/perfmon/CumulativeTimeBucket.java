@@ -17,14 +17,23 @@
 package net.floodlightcontroller.perfmon;
 
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.openflow.protocol.OFType;
+
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 import net.floodlightcontroller.core.IOFMessageListener;
 
+/**
+ * Processing time counters and latency histograms for all the messages
+ * seen in a period, in total, per listener and per message type.
+ * A bucket is not thread safe; PktInProcessingTime fills one per thread
+ * and merges them with add.
+ */
 @JsonSerialize(using=CumulativeTimeBucketJSONSerializer.class)
 public class CumulativeTimeBucket {
     private long startTime_ns; // First pkt time-stamp in this bucket
@@ -36,11 +45,30 @@ public class CumulativeTimeBucket {
     private long minTotalProcTimeNs;
     private long avgTotalProcTimeNs;
     private long sigmaTotalProcTimeNs; // std. deviation
+    private LatencyHistogram totalHistogram = new LatencyHistogram();
+    private Map<OFType, OneComponentTime> typeStats =
+            new EnumMap<OFType, OneComponentTime>(OFType.class);
+    private int sampleInterval = 1;
 
     public long getStartTimeNs() {
         return startTime_ns;
     }
 
+    public void setStartTimeNs(long startTimeNs) {
+        this.startTime_ns = startTimeNs;
+    }
+
+    /**
+     * @return 1 if every message was timed, N if only 1 in N was
+     */
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
     public long getTotalPktCnt() {
         return totalPktCnt;
     }
@@ -61,6 +89,14 @@ public class CumulativeTimeBucket {
         return sigmaTotalProcTimeNs;
     }
     
+    /**
+     * Get a percentile of the total processing time
+     * @param percentile between 0 and 100
+     */
+    public long getPercentileProcTimeNs(double percentile) {
+        return totalHistogram.getValueAtPercentile(percentile);
+    }
+
     public int getNumComps() {
         return compStats.values().size();
     }
@@ -69,6 +105,14 @@ public class CumulativeTimeBucket {
         return compStats.values();
     }
 
+    /**
+     * @return the processing time of each message type, with the type
+     *         name as the component name
+     */
+    public Collection<OneComponentTime> getMessageTypes() {
+        return typeStats.values();
+    }
+
     public CumulativeTimeBucket(List<IOFMessageListener> listeners) {
         compStats = new ConcurrentHashMap<Integer, OneComponentTime>(listeners.size());
         for (IOFMessageListener l : listeners) {
@@ -76,6 +120,7 @@ public class CumulativeTimeBucket {
             compStats.put(oct.hashCode(), oct);
         }
         startTime_ns = System.nanoTime();
+        resetTotals();
     }
 
     private void updateSquaredProcessingTime(long curTimeNs) {
@@ -87,6 +132,16 @@ public class CumulativeTimeBucket {
      */
     public void reset() {
         startTime_ns = System.nanoTime();
+        resetTotals();
+        for (OneComponentTime oct : compStats.values()) {
+            oct.resetAllCounters();
+        }
+        for (OneComponentTime oct : typeStats.values()) {
+            oct.resetAllCounters();
+        }
+    }
+
+    private void resetTotals() {
         totalPktCnt = 0;
         totalProcTimeNs = 0;
         avgTotalProcTimeNs = 0;
@@ -94,9 +149,7 @@ public class CumulativeTimeBucket {
         maxTotalProcTimeNs = Long.MIN_VALUE;
         minTotalProcTimeNs = Long.MAX_VALUE;
         sigmaTotalProcTimeNs = 0;
-        for (OneComponentTime oct : compStats.values()) {
-            oct.resetAllCounters();
-        }
+        totalHistogram.reset();
     }
     
     private void computeSigma() {
@@ -115,6 +168,9 @@ public class CumulativeTimeBucket {
         for (OneComponentTime oct : compStats.values()) {
             oct.computeSigma();
         }
+        for (OneComponentTime oct : typeStats.values()) {
+            oct.computeSigma();
+        }
     }
     
     public void updatePerPacketCounters(long procTimeNs) {
@@ -130,9 +186,64 @@ public class CumulativeTimeBucket {
         if (procTimeNs < minTotalProcTimeNs) {
             minTotalProcTimeNs = procTimeNs;
         }
+        totalHistogram.record(procTimeNs);
     }
     
     public void updateOneComponent(IOFMessageListener l, long procTimeNs) {
-        compStats.get(l.hashCode()).updatePerPacketCounters(procTimeNs);
+        OneComponentTime oct = compStats.get(l.hashCode());
+        if (oct == null) {
+            // A listener for a message type we were not bootstrapped with
+            oct = new OneComponentTime(l);
+            compStats.put(oct.hashCode(), oct);
+        }
+        oct.updatePerPacketCounters(procTimeNs);
+    }
+
+    public void updateMessageType(OFType type, long procTimeNs) {
+        OneComponentTime oct = typeStats.get(type);
+        if (oct == null) {
+            oct = new OneComponentTime(type.ordinal(), type.toString());
+            typeStats.put(type, oct);
+        }
+        oct.updatePerPacketCounters(procTimeNs);
+    }
+
+    /**
+     * Add all the counters of another bucket to this one
+     */
+    public void add(CumulativeTimeBucket other) {
+        if (other.totalPktCnt > 0) {
+            totalPktCnt += other.totalPktCnt;
+            totalProcTimeNs += other.totalProcTimeNs;
+            avgTotalProcTimeNs = totalProcTimeNs / totalPktCnt;
+            sumSquaredProcTimeNs2 += other.sumSquaredProcTimeNs2;
+            if (other.maxTotalProcTimeNs > maxTotalProcTimeNs)
+                maxTotalProcTimeNs = other.maxTotalProcTimeNs;
+            if (other.minTotalProcTimeNs < minTotalProcTimeNs)
+                minTotalProcTimeNs = other.minTotalProcTimeNs;
+            totalHistogram.add(other.totalHistogram);
+        }
+        for (OneComponentTime o : other.compStats.values()) {
+            if (o.getPktCnt() == 0)
+                continue;
+            OneComponentTime oct = compStats.get(o.hashCode());
+            if (oct == null) {
+                oct = new OneComponentTime(o.hashCode(), o.getCompName());
+                compStats.put(oct.hashCode(), oct);
+            }
+            oct.add(o);
+        }
+        for (Map.Entry<OFType, OneComponentTime> e :
+                other.typeStats.entrySet()) {
+            if (e.getValue().getPktCnt() == 0)
+                continue;
+            OneComponentTime oct = typeStats.get(e.getKey());
+            if (oct == null) {
+                oct = new OneComponentTime(e.getKey().ordinal(),
+                                           e.getKey().toString());
+                typeStats.put(e.getKey(), oct);
+            }
+            oct.add(e.getValue());
+        }
     }
 }
\ No newline at end of file
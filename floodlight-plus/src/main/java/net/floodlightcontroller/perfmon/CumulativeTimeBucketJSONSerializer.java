@@ -40,16 +40,34 @@ public class CumulativeTimeBucketJSONSerializer
        jGen.writeStringField("start-time", ts.toString());
        jGen.writeStringField("current-time", 
          new Timestamp(System.currentTimeMillis()).toString());
+       jGen.writeNumberField("sample-interval", ctb.getSampleInterval());
        jGen.writeNumberField("total-packets", ctb.getTotalPktCnt());
+       boolean empty = ctb.getTotalPktCnt() == 0;
        jGen.writeNumberField("average", ctb.getAverageProcTimeNs());
-       jGen.writeNumberField("min", ctb.getMinTotalProcTimeNs());
-       jGen.writeNumberField("max", ctb.getMaxTotalProcTimeNs());
+       jGen.writeNumberField("min", empty ? 0 : ctb.getMinTotalProcTimeNs());
+       jGen.writeNumberField("max", empty ? 0 : ctb.getMaxTotalProcTimeNs());
        jGen.writeNumberField("std-dev", ctb.getTotalSigmaProcTimeNs());
+       jGen.writeNumberField("p50", ctb.getPercentileProcTimeNs(50));
+       jGen.writeNumberField("p99", ctb.getPercentileProcTimeNs(99));
+       jGen.writeNumberField("p999", ctb.getPercentileProcTimeNs(99.9));
        jGen.writeArrayFieldStart("modules");
        for (OneComponentTime oct : ctb.getModules()) {
            serializer.defaultSerializeValue(oct, jGen);
        }
        jGen.writeEndArray();
+       jGen.writeArrayFieldStart("message-types");
+       for (OneComponentTime oct : ctb.getMessageTypes()) {
+           jGen.writeStartObject();
+           jGen.writeStringField("type", oct.getCompName());
+           jGen.writeNumberField("num-packets", oct.getPktCnt());
+           jGen.writeNumberField("average", oct.getAvgProcTimeNs());
+           jGen.writeNumberField("max", oct.getMaxProcTimeNs());
+           jGen.writeNumberField("p50", oct.getMedianProcTimeNs());
+           jGen.writeNumberField("p99", oct.getP99ProcTimeNs());
+           jGen.writeNumberField("p999", oct.getP999ProcTimeNs());
+           jGen.writeEndObject();
+       }
+       jGen.writeEndArray();
        jGen.writeEndObject();
    }
 
@@ -45,6 +45,11 @@ public interface IPktInProcessingTimeService extends IFloodlightService {
     
     public void recordEndTimePktIn(IOFSwitch sw, OFMessage m, FloodlightContext cntx);
     
+    /**
+     * Clears all the data collected so far
+     */
+    public void reset();
+    
     public boolean isEnabled();
     
     public void setEnabled(boolean enabled);
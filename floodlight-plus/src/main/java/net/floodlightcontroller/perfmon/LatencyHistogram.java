@@ -0,0 +1,103 @@
+package net.floodlightcontroller.perfmon;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram. Values below 64 ns are counted exactly; above that each
+ * power of two is split into 32 equal buckets, so a percentile is within
+ * about 3% of the true value. Values of 2^40 ns (about 18 minutes) and
+ * more share the last bucket. The maximum is kept exactly.
+ *
+ * A histogram is not thread safe.
+ */
+public class LatencyHistogram {
+    protected static final int SUB_BITS = 5;
+    protected static final int SUB_COUNT = 1 << SUB_BITS;
+    protected static final int MAX_EXPONENT = 39;
+    protected static final int BUCKETS =
+            (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+
+    public void record(long valueNs) {
+        if (valueNs < 0)
+            valueNs = 0;
+        counts[indexOf(valueNs)]++;
+        count++;
+        if (valueNs > max)
+            max = valueNs;
+    }
+
+    /**
+     * Add the counts of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        if (other.count == 0)
+            return;
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        if (other.max > max)
+            max = other.max;
+    }
+
+    public void reset() {
+        if (count == 0)
+            return;
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the value below which the given share of the values fall
+     * @param percentile between 0 and 100
+     * @return the highest value in the bucket holding that percentile, or 0
+     *         if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long target = (long) Math.ceil(percentile / 100 * count);
+        if (target < 1)
+            target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            // The last bucket has no upper bound
+            if (seen >= target && i < BUCKETS - 1)
+                return Math.min(highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    protected static int indexOf(long value) {
+        if (value < 2 * SUB_COUNT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift);
+        return (shift + 1) * SUB_COUNT + (sub - SUB_COUNT);
+    }
+
+    protected static long highestValueOf(int index) {
+        if (index < 2 * SUB_COUNT)
+            return index;
+        int shift = index / SUB_COUNT - 1;
+        long sub = index % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -92,6 +92,11 @@ public class NullPktInProcessingTime
             ctb = new CumulativeTimeBucket(listeners);
     }
 
+    @Override
+    public void reset() {
+
+    }
+
     @Override
     public void recordStartTimeComp(IOFMessageListener listener) {
 
@@ -35,10 +35,15 @@ public class OneComponentTime {
     private long minProcTimeNs;
     private long avgProcTimeNs;
     private long sigmaProcTimeNs;  // std. deviation
+    private LatencyHistogram histogram = new LatencyHistogram();
 
     public OneComponentTime(IOFMessageListener module) {
-        compId = module.hashCode();
-        compName = module.getClass().getCanonicalName();
+        this(module.hashCode(), module.getClass().getCanonicalName());
+    }
+
+    public OneComponentTime(int compId, String compName) {
+        this.compId = compId;
+        this.compName = compName;
         resetAllCounters();
     }
     
@@ -50,6 +55,7 @@ public class OneComponentTime {
         sumSquaredProcTimeNs2 = 0;
         avgProcTimeNs = 0;
         sigmaProcTimeNs = 0;
+        histogram.reset();
     }
     
     @JsonProperty("module-name")
@@ -92,6 +98,25 @@ public class OneComponentTime {
         return sumSquaredProcTimeNs2;
     }
 
+    @JsonProperty("p50")
+    public long getMedianProcTimeNs() {
+        return histogram.getValueAtPercentile(50);
+    }
+
+    @JsonProperty("p99")
+    public long getP99ProcTimeNs() {
+        return histogram.getValueAtPercentile(99);
+    }
+
+    @JsonProperty("p999")
+    public long getP999ProcTimeNs() {
+        return histogram.getValueAtPercentile(99.9);
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
     // Methods used to update the counters
     
     private void increasePktCount() {
@@ -136,6 +161,22 @@ public class OneComponentTime {
         calculateMaxProcTime(procTimeNs);
         updateAvgProcessTime();
         updateSquaredProcessingTime(procTimeNs);
+        histogram.record(procTimeNs);
+    }
+
+    /**
+     * Add the counters of another OneComponentTime to this one
+     */
+    public void add(OneComponentTime other) {
+        if (other.pktCnt == 0)
+            return;
+        pktCnt += other.pktCnt;
+        totalProcTimeNs += other.totalProcTimeNs;
+        sumSquaredProcTimeNs2 += other.sumSquaredProcTimeNs2;
+        calculateMinProcTime(other.minProcTimeNs);
+        calculateMaxProcTime(other.maxProcTimeNs);
+        updateAvgProcessTime();
+        histogram.add(other.histogram);
     }
     
     @Override
@@ -30,11 +30,9 @@ public class PerfMonToggleResource extends ServerResource {
         
         String param = ((String)getRequestAttributes().get("perfmonstate")).toLowerCase();
         if (param.equals("reset")) {
-        	// We cannot reset something that is disabled, so enable it first.
-        	if(!pktinProcTime.isEnabled()){
-        		pktinProcTime.setEnabled(true);
-        	}
-            pktinProcTime.getCtb().reset();
+            // Reset starts over timing every message, even if only a
+            // sample of them was being timed; enabling clears the data.
+            pktinProcTime.setEnabled(true);
         } else {
             if (param.equals("enable") || param.equals("true")) {
                 pktinProcTime.setEnabled(true);
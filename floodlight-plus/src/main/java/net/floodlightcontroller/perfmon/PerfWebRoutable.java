@@ -28,7 +28,8 @@ public class PerfWebRoutable implements RestletRoutable {
     public Restlet getRestlet(Context context) {
         Router router = new Router(context);
         router.attach("/data/json", PerfMonDataResource.class);
-        router.attach("/{perfmonstate}/json", PerfMonToggleResource.class); // enable, disable, or reset
+        // enable, disable, or reset: clear the data and time every message
+        router.attach("/{perfmonstate}/json", PerfMonToggleResource.class);
         return router;
     }
 
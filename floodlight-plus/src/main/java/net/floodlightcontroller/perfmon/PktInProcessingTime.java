@@ -21,6 +21,7 @@ package net.floodlightcontroller.perfmon;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +66,10 @@ import org.slf4j.LoggerFactory;
  * TOT_PROC_TIME_ALERT_THRESHOLD_US: same as above but an alert level
  *    syslog is generated instead
  * 
+ * Each thread times its own messages into a bucket of its own, and adds
+ * it to the current shared bucket about once a second. With the
+ * sampleinterval config option set to N, 1 in N messages is timed even
+ * while monitoring is disabled, which is cheap enough to leave on.
  */
 @LogMessageCategory("Performance Monitoring")
 public class PktInProcessingTime
@@ -85,66 +90,151 @@ public class PktInProcessingTime
     protected static  Logger  logger = 
         LoggerFactory.getLogger(PktInProcessingTime.class);
     
-    protected boolean isEnabled = false;
-    protected boolean isInited = false;
-    // Maintains the time when the last packet was processed
-    protected long lastPktTime_ns;
-    private CumulativeTimeBucket ctb = null;
+    // Time every message, or 1 in sampleInterval messages; 0 when off
+    protected volatile int sampleInterval = 0;
+    // The interval used while full monitoring is disabled
+    protected int configuredSampleInterval = 0;
+    protected List<IOFMessageListener> listeners =
+            Collections.emptyList();
 
-    
     /***
      * BUCKET_SET_SIZE buckets each holding 10s of processing time data, a total
      * of 30*10s = 5mins of processing time data is maintained
      */
     protected static final int ONE_BUCKET_DURATION_SECONDS = 10;// seconds
     protected static final long ONE_BUCKET_DURATION_NANOSECONDS  =
-                                ONE_BUCKET_DURATION_SECONDS * 1000000000;
-    
+                                ONE_BUCKET_DURATION_SECONDS * 1000000000L;
+    protected static final int BUCKET_SET_SIZE = 30;
+    // How often a thread adds what it recorded to the shared buckets
+    protected static final long FLUSH_INTERVAL_NANOSECONDS = 1000000000L;
+
+    // Guarded by this
+    protected CumulativeTimeBucket[] buckets;
+    protected int currentBucket;
+    protected long bucketStartNs;
+    // Bumped on reset so that threads drop what they have not flushed yet
+    protected volatile int generation;
+
+    /**
+     * The timing state of one thread. Start times live here rather than
+     * in the module so that threads handling messages at the same time
+     * do not overwrite each other's.
+     */
+    protected static class Recorder {
+        long startTimePktNs;
+        long startTimeCompNs;
+        boolean sampled;
+        int skipped;
+        int generation;
+        long lastFlushNs = System.nanoTime();
+        CumulativeTimeBucket bucket;
+    }
+
+    protected final ThreadLocal<Recorder> recorders =
+            new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            return new Recorder();
+        }
+    };
+
+    public PktInProcessingTime() {
+        resetBuckets();
+    }
+
     @Override
-    public void bootstrap(List<IOFMessageListener> listeners) {
-            ctb = new CumulativeTimeBucket(listeners);
+    public synchronized void bootstrap(List<IOFMessageListener> listeners) {
+        this.listeners = (listeners == null) ?
+                Collections.<IOFMessageListener>emptyList() :
+                new ArrayList<IOFMessageListener>(listeners);
+        resetBuckets();
     }
-    
+
+    @Override
+    public synchronized void reset() {
+        resetBuckets();
+    }
+
+    /**
+     * @return true if either every message or a sample of them is timed
+     */
     @Override
     public boolean isEnabled() {
-        return isEnabled;
+        return sampleInterval > 0;
     }
     
+    /**
+     * Enabling times every message; disabling goes back to the configured
+     * sampling, which may be off. Either resets the data.
+     */
     @Override
     public void setEnabled(boolean enabled) {
-    	if(enabled){
-    		bootstrap(floodlightProvider.getListeners().get(OFType.PACKET_IN));
-    	}
-        this.isEnabled = enabled;
-        logger.debug("Setting module to " + isEnabled);
+        bootstrap(floodlightProvider.getListeners().get(OFType.PACKET_IN));
+        sampleInterval = enabled ? 1 : configuredSampleInterval;
+        logger.debug("Setting module to " + enabled);
     }
     
+    /**
+     * @return a new bucket holding all the data of the last
+     *         BUCKET_SET_SIZE buckets; data a thread recorded in the last
+     *         FLUSH_INTERVAL_NANOSECONDS may be missing
+     */
     @Override
-    public CumulativeTimeBucket getCtb() {
+    public synchronized CumulativeTimeBucket getCtb() {
+        long now = System.nanoTime();
+        rotateBuckets(now);
+        CumulativeTimeBucket ctb = new CumulativeTimeBucket(listeners);
+        long oldestNs = now;
+        for (CumulativeTimeBucket b : buckets) {
+            if (b.getTotalPktCnt() == 0)
+                continue;
+            ctb.add(b);
+            oldestNs = Math.min(oldestNs, b.getStartTimeNs());
+        }
+        // The start time is reported as wall clock time
+        ctb.setStartTimeNs(System.currentTimeMillis() * 1000000 -
+                           (now - oldestNs));
+        ctb.setSampleInterval(Math.max(sampleInterval, 1));
         return ctb;
     }
     
-    private long startTimePktNs;
-    private long startTimeCompNs;
     @Override
     public void recordStartTimeComp(IOFMessageListener listener) {
-        if (isEnabled()) {
-            startTimeCompNs = System.nanoTime();
+        if (sampleInterval > 0) {
+            Recorder r = recorders.get();
+            if (r.sampled)
+                r.startTimeCompNs = System.nanoTime();
         }
     }
     
     @Override
     public void recordEndTimeComp(IOFMessageListener listener) {
-        if (isEnabled()) {
-            long procTime = System.nanoTime() - startTimeCompNs;
-            ctb.updateOneComponent(listener, procTime);
+        if (sampleInterval > 0) {
+            Recorder r = recorders.get();
+            if (r.sampled) {
+                long procTime = System.nanoTime() - r.startTimeCompNs;
+                r.bucket.updateOneComponent(listener, procTime);
+            }
         }
     }
     
     @Override
     public void recordStartTimePktIn() {
-        if (isEnabled()) {
-            startTimePktNs = System.nanoTime();
+        int interval = sampleInterval;
+        if (interval > 0) {
+            Recorder r = recorders.get();
+            if (++r.skipped < interval) {
+                r.sampled = false;
+                return;
+            }
+            r.skipped = 0;
+            r.sampled = true;
+            if (r.bucket == null || r.generation != generation) {
+                r.generation = generation;
+                r.bucket = new CumulativeTimeBucket(
+                        Collections.<IOFMessageListener>emptyList());
+            }
+            r.startTimePktNs = System.nanoTime();
         }
     }
     
@@ -155,9 +245,18 @@ public class PktInProcessingTime
             		"performance threshold",
             recommendation=LogMessageDoc.CHECK_CONTROLLER)
     public void recordEndTimePktIn(IOFSwitch sw, OFMessage m, FloodlightContext cntx) {
-        if (isEnabled()) {
-            long procTimeNs = System.nanoTime() - startTimePktNs;
-            ctb.updatePerPacketCounters(procTimeNs);
+        if (sampleInterval > 0) {
+            Recorder r = recorders.get();
+            if (!r.sampled)
+                return;
+            r.sampled = false;
+            long now = System.nanoTime();
+            long procTimeNs = now - r.startTimePktNs;
+            r.bucket.updatePerPacketCounters(procTimeNs);
+            r.bucket.updateMessageType(m.getType(), procTimeNs);
+            if (now - r.lastFlushNs >= FLUSH_INTERVAL_NANOSECONDS) {
+                flush(r, now);
+            }
             
             if (ptWarningThresholdInNano > 0 && 
                     procTimeNs > ptWarningThresholdInNano) {
@@ -166,6 +265,51 @@ public class PktInProcessingTime
             }
         }
     }
+
+    /**
+     * Add what a thread recorded to the current shared bucket
+     */
+    protected void flush(Recorder r, long now) {
+        synchronized (this) {
+            if (r.generation == generation) {
+                rotateBuckets(now);
+                buckets[currentBucket].add(r.bucket);
+            }
+        }
+        r.bucket.reset();
+        r.lastFlushNs = now;
+    }
+
+    // Called with this held
+    protected void resetBuckets() {
+        if (buckets == null)
+            buckets = new CumulativeTimeBucket[BUCKET_SET_SIZE];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new CumulativeTimeBucket(
+                    Collections.<IOFMessageListener>emptyList());
+        }
+        currentBucket = 0;
+        bucketStartNs = System.nanoTime();
+        generation++;
+    }
+
+    // Called with this held; reuses the oldest bucket once the current one
+    // is ONE_BUCKET_DURATION_SECONDS old
+    protected void rotateBuckets(long now) {
+        if (now - bucketStartNs >=
+                BUCKET_SET_SIZE * ONE_BUCKET_DURATION_NANOSECONDS) {
+            // Idle long enough for all the buckets to be stale
+            for (CumulativeTimeBucket b : buckets)
+                b.reset();
+            bucketStartNs = now;
+            return;
+        }
+        while (now - bucketStartNs >= ONE_BUCKET_DURATION_NANOSECONDS) {
+            currentBucket = (currentBucket + 1) % buckets.length;
+            buckets[currentBucket].reset();
+            bucketStartNs += ONE_BUCKET_DURATION_NANOSECONDS;
+        }
+    }
     
     // IFloodlightModule methods
     
@@ -204,6 +348,18 @@ public class PktInProcessingTime
     	floodlightProvider = context
                 .getServiceImpl(IFloodlightProviderService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
+
+        Map<String, String> configParams = context.getConfigParams(this);
+        try {
+            String interval = configParams.get("sampleinterval");
+            if (interval != null) {
+                configuredSampleInterval =
+                        Math.max(Integer.parseInt(interval), 0);
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Error parsing sample interval, " +
+                        "using default of {}", configuredSampleInterval);
+        }
     }
     
     @Override
@@ -215,6 +371,10 @@ public class PktInProcessingTime
     public void startUp(FloodlightModuleContext context) {
         // Add our REST API
         restApi.addRestletRoutable(new PerfWebRoutable());
+        sampleInterval = configuredSampleInterval;
+        if (sampleInterval > 1) {
+            logger.info("Timing 1 in {} messages", sampleInterval);
+        }
         
         // TODO - Alex - change this to a config option
         ptWarningThresholdInNano = Long.parseLong(System.getProperty(
@@ -24,6 +24,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 import org.slf4j.Logger;
@@ -81,6 +85,11 @@ public class TopologyInstance {
     protected Map<Long, Set<NodePortTuple>> clusterBroadcastNodePorts;
     protected Map<Long, BroadcastTree> clusterBroadcastTrees;
 
+    // Executor the per-destination trees are computed on, and the number
+    // of tasks they are split into; null to compute them on the caller
+    protected ExecutorService pathExecutor;
+    protected int pathParallelism = 1;
+
     protected class PathCacheLoader extends CacheLoader<RouteId, Route> {
         TopologyInstance ti;
         PathCacheLoader(TopologyInstance ti) {
@@ -163,6 +172,18 @@ public class TopologyInstance {
                             });
     }
 
+    /**
+     * Compute the shortest path trees on several threads. Must be called
+     * before compute().
+     * @param executor the executor to run on, or null to compute the trees
+     *        on the thread that calls compute()
+     * @param parallelism the number of tasks to split the trees into
+     */
+    public void setPathExecutor(ExecutorService executor, int parallelism) {
+        this.pathExecutor = executor;
+        this.pathParallelism = Math.max(1, parallelism);
+    }
+
     public void compute() {
 
         // Step 1: Compute clusters ignoring broadcast domain links
@@ -553,12 +574,65 @@ public class TopologyInstance {
             }
         }
 
+        if (pathExecutor == null || pathParallelism < 2) {
+            for(Cluster c: clusters) {
+                for (Long node : c.links.keySet()) {
+                    BroadcastTree tree = dijkstra(c, node, linkCost, true);
+                    destinationRootedTrees.put(node, tree);
+                }
+            }
+            return;
+        }
+
+        // Each tree only reads the cluster and link costs, so the roots
+        // can be dealt out among tasks and the results merged afterwards.
+        final List<Cluster> rootClusters = new ArrayList<Cluster>();
+        final List<Long> roots = new ArrayList<Long>();
         for(Cluster c: clusters) {
             for (Long node : c.links.keySet()) {
-                BroadcastTree tree = dijkstra(c, node, linkCost, true);
-                destinationRootedTrees.put(node, tree);
+                rootClusters.add(c);
+                roots.add(node);
             }
         }
+        final Map<Link, Integer> costs = linkCost;
+        List<Future<Map<Long, BroadcastTree>>> futures =
+                new ArrayList<Future<Map<Long, BroadcastTree>>>();
+        for (int w = 0; w < pathParallelism; w++) {
+            final int first = w;
+            futures.add(pathExecutor.submit(
+                    new Callable<Map<Long, BroadcastTree>>() {
+                @Override
+                public Map<Long, BroadcastTree> call() {
+                    Map<Long, BroadcastTree> trees =
+                            new HashMap<Long, BroadcastTree>();
+                    for (int i = first; i < roots.size();
+                            i += pathParallelism) {
+                        trees.put(roots.get(i), dijkstra(rootClusters.get(i),
+                                roots.get(i), costs, true));
+                    }
+                    return trees;
+                }
+            }));
+        }
+
+        // Wait for every task even if interrupted, so the trees are complete
+        boolean interrupted = false;
+        for (Future<Map<Long, BroadcastTree>> future : futures) {
+            while (true) {
+                try {
+                    destinationRootedTrees.putAll(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(
+                            "Shortest path computation failed", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     protected void calculateBroadcastTreeInClusters() {
@@ -27,9 +27,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.HAListenerTypeMarker;
@@ -134,14 +138,21 @@ public class TopologyManager implements
     protected IRestApiService restApi;
     protected IDebugCounterService debugCounters;
 
+    /**
+     * Number of threads shortest path trees are computed on; with 1 they
+     * are computed on the topology update thread
+     */
+    protected int pathThreads = 1;
+    protected ExecutorService pathExecutor;
+
     // Modules that listen to our updates
     protected ArrayList<ITopologyListener> topologyAware;
 
     protected BlockingQueue<LDUpdate> ldUpdates;
 
     // These must be accessed using getCurrentInstance(), not directly
-    protected TopologyInstance currentInstance;
-    protected TopologyInstance currentInstanceWithoutTunnels;
+    protected volatile TopologyInstance currentInstance;
+    protected volatile TopologyInstance currentInstanceWithoutTunnels;
 
     protected SingletonTask newInstanceTask;
     private Date lastUpdateTime;
@@ -858,6 +869,19 @@ public class TopologyManager implements
         haListener = new HAListenerDelegate();
         registerTopologyDebugCounters();
         registerTopologyDebugEvents();
+
+        // read our config options
+        Map<String, String> configOptions = context.getConfigParams(this);
+        try {
+            String threads = configOptions.get("paththreads");
+            if (threads != null) {
+                pathThreads = Math.max(1, Integer.parseInt(threads));
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing path threads, using default of {}",
+                     pathThreads);
+        }
+        log.debug("Path threads set to {}", pathThreads);
     }
 
     protected void registerTopologyDebugEvents() throws FloodlightModuleException {
@@ -884,6 +908,23 @@ public class TopologyManager implements
         ScheduledExecutorService ses = threadPool.getScheduledExecutor();
         newInstanceTask = new SingletonTask(ses, new UpdateTopologyWorker());
 
+        if (pathThreads > 1) {
+            final ThreadGroup tg = new ThreadGroup("Path Compute Threads");
+            ThreadFactory f = new ThreadFactory() {
+                AtomicInteger id = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread t = new Thread(tg, runnable, "PathCompute-" +
+                                          id.getAndIncrement());
+                    // Do not keep the JVM alive for an idle pool
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+            pathExecutor = Executors.newFixedThreadPool(pathThreads, f);
+        }
+
         if (role != Role.SLAVE)
             newInstanceTask.reschedule(TOPOLOGY_COMPUTE_INTERVAL_MS,
                                    TimeUnit.MILLISECONDS);
@@ -1240,6 +1281,7 @@ public class TopologyManager implements
                                                    openflowLinks,
                                                    broadcastDomainPorts,
                                                    tunnelPorts);
+        nt.setPathExecutor(pathExecutor, pathThreads);
         nt.compute();
         // We set the instances with and without tunnels to be identical.
         // If needed, we may compute them differently.
@@ -0,0 +1,97 @@
+package net.floodlightcontroller.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts occurrences of long keys in a fixed amount of memory. The count
+ * of a key is never underestimated; it is overestimated only when all of
+ * the key's counters are shared with other frequent keys, which becomes
+ * unlikely as the width grows.
+ *
+ * Counters are raised with conservative update: only those that are at
+ * the current estimate are incremented, which keeps the error of the other
+ * keys sharing them low. Not thread safe.
+ */
+public class CountMinSketch {
+    protected final int depth;
+    protected final int mask;
+    protected final int[] counts;
+
+    /**
+     * @param depth the number of hash functions
+     * @param width the counters per hash function, rounded up to a power
+     *        of two
+     */
+    public CountMinSketch(int depth, int width) {
+        if (depth < 1 || width < 1)
+            throw new IllegalArgumentException("depth and width must be " +
+                                               "positive");
+        int w = Integer.highestOneBit(width);
+        if (w < width)
+            w <<= 1;
+        this.depth = depth;
+        this.mask = w - 1;
+        this.counts = new int[depth * w];
+    }
+
+    /**
+     * Count one more occurrence of key
+     * @return the estimated count of key, including this occurrence
+     */
+    public int add(long key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int c = counts[index(i, h1, h2)];
+            if (c < min)
+                min = c;
+        }
+        if (min == Integer.MAX_VALUE)
+            return min;
+        int estimate = min + 1;
+        for (int i = 0; i < depth; i++) {
+            int j = index(i, h1, h2);
+            if (counts[j] < estimate)
+                counts[j] = estimate;
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the estimated count of key
+     */
+    public int estimate(long key) {
+        long h = mix(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int c = counts[index(i, h1, h2)];
+            if (c < min)
+                min = c;
+        }
+        return min;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+    }
+
+    protected int index(int row, int h1, int h2) {
+        return row * (mask + 1) + ((h1 + row * h2) & mask);
+    }
+
+    /**
+     * Spread the bits of a key over the whole long (the murmur3 finalizer)
+     */
+    public static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
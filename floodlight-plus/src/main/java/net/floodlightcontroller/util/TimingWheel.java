@@ -0,0 +1,110 @@
+package net.floodlightcontroller.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules items by deadline, so that finding the items that are due
+ * only touches those items. The wheel is a ring of slots one tick wide,
+ * covering the horizon; an item goes in the slot of the tick its deadline
+ * falls in, or in the last slot if the deadline is further away.
+ *
+ * An item within the horizon is never returned before its deadline, but
+ * may be returned up to a tick after it. An item beyond the horizon is
+ * returned early, once the wheel has turned to the last slot, and the
+ * caller has to check its deadline and schedule it again. Each item is
+ * scheduled at most once: scheduling it again keeps the earlier deadline.
+ */
+public class TimingWheel<T> {
+    protected final long tickMs;
+    protected final ArrayDeque<T>[] slots;
+    // Tick each scheduled item is due at
+    protected final Map<T, Long> ticks = new HashMap<T, Long>();
+    // Next tick to expire
+    protected long cursor;
+
+    /**
+     * @param tickMs the width of a slot
+     * @param horizonMs how far ahead deadlines are expected
+     * @param now the current time, in ms
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMs, long horizonMs, long now) {
+        if (tickMs <= 0)
+            throw new IllegalArgumentException("tickMs must be positive");
+        if (horizonMs < 0)
+            throw new IllegalArgumentException("horizonMs must not be " +
+                                               "negative");
+        this.tickMs = tickMs;
+        int n = (int) ((horizonMs + tickMs - 1) / tickMs) + 1;
+        this.slots = new ArrayDeque[n];
+        for (int i = 0; i < n; i++)
+            slots[i] = new ArrayDeque<T>();
+        this.cursor = now / tickMs;
+    }
+
+    /**
+     * Schedule an item, unless it is already due earlier
+     * @param deadline when it is due, in ms
+     */
+    public synchronized void schedule(T item, long deadline) {
+        long tick = (deadline + tickMs - 1) / tickMs;
+        if (tick < cursor)
+            tick = cursor;
+        if (tick >= cursor + slots.length)
+            tick = cursor + slots.length - 1;
+        Long current = ticks.get(item);
+        if (current != null && current <= tick)
+            return;
+        ticks.put(item, tick);
+        slots[(int) (tick % slots.length)].add(item);
+    }
+
+    /**
+     * Remove an item from the schedule
+     */
+    public synchronized void cancel(T item) {
+        // Left in its slot, and skipped when the slot expires
+        ticks.remove(item);
+    }
+
+    /**
+     * Take the items that are due
+     * @param now the current time, in ms
+     * @param max the most items to take. The others stay due.
+     * @return the items, in the order of their deadlines
+     */
+    public synchronized List<T> expire(long now, int max) {
+        List<T> expired = new ArrayList<T>();
+        long nowTick = now / tickMs;
+        // Every slot comes round once in a revolution
+        if (nowTick - cursor >= slots.length)
+            cursor = nowTick - slots.length + 1;
+        while (cursor <= nowTick) {
+            ArrayDeque<T> slot = slots[(int) (cursor % slots.length)];
+            while (!slot.isEmpty()) {
+                if (expired.size() >= max)
+                    return expired;
+                T item = slot.poll();
+                Long tick = ticks.get(item);
+                // Skip items cancelled, or scheduled again since
+                if (tick == null || tick > cursor)
+                    continue;
+                ticks.remove(item);
+                expired.add(item);
+            }
+            cursor++;
+        }
+        return expired;
+    }
+
+    /**
+     * @return the number of items scheduled
+     */
+    public synchronized int size() {
+        return ticks.size();
+    }
+}
@@ -0,0 +1,73 @@
+package net.floodlightcontroller.util;
+
+/**
+ * A token bucket that refills at a fixed rate. Instead of a token count it
+ * keeps the time at which the bucket will be full again, so taking a token
+ * is a comparison and an addition, with no timer and no division.
+ *
+ * Times are in nanoseconds, as from System.nanoTime(). Not thread safe.
+ */
+public class TokenBucket {
+    // Nanoseconds to refill one token, or 0 if the bucket never runs out
+    protected long interval;
+    // Nanoseconds to refill the whole bucket
+    protected long capacity;
+    // When the bucket is full again, unless it is full already
+    protected long fullAt;
+    protected boolean full = true;
+
+    /**
+     * @param rate the tokens per second, or 0 or less for no limit
+     * @param burst the most tokens the bucket holds
+     */
+    public TokenBucket(int rate, int burst) {
+        setRate(rate, burst);
+    }
+
+    /**
+     * Change the rate and the size of the bucket, refilling it
+     * @param rate the tokens per second, or 0 or less for no limit
+     * @param burst the most tokens the bucket holds
+     */
+    public void setRate(int rate, int burst) {
+        if (rate <= 0 || rate == Integer.MAX_VALUE) {
+            interval = 0;
+            capacity = 0;
+        } else {
+            interval = Math.max(1, 1000000000L / rate);
+            capacity = interval * Math.max(1, burst);
+        }
+        full = true;
+    }
+
+    public boolean isUnlimited() {
+        return interval == 0;
+    }
+
+    /**
+     * Take a token if there is one
+     * @param now the current time
+     * @return false if the bucket is empty
+     */
+    public boolean tryTake(long now) {
+        if (interval == 0)
+            return true;
+        long start = (full || fullAt - now < 0) ? now : fullAt;
+        long next = start + interval;
+        if (next - now > capacity)
+            return false;
+        fullAt = next;
+        full = false;
+        return true;
+    }
+
+    /**
+     * @return the tokens left at time now, Integer.MAX_VALUE if unlimited
+     */
+    public int getTokens(long now) {
+        if (interval == 0)
+            return Integer.MAX_VALUE;
+        long used = (full || fullAt - now < 0) ? 0 : fullAt - now;
+        return (int) ((capacity - used) / interval);
+    }
+}
@@ -1,19 +1,25 @@
 package org.openflow.protocol;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.ArrayList;
 import java.util.Set;
 
 import org.openflow.util.HexString;
 import org.openflow.util.U8;
 import org.openflow.util.U16;
-import org.openflow.util.U32;
 
 /**
  * Represents an ofp_match structure
  *
+ * The fields are kept in arrays indexed by OFOXMFieldType, with a bit per
+ * field type saying which are set. Fields of up to 8 bytes, including the
+ * MAC addresses, are held as longs, so the typed getters and setters do not
+ * box; only the IPv6 addresses are held as byte arrays. Fields are written
+ * in field type order, which puts every field after its prerequisites.
+ * A clone shares the arrays until either match is changed.
+ *
  * @author Srini Seetharaman (srini.seetharaman@gmail.com)
  *
  */
@@ -62,10 +68,28 @@ public class OFMatch implements Cloneable {
         }
     }
 
+    protected static final OFOXMFieldType[] FIELD_TYPES =
+            OFOXMFieldType.values();
+    // Payload length of the widest field kept in values
+    protected static final int MAX_NARROW_LENGTH = 8;
+
     protected OFMatchType type;
     protected short length; //total length including padding
     protected short matchLength; // length excluding padding
-    protected List<OFMatchField> matchFields;
+    // Bit i set if the field with ordinal i is set, or has a mask
+    protected long present;
+    protected long masked;
+    // Fields of up to MAX_NARROW_LENGTH bytes, by ordinal; masks is null
+    // until a field has one
+    protected long[] values;
+    protected long[] masks;
+    // Longer fields, by ordinal; null until one is set
+    protected byte[][] wideValues;
+    protected byte[][] wideMasks;
+    // True if the arrays may be shared with a clone
+    protected boolean shared;
+    // Cached hash code, 0 if not computed
+    protected int hash;
 
     /**
      * By default, create a OFMatch that matches everything
@@ -75,19 +99,21 @@ public class OFMatch implements Cloneable {
         this.type = OFMatchType.OXM;
         this.length = U16.t(MINIMUM_LENGTH);
         this.matchLength = 4; //No padding
-        this.matchFields = new ArrayList<OFMatchField>();
+        this.values = new long[FIELD_TYPES.length];
     }
 
     /**
      * Get value of particular field
-     * @return
+     * @return a Byte, Short, Integer or Long for fields of 1, 2, 4 or 8
+     *         bytes, else a new byte array
      */
     public Object getMatchFieldValue(OFOXMFieldType matchType) {
-        for (OFMatchField matchField: matchFields) {
-            if (matchField.getType() == matchType)
-                return matchField.getValue();
-        }
-        throw new IllegalArgumentException("No match exists for matchfield " + matchType.getName());
+        int i = matchType.ordinal();
+        if ((present & (1L << i)) == 0)
+            throw new IllegalArgumentException("No match exists for matchfield " + matchType.getName());
+        if (matchType.getPayloadLength() > MAX_NARROW_LENGTH)
+            return wideValues[i].clone();
+        return toObject(values[i], matchType.getPayloadLength());
     }
 
     /**
@@ -95,12 +121,34 @@ public class OFMatch implements Cloneable {
      * @return
      */
     public Object getMatchFieldMask(OFOXMFieldType matchType) {
-        for (OFMatchField matchField: matchFields) {
-            if (matchField.getType() == matchType)
-                return matchField.getMask();
-        }
+        int i = matchType.ordinal();
         //No mask exists for matchfield and it is not illegal
-        return null;
+        if ((masked & (1L << i)) == 0)
+            return null;
+        if (matchType.getPayloadLength() > MAX_NARROW_LENGTH)
+            return wideMasks[i].clone();
+        return toObject(masks[i], matchType.getPayloadLength());
+    }
+
+    /**
+     * Get the value of a field of up to 8 bytes without boxing it. MAC
+     * addresses are returned in the low 48 bits.
+     * @return the value, or 0 if the field is not set
+     */
+    public long getMatchFieldLong(OFOXMFieldType matchType) {
+        if (matchType.getPayloadLength() > MAX_NARROW_LENGTH)
+            throw new IllegalArgumentException("Matchfield " + matchType.getName() + " is longer than 8 bytes");
+        return values[matchType.ordinal()];
+    }
+
+    /**
+     * Get the mask of a field of up to 8 bytes without boxing it
+     * @return the mask, or 0 if the field has none
+     */
+    public long getMatchFieldMaskLong(OFOXMFieldType matchType) {
+        if (matchType.getPayloadLength() > MAX_NARROW_LENGTH)
+            throw new IllegalArgumentException("Matchfield " + matchType.getName() + " is longer than 8 bytes");
+        return getMask(matchType.ordinal());
     }
 
     /**
@@ -108,11 +156,7 @@ public class OFMatch implements Cloneable {
      * @return boolean indicating if the field value exists
      */
     public boolean fieldExists(OFOXMFieldType matchType) {
-        for (OFMatchField matchField: matchFields) {
-            if (matchField.getType() == matchType)
-                return true;
-        }
-        return false;
+        return (present & (1L << matchType.ordinal())) != 0;
     }
 
     /**
@@ -120,11 +164,9 @@ public class OFMatch implements Cloneable {
      * @return integer
      */
     public int getInPort() {
-        try {
-            return (Integer)getMatchFieldValue(OFOXMFieldType.IN_PORT);
-        } catch (IllegalArgumentException e) {
+        if (!fieldExists(OFOXMFieldType.IN_PORT))
             return OFPort.OFPP_ANY.getValue();
-        }
+        return (int) values[OFOXMFieldType.IN_PORT.ordinal()];
     }
 
     /**
@@ -142,11 +184,10 @@ public class OFMatch implements Cloneable {
      * @return an arrays of bytes
      */
     public byte[] getDataLayerDestination() {
-        try {
-            return (byte[])getMatchFieldValue(OFOXMFieldType.ETH_DST);
-        } catch (IllegalArgumentException e) {
+        if (!fieldExists(OFOXMFieldType.ETH_DST))
             return null;
-        }
+        return toBytes(values[OFOXMFieldType.ETH_DST.ordinal()],
+                       OFPhysicalPort.OFP_ETH_ALEN);
     }
 
     /**
@@ -180,11 +221,10 @@ public class OFMatch implements Cloneable {
      * @return an array of bytes
      */
     public byte[] getDataLayerSource() {
-        try {
-            return (byte[])getMatchFieldValue(OFOXMFieldType.ETH_SRC);
-        } catch (IllegalArgumentException e) {
+        if (!fieldExists(OFOXMFieldType.ETH_SRC))
             return null;
-        }
+        return toBytes(values[OFOXMFieldType.ETH_SRC.ordinal()],
+                       OFPhysicalPort.OFP_ETH_ALEN);
     }
 
     /**
@@ -218,11 +258,7 @@ public class OFMatch implements Cloneable {
      * @return ether_type
      */
     public short getDataLayerType() {
-        try {
-            return (Short)getMatchFieldValue(OFOXMFieldType.ETH_TYPE);
-        } catch (IllegalArgumentException e) {
-            return 0;
-        }
+        return (short) values[OFOXMFieldType.ETH_TYPE.ordinal()];
     }
 
     /**
@@ -241,11 +277,9 @@ public class OFMatch implements Cloneable {
      * @return vlan tag without the VLAN present bit set
      */
     public short getDataLayerVirtualLan() {
-        try {
-            return (short)((Short)getMatchFieldValue(OFOXMFieldType.VLAN_VID) & 0xFFF);
-        } catch (IllegalArgumentException e) {
+        if (!fieldExists(OFOXMFieldType.VLAN_VID))
             return OFVlanId.OFPVID_NONE.getValue();
-        }
+        return (short)(values[OFOXMFieldType.VLAN_VID.ordinal()] & 0xFFF);
     }
 
     /**
@@ -264,11 +298,7 @@ public class OFMatch implements Cloneable {
      * @return VLAN PCP value
      */
     public byte getDataLayerVirtualLanPriorityCodePoint() {
-        try {
-            return (Byte) getMatchFieldValue(OFOXMFieldType.VLAN_PCP);
-        } catch (IllegalArgumentException e) {
-            return 0;
-        }
+        return (byte) values[OFOXMFieldType.VLAN_PCP.ordinal()];
     }
 
     /**
@@ -287,11 +317,7 @@ public class OFMatch implements Cloneable {
      * @return
      */
     public byte getNetworkProtocol() {
-        try {
-            return (Byte)getMatchFieldValue(OFOXMFieldType.IP_PROTO);
-        } catch (IllegalArgumentException e) {
-            return 0;
-        }
+        return (byte) values[OFOXMFieldType.IP_PROTO.ordinal()];
     }
 
     /**
@@ -310,13 +336,12 @@ public class OFMatch implements Cloneable {
      * @return : 6-bit DSCP value (0-63) in higher bits and 2-bit ECN in lower bits
      */
     public byte getNetworkTypeOfService() {
-        try {
-            byte dscp = (byte)((((Byte)getMatchFieldValue(OFOXMFieldType.IP_DSCP)) & 0x3f) << 2);
-            byte ecn = (byte)(((Byte)getMatchFieldValue(OFOXMFieldType.IP_ECN)) & 0x3);
-            return (byte)(dscp & ecn);
-        } catch (IllegalArgumentException e) {
+        if (!fieldExists(OFOXMFieldType.IP_DSCP) ||
+                !fieldExists(OFOXMFieldType.IP_ECN))
             return 0;
-        }
+        byte dscp = (byte)((values[OFOXMFieldType.IP_DSCP.ordinal()] & 0x3f) << 2);
+        byte ecn = (byte)(values[OFOXMFieldType.IP_ECN.ordinal()] & 0x3);
+        return (byte)(dscp & ecn);
     }
 
     /**
@@ -337,11 +362,7 @@ public class OFMatch implements Cloneable {
      * @return integer destination IP address
      */
     public int getNetworkDestination() {
-        try {
-            return (Integer)getMatchFieldValue(OFOXMFieldType.IPV4_DST);
-        } catch (IllegalArgumentException e) {
-            return 0;
-        }
+        return (int) values[OFOXMFieldType.IPV4_DST.ordinal()];
     }
 
     /**
@@ -350,11 +371,7 @@ public class OFMatch implements Cloneable {
      * @return integer destination IP address mask
      */
     public int getNetworkDestinationMask() {
-        Object mask = getMatchFieldMask(OFOXMFieldType.IPV4_DST);
-        if (mask == null)
-            return 0;
-        else
-            return (Integer)mask;
+        return (int) getMask(OFOXMFieldType.IPV4_DST.ordinal());
     }
 
     /**
@@ -428,11 +445,7 @@ public class OFMatch implements Cloneable {
      */
     // TODO: Add support for IPv6
     public int getNetworkSource() {
-        try {
-            return (Integer)getMatchFieldValue(OFOXMFieldType.IPV4_SRC);
-        } catch (IllegalArgumentException e) {
-            return 0;
-        }
+        return (int) values[OFOXMFieldType.IPV4_SRC.ordinal()];
     }
 
     /**
@@ -441,11 +454,7 @@ public class OFMatch implements Cloneable {
      * @return integer source IP address mask
      */
     public int getNetworkSourceMask() {
-        Object mask = getMatchFieldMask(OFOXMFieldType.IPV4_SRC);
-        if (mask == null)
-            return 0;
-        else
-            return (Integer)mask;
+        return (int) getMask(OFOXMFieldType.IPV4_SRC.ordinal());
     }
 
     /**
@@ -520,11 +529,11 @@ public class OFMatch implements Cloneable {
         byte networkProtocol = getNetworkProtocol();
         switch (networkProtocol) {
             case IP_PROTO_TCP:
-                return (Short)getMatchFieldValue(OFOXMFieldType.TCP_DST);
+                return (short) values[OFOXMFieldType.TCP_DST.ordinal()];
             case IP_PROTO_UDP:
-                return (Short)getMatchFieldValue(OFOXMFieldType.UDP_DST);
+                return (short) values[OFOXMFieldType.UDP_DST.ordinal()];
             case IP_PROTO_SCTP:
-                return (Short)getMatchFieldValue(OFOXMFieldType.SCTP_DST);
+                return (short) values[OFOXMFieldType.SCTP_DST.ordinal()];
             default:
                 return 0;
         }
@@ -570,11 +579,11 @@ public class OFMatch implements Cloneable {
         byte networkProtocol = getNetworkProtocol();
         switch (networkProtocol) {
             case IP_PROTO_TCP:
-                return (Short)getMatchFieldValue(OFOXMFieldType.TCP_SRC);
+                return (short) values[OFOXMFieldType.TCP_SRC.ordinal()];
             case IP_PROTO_UDP:
-                return (Short)getMatchFieldValue(OFOXMFieldType.UDP_SRC);
+                return (short) values[OFOXMFieldType.UDP_SRC.ordinal()];
             case IP_PROTO_SCTP:
-                return (Short)getMatchFieldValue(OFOXMFieldType.SCTP_SRC);
+                return (short) values[OFOXMFieldType.SCTP_SRC.ordinal()];
             default:
                 return 0;
         }
@@ -635,56 +644,114 @@ public class OFMatch implements Cloneable {
         return matchLength;
     }
 
-    /** Sets match field. In case of existing field, checks for existing value
+    /** Sets match field. In case of existing field, replaces its value
      *
      * @param matchField Check for uniqueness of field and add matchField
      */
     public void setField(OFMatchField newMatchField) {
-        if (this.matchFields == null)
-            this.matchFields = new ArrayList<OFMatchField>();
-        for (OFMatchField matchField: this.matchFields) {
-            if (matchField.getType() == newMatchField.getType()) {
-                matchField.setValue(newMatchField.getValue());
-                matchField.setMask(newMatchField.getMask());
-                return;
-            }
-        }
-        this.matchFields.add(newMatchField);
-        this.matchLength += newMatchField.getLength();
-        this.length = U16.t(8*((this.matchLength + 7)/8)); //includes padding
+        setField(newMatchField.getType(), newMatchField.getValue(),
+                 newMatchField.getMask());
     }
 
     public void setField(OFOXMFieldType matchFieldType, Object matchFieldValue) {
-        OFMatchField matchField = new OFMatchField(matchFieldType, matchFieldValue);
-        setField(matchField);
+        setField(matchFieldType, matchFieldValue, null);
     }
 
+    /**
+     * Sets match field. A null or all zero mask sets the field unmasked;
+     * otherwise the value is masked, as by OFMatchField.
+     */
     public void setField(OFOXMFieldType matchFieldType, Object matchFieldValue, Object matchFieldMask) {
-        OFMatchField matchField = new OFMatchField(matchFieldType, matchFieldValue, matchFieldMask);
-        setField(matchField);
+        if (matchFieldValue == null)
+            throw new IllegalArgumentException("No value for matchfield " + matchFieldType.getName());
+        int payloadLength = matchFieldType.getPayloadLength();
+        if (payloadLength <= MAX_NARROW_LENGTH) {
+            setField(matchFieldType, toLong(matchFieldValue, payloadLength),
+                     (matchFieldMask == null) ? 0 :
+                         toLong(matchFieldMask, payloadLength));
+            return;
+        }
+        byte[] value = toBytes(matchFieldValue, payloadLength);
+        byte[] mask = (matchFieldMask == null) ? null :
+            toBytes(matchFieldMask, payloadLength);
+        boolean hasMask = false;
+        if (mask != null) {
+            for (int i = 0; i < payloadLength; i++)
+                hasMask |= mask[i] != 0;
+            if (hasMask)
+                for (int i = 0; i < payloadLength; i++)
+                    value[i] &= mask[i];
+        }
+        beforeWrite();
+        if (wideValues == null) {
+            wideValues = new byte[FIELD_TYPES.length][];
+            wideMasks = new byte[FIELD_TYPES.length][];
+        }
+        int i = matchFieldType.ordinal();
+        wideValues[i] = value;
+        wideMasks[i] = hasMask ? mask : null;
+        setPresent(i, hasMask);
+    }
+
+    /**
+     * Sets a field of up to 8 bytes without boxing its value
+     * @param matchFieldValue the value, in the low bits for fields of less
+     *        than 8 bytes
+     */
+    public void setField(OFOXMFieldType matchFieldType, long matchFieldValue) {
+        setField(matchFieldType, matchFieldValue, 0);
+    }
+
+    /**
+     * Sets a field of up to 8 bytes without boxing its value
+     * @param matchFieldMask the mask, or 0 to set the field unmasked
+     */
+    public void setField(OFOXMFieldType matchFieldType, long matchFieldValue, long matchFieldMask) {
+        int payloadLength = matchFieldType.getPayloadLength();
+        if (payloadLength > MAX_NARROW_LENGTH) {
+            setField(matchFieldType, (Object) matchFieldValue,
+                     (matchFieldMask == 0) ? null : (Object) matchFieldMask);
+            return;
+        }
+        long bits = payloadBits(payloadLength);
+        matchFieldMask &= bits;
+        matchFieldValue &= bits;
+        if (matchFieldMask != 0)
+            matchFieldValue &= matchFieldMask;
+        beforeWrite();
+        int i = matchFieldType.ordinal();
+        values[i] = matchFieldValue;
+        setMask(i, matchFieldMask);
+        setPresent(i, matchFieldMask != 0);
     }
 
     /**
-     * Returns read-only copies of the matchfields contained in this OFMatch
-     * @return a list of ordered OFMatchField objects
+     * Returns copies of the matchfields contained in this OFMatch
+     * @return a list of OFMatchField objects in field type order
      */
     public List<OFMatchField> getMatchFields() {
-        return this.matchFields;
+        List<OFMatchField> matchFields = new ArrayList<OFMatchField>();
+        long fields = present;
+        while (fields != 0) {
+            OFOXMFieldType fieldType =
+                    FIELD_TYPES[Long.numberOfTrailingZeros(fields)];
+            fields &= fields - 1;
+            matchFields.add(new OFMatchField(fieldType,
+                                             getMatchFieldValue(fieldType),
+                                             getMatchFieldMask(fieldType)));
+        }
+        return matchFields;
     }
 
     /**
      * Sets the list of matchfields this OFMatch contains
-     * @param matchFields a list of ordered OFMatchField objects
+     * @param matchFields a list of OFMatchField objects
      */
     public OFMatch setMatchFields(List<OFMatchField> matchFields) {
-        this.matchFields = matchFields;
-
-        //Recalculate lengths
-        this.matchLength = 4; //No padding
+        clearFields(0);
         if (matchFields != null)
-            for (OFMatchField newMatchField: this.matchFields)
-                this.matchLength += newMatchField.getLength();
-        this.length = U16.t(8*((this.matchLength + 7)/8)); //includes padding
+            for (OFMatchField newMatchField: matchFields)
+                setField(newMatchField);
         return this;
     }
 
@@ -694,23 +761,224 @@ public class OFMatch implements Cloneable {
      * if null all fields are wildcarded
      */
     public OFMatch setNonWildcards(Set<OFOXMFieldType> nonWildcardedFieldTypes) {
-        if (nonWildcardedFieldTypes == null)
-            setMatchFields(null);
-        else if (nonWildcardedFieldTypes.size() == 0)
-            setMatchFields(null);
-        else {
-            List <OFMatchField> newMatchFields = new ArrayList<OFMatchField>();
-
-            if (nonWildcardedFieldTypes != null) {
-                for (OFMatchField matchField: matchFields) {
-                    OFOXMFieldType type = matchField.getType();
-                    if (nonWildcardedFieldTypes.contains(type))
-                        newMatchFields.add(matchField);
-                }
+        long keep = 0;
+        if (nonWildcardedFieldTypes != null)
+            for (OFOXMFieldType fieldType : nonWildcardedFieldTypes)
+                keep |= 1L << fieldType.ordinal();
+        clearFields(keep);
+        return this;
+    }
+
+    /**
+     * Unset all the fields not in keep
+     * @param keep a bit for each field type to keep
+     */
+    protected void clearFields(long keep) {
+        long clear = present & ~keep;
+        if (clear == 0)
+            return;
+        beforeWrite();
+        while (clear != 0) {
+            int i = Long.numberOfTrailingZeros(clear);
+            clear &= clear - 1;
+            matchLength -= getFieldLength(i);
+            values[i] = 0;
+            setMask(i, 0);
+            if (wideValues != null) {
+                wideValues[i] = null;
+                wideMasks[i] = null;
             }
-            setMatchFields(newMatchFields);
+            present &= ~(1L << i);
+            masked &= ~(1L << i);
+        }
+        this.length = U16.t(8*((this.matchLength + 7)/8)); //includes padding
+    }
+
+    /**
+     * Marks field i as set, once its value and mask have been stored
+     */
+    protected void setPresent(int i, boolean hasMask) {
+        long bit = 1L << i;
+        if ((present & bit) != 0)
+            matchLength -= getFieldLength(i);
+        present |= bit;
+        if (hasMask)
+            masked |= bit;
+        else
+            masked &= ~bit;
+        matchLength += getFieldLength(i);
+        this.length = U16.t(8*((this.matchLength + 7)/8)); //includes padding
+    }
+
+    /**
+     * @return the length of field i including its OXM TLV header
+     */
+    protected int getFieldLength(int i) {
+        int payloadLength = FIELD_TYPES[i].getPayloadLength();
+        if ((masked & (1L << i)) != 0)
+            payloadLength *= 2;
+        return 4 + payloadLength;
+    }
+
+    protected long getMask(int i) {
+        return (masks == null) ? 0 : masks[i];
+    }
+
+    // Called after beforeWrite
+    protected void setMask(int i, long mask) {
+        if (masks == null) {
+            if (mask == 0)
+                return;
+            masks = new long[FIELD_TYPES.length];
+        }
+        masks[i] = mask;
+    }
+
+    /**
+     * Called before any change to the fields; copies the arrays if they
+     * may be shared with a clone
+     */
+    protected void beforeWrite() {
+        hash = 0;
+        if (shared) {
+            values = values.clone();
+            if (masks != null)
+                masks = masks.clone();
+            if (wideValues != null) {
+                wideValues = wideValues.clone();
+                wideMasks = wideMasks.clone();
+            }
+            shared = false;
+        }
+    }
+
+    protected static long payloadBits(int payloadLength) {
+        return (payloadLength >= 8) ? -1L : (1L << (8 * payloadLength)) - 1;
+    }
+
+    protected static long toLong(Object val, int payloadLength) {
+        if (val instanceof Number)
+            return ((Number) val).longValue() & payloadBits(payloadLength);
+        byte[] bytes = (byte[]) val;
+        long result = 0;
+        for (int i = 0; i < payloadLength && i < bytes.length; i++)
+            result = (result << 8) | (bytes[i] & 0xff);
+        return result;
+    }
+
+    protected static byte[] toBytes(long val, int payloadLength) {
+        byte[] bytes = new byte[payloadLength];
+        for (int i = payloadLength - 1; i >= 0 && val != 0; i--) {
+            bytes[i] = (byte) val;
+            val >>>= 8;
+        }
+        return bytes;
+    }
+
+    protected static byte[] toBytes(Object val, int payloadLength) {
+        if (val instanceof Number)
+            return toBytes(((Number) val).longValue(), payloadLength);
+        return Arrays.copyOf((byte[]) val, payloadLength);
+    }
+
+    /**
+     * @return the value boxed the way OFOXMField.readObject reads it
+     */
+    protected static Object toObject(long val, int payloadLength) {
+        switch (payloadLength) {
+            case 1:
+                return (byte) val;
+            case 2:
+                return (short) val;
+            case 4:
+                return (int) val;
+            case 8:
+                return val;
+            default:
+                return toBytes(val, payloadLength);
+        }
+    }
+
+    /**
+     * Read one OXM TLV into the field arrays, as it is on the wire
+     * @return the length of the TLV
+     */
+    protected int readField(ByteBuffer data) {
+        int header = data.getInt();
+        int payloadLength = header & 0xff;
+        int typeVal = (header >> 9) & 0x7f;
+        //TODO: Sanity check the field payload length reported
+        if (typeVal >= FIELD_TYPES.length) {
+            data.position(data.position() + payloadLength);
+            return 4 + payloadLength;
+        }
+        OFOXMFieldType fieldType = FIELD_TYPES[typeVal];
+        boolean hasMask = ((header >> 8) & 1) != 0;
+        int i = fieldType.ordinal();
+        int fieldLength = fieldType.getPayloadLength();
+        beforeWrite();
+        if (fieldLength <= MAX_NARROW_LENGTH) {
+            values[i] = readLong(data, fieldLength);
+            setMask(i, hasMask ? readLong(data, fieldLength) : 0);
+        } else {
+            if (wideValues == null) {
+                wideValues = new byte[FIELD_TYPES.length][];
+                wideMasks = new byte[FIELD_TYPES.length][];
+            }
+            wideValues[i] = new byte[fieldLength];
+            data.get(wideValues[i]);
+            if (hasMask) {
+                wideMasks[i] = new byte[fieldLength];
+                data.get(wideMasks[i]);
+            } else {
+                wideMasks[i] = null;
+            }
+        }
+        setPresent(i, hasMask);
+        return 4 + payloadLength;
+    }
+
+    protected static long readLong(ByteBuffer data, int payloadLength) {
+        switch (payloadLength) {
+            case 1:
+                return data.get() & 0xffL;
+            case 2:
+                return data.getShort() & 0xffffL;
+            case 4:
+                return data.getInt() & 0xffffffffL;
+            case 8:
+                return data.getLong();
+            default:
+                long result = 0;
+                for (int i = 0; i < payloadLength; i++)
+                    result = (result << 8) | (data.get() & 0xff);
+                return result;
+        }
+    }
+
+    protected static void writeLong(ByteBuffer data, long val, int payloadLength) {
+        switch (payloadLength) {
+            case 1:
+                data.put((byte) val);
+                break;
+            case 2:
+                data.putShort((short) val);
+                break;
+            case 4:
+                data.putInt((int) val);
+                break;
+            case 6:
+                data.putShort((short) (val >>> 32));
+                data.putInt((int) val);
+                break;
+            case 8:
+                data.putLong(val);
+                break;
+            default:
+                for (int i = payloadLength - 1; i >= 0; i--)
+                    data.put((byte) (val >>> (8 * i)));
+                break;
         }
-        return this;
     }
 
     public void readFrom(ByteBuffer data) {
@@ -738,13 +1006,12 @@ public class OFMatch implements Cloneable {
 
             if (data.remaining() < remaining)
                 remaining = data.remaining();
-            this.matchFields = new ArrayList<OFMatchField>();
-            while (remaining >= OFMatchField.MINIMUM_LENGTH) {
-                OFMatchField matchField = new OFMatchField();
-                matchField.readFrom(data);
-                this.matchFields.add(matchField);
-                remaining -= U32.f(matchField.getLength()); //value length + header length
-            }
+            short wireMatchLength = this.matchLength;
+            clearFields(0);
+            while (remaining >= OFOXMField.MINIMUM_LENGTH)
+                remaining -= readField(data); //value length + header length
+            this.matchLength = wireMatchLength;
+            this.length = U16.t(8*((this.matchLength + 7)/8));
         } else {
             this.setField(OFOXMFieldType.IN_PORT, data.getInt());
             wildcards = data.getInt();
@@ -842,9 +1109,27 @@ public class OFMatch implements Cloneable {
         short matchLength = getMatchLength();
         data.putShort((short)this.type.ordinal());
         data.putShort(matchLength); //length does not include padding
-        if (matchFields != null)
-            for (OFMatchField matchField : matchFields)
-                matchField.writeTo(data);
+        long fields = present;
+        while (fields != 0) {
+            int i = Long.numberOfTrailingZeros(fields);
+            fields &= fields - 1;
+            OFOXMFieldType fieldType = FIELD_TYPES[i];
+            int payloadLength = fieldType.getPayloadLength();
+            boolean hasMask = (masked & (1L << i)) != 0;
+            data.putInt((fieldType.getMatchClass() << 16)
+                        | (fieldType.getValue() << 9)
+                        | ((hasMask ? 1 : 0) << 8)
+                        | (hasMask ? 2 * payloadLength : payloadLength));
+            if (payloadLength <= MAX_NARROW_LENGTH) {
+                writeLong(data, values[i], payloadLength);
+                if (hasMask)
+                    writeLong(data, masks[i], payloadLength);
+            } else {
+                data.put(wideValues[i]);
+                if (hasMask)
+                    data.put(wideMasks[i]);
+            }
+        }
 
         int padLength = 8*((matchLength + 7)/8) - matchLength;
         for (;padLength>0;padLength--)
@@ -852,10 +1137,26 @@ public class OFMatch implements Cloneable {
     }
 
     public int hashCode() {
-        final int prime = 227;
-        int result = 1;
-        result = prime * result + ((matchFields == null) ? 0 : matchFields.hashCode());
-        return result;
+        if (hash == 0) {
+            final int prime = 227;
+            int result = 1;
+            long fields = present;
+            while (fields != 0) {
+                int i = Long.numberOfTrailingZeros(fields);
+                fields &= fields - 1;
+                result = prime * result + i;
+                if (FIELD_TYPES[i].getPayloadLength() > MAX_NARROW_LENGTH) {
+                    result = prime * result + Arrays.hashCode(wideValues[i]);
+                    result = prime * result + Arrays.hashCode(wideMasks[i]);
+                } else {
+                    result = prime * result + (int) (values[i] ^ (values[i] >>> 32));
+                    long mask = getMask(i);
+                    result = prime * result + (int) (mask ^ (mask >>> 32));
+                }
+            }
+            hash = (result == 0) ? 1 : result;
+        }
+        return hash;
     }
 
     @Override
@@ -863,33 +1164,47 @@ public class OFMatch implements Cloneable {
         if (this == obj) {
             return true;
         }
-        if (!super.equals(obj)) {
+        if (!(obj instanceof OFMatch)) {
             return false;
         }
-        if (!(obj instanceof OFMatchField)) {
+        OFMatch other = (OFMatch) obj;
+        if (type != other.type || present != other.present ||
+                masked != other.masked) {
             return false;
         }
-        OFMatch other = (OFMatch) obj;
-        if (matchFields == null) {
-            if (other.matchFields != null)
-                return false;
-        } else if (!matchFields.equals(other.matchFields)) {
+        if (hash != 0 && other.hash != 0 && hash != other.hash) {
             return false;
         }
+        if (values == other.values && wideValues == other.wideValues) {
+            // Clones that have not been changed since
+            return true;
+        }
+        long fields = present;
+        while (fields != 0) {
+            int i = Long.numberOfTrailingZeros(fields);
+            fields &= fields - 1;
+            if (FIELD_TYPES[i].getPayloadLength() > MAX_NARROW_LENGTH) {
+                if (!Arrays.equals(wideValues[i], other.wideValues[i]) ||
+                        !Arrays.equals(wideMasks[i], other.wideMasks[i]))
+                    return false;
+            } else if (values[i] != other.values[i] ||
+                    getMask(i) != other.getMask(i)) {
+                return false;
+            }
+        }
         return true;
     }
 
-    /* (non-Javadoc)
-     * @see java.lang.Object#clone()
+    /**
+     * The clone shares the field arrays with this match; whichever of the
+     * two is changed first copies them.
      */
     @Override
     public OFMatch clone() {
-        OFMatch match = new OFMatch();
         try {
-            List<OFMatchField> neoMatchFields = new LinkedList<OFMatchField>();
-            for(OFMatchField matchField: this.matchFields)
-                neoMatchFields.add((OFMatchField) matchField.clone());
-            match.setMatchFields(neoMatchFields);
+            OFMatch match = (OFMatch) super.clone();
+            this.shared = true;
+            match.shared = true;
             return match;
         } catch (CloneNotSupportedException e) {
             // Won't happen
@@ -927,70 +1242,62 @@ public class OFMatch implements Cloneable {
      */
     public OFMatch loadFromPacket(byte[] packetData, int inPort) {
         short scratch;
-        byte[] dataLayerAddress = new byte[OFPhysicalPort.OFP_ETH_ALEN];
         short dataLayerType = 0;
         byte networkProtocol = 0;
 
         int transportOffset = 34;
-        ByteBuffer packetDataBB = ByteBuffer.wrap(packetData);
-        int limit = packetDataBB.limit();
+        int offset = 14;
 
         setInPort(inPort);
 
         //TODO: Extend to support more packet types
-        assert (limit >= 14);
+        assert (packetData.length >= 14);
         // dl dst
-        packetDataBB.get(dataLayerAddress);
-        setDataLayerDestination(dataLayerAddress.clone());
+        setField(OFOXMFieldType.ETH_DST, getMAC(packetData, 0));
         // dl src
-        packetDataBB.get(dataLayerAddress);
-        setDataLayerSource(dataLayerAddress.clone());
+        setField(OFOXMFieldType.ETH_SRC, getMAC(packetData, 6));
         // dl type
-        dataLayerType = packetDataBB.getShort();
+        dataLayerType = getShort(packetData, 12);
         setDataLayerType(dataLayerType);
 
         if (dataLayerType == (short) ETH_TYPE_VLAN) { // need cast to avoid signed
             // has vlan tag
-            scratch = packetDataBB.getShort();
+            scratch = getShort(packetData, 14);
             setDataLayerVirtualLan((short) (0xfff & scratch));
             setDataLayerVirtualLanPriorityCodePoint((byte) ((0xe000 & scratch) >> 13));
-            dataLayerType = packetDataBB.getShort();
+            dataLayerType = getShort(packetData, 16);
+            offset = 18;
         }
 
         //TODO: Add support for IPv6
         switch (dataLayerType) {
         case ETH_TYPE_IPV4: // ipv4
             // check packet length
-            scratch = packetDataBB.get();
-            scratch = (short) (0xf & scratch);
-            transportOffset = (packetDataBB.position() - 1) + (scratch * 4);
+            scratch = (short) (0xf & packetData[offset]);
+            transportOffset = offset + (scratch * 4);
             // nw tos (dscp and ecn)
-            setNetworkTypeOfService(packetDataBB.get());
+            setNetworkTypeOfService(packetData[offset + 1]);
             // nw protocol
-            packetDataBB.position(packetDataBB.position() + 7);
-            networkProtocol = packetDataBB.get();
+            networkProtocol = packetData[offset + 9];
             setNetworkProtocol(networkProtocol);
             // nw src
-            packetDataBB.position(packetDataBB.position() + 2);
-            setNetworkSource(dataLayerType, packetDataBB.getInt());
+            setNetworkSource(dataLayerType, getInt(packetData, offset + 12));
             // nw dst
-            setNetworkDestination(dataLayerType, packetDataBB.getInt());
-            packetDataBB.position(transportOffset);
+            setNetworkDestination(dataLayerType, getInt(packetData, offset + 16));
             break;
 
         case ETH_TYPE_ARP: // arp
-            int arpPos = packetDataBB.position();
             // opcode
-            scratch = packetDataBB.getShort(arpPos + 6);
+            scratch = getShort(packetData, offset + 6);
             this.setField(OFOXMFieldType.ARP_OP, ((short) (0xff & scratch)));
 
-            scratch = packetDataBB.getShort(arpPos + 2);
+            scratch = getShort(packetData, offset + 2);
             // if ipv4 and addr len is 4
-            if (scratch == 0x800 && packetDataBB.get(arpPos + 5) == 4) {
+            if (scratch == 0x800 && packetData[offset + 5] == 4) {
                 // nw src
-                this.setField(OFOXMFieldType.ARP_SPA, packetDataBB.getInt(arpPos + 14));
+                this.setField(OFOXMFieldType.ARP_SPA, getInt(packetData, offset + 14));
                 // nw dst
-                this.setField(OFOXMFieldType.ARP_TPA, packetDataBB.getInt(arpPos + 24));
+                this.setField(OFOXMFieldType.ARP_TPA, getInt(packetData, offset + 24));
             }
             return this;
 
@@ -1001,15 +1308,15 @@ public class OFMatch implements Cloneable {
         switch (networkProtocol) {
         case IP_PROTO_ICMP:
             // icmp type
-            this.setField(OFOXMFieldType.ICMPV4_TYPE, packetDataBB.get());
+            this.setField(OFOXMFieldType.ICMPV4_TYPE, packetData[transportOffset]);
             // code
-            this.setField(OFOXMFieldType.ICMPV4_CODE, packetDataBB.get());
+            this.setField(OFOXMFieldType.ICMPV4_CODE, packetData[transportOffset + 1]);
             break;
         case IP_PROTO_TCP:
         case IP_PROTO_UDP:
         case IP_PROTO_SCTP:
-            setTransportSource(networkProtocol, packetDataBB.getShort());
-            setTransportDestination(networkProtocol, packetDataBB.getShort());
+            setTransportSource(networkProtocol, getShort(packetData, transportOffset));
+            setTransportDestination(networkProtocol, getShort(packetData, transportOffset + 2));
             break;
         default:
             break;
@@ -1017,12 +1324,26 @@ public class OFMatch implements Cloneable {
         return this;
     }
 
+    private static short getShort(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+            ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static long getMAC(byte[] data, int offset) {
+        return ((getShort(data, offset) & 0xffffL) << 32) |
+            (getInt(data, offset + 2) & 0xffffffffL);
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
     @Override
     public String toString() {
-        return "OFMatch [type=" + type + ", length=" + length + ", matchFields=" + matchFields + "]";
+        return "OFMatch [type=" + type + ", length=" + length + ", matchFields=" + getMatchFields() + "]";
     }
 
     /**
@@ -1,7 +1,6 @@
 package org.openflow.protocol;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import org.openflow.util.U16;
 import org.openflow.util.U32;
@@ -26,6 +25,10 @@ public class OFPacketIn extends OFMessage {
     protected long cookie;    
     protected OFMatch match;
     protected byte[] packetData;
+    // View over the received frame holding the packet data, set when the
+    // message was read with viewPacketData and not yet retained or released
+    protected ByteBuffer packetDataView;
+    protected boolean packetDataReleased;
 
     public OFPacketIn() {
         super();
@@ -102,19 +105,101 @@ public class OFPacketIn extends OFMessage {
     }
 
     /**
-     * Returns the packet data
+     * Returns the packet data. If the data is a view over the received frame,
+     * this retains it by copying it into an array of its own.
      * @return
+     * @throws IllegalStateException if the data was a view and has already
+     *         been released without being retained
      */
     public byte[] getPacketData() {
+        if (this.packetData == null && this.packetDataView != null)
+            retainPacketData();
+        if (this.packetData == null && this.packetDataReleased)
+            throw new IllegalStateException("Packet data was released; " +
+                    "retain it while the packet-in is being dispatched");
         return this.packetData;
     }
 
+    /**
+     * Returns a read-only view of the packet data, without copying it. If the
+     * message was read with viewPacketData, the view is only valid while the
+     * packet-in is being dispatched; use getPacketData or retainPacketData to
+     * keep the data beyond that.
+     * @return a buffer positioned at the start of the packet data
+     */
+    public ByteBuffer getPacketDataView() {
+        return getSharedPacketData().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the packet data like getPacketDataView, but sharing its backing
+     * array, so that the controller's PacketHeaderView can parse the frame
+     * without copying it. For internal use only; the buffer must not be
+     * written to.
+     * @return a buffer positioned at the start of the packet data
+     */
+    public ByteBuffer getSharedPacketData() {
+        if (this.packetDataView != null)
+            return this.packetDataView.duplicate();
+        byte[] bytes = getPacketData();
+        return ByteBuffer.wrap((bytes == null) ? new byte[0] : bytes);
+    }
+
+    /**
+     * Returns the packet data for hashCode and equals, without copying it or
+     * failing once it has been released
+     */
+    private ByteBuffer getPacketDataForCompare() {
+        if (this.packetDataView != null)
+            return this.packetDataView.duplicate();
+        return ByteBuffer.wrap((this.packetData == null) ? new byte[0]
+                                                         : this.packetData);
+    }
+
+    /**
+     * Returns the length of the packet data, without copying it
+     * @return
+     */
+    public int getPacketDataLength() {
+        if (this.packetDataView != null)
+            return this.packetDataView.remaining();
+        return (this.packetData == null) ? 0 : this.packetData.length;
+    }
+
+    /**
+     * Copies the packet data out of the received frame, if it is a view over
+     * it, so that it stays valid after the packet-in has been dispatched.
+     * @return this
+     */
+    public OFPacketIn retainPacketData() {
+        if (this.packetDataView != null) {
+            this.packetData = new byte[this.packetDataView.remaining()];
+            this.packetDataView.duplicate().get(this.packetData);
+            this.packetDataView = null;
+        }
+        return this;
+    }
+
+    /**
+     * Ends the dispatch of a packet-in read with viewPacketData. If the packet
+     * data was not retained, the view over the frame is dropped and the data
+     * can no longer be read.
+     */
+    public void releasePacketData() {
+        if (this.packetDataView != null) {
+            this.packetDataView = null;
+            this.packetDataReleased = true;
+        }
+    }
+
     /**
      * Sets the packet data, and updates the length of this message
      * @param packetData
      */
     public OFPacketIn setPacketData(byte[] packetData) {
         this.packetData = packetData;
+        this.packetDataView = null;
+        this.packetDataReleased = false;
         this.length = U16.t(OFPacketIn.MINIMUM_LENGTH + packetData.length);
         return this;
     }
@@ -124,10 +209,8 @@ public class OFPacketIn extends OFMessage {
      * @return
      */
     public int getInPort() {
-        for (OFMatchField matchField: match.matchFields) {
-            if (matchField.getType() == OFOXMFieldType.IN_PORT)
-                return (Integer) matchField.value;
-        }
+        if (match.fieldExists(OFOXMFieldType.IN_PORT))
+            return match.getInPort();
         return -1;
     }
 
@@ -167,6 +250,17 @@ public class OFPacketIn extends OFMessage {
 
     @Override
     public void readFrom(ByteBuffer data) {
+        readFrom(data, false);
+    }
+
+    /**
+     * Read this message from a buffer
+     * @param data the buffer, positioned at the start of the message
+     * @param viewPacketData if true, the packet data is left in the buffer
+     *        and exposed as a view instead of being copied; the buffer must
+     *        not be modified until releasePacketData is called
+     */
+    public void readFrom(ByteBuffer data, boolean viewPacketData) {
         super.readFrom(data);
         this.bufferId = data.getInt();
         this.totalLength = data.getShort();
@@ -179,8 +273,18 @@ public class OFPacketIn extends OFMessage {
         data.getShort(); // pad
 
         // safeguard in case miss_send_len is left at default value of 128 bytes
-        this.packetData = new byte[Math.min(data.remaining(), getTotalLength())];
-        data.get(this.packetData);
+        int dataLength = Math.min(data.remaining(), getTotalLength());
+        this.packetDataReleased = false;
+        if (viewPacketData) {
+            this.packetData = null;
+            this.packetDataView = data.slice();
+            this.packetDataView.limit(dataLength);
+            data.position(data.position() + dataLength);
+        } else {
+            this.packetDataView = null;
+            this.packetData = new byte[dataLength];
+            data.get(this.packetData);
+        }
     }
 
     @Override
@@ -193,7 +297,10 @@ public class OFPacketIn extends OFMessage {
         data.putLong(cookie);
         this.match.writeTo(data);
         data.putShort((short) 0x0); // pad
-        data.put(this.packetData);
+        if (this.packetDataView != null)
+            data.put(this.packetDataView.duplicate());
+        else
+            data.put(this.packetData);
     }
 
     @Override
@@ -201,7 +308,7 @@ public class OFPacketIn extends OFMessage {
         final int prime = 283;
         int result = super.hashCode();
         result = prime * result + bufferId;
-        result = prime * result + Arrays.hashCode(packetData);
+        result = prime * result + getPacketDataForCompare().hashCode();
         result = prime * result + ((reason == null) ? 0 : reason.hashCode());
         result = prime * result + totalLength;
         result = prime * result + reason.ordinal();
@@ -225,7 +332,8 @@ public class OFPacketIn extends OFMessage {
         if (bufferId != other.bufferId) {
             return false;
         }
-        if (!Arrays.equals(packetData, other.packetData)) {
+        if (!getPacketDataForCompare().equals(
+                other.getPacketDataForCompare())) {
             return false;
         }
         if (reason == null) {
@@ -271,7 +379,7 @@ public class OFPacketIn extends OFMessage {
     public void computeLength() {
         int l = MINIMUM_LENGTH - OFMatch.MINIMUM_LENGTH;
         l += match.getLength();
-        l += ((packetData != null) ? packetData.length : 0);
+        l += getPacketDataLength();
         this.length = U16.t(l);
     }
 
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionType;
@@ -67,6 +68,20 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
 
     @Override
     public List<OFMessage> parseMessages(ByteBuffer data, int limit) {
+        return parseMessages(data, limit, false);
+    }
+
+    /**
+     * Parse messages from a buffer
+     * @param data the buffer
+     * @param limit the maximum number of messages to parse, 0 for no limit
+     * @param viewPacketData if true, the data of packet-ins is left in the
+     *        buffer instead of being copied; see
+     *        {@link OFPacketIn#readFrom(ByteBuffer, boolean)}
+     * @return the messages, or null if a message type is unknown
+     */
+    public List<OFMessage> parseMessages(ByteBuffer data, int limit,
+                                         boolean viewPacketData) {
         List<OFMessage> results = new ArrayList<OFMessage>();
         OFMessage demux = new OFMessage();
         OFMessage ofm;
@@ -87,7 +102,10 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
                 return null;
 
             injectFactories(ofm);
-            ofm.readFrom(data);
+            if (viewPacketData && ofm instanceof OFPacketIn)
+                ((OFPacketIn) ofm).readFrom(data, true);
+            else
+                ofm.readFrom(data);
             if (OFMessage.class.equals(ofm.getClass())) {
                 // advance the position for un-implemented messages
                 data.position(data.position()+(ofm.getLengthU() -
@@ -0,0 +1,68 @@
+package net.floodlightcontroller.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class FloodlightContextTest {
+    private static final FloodlightContextKey<String> nameKey =
+            FloodlightContextKey.create("test.name");
+    private static final FloodlightContextStore<String> store =
+            new FloodlightContextStore<String>();
+
+    @Test
+    public void testSlots() {
+        int slot = FloodlightContext.getSlot("test.slot");
+        assertEquals(slot, FloodlightContext.getSlot("test.slot"));
+        assertEquals(slot, FloodlightContext.getSlot(new String("test.slot")));
+        assertTrue(slot != FloodlightContext.getSlot("test.other"));
+    }
+
+    @Test
+    public void testKeySharesStore() {
+        FloodlightContext cntx = new FloodlightContext();
+        nameKey.put(cntx, "a");
+        assertEquals("a", store.get(cntx, "test.name"));
+        store.put(cntx, "test.name", "b");
+        assertEquals("b", nameKey.get(cntx));
+        store.remove(cntx, "test.name");
+        assertNull(nameKey.get(cntx));
+        assertNull(store.get(cntx, "test.unset"));
+    }
+
+    @Test
+    public void testReset() {
+        FloodlightContext cntx = new FloodlightContext();
+        // Enough keys to grow the context
+        for (int i = 0; i < 40; i++)
+            store.put(cntx, "test.reset." + i, Integer.toString(i));
+        nameKey.put(cntx, "a");
+        assertEquals("39", store.get(cntx, "test.reset.39"));
+        assertEquals(41, cntx.getStorage().size());
+
+        cntx.reset();
+        assertNull(nameKey.get(cntx));
+        assertNull(store.get(cntx, "test.reset.39"));
+        assertTrue(cntx.getStorage().isEmpty());
+
+        nameKey.put(cntx, "b");
+        assertEquals("b", nameKey.get(cntx));
+    }
+
+    @Test
+    public void testLazy() {
+        FloodlightContext cntx = new FloodlightContext();
+        final int[] computed = new int[1];
+        nameKey.putLazy(cntx, new FloodlightContextStore.Lazy<String>() {
+            @Override
+            public String compute() {
+                computed[0]++;
+                return "lazy";
+            }
+        });
+        assertEquals(0, computed[0]);
+        assertEquals("lazy", store.get(cntx, "test.name"));
+        assertEquals("lazy", nameKey.get(cntx));
+        assertEquals(1, computed[0]);
+    }
+}
@@ -0,0 +1,192 @@
+package net.floodlightcontroller.core;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.OFWriteQueue.FullPolicy;
+
+import org.easymock.IAnswer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+
+public class OFWriteQueueTest {
+    private Channel channel;
+    private boolean writable;
+    private List<OFMessage> written;
+
+    @Before
+    public void setUp() {
+        writable = true;
+        written = new ArrayList<OFMessage>();
+        channel = createMock(Channel.class);
+        expect(channel.isWritable()).andAnswer(new IAnswer<Boolean>() {
+            @Override
+            public Boolean answer() throws Throwable {
+                return writable;
+            }
+        }).anyTimes();
+        expect(channel.write(anyObject())).andAnswer(
+                new IAnswer<ChannelFuture>() {
+            @Override
+            public ChannelFuture answer() throws Throwable {
+                @SuppressWarnings("unchecked")
+                List<OFMessage> msglist =
+                        (List<OFMessage>) getCurrentArguments()[0];
+                written.addAll(msglist);
+                return Channels.succeededFuture(channel);
+            }
+        }).anyTimes();
+        expect(channel.isConnected()).andReturn(true).anyTimes();
+        expect(channel.getRemoteAddress()).andReturn(null).anyTimes();
+        replay(channel);
+    }
+
+    private static List<OFMessage> list(OFMessage m, int length) {
+        m.setLengthU(length);
+        List<OFMessage> msglist = new ArrayList<OFMessage>(1);
+        msglist.add(m);
+        return msglist;
+    }
+
+    @Test
+    public void testWriteThrough() {
+        OFWriteQueue queue = new OFWriteQueue(channel, 100, 50, 0,
+                                              FullPolicy.FAIL, 0);
+        ChannelFuture future = queue.write(list(new OFPacketOut(), 200));
+        assertTrue(future.isSuccess());
+        assertEquals(1, written.size());
+        assertEquals(0, queue.getQueuedBytes());
+        assertFalse(queue.isBackpressured());
+    }
+
+    @Test
+    public void testQueueAndDrain() {
+        OFWriteQueue queue = new OFWriteQueue(channel, 100, 50, 0,
+                                              FullPolicy.FAIL, 0);
+        writable = false;
+        List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        List<OFMessage> sent = new ArrayList<OFMessage>();
+        for (int i = 0; i < 4; i++) {
+            List<OFMessage> msglist = list(new OFPacketOut(), 40);
+            sent.addAll(msglist);
+            futures.add(queue.write(msglist));
+        }
+        assertEquals(160, queue.getQueuedBytes());
+        assertTrue(queue.isBackpressured());
+        assertTrue(written.isEmpty());
+        for (ChannelFuture future : futures)
+            assertFalse(future.isDone());
+
+        // Nothing is sent until the channel is writable again
+        queue.drain();
+        assertTrue(written.isEmpty());
+        writable = true;
+        queue.drain();
+        assertEquals(sent, written);
+        assertEquals(0, queue.getQueuedBytes());
+        assertFalse(queue.isBackpressured());
+        for (ChannelFuture future : futures)
+            assertTrue(future.isSuccess());
+
+        // Later writes keep their place behind the queued ones
+        writable = false;
+        queue.write(list(new OFEchoRequest(), 8));
+        writable = true;
+        queue.write(list(new OFFlowMod(), 80));
+        assertEquals(6, written.size());
+        assertTrue(written.get(4) instanceof OFEchoRequest);
+        assertTrue(written.get(5) instanceof OFFlowMod);
+    }
+
+    @Test
+    public void testFailWhenFull() {
+        OFWriteQueue queue = new OFWriteQueue(channel, 100, 50, 150,
+                                              FullPolicy.FAIL, 0);
+        writable = false;
+        ChannelFuture first = queue.write(list(new OFPacketOut(), 100));
+        ChannelFuture second = queue.write(list(new OFFlowMod(), 100));
+        assertTrue(second.isDone());
+        assertFalse(second.isSuccess());
+        assertFalse(first.isDone());
+        assertEquals(100, queue.getQueuedBytes());
+
+        queue.close();
+        assertFalse(first.isSuccess());
+        assertEquals(0, queue.getQueuedBytes());
+        assertFalse(queue.isBackpressured());
+    }
+
+    @Test
+    public void testDropLowest() {
+        OFWriteQueue queue = new OFWriteQueue(channel, 100, 50, 150,
+                                              FullPolicy.DROP_LOWEST, 0);
+        writable = false;
+        ChannelFuture flowMod = queue.write(list(new OFFlowMod(), 50));
+        ChannelFuture packetOut = queue.write(list(new OFPacketOut(), 50));
+        ChannelFuture echo = queue.write(list(new OFEchoRequest(), 50));
+        // A packet-out only pushes out older packet-outs
+        ChannelFuture newer = queue.write(list(new OFPacketOut(), 50));
+        assertFalse(packetOut.isSuccess());
+        assertFalse(newer.isDone());
+        assertFalse(flowMod.isDone());
+        assertFalse(queue.write(list(new OFPacketOut(), 100)).isSuccess());
+        assertFalse(newer.isDone());
+
+        // Others push out packet-outs first, then flow mods
+        ChannelFuture second = queue.write(list(new OFEchoRequest(), 50));
+        assertFalse(newer.isSuccess());
+        assertFalse(flowMod.isDone());
+        ChannelFuture third = queue.write(list(new OFEchoRequest(), 50));
+        assertFalse(flowMod.isSuccess());
+        assertFalse(second.isDone());
+        assertEquals(150, queue.getQueuedBytes());
+
+        writable = true;
+        queue.drain();
+        assertTrue(echo.isSuccess());
+        assertTrue(second.isSuccess());
+        assertTrue(third.isSuccess());
+        assertEquals(3, written.size());
+        for (OFMessage m : written)
+            assertTrue(m instanceof OFEchoRequest);
+    }
+
+    @Test
+    public void testBlockTimesOut() {
+        OFWriteQueue queue = new OFWriteQueue(channel, 100, 50, 100,
+                                              FullPolicy.BLOCK, 20);
+        writable = false;
+        assertFalse(queue.write(list(new OFFlowMod(), 100)).isDone());
+        long start = System.currentTimeMillis();
+        ChannelFuture future = queue.write(list(new OFFlowMod(), 10));
+        assertTrue(System.currentTimeMillis() - start >= 20);
+        assertFalse(future.isSuccess());
+    }
+
+    @Test
+    public void testBlockFailsAtOnceWhenDispatching() {
+        OFWriteQueue queue = new OFWriteQueue(channel, 100, 50, 100,
+                                              FullPolicy.BLOCK, 10000);
+        writable = false;
+        assertFalse(queue.write(list(new OFFlowMod(), 100)).isDone());
+        OFWriteQueue.setDispatching(true);
+        try {
+            long start = System.currentTimeMillis();
+            ChannelFuture future = queue.write(list(new OFFlowMod(), 10));
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            assertFalse(future.isSuccess());
+        } finally {
+            OFWriteQueue.setDispatching(false);
+        }
+    }
+}
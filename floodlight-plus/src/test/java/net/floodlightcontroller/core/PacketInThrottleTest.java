@@ -0,0 +1,153 @@
+package net.floodlightcontroller.core;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.core.PacketInThrottle.Verdict;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.util.CountMinSketch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacketInThrottleTest {
+    private static final long MS = 1000000L;
+    private PacketInThrottle throttle;
+    private long now;
+
+    @Before
+    public void setUp() {
+        throttle = new PacketInThrottle(500, 10, 50, 200);
+        now = System.nanoTime();
+    }
+
+    private byte[] getPacket(int srcMac, short srcPort) {
+        return new Ethernet()
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress(new byte[] { 0, 0x44, 0, 0, 0, (byte) srcMac })
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 128)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2")
+                .setPayload(new UDP()
+                            .setSourcePort(srcPort)
+                            .setDestinationPort((short) 5001)
+                            .setPayload(new Data(new byte[] {0x01}))))
+            .serialize();
+    }
+
+    private Verdict check(byte[] packet, int inPort) {
+        if (throttle.admit(now))
+            return Verdict.PASS;
+        return throttle.filter(ByteBuffer.wrap(packet), inPort, now);
+    }
+
+    /**
+     * Use up the switch bucket in a single instant
+     */
+    private void startThrottling() {
+        byte[] packet = getPacket(1, (short) 1);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(throttle.admit(now));
+            assertFalse(throttle.isThrottling());
+        }
+        // The first of the flow
+        assertEquals(Verdict.PASS, check(packet, 1));
+        assertTrue(throttle.isThrottling());
+    }
+
+    @Test
+    public void testNoThrottle() {
+        throttle.setThresholds(0, 1, 0, 0);
+        byte[] packet = getPacket(1, (short) 1);
+        for (int i = 0; i < 10000; i++)
+            assertEquals(Verdict.PASS, check(packet, 1));
+        assertFalse(throttle.isThrottling());
+    }
+
+    @Test
+    public void testStartStopThrottle() {
+        startThrottling();
+        byte[] packet = getPacket(1, (short) 1);
+        // The same flow again
+        assertEquals(Verdict.DROP, check(packet, 1));
+        // but not on another port
+        assertEquals(Verdict.PASS, check(packet, 2));
+
+        // A slow window stops throttling
+        now += 200 * MS;
+        assertEquals(Verdict.DROP, check(packet, 1));
+        assertTrue(throttle.isThrottling());
+        now += 200 * MS;
+        assertEquals(Verdict.PASS, check(packet, 1));
+        assertFalse(throttle.isThrottling());
+        assertTrue(throttle.getCurrentRate() < 10);
+    }
+
+    @Test
+    public void testBlockHost() {
+        startThrottling();
+        // New flows from the same host
+        for (int j = 2; j < 50; j++)
+            assertEquals(Verdict.PASS, check(getPacket(1, (short) j), 1));
+        assertEquals(Verdict.BLOCK_HOST, check(getPacket(1, (short) 50), 1));
+        assertEquals(0x004400000001L, throttle.getLastSourceMac());
+        // Blocked already
+        assertEquals(Verdict.PASS, check(getPacket(1, (short) 51), 1));
+        // Duplicates are still dropped
+        assertEquals(Verdict.DROP, check(getPacket(1, (short) 51), 1));
+
+        Map<String, Object> info = throttle.getInfo();
+        assertEquals(Boolean.TRUE, info.get("throttling"));
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> hosts =
+                (List<Map<String, Object>>) info.get("hosts");
+        assertEquals(1, hosts.size());
+        assertEquals("00:44:00:00:00:01", hosts.get(0).get("mac"));
+        assertEquals(Boolean.TRUE, hosts.get(0).get("blocked"));
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> flows =
+                (List<Map<String, Object>>) info.get("flows");
+        assertEquals(1, flows.size());
+        assertEquals("192.168.1.1", flows.get(0).get("src"));
+        assertEquals(5001, flows.get(0).get("dstPort"));
+    }
+
+    @Test
+    public void testBlockPort() {
+        startThrottling();
+        // New flows from different hosts
+        for (int j = 1; j < 200; j++)
+            assertEquals(Verdict.PASS, check(getPacket(j, (short) 2), 1));
+        assertEquals(Verdict.BLOCK_PORT, check(getPacket(200, (short) 2), 1));
+        assertEquals(Verdict.PASS, check(getPacket(201, (short) 2), 1));
+        // Other ports have their own bucket
+        assertEquals(Verdict.PASS, check(getPacket(202, (short) 2), 3));
+        // The port bucket refills
+        now += 200 * MS;
+        assertEquals(Verdict.PASS, check(getPacket(203, (short) 2), 1));
+    }
+
+    @Test
+    public void testCountMinSketch() {
+        CountMinSketch sketch = new CountMinSketch(4, 1 << 16);
+        for (long key = 0; key < 1000; key++)
+            assertEquals(1, sketch.add(key));
+        for (int i = 2; i <= 100; i++)
+            assertEquals(i, sketch.add(42));
+        assertEquals(100, sketch.estimate(42));
+        // Never underestimated
+        for (long key = 0; key < 1000; key++)
+            assertTrue(sketch.estimate(key) >= 1);
+        sketch.clear();
+        assertEquals(0, sketch.estimate(42));
+    }
+}
@@ -0,0 +1,153 @@
+package net.floodlightcontroller.core.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFHello;
+import org.openflow.protocol.OFMessage;
+
+public class DirectBufferPoolTest {
+    private DirectBufferPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new DirectBufferPool(4096);
+    }
+
+    @Test
+    public void testAcquire() {
+        ByteBuffer buffer = pool.acquire(600);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(600, buffer.limit());
+        assertEquals(1024, buffer.capacity());
+
+        assertEquals(512, pool.acquire(1).capacity());
+        assertEquals(512, pool.acquire(512).capacity());
+        assertEquals(1024, pool.acquire(513).capacity());
+        assertEquals(0, pool.getHits());
+        assertEquals(4, pool.getMisses());
+    }
+
+    @Test
+    public void testReuse() {
+        ByteBuffer buffer = pool.acquire(1000);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer again = pool.acquire(700);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(700, again.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testFragmentation() {
+        assertEquals(0, pool.getFragmentation(), 0);
+        pool.acquire(512);
+        assertEquals(0, pool.getFragmentation(), 0);
+        pool.acquire(256);
+        assertEquals(768, pool.getRequestedBytes());
+        assertEquals(1024, pool.getReservedBytes());
+        assertEquals(0.25, pool.getFragmentation(), 0.0001);
+    }
+
+    @Test
+    public void testOversize() {
+        int size = DirectBufferPool.MAX_CLASS_SIZE + 1;
+        ByteBuffer buffer = pool.acquire(size);
+        assertEquals(size, buffer.capacity());
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(size));
+        assertEquals(0, pool.getHits());
+    }
+
+    @Test
+    public void testReleaseCap() {
+        // 4096 bytes per class keeps eight 512 byte buffers
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 10; i++)
+            buffers.add(pool.acquire(512));
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        for (int i = 0; i < 10; i++)
+            pool.acquire(512);
+        assertEquals(8, pool.getHits());
+        assertEquals(12, pool.getMisses());
+
+        // Buffers not from the pool are not kept
+        pool.release(ByteBuffer.allocateDirect(600));
+        assertEquals(1024, pool.acquire(600).capacity());
+        assertEquals(8, pool.getHits());
+    }
+
+    private List<OFMessage> getMessages(int count) {
+        List<OFMessage> msglist = new ArrayList<OFMessage>();
+        for (int i = 0; i < count; i++) {
+            OFMessage m = (i % 2 == 0) ? new OFHello() : new OFEchoRequest();
+            m.setXid(i);
+            msglist.add(m);
+        }
+        return msglist;
+    }
+
+    @Test
+    public void testEncodeChunks() {
+        List<OFMessage> msglist = getMessages(10);
+
+        // One buffer for the whole batch
+        OFMessageEncoder encoder = new OFMessageEncoder(pool, 0);
+        List<ByteBuffer> chunks = encoder.encodeChunks(msglist);
+        assertEquals(1, chunks.size());
+        ByteBuffer whole = chunks.get(0);
+        assertEquals(80, whole.remaining());
+        pool.release(whole);
+
+        // Whole messages packed into 24 byte chunks
+        encoder = new OFMessageEncoder(pool, 24);
+        chunks = encoder.encodeChunks(msglist);
+        assertEquals(4, chunks.size());
+        int xid = 0;
+        for (ByteBuffer chunk : chunks) {
+            assertTrue(chunk.remaining() % 8 == 0);
+            while (chunk.hasRemaining()) {
+                assertEquals(8, chunk.getShort(chunk.position() + 2));
+                assertEquals(xid++, chunk.getInt(chunk.position() + 4));
+                chunk.position(chunk.position() + 8);
+            }
+        }
+        assertEquals(10, xid);
+        assertTrue(encoder.encodeChunks(new ArrayList<OFMessage>()).isEmpty());
+    }
+
+    @Test
+    public void testEncodeChunksFailure() {
+        List<OFMessage> msglist = getMessages(2);
+        msglist.add(new OFHello() {
+            @Override
+            public void writeTo(ByteBuffer data) {
+                throw new IllegalStateException();
+            }
+        });
+
+        // Both the full chunk and the one being written go back to the pool
+        OFMessageEncoder encoder = new OFMessageEncoder(pool, 16);
+        try {
+            encoder.encodeChunks(msglist);
+            fail("Expected the encoding to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(2, pool.getMisses());
+        pool.acquire(16);
+        pool.acquire(16);
+        assertEquals(2, pool.getHits());
+    }
+}
@@ -0,0 +1,144 @@
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.IAnswer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static org.easymock.EasyMock.*;
+
+public class OrderedDispatchHandlerTest {
+    private OrderedDispatchHandler handler;
+    private ChannelHandlerContext ctx;
+    private List<Object> received;
+    private CountDownLatch blocked;
+
+    @Before
+    public void setUp() {
+        received = Collections.synchronizedList(new ArrayList<Object>());
+        blocked = new CountDownLatch(0);
+        ctx = createMock(ChannelHandlerContext.class);
+        ctx.sendUpstream(anyObject(ChannelEvent.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                blocked.await();
+                MessageEvent e = (MessageEvent) getCurrentArguments()[0];
+                received.add(e.getMessage());
+                return null;
+            }
+        }).anyTimes();
+        replay(ctx);
+    }
+
+    @After
+    public void tearDown() {
+        if (handler != null)
+            handler.releaseExternalResources();
+    }
+
+    private Channel createChannel(int id) {
+        Channel channel = createMock(Channel.class);
+        expect(channel.getId()).andReturn(id).anyTimes();
+        expect(channel.getRemoteAddress()).andReturn(null).anyTimes();
+        return channel;
+    }
+
+    private void drain() throws InterruptedException {
+        for (OrderedDispatchHandler.Lane lane : handler.lanes) {
+            lane.executor.shutdown();
+            assertTrue(lane.executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testOrderPerChannel() throws Exception {
+        handler = new OrderedDispatchHandler(4, 1000, true);
+        Channel[] channels = new Channel[8];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = createChannel(i);
+            replay(channels[i]);
+        }
+        for (int n = 0; n < 100; n++) {
+            for (int i = 0; i < channels.length; i++) {
+                handler.handleUpstream(ctx, new UpstreamMessageEvent(
+                        channels[i], new int[] { i, n }, null));
+            }
+        }
+        drain();
+
+        assertEquals(800, received.size());
+        int[] next = new int[channels.length];
+        for (Object o : received) {
+            int[] m = (int[]) o;
+            assertEquals(next[m[0]]++, m[1]);
+        }
+    }
+
+    @Test
+    public void testPauseReads() throws Exception {
+        handler = new OrderedDispatchHandler(1, 4, true);
+        blocked = new CountDownLatch(1);
+        Channel channel = createChannel(1);
+        expect(channel.setReadable(false)).andReturn(null).once();
+        expect(channel.setReadable(true)).andReturn(null).once();
+        replay(channel);
+
+        for (int n = 0; n < 4; n++) {
+            handler.handleUpstream(ctx,
+                    new UpstreamMessageEvent(channel, n, null));
+        }
+        assertEquals(4, handler.getDepth(0));
+        blocked.countDown();
+        drain();
+
+        assertEquals(0, handler.getDepth(0));
+        assertEquals(4, received.size());
+        verify(channel);
+    }
+
+    @Test
+    public void testWaitForRoom() throws Exception {
+        handler = new OrderedDispatchHandler(1, 2, false);
+        blocked = new CountDownLatch(1);
+        final Channel channel = createChannel(1);
+        replay(channel);
+
+        handler.handleUpstream(ctx, new UpstreamMessageEvent(channel, 0, null));
+        handler.handleUpstream(ctx, new UpstreamMessageEvent(channel, 1, null));
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    handler.handleUpstream(ctx,
+                            new UpstreamMessageEvent(channel, 2, null));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        writer.join(100);
+        // The third event waits until the lane has room
+        assertTrue(writer.isAlive());
+        assertEquals(2, handler.getDepth(0));
+
+        blocked.countDown();
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        drain();
+        assertEquals(3, received.size());
+    }
+}
@@ -0,0 +1,210 @@
+package net.floodlightcontroller.core.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.internal.Controller.ISwitchUpdate;
+import net.floodlightcontroller.core.internal.Controller.IUpdate;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class UpdateEventBusTest {
+    private UpdateEventBus bus;
+    private final List<String> dispatched =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private class TestSwitchUpdate implements ISwitchUpdate {
+        final long swId;
+        final String name;
+        final boolean coalesce;
+
+        TestSwitchUpdate(long swId, String name, boolean coalesce) {
+            this.swId = swId;
+            this.name = name;
+            this.coalesce = coalesce;
+        }
+
+        @Override
+        public long getSwitchId() {
+            return swId;
+        }
+
+        @Override
+        public boolean supersedes(ISwitchUpdate pending) {
+            return coalesce && ((TestSwitchUpdate) pending).coalesce;
+        }
+
+        @Override
+        public void dispatch() {
+            dispatched.add(name);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (bus != null)
+            bus.shutdown();
+    }
+
+    /**
+     * Wait until the bus has dispatched everything posted so far
+     */
+    private void drain() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        bus.post(new IUpdate() {
+            @Override
+            public void dispatch() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private List<String> dispatchedFor(String prefix) {
+        List<String> result = new ArrayList<String>();
+        synchronized (dispatched) {
+            for (String name : dispatched)
+                if (name.startsWith(prefix))
+                    result.add(name);
+        }
+        return result;
+    }
+
+    @Test
+    public void testPerSwitchOrder() throws Exception {
+        bus = new UpdateEventBus(4, null);
+        bus.start();
+        List<String> expected1 = new ArrayList<String>();
+        List<String> expected2 = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            bus.post(new TestSwitchUpdate(1, "a" + i, false));
+            bus.post(new TestSwitchUpdate(2, "b" + i, false));
+            expected1.add("a" + i);
+            expected2.add("b" + i);
+        }
+        drain();
+        assertEquals(expected1, dispatchedFor("a"));
+        assertEquals(expected2, dispatchedFor("b"));
+    }
+
+    @Test
+    public void testGlobalBarrier() throws Exception {
+        bus = new UpdateEventBus(3, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Hold up the partition of switch 1
+        bus.post(new TestSwitchUpdate(1, "before", false) {
+            @Override
+            public void dispatch() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.dispatch();
+            }
+        });
+        bus.post(new IUpdate() {
+            @Override
+            public void dispatch() {
+                dispatched.add("global");
+            }
+        });
+        for (long sw = 2; sw < 10; sw++)
+            bus.post(new TestSwitchUpdate(sw, "after" + sw, false));
+        bus.start();
+
+        Thread.sleep(50);
+        // Nothing passes the global update while switch 1 is held up
+        assertTrue(dispatched.isEmpty());
+        release.countDown();
+        drain();
+        assertEquals("before", dispatched.get(0));
+        assertEquals("global", dispatched.get(1));
+        assertEquals(10, dispatched.size());
+    }
+
+    @Test
+    public void testShutdownReleasesBarrier() throws Exception {
+        bus = new UpdateEventBus(2, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Hold up the partition of switch 1, even when interrupted
+        bus.post(new TestSwitchUpdate(1, "before", false) {
+            @Override
+            public void dispatch() {
+                boolean interrupted = false;
+                while (release.getCount() > 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        });
+        bus.post(new IUpdate() {
+            @Override
+            public void dispatch() {
+                dispatched.add("global");
+            }
+        });
+        bus.start();
+
+        // The other partition waits at the global update until shut down
+        Thread other = null;
+        for (UpdateEventBus.Partition partition : bus.partitions)
+            if (partition != bus.getPartition(1))
+                other = partition.thread;
+        Thread.sleep(50);
+        assertTrue(other.isAlive());
+        bus.shutdown();
+        other.join(5000);
+        assertFalse(other.isAlive());
+        release.countDown();
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        bus = new UpdateEventBus(1, null);
+        bus.post(new TestSwitchUpdate(1, "port1", true));
+        bus.post(new TestSwitchUpdate(1, "port2", true));
+        bus.post(new TestSwitchUpdate(2, "other", true));
+        bus.post(new TestSwitchUpdate(1, "port3", true));
+        bus.post(new TestSwitchUpdate(1, "added", false));
+        bus.post(new TestSwitchUpdate(1, "port4", true));
+        assertEquals(4, bus.getDepth(0));
+        bus.start();
+        drain();
+        assertEquals(4, dispatched.size());
+        assertEquals("port3", dispatched.get(0));
+        assertEquals("other", dispatched.get(1));
+        assertEquals("added", dispatched.get(2));
+        assertEquals("port4", dispatched.get(3));
+    }
+
+    @Test
+    public void testNoCoalesceAcrossBarrier() throws Exception {
+        bus = new UpdateEventBus(2, null);
+        bus.post(new TestSwitchUpdate(1, "port1", true));
+        bus.post(new IUpdate() {
+            @Override
+            public void dispatch() {
+                dispatched.add("global");
+            }
+        });
+        bus.post(new TestSwitchUpdate(1, "port2", true));
+        bus.start();
+        drain();
+        assertEquals(3, dispatched.size());
+        assertEquals("port1", dispatched.get(0));
+        assertEquals("global", dispatched.get(1));
+        assertEquals("port2", dispatched.get(2));
+    }
+}
@@ -0,0 +1,165 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyShort;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.util.Collections;
+import java.util.Date;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.debugcounter.DebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.IEntityClassifierService;
+import net.floodlightcontroller.flowcache.FlowReconcileManager;
+import net.floodlightcontroller.flowcache.IFlowReconcileService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IStorageSourceService;
+import net.floodlightcontroller.storage.memory.MemoryStorageSource;
+import net.floodlightcontroller.test.FloodlightTestCase;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.topology.ITopologyService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.test.MockSyncService;
+
+/**
+ * Checks when learning a known entity only refreshes its attachment point in
+ * place, and when it falls back to recomputing the attachment points
+ */
+public class DeviceAttachmentPointRefreshTest extends FloodlightTestCase {
+
+    private DeviceManagerImpl deviceManager;
+    private IDebugCounterService debugCounters;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Every switch is its own L2 domain, and every port an attachment
+        // point port
+        ITopologyService topology = createNiceMock(ITopologyService.class);
+        expect(topology.isAttachmentPointPort(anyLong(), anyShort()))
+                .andReturn(true).anyTimes();
+        expect(topology.getL2DomainId(1L)).andReturn(1L).anyTimes();
+        expect(topology.getL2DomainId(2L)).andReturn(2L).anyTimes();
+        expect(topology.getLastUpdateTime()).andReturn(new Date(0))
+                .anyTimes();
+        replay(topology);
+
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        MockThreadPoolService tp = new MockThreadPoolService();
+        RestApiServer restApi = new RestApiServer();
+        MemoryStorageSource storageSource = new MemoryStorageSource();
+        FlowReconcileManager flowReconcileMgr = new FlowReconcileManager();
+        DefaultEntityClassifier entityClassifier =
+                new DefaultEntityClassifier();
+        MockSyncService syncService = new MockSyncService();
+        mockFloodlightProvider = getMockFloodlightProvider();
+        mockFloodlightProvider.setRole(Role.MASTER, "");
+        deviceManager = new DeviceManagerImpl();
+        debugCounters = new DebugCounter();
+
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addService(IDeviceService.class, deviceManager);
+        fmc.addService(IStorageSourceService.class, storageSource);
+        fmc.addService(IFloodlightProviderService.class,
+                       mockFloodlightProvider);
+        fmc.addService(IRestApiService.class, restApi);
+        fmc.addService(IFlowReconcileService.class, flowReconcileMgr);
+        fmc.addService(IEntityClassifierService.class, entityClassifier);
+        fmc.addService(ITopologyService.class, topology);
+        fmc.addService(ISyncService.class, syncService);
+        fmc.addService(IDebugCounterService.class, debugCounters);
+        tp.init(fmc);
+        restApi.init(fmc);
+        storageSource.init(fmc);
+        deviceManager.init(fmc);
+        flowReconcileMgr.init(fmc);
+        entityClassifier.init(fmc);
+        syncService.init(fmc);
+        storageSource.startUp(fmc);
+        deviceManager.startUp(fmc);
+        flowReconcileMgr.startUp(fmc);
+        tp.startUp(fmc);
+        entityClassifier.startUp(fmc);
+        syncService.startUp(fmc);
+    }
+
+    private long getCount(String counter) {
+        debugCounters.flushCounters();
+        return debugCounters.getCounterHierarchy(DeviceManagerImpl.PACKAGE,
+                counter).get(0).getCounterValue();
+    }
+
+    /**
+     * Learn the entity again, and check which way its device was updated
+     */
+    private void assertRelearned(Entity entity, boolean refreshed) {
+        long oldRefreshed = getCount("known-entity-refreshed");
+        long oldUpdated = getCount("known-entity-updated");
+        deviceManager.learnDeviceByEntity(entity);
+        assertEquals(refreshed ? 1 : 0,
+                     getCount("known-entity-refreshed") - oldRefreshed);
+        assertEquals(refreshed ? 0 : 1,
+                     getCount("known-entity-updated") - oldUpdated);
+    }
+
+    private static Entity makeEntity(long mac, long sw, long time) {
+        return new Entity(mac, null, null, sw, 1, new Date(time));
+    }
+
+    @Test
+    public void testRefreshInPlace() {
+        Device d = deviceManager.learnDeviceByEntity(
+                makeEntity(1L, 1L, 1000));
+        AttachmentPoint ap = d.attachmentPoints.get(0);
+
+        assertRelearned(makeEntity(1L, 1L, 2000), true);
+        d = deviceManager.deviceMap.get(d.getDeviceKey());
+        assertEquals(1, d.attachmentPoints.size());
+        assertSame(ap, d.attachmentPoints.get(0));
+        assertEquals(2000, ap.getLastSeen());
+
+        // An entity learned out of order does not move lastSeen back
+        assertRelearned(makeEntity(1L, 1L, 1500), true);
+        assertEquals(2000, ap.getLastSeen());
+    }
+
+    @Test
+    public void testSeveralAttachmentPoints() {
+        deviceManager.learnDeviceByEntity(makeEntity(2L, 1L, 1000));
+        Device d = deviceManager.learnDeviceByEntity(
+                makeEntity(2L, 2L, 1000));
+        assertEquals(2, d.attachmentPoints.size());
+
+        assertRelearned(makeEntity(2L, 1L, 2000), false);
+    }
+
+    @Test
+    public void testAttachmentPointAlsoOld() {
+        Device d = deviceManager.learnDeviceByEntity(
+                makeEntity(3L, 1L, 1000));
+        d.oldAPs = Collections.singletonList(new AttachmentPoint(1L, 1, 0));
+
+        assertRelearned(makeEntity(3L, 1L, 2000), false);
+    }
+
+    @Test
+    public void testAttachmentPointNoLongerValid() {
+        deviceManager.learnDeviceByEntity(makeEntity(4L, 1L, 1000));
+        deviceManager.addSuppressAPs(1L, 1);
+
+        assertRelearned(makeEntity(4L, 1L, 2000), false);
+    }
+}
@@ -0,0 +1,128 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import junit.framework.TestCase;
+
+public class DeviceLongIndexTest extends TestCase {
+    protected Entity e1a;
+    protected Entity e1b;
+    protected Device d1;
+    protected Entity e2;
+    protected Entity e3;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        e1a = new Entity(1L, (short)1, 1, 1L, 1, new Date());
+        e1b = new Entity(1L, (short)2, 0xc0a80101, 1L, 1, new Date());
+        List<Entity> d1Entities = new ArrayList<Entity>(2);
+        d1Entities.add(e1a);
+        d1Entities.add(e1b);
+        d1 = new Device(null, Long.valueOf(1), null, null, null,
+                        d1Entities, null);
+
+        // Same IP as e1a
+        e2 = new Entity(2L, (short)2, 1, 2L, 2, new Date());
+
+        // IP is null
+        e3 = new Entity(3L, (short)3, null, 3L, 3, new Date());
+    }
+
+    protected void verifyIterator(Set<Long> expected, Iterator<Long> it) {
+        HashSet<Long> actual = new HashSet<Long>();
+        while (it.hasNext()) {
+            actual.add(it.next());
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSupported() {
+        assertTrue(DeviceLongIndex.isSupported(EnumSet.of(DeviceField.MAC)));
+        assertTrue(DeviceLongIndex.isSupported(EnumSet.of(DeviceField.IPV4)));
+        assertFalse(DeviceLongIndex.isSupported(
+                EnumSet.of(DeviceField.MAC, DeviceField.VLAN)));
+        assertFalse(DeviceLongIndex.isSupported(
+                EnumSet.of(DeviceField.SWITCH)));
+    }
+
+    @Test
+    public void testIPv4() {
+        DeviceLongIndex idx = new DeviceLongIndex(EnumSet.of(DeviceField.IPV4));
+
+        idx.updateIndex(d1, d1.getDeviceKey());
+        idx.updateIndex(e2, 2L);
+        idx.updateIndex(e3, 3L);
+        verifyIterator(new HashSet<Long>(Arrays.asList(1L, 2L)),
+                       idx.queryByEntity(e1a));
+        verifyIterator(Collections.<Long>singleton(1L),
+                       idx.queryByEntity(e1b));
+        // Addresses with the high bit set work
+        assertEquals(1, idx.findByKey(0xc0a80101L).length);
+        // Entities without an IP are not indexed
+        verifyIterator(Collections.<Long>emptySet(), idx.queryByEntity(e3));
+        verifyIterator(new HashSet<Long>(Arrays.asList(1L, 2L)),
+                       idx.getAll());
+
+        // Adding again changes nothing
+        idx.updateIndex(e2, 2L);
+        assertEquals(2, idx.findByKey(1).length);
+
+        idx.removeEntity(e2, 2L);
+        verifyIterator(Collections.<Long>singleton(1L),
+                       idx.queryByEntity(e1a));
+        idx.removeEntity(e2, 3L);
+        verifyIterator(Collections.<Long>singleton(1L),
+                       idx.queryByEntity(e1a));
+        idx.removeEntity(e1a);
+        verifyIterator(Collections.<Long>emptySet(), idx.queryByEntity(e1a));
+        idx.updateIndex(e2, 2L);
+        verifyIterator(Collections.<Long>singleton(2L),
+                       idx.queryByEntity(e1a));
+
+        // removeEntityIfNeeded keeps entries another entity still needs
+        idx.removeEntityIfNeeded(e1b, 1L, Collections.singleton(e1b));
+        verifyIterator(Collections.<Long>singleton(1L),
+                       idx.queryByEntity(e1b));
+        idx.removeEntityIfNeeded(e1b, 1L, Collections.singleton(e1a));
+        verifyIterator(Collections.<Long>emptySet(), idx.queryByEntity(e1b));
+    }
+
+    @Test
+    public void testGrow() {
+        DeviceLongIndex idx = new DeviceLongIndex(EnumSet.of(DeviceField.MAC));
+        for (long mac = 1; mac <= 10000; mac++)
+            idx.updateIndex(new Entity(mac, null, null, null, null, null),
+                            mac + 100);
+        // Emptied keys are dropped as the table grows
+        for (long mac = 1; mac <= 5000; mac++)
+            idx.removeEntity(new Entity(mac, null, null, null, null, null));
+        for (long mac = 10001; mac <= 20000; mac++)
+            idx.updateIndex(new Entity(mac, null, null, null, null, null),
+                            mac + 100);
+        for (long mac = 1; mac <= 20000; mac++) {
+            Long[] devices = idx.findByKey(mac);
+            if (mac <= 5000) {
+                assertEquals(0, devices.length);
+            } else {
+                assertEquals(1, devices.length);
+                assertEquals(Long.valueOf(mac + 100), devices[0]);
+            }
+        }
+        int n = 0;
+        for (Iterator<Long> it = idx.getAll(); it.hasNext(); it.next())
+            n++;
+        assertEquals(15000, n);
+    }
+}
@@ -0,0 +1,260 @@
+package net.floodlightcontroller.firewall;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.junit.Test;
+import org.openflow.protocol.OFOXMFieldType;
+
+public class FirewallClassifierTest {
+    private static final long[] MACS = { 0x1L, 0x2L, 0x3L };
+    private static final int[] ADDRS = {
+        IPv4.toIPv4Address("10.0.0.1"), IPv4.toIPv4Address("10.0.0.2"),
+        IPv4.toIPv4Address("10.0.1.1"), IPv4.toIPv4Address("192.168.1.1")
+    };
+    private static final int[] MASKBITS = { 0, 8, 16, 24, 31, 32, -1, 33 };
+    private static final short[] DL_TYPES = {
+        Ethernet.TYPE_ARP, Ethernet.TYPE_IPv4, (short) 0x86dd
+    };
+    private static final short[] NW_PROTOS = {
+        IPv4.PROTOCOL_TCP, IPv4.PROTOCOL_UDP, IPv4.PROTOCOL_ICMP, 0, 47
+    };
+
+    private Random random = new Random(4242);
+
+    private FirewallRule getRandomRule() {
+        FirewallRule r = new FirewallRule();
+        r.dpid = 1 + random.nextInt(2);
+        r.wildcard_dpid = random.nextBoolean();
+        r.in_port = (short) (1 + random.nextInt(3));
+        r.wildcard_in_port = random.nextInt(3) > 0;
+        r.dl_src = MACS[random.nextInt(MACS.length)];
+        r.wildcard_dl_src = random.nextInt(3) > 0;
+        r.dl_dst = MACS[random.nextInt(MACS.length)];
+        r.wildcard_dl_dst = random.nextInt(3) > 0;
+        r.dl_type = DL_TYPES[random.nextInt(DL_TYPES.length)];
+        r.wildcard_dl_type = random.nextInt(3) == 0;
+        r.nw_src_prefix = ADDRS[random.nextInt(ADDRS.length)];
+        r.nw_src_maskbits = MASKBITS[random.nextInt(MASKBITS.length)];
+        r.wildcard_nw_src = random.nextBoolean();
+        r.nw_dst_prefix = ADDRS[random.nextInt(ADDRS.length)];
+        r.nw_dst_maskbits = MASKBITS[random.nextInt(MASKBITS.length)];
+        r.wildcard_nw_dst = random.nextBoolean();
+        r.nw_proto = NW_PROTOS[random.nextInt(NW_PROTOS.length)];
+        r.wildcard_nw_proto = random.nextBoolean();
+        r.priority = random.nextInt(10);
+        r.action = random.nextBoolean() ? FirewallRule.FirewallAction.ALLOW
+                                        : FirewallRule.FirewallAction.DENY;
+        return r;
+    }
+
+    private Ethernet getRandomPacket() {
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MACAddress.valueOf(
+                MACS[random.nextInt(MACS.length)]).toBytes());
+        eth.setDestinationMACAddress(MACAddress.valueOf(
+                MACS[random.nextInt(MACS.length)]).toBytes());
+        int src = ADDRS[random.nextInt(ADDRS.length)] + random.nextInt(2);
+        int dst = ADDRS[random.nextInt(ADDRS.length)] + random.nextInt(2);
+        switch (random.nextInt(3)) {
+            case 0:
+                eth.setEtherType(Ethernet.TYPE_ARP);
+                eth.setPayload(new ARP()
+                        .setSenderProtocolAddress(src)
+                        .setTargetProtocolAddress(dst));
+                break;
+            case 1:
+                IPv4 ip = new IPv4()
+                        .setSourceAddress(src)
+                        .setDestinationAddress(dst);
+                IPacket payload;
+                byte proto;
+                switch (random.nextInt(4)) {
+                    case 0:
+                        proto = IPv4.PROTOCOL_TCP;
+                        payload = new TCP().setSourcePort((short) 80)
+                                           .setDestinationPort((short) 81);
+                        break;
+                    case 1:
+                        proto = IPv4.PROTOCOL_UDP;
+                        payload = new UDP().setSourcePort((short) 80)
+                                           .setDestinationPort((short) 81);
+                        break;
+                    case 2:
+                        proto = IPv4.PROTOCOL_ICMP;
+                        payload = new Data(new byte[] { 0x01 });
+                        break;
+                    default:
+                        proto = 47;
+                        payload = new Data(new byte[] { 0x01 });
+                        break;
+                }
+                ip.setProtocol(proto);
+                ip.setPayload(payload);
+                eth.setEtherType(Ethernet.TYPE_IPv4);
+                eth.setPayload(ip);
+                break;
+            default:
+                eth.setEtherType((short) 0x86dd);
+                eth.setPayload(new Data(new byte[] { 0x01 }));
+                break;
+        }
+        return eth;
+    }
+
+    private Ethernet getRandomPacket(short etherType, byte proto) {
+        while (true) {
+            Ethernet eth = getRandomPacket();
+            if (eth.getEtherType() != etherType)
+                continue;
+            if (proto != 0 &&
+                    ((IPv4) eth.getPayload()).getProtocol() != proto)
+                continue;
+            return eth;
+        }
+    }
+
+    /**
+     * Change the fields of a packet that are not in its megaflow
+     */
+    private Ethernet getMegaflowPacket(Ethernet eth,
+                                       EnumSet<OFOXMFieldType> fields) {
+        Ethernet other;
+        if (!fields.contains(OFOXMFieldType.ETH_TYPE)) {
+            other = getRandomPacket();
+        } else if (fields.contains(OFOXMFieldType.IP_PROTO)) {
+            other = getRandomPacket(eth.getEtherType(),
+                    ((IPv4) eth.getPayload()).getProtocol());
+        } else {
+            other = getRandomPacket(eth.getEtherType(), (byte) 0);
+        }
+        if (fields.contains(OFOXMFieldType.ETH_SRC))
+            other.setSourceMACAddress(eth.getSourceMACAddress());
+        if (fields.contains(OFOXMFieldType.ETH_DST))
+            other.setDestinationMACAddress(eth.getDestinationMACAddress());
+        if (eth.getPayload() instanceof IPv4) {
+            IPv4 ip = (IPv4) eth.getPayload();
+            if (fields.contains(OFOXMFieldType.IPV4_SRC))
+                ((IPv4) other.getPayload()).setSourceAddress(
+                        ip.getSourceAddress());
+            if (fields.contains(OFOXMFieldType.IPV4_DST))
+                ((IPv4) other.getPayload()).setDestinationAddress(
+                        ip.getDestinationAddress());
+        } else if (eth.getPayload() instanceof ARP) {
+            ARP arp = (ARP) eth.getPayload();
+            if (fields.contains(OFOXMFieldType.ARP_SPA))
+                ((ARP) other.getPayload()).setSenderProtocolAddress(
+                        arp.getSenderProtocolAddress());
+            if (fields.contains(OFOXMFieldType.ARP_TPA))
+                ((ARP) other.getPayload()).setTargetProtocolAddress(
+                        arp.getTargetProtocolAddress());
+        }
+        return other;
+    }
+
+    @Test
+    public void testNoRules() {
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        FirewallClassifier classifier = new FirewallClassifier(rules);
+        RuleWildcardsPair ret = classifier.match(1, 1, getRandomPacket());
+        assertNull(ret.rule);
+        assertTrue(ret.nonWildcards.isEmpty());
+    }
+
+    @Test
+    public void testFirstMatchWins() {
+        FirewallRule deny = new FirewallRule();
+        deny.wildcard_dl_type = false;
+        deny.dl_type = Ethernet.TYPE_IPv4;
+        deny.wildcard_nw_src = false;
+        deny.nw_src_prefix = IPv4.toIPv4Address("10.0.0.0");
+        deny.nw_src_maskbits = 8;
+        deny.action = FirewallRule.FirewallAction.DENY;
+        FirewallRule allow = new FirewallRule();
+        allow.priority = 1;
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        rules.add(deny);
+        rules.add(allow);
+        FirewallClassifier classifier = new FirewallClassifier(rules);
+
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MACAddress.valueOf(1L).toBytes());
+        eth.setDestinationMACAddress(MACAddress.valueOf(2L).toBytes());
+        eth.setEtherType(Ethernet.TYPE_IPv4);
+        eth.setPayload(new IPv4()
+                       .setSourceAddress("10.1.2.3")
+                       .setDestinationAddress("192.168.1.1"));
+        RuleWildcardsPair ret = classifier.match(1, 1, eth);
+        assertSame(deny, ret.rule);
+        assertEquals(EnumSet.of(OFOXMFieldType.ETH_TYPE,
+                                OFOXMFieldType.IPV4_SRC), ret.nonWildcards);
+
+        ((IPv4) eth.getPayload()).setSourceAddress("11.1.2.3");
+        ret = classifier.match(1, 1, eth);
+        assertSame(allow, ret.rule);
+        // The deny rule had to be consulted as well
+        assertEquals(EnumSet.of(OFOXMFieldType.ETH_TYPE,
+                                OFOXMFieldType.IPV4_SRC), ret.nonWildcards);
+        assertEquals(2, classifier.getMegaflowCount());
+
+        // Other packets of the megaflows come from the cache
+        ((IPv4) eth.getPayload()).setSourceAddress("10.9.9.9");
+        assertSame(deny, classifier.match(2, 3, eth).rule);
+        eth.setEtherType(Ethernet.TYPE_ARP);
+        eth.setPayload(new ARP()
+                       .setSenderProtocolAddress(IPv4.toIPv4Address("10.1.2.3"))
+                       .setTargetProtocolAddress(
+                               IPv4.toIPv4Address("192.168.1.1")));
+        ret = classifier.match(1, 1, eth);
+        assertSame(allow, ret.rule);
+        assertEquals(EnumSet.of(OFOXMFieldType.ETH_TYPE), ret.nonWildcards);
+        assertEquals(3, classifier.getMegaflowCount());
+    }
+
+    @Test
+    public void testSameAsScan() {
+        for (int n : new int[] { 1, 10, 100, 1000 }) {
+            List<FirewallRule> rules = new ArrayList<FirewallRule>();
+            for (int i = 0; i < n; i++)
+                rules.add(getRandomRule());
+            Collections.sort(rules);
+            FirewallClassifier cached = new FirewallClassifier(rules, 64);
+            FirewallClassifier uncached = new FirewallClassifier(rules, 0);
+            for (int i = 0; i < 2000; i++) {
+                long dpid = 1 + random.nextInt(2);
+                int inPort = 1 + random.nextInt(3);
+                Ethernet eth = getRandomPacket();
+                FirewallRule expected =
+                        FirewallClassifier.scan(rules, dpid, inPort, eth).rule;
+                RuleWildcardsPair ret = uncached.match(dpid, inPort, eth);
+                assertSame(expected, ret.rule);
+                assertSame(expected, cached.match(dpid, inPort, eth).rule);
+
+                // Every packet of the megaflow gets the same rule
+                int otherPort = ret.nonWildcards.contains(
+                        OFOXMFieldType.IN_PORT) ? inPort
+                                                : 1 + random.nextInt(3);
+                Ethernet other = getMegaflowPacket(eth, ret.nonWildcards);
+                assertSame(expected, FirewallClassifier.scan(
+                        rules, dpid, otherPort, other).rule);
+                assertSame(expected,
+                           cached.match(dpid, otherPort, other).rule);
+            }
+            assertTrue(cached.getMegaflowCount() <= 64);
+        }
+    }
+}
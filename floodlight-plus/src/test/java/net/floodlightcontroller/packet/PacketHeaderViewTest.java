@@ -0,0 +1,149 @@
+package net.floodlightcontroller.packet;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
+
+import org.junit.Test;
+
+public class PacketHeaderViewTest {
+
+    private Ethernet getUdpPacket(short vlan) {
+        return (Ethernet) new Ethernet()
+        .setDestinationMACAddress("00:11:22:33:44:55")
+        .setSourceMACAddress("00:44:33:22:11:00")
+        .setEtherType(Ethernet.TYPE_IPv4)
+        .setVlanID(vlan)
+        .setPriorityCode((byte) 3)
+        .setPayload(
+                    new IPv4()
+                    .setTtl((byte) 128)
+                    .setSourceAddress("192.168.1.1")
+                    .setDestinationAddress("192.168.1.2")
+                    .setPayload(new UDP()
+                    .setSourcePort((short) 5000)
+                    .setDestinationPort((short) 5001)
+                    .setPayload(new Data(new byte[] {0x01}))));
+    }
+
+    private PacketHeaderView getView(IPacket packet) {
+        return new PacketHeaderView(ByteBuffer.wrap(packet.serialize()));
+    }
+
+    @Test
+    public void testUdp() {
+        PacketHeaderView view = getView(getUdpPacket(Ethernet.VLAN_UNTAGGED));
+        assertEquals(0x001122334455L, view.getDestinationMAC());
+        assertEquals(0x004433221100L, view.getSourceMAC());
+        assertEquals(Ethernet.VLAN_UNTAGGED, view.getVlanID());
+        assertEquals(Ethernet.TYPE_IPv4, view.getEtherType());
+        assertTrue(view.isIPv4());
+        assertFalse(view.isBroadcast());
+        assertEquals(IPv4.PROTOCOL_UDP, view.getIPv4Protocol());
+        assertEquals(IPv4.toIPv4Address("192.168.1.1"), view.getIPv4Source());
+        assertEquals(IPv4.toIPv4Address("192.168.1.2"),
+                     view.getIPv4Destination());
+        assertEquals(5000, view.getTransportSource());
+        assertEquals(5001, view.getTransportDestination());
+        assertFalse(view.isParsed());
+    }
+
+    @Test
+    public void testVlan() {
+        PacketHeaderView view = getView(getUdpPacket((short) 5));
+        assertEquals(5, view.getVlanID());
+        assertEquals(3, view.getPriorityCode());
+        assertEquals(18, view.getNetworkOffset());
+        assertEquals(Ethernet.TYPE_IPv4, view.getEtherType());
+        assertEquals(5001, view.getTransportDestination());
+    }
+
+    @Test
+    public void testArp() {
+        IPacket arp = new Ethernet()
+        .setSourceMACAddress("00:44:33:22:11:01")
+        .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+        .setEtherType(Ethernet.TYPE_ARP)
+        .setPayload(
+                    new ARP()
+                    .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                    .setProtocolType(ARP.PROTO_TYPE_IP)
+                    .setHardwareAddressLength((byte) 6)
+                    .setProtocolAddressLength((byte) 4)
+                    .setOpCode(ARP.OP_REQUEST)
+                    .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:01"))
+                    .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.1"))
+                    .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:00"))
+                    .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.2")));
+        PacketHeaderView view = getView(arp);
+        assertTrue(view.isBroadcast());
+        assertFalse(view.isMulticast());
+        assertTrue(view.isARP());
+        assertEquals(ARP.OP_REQUEST, view.getARPOpCode());
+        assertFalse(view.isIPv4());
+        assertEquals(0, view.getIPv4Source());
+        assertEquals(0, view.getTransportSource());
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] data = getUdpPacket(Ethernet.VLAN_UNTAGGED).serialize();
+        // Cut off in the middle of the IPv4 source address
+        ByteBuffer bb = ByteBuffer.wrap(data, 0, 28);
+        PacketHeaderView view = new PacketHeaderView(bb);
+        assertEquals(0x001122334455L, view.getDestinationMAC());
+        assertTrue(view.isIPv4());
+        assertEquals(0, view.getIPv4Source());
+        assertEquals(0, view.getTransportSource());
+    }
+
+    @Test
+    public void testGetEthernet() {
+        Ethernet eth = getUdpPacket((short) 5);
+        byte[] data = eth.serialize();
+
+        // From a heap buffer with an offset, and from a direct buffer
+        ByteBuffer heap = ByteBuffer.allocate(data.length + 4);
+        heap.position(4);
+        heap.put(data);
+        heap.position(4);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        direct.flip();
+
+        for (ByteBuffer bb : new ByteBuffer[] {
+                heap.slice(), direct.asReadOnlyBuffer() }) {
+            PacketHeaderView view = new PacketHeaderView(bb);
+            Ethernet parsed = view.getEthernet();
+            assertTrue(view.isParsed());
+            assertSame(parsed, view.getEthernet());
+            assertArrayEquals(data, parsed.serialize());
+        }
+    }
+
+    @Test
+    public void testLazyContextValue() {
+        final PacketHeaderView view =
+                getView(getUdpPacket(Ethernet.VLAN_UNTAGGED));
+        FloodlightContextStore<Ethernet> store =
+                new FloodlightContextStore<Ethernet>();
+        FloodlightContext cntx = new FloodlightContext();
+        store.putLazy(cntx, "eth", new FloodlightContextStore.Lazy<Ethernet>() {
+            @Override
+            public Ethernet compute() {
+                return view.getEthernet();
+            }
+        });
+        assertFalse(view.isParsed());
+
+        Ethernet eth = store.get(cntx, "eth");
+        assertTrue(view.isParsed());
+        assertEquals(view.getSourceMAC(), eth.getSourceMAC().toLong());
+        // The computed value replaces the lazy one
+        assertSame(eth, cntx.getStorage().get("eth"));
+        assertSame(eth, store.get(cntx, "eth"));
+    }
+}
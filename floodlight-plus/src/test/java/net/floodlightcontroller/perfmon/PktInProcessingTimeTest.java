@@ -0,0 +1,121 @@
+package net.floodlightcontroller.perfmon;
+
+import static org.junit.Assert.*;
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+
+public class PktInProcessingTimeTest {
+    private PktInProcessingTime ppt;
+    private IOFMessageListener listener;
+
+    @Before
+    public void setUp() {
+        ppt = new PktInProcessingTime();
+        listener = createNiceMock(IOFMessageListener.class);
+        replay(listener);
+    }
+
+    private void process(OFMessage m) {
+        ppt.recordStartTimePktIn();
+        ppt.recordStartTimeComp(listener);
+        ppt.recordEndTimeComp(listener);
+        ppt.recordEndTimePktIn(null, m, null);
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++)
+            h.record(v * 1000);
+        assertEquals(100000, h.getCount());
+        assertEquals(100000000, h.getMax());
+        assertEquals(50000000, h.getValueAtPercentile(50), 50000000 * 0.04);
+        assertEquals(99000000, h.getValueAtPercentile(99), 99000000 * 0.04);
+        assertEquals(100000000, h.getValueAtPercentile(100));
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(Long.MAX_VALUE);
+        h.add(other);
+        assertEquals(100001, h.getCount());
+        assertEquals(Long.MAX_VALUE, h.getValueAtPercentile(100));
+        h.reset();
+        assertEquals(0, h.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        long last = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+            long high = LatencyHistogram.highestValueOf(i);
+            assertEquals(i, LatencyHistogram.indexOf(last + 1));
+            assertEquals(i, LatencyHistogram.indexOf(high));
+            last = high;
+        }
+    }
+
+    @Test
+    public void testThreads() throws Exception {
+        ppt.sampleInterval = 1;
+        final OFMessage pi = new OFPacketIn();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++)
+                        process(pi);
+                    ppt.flush(ppt.recorders.get(), System.nanoTime());
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        process(new OFEchoRequest());
+        ppt.flush(ppt.recorders.get(), System.nanoTime());
+
+        CumulativeTimeBucket ctb = ppt.getCtb();
+        ctb.computeAverages();
+        assertEquals(4001, ctb.getTotalPktCnt());
+        assertEquals(1, ctb.getModules().size());
+        assertEquals(4001, ctb.getModules().iterator().next().getPktCnt());
+        assertEquals(2, ctb.getMessageTypes().size());
+        assertTrue(ctb.getPercentileProcTimeNs(50) <=
+                   ctb.getPercentileProcTimeNs(99.9));
+        assertTrue(ctb.getPercentileProcTimeNs(99.9) <=
+                   ctb.getMaxTotalProcTimeNs());
+
+        ppt.reset();
+        assertEquals(0, ppt.getCtb().getTotalPktCnt());
+    }
+
+    @Test
+    public void testSampling() {
+        ppt.sampleInterval = 10;
+        OFMessage pi = new OFPacketIn();
+        for (int i = 0; i < 1000; i++)
+            process(pi);
+        ppt.flush(ppt.recorders.get(), System.nanoTime());
+
+        CumulativeTimeBucket ctb = ppt.getCtb();
+        assertEquals(100, ctb.getTotalPktCnt());
+        assertEquals(10, ctb.getSampleInterval());
+
+        ppt.sampleInterval = 0;
+        process(pi);
+        ppt.flush(ppt.recorders.get(), System.nanoTime());
+        assertFalse(ppt.isEnabled());
+        assertEquals(100, ppt.getCtb().getTotalPktCnt());
+    }
+}
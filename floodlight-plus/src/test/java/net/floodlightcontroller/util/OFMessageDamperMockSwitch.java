@@ -30,11 +30,13 @@ import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.OFWriteQueue;
 import net.floodlightcontroller.core.internal.Controller;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.openflow.protocol.OFFeaturesReply;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPortStatus;
@@ -415,6 +417,42 @@ public class OFMessageDamperMockSwitch implements IOFSwitch {
         return false;
     }
 
+    @Override
+    public void setWriteQueue(OFWriteQueue writeQueue) {
+        fail("Unexpected method call");
+    }
+
+    @Override
+    public ChannelFuture writeAsync(OFMessage m, FloodlightContext bc) {
+        fail("Unexpected method call");
+        return null;
+    }
+
+    @Override
+    public ChannelFuture writeAsync(List<OFMessage> msglist,
+                                    FloodlightContext bc) {
+        fail("Unexpected method call");
+        return null;
+    }
+
+    @Override
+    public boolean isWriteBackpressured() {
+        fail("Unexpected method call");
+        return false;
+    }
+
+    @Override
+    public int getWriteQueueBytes() {
+        fail("Unexpected method call");
+        return 0;
+    }
+
+    @Override
+    public Map<String, Object> getInputThrottleInfo() {
+        fail("Unexpected method call");
+        return null;
+    }
+
     @Override
     public boolean isWriteThrottleEnabled() {
         fail("Unexpected method call");
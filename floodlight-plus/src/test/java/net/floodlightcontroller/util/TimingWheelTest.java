@@ -0,0 +1,87 @@
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+    @Test
+    public void testExpire() {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 100, 1000);
+        wheel.schedule(1, 1025);
+        wheel.schedule(2, 1010);
+        wheel.schedule(3, 1030);
+        // Already due
+        wheel.schedule(4, 500);
+        assertEquals(4, wheel.size());
+
+        assertEquals(Arrays.asList(4), wheel.expire(1005, 10));
+        assertEquals(Arrays.asList(2), wheel.expire(1010, 10));
+        // Never before the deadline
+        assertEquals(Collections.emptyList(), wheel.expire(1029, 10));
+        assertEquals(Arrays.asList(1, 3), wheel.expire(1030, 10));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testScheduleAgain() {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 100, 0);
+        wheel.schedule(1, 50);
+        // The earlier deadline is kept
+        wheel.schedule(1, 80);
+        wheel.schedule(1, 20);
+        assertEquals(1, wheel.size());
+        assertEquals(Arrays.asList(1), wheel.expire(20, 10));
+        assertEquals(Collections.emptyList(), wheel.expire(100, 10));
+
+        wheel.schedule(2, 150);
+        wheel.cancel(2);
+        wheel.schedule(3, 150);
+        assertEquals(Arrays.asList(3), wheel.expire(150, 10));
+    }
+
+    @Test
+    public void testBeyondHorizon() {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 100, 0);
+        wheel.schedule(1, 500);
+        // Returned once the wheel has turned, to be scheduled again
+        List<Integer> expired = wheel.expire(110, 10);
+        assertEquals(Arrays.asList(1), expired);
+
+        // A wheel left alone for several turns still finds everything
+        for (int i = 0; i < 10; i++)
+            wheel.schedule(i, 120 + i * 10);
+        assertEquals(10, wheel.expire(10000, 100).size());
+    }
+
+    @Test
+    public void testBadArguments() {
+        try {
+            new TimingWheel<Integer>(0, 100, 0);
+            fail("Expected a bad tick to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("tickMs"));
+        }
+        try {
+            new TimingWheel<Integer>(10, -1, 0);
+            fail("Expected a bad horizon to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("horizonMs"));
+        }
+    }
+
+    @Test
+    public void testMax() {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 100, 0);
+        for (int i = 0; i < 5; i++)
+            wheel.schedule(i, 10);
+        wheel.schedule(5, 20);
+        assertEquals(Arrays.asList(0, 1, 2), wheel.expire(100, 3));
+        assertEquals(Arrays.asList(3, 4, 5), wheel.expire(100, 3));
+        assertEquals(0, wheel.size());
+    }
+}
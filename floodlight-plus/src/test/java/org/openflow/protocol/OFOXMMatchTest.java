@@ -0,0 +1,193 @@
+package org.openflow.protocol;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+
+import org.junit.Test;
+
+public class OFOXMMatchTest {
+
+    private OFMatch getMatch() {
+        return new OFMatch()
+            .setInPort(3)
+            .setDataLayerSource("00:44:33:22:11:00")
+            .setDataLayerType(OFMatch.ETH_TYPE_IPV4)
+            .setNetworkProtocol(OFMatch.IP_PROTO_UDP)
+            .setNetworkDestinationMask(0x0a000001, 0xffffff00)
+            .setTransportDestination(OFMatch.IP_PROTO_UDP, (short) 53);
+    }
+
+    private byte[] write(OFMatch match) {
+        ByteBuffer bb = ByteBuffer.allocate(match.getLengthU());
+        match.writeTo(bb);
+        assertEquals(0, bb.remaining());
+        return bb.array();
+    }
+
+    @Test
+    public void testGetters() {
+        OFMatch match = getMatch();
+        assertEquals(3, match.getInPort());
+        assertArrayEquals(Ethernet.toMACAddress("00:44:33:22:11:00"),
+                          match.getDataLayerSource());
+        assertEquals(0x004433221100L,
+                     match.getMatchFieldLong(OFOXMFieldType.ETH_SRC));
+        assertNull(match.getDataLayerDestination());
+        assertEquals(OFMatch.ETH_TYPE_IPV4, match.getDataLayerType());
+        assertEquals(OFMatch.IP_PROTO_UDP, match.getNetworkProtocol());
+        // The value is masked
+        assertEquals(0x0a000000, match.getNetworkDestination());
+        assertEquals(0xffffff00, match.getNetworkDestinationMask());
+        assertEquals(53, match.getTransportDestination());
+        assertEquals(0, match.getTransportSource());
+        assertEquals(OFPort.OFPP_ANY.getValue(), new OFMatch().getInPort());
+
+        assertTrue(match.fieldExists(OFOXMFieldType.UDP_DST));
+        assertFalse(match.fieldExists(OFOXMFieldType.TCP_DST));
+        assertEquals(Short.valueOf((short) 53),
+                     match.getMatchFieldValue(OFOXMFieldType.UDP_DST));
+        assertNull(match.getMatchFieldMask(OFOXMFieldType.UDP_DST));
+        assertEquals(Integer.valueOf(0xffffff00),
+                     match.getMatchFieldMask(OFOXMFieldType.IPV4_DST));
+        // 4 + in_port 8 + eth_src 10 + eth_type 6 + ip_proto 5
+        // + masked ipv4_dst 12 + udp_dst 6
+        assertEquals(51, match.getMatchLength());
+        assertEquals(56, match.getLength());
+    }
+
+    @Test
+    public void testWireFormat() {
+        OFMatch match = getMatch();
+        // The same fields written one by one, in field type order
+        ByteBuffer expected = ByteBuffer.allocate(56);
+        expected.putShort((short) 1);
+        expected.putShort((short) 51);
+        for (OFMatchField field : match.getMatchFields())
+            field.writeTo(expected);
+        assertArrayEquals(expected.array(), write(match));
+
+        OFMatch read = new OFMatch();
+        read.readFrom(ByteBuffer.wrap(expected.array()));
+        assertEquals(match, read);
+        assertEquals(match.hashCode(), read.hashCode());
+        assertEquals(56, read.getLength());
+        assertArrayEquals(expected.array(), write(read));
+    }
+
+    @Test
+    public void testReplaceField() {
+        OFMatch match = getMatch();
+        match.setNetworkDestination(0x0a000002);
+        assertEquals(0, match.getNetworkDestinationMask());
+        assertEquals(47, match.getMatchLength());
+        match.setNonWildcards(EnumSet.of(OFOXMFieldType.IN_PORT,
+                                         OFOXMFieldType.ETH_SRC));
+        assertEquals(22, match.getMatchLength());
+        assertEquals(0, match.getNetworkDestination());
+        assertEquals(2, match.getMatchFields().size());
+        match.setNonWildcards(null);
+        assertEquals(new OFMatch(), match);
+    }
+
+    @Test
+    public void testClone() {
+        OFMatch match = getMatch();
+        OFMatch clone = match.clone();
+        assertEquals(match, clone);
+        assertEquals(match.hashCode(), clone.hashCode());
+
+        clone.setTransportDestination(OFMatch.IP_PROTO_UDP, (short) 54);
+        assertEquals(53, match.getTransportDestination());
+        assertEquals(54, clone.getTransportDestination());
+        assertFalse(match.equals(clone));
+
+        match.setInPort(4);
+        OFMatch other = clone.clone();
+        other.setInPort(4);
+        assertEquals(3, clone.getInPort());
+        other.setTransportDestination(OFMatch.IP_PROTO_UDP, (short) 53);
+        assertEquals(match, other);
+    }
+
+    @Test
+    public void testWideField() {
+        byte[] address = new byte[16];
+        address[0] = (byte) 0xfe;
+        address[15] = 1;
+        byte[] mask = new byte[16];
+        mask[0] = (byte) 0xff;
+        OFMatch match = new OFMatch();
+        match.setField(OFOXMFieldType.IPV6_SRC, address, mask);
+        byte[] value = (byte[]) match.getMatchFieldValue(OFOXMFieldType.IPV6_SRC);
+        assertEquals((byte) 0xfe, value[0]);
+        assertEquals(0, value[15]);
+        assertEquals(4 + 4 + 32, match.getMatchLength());
+
+        OFMatch read = new OFMatch();
+        read.readFrom(ByteBuffer.wrap(write(match)));
+        assertEquals(match, read);
+        assertArrayEquals(mask,
+                (byte[]) read.getMatchFieldMask(OFOXMFieldType.IPV6_SRC));
+    }
+
+    @Test
+    public void testLoadFromPacket() {
+        Ethernet udp = (Ethernet) new Ethernet()
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(
+                new IPv4()
+                .setTtl((byte) 128)
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2")
+                .setPayload(new UDP()
+                            .setSourcePort((short) 5000)
+                            .setDestinationPort((short) 5001)
+                            .setPayload(new Data(new byte[] {0x01}))));
+        OFMatch match = OFMatch.load(udp.serialize(), 7);
+        assertEquals(7, match.getInPort());
+        assertArrayEquals(udp.getDestinationMACAddress(),
+                          match.getDataLayerDestination());
+        assertArrayEquals(udp.getSourceMACAddress(),
+                          match.getDataLayerSource());
+        assertEquals(Ethernet.TYPE_IPv4, match.getDataLayerType());
+        assertEquals(IPv4.PROTOCOL_UDP, match.getNetworkProtocol());
+        assertEquals(IPv4.toIPv4Address("192.168.1.1"), match.getNetworkSource());
+        assertEquals(IPv4.toIPv4Address("192.168.1.2"),
+                     match.getNetworkDestination());
+        assertEquals(5000, match.getTransportSource());
+        assertEquals(5001, match.getTransportDestination());
+
+        Ethernet arp = (Ethernet) new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:01")
+            .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+            .setEtherType(Ethernet.TYPE_ARP)
+            .setPayload(
+                new ARP()
+                .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                .setProtocolType(ARP.PROTO_TYPE_IP)
+                .setHardwareAddressLength((byte) 6)
+                .setProtocolAddressLength((byte) 4)
+                .setOpCode(ARP.OP_REQUEST)
+                .setSenderHardwareAddress(Ethernet.toMACAddress("00:44:33:22:11:01"))
+                .setSenderProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.1"))
+                .setTargetHardwareAddress(Ethernet.toMACAddress("00:00:00:00:00:00"))
+                .setTargetProtocolAddress(IPv4.toIPv4AddressBytes("192.168.1.2")));
+        match = OFMatch.load(arp.serialize(), 1);
+        assertEquals(0xffffffffffffL,
+                     match.getMatchFieldLong(OFOXMFieldType.ETH_DST));
+        assertEquals(ARP.OP_REQUEST,
+                     match.getMatchFieldLong(OFOXMFieldType.ARP_OP));
+        assertEquals(IPv4.toIPv4Address("192.168.1.2"),
+                     (int) match.getMatchFieldLong(OFOXMFieldType.ARP_TPA));
+    }
+}
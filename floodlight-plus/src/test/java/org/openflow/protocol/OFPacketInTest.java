@@ -0,0 +1,119 @@
+package org.openflow.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.factory.BasicFactory;
+
+public class OFPacketInTest {
+
+    private byte[] payload;
+    private ByteBuffer frame;
+
+    @Before
+    public void setUp() {
+        payload = new byte[64];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+
+        OFPacketIn packetIn = new OFPacketIn();
+        packetIn.setMatch(new OFMatch());
+        packetIn.setReason(OFPacketIn.OFPacketInReason.NO_MATCH);
+        packetIn.setTotalLength((short) payload.length);
+        packetIn.setPacketData(payload);
+        packetIn.computeLength();
+
+        frame = ByteBuffer.allocate(1024);
+        packetIn.writeTo(frame);
+        frame.flip();
+    }
+
+    private OFPacketIn parse(boolean viewPacketData) {
+        List<OFMessage> messages = BasicFactory.getInstance()
+                .parseMessages(frame.duplicate(), 0, viewPacketData);
+        assertEquals(1, messages.size());
+        return (OFPacketIn) messages.get(0);
+    }
+
+    @Test
+    public void testPacketDataView() {
+        OFPacketIn packetIn = parse(true);
+        assertEquals(payload.length, packetIn.getPacketDataLength());
+        ByteBuffer view = packetIn.getPacketDataView();
+        assertEquals(payload.length, view.remaining());
+        assertEquals(42, view.get(42));
+
+        // The view reads straight from the frame
+        frame.put(frame.limit() - payload.length, (byte) 99);
+        assertEquals(99, packetIn.getPacketDataView().get(0));
+    }
+
+    @Test(expected = java.nio.ReadOnlyBufferException.class)
+    public void testPacketDataViewIsReadOnly() {
+        parse(true).getPacketDataView().put(0, (byte) 1);
+    }
+
+    @Test
+    public void testSharedPacketDataHasArray() {
+        // The controller reads a heap frame through its array without copying
+        ByteBuffer view = parse(true).getSharedPacketData();
+        assertTrue(view.hasArray());
+        assertEquals(42,
+                view.array()[view.arrayOffset() + view.position() + 42]);
+    }
+
+    @Test
+    public void testEqualsDoesNotCopyOrFail() {
+        OFPacketIn viewed = parse(true);
+        OFPacketIn copied = parse(false);
+        assertEquals(copied, viewed);
+        assertEquals(copied.hashCode(), viewed.hashCode());
+
+        // The view was neither retained nor needed after being released
+        viewed.releasePacketData();
+        frame.put(frame.limit() - payload.length, (byte) 99);
+        viewed.hashCode();
+        assertFalse(viewed.equals(copied));
+    }
+
+    @Test
+    public void testRetainPacketData() {
+        OFPacketIn packetIn = parse(true);
+        packetIn.retainPacketData();
+        packetIn.releasePacketData();
+        frame.put(frame.limit() - payload.length, (byte) 99);
+        assertArrayEquals(payload, packetIn.getPacketData());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleasedPacketData() {
+        OFPacketIn packetIn = parse(true);
+        packetIn.releasePacketData();
+        packetIn.getPacketData();
+    }
+
+    @Test
+    public void testWriteView() {
+        ByteBuffer copy = ByteBuffer.allocate(1024);
+        parse(true).writeTo(copy);
+        frame.rewind();
+        copy.flip();
+        assertEquals(frame, copy);
+    }
+
+    @Test
+    public void testCopiedPacketData() {
+        OFPacketIn packetIn = parse(false);
+        packetIn.releasePacketData();
+        frame.put(frame.limit() - payload.length, (byte) 99);
+        assertArrayEquals(payload, packetIn.getPacketData());
+        assertEquals(payload.length, packetIn.getPacketDataLength());
+    }
+}
@@ -7,6 +7,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,12 +27,14 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import studentCode.DijkstraList;
 import studentCode.RuleGenerator;
 
@@ -47,6 +55,9 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     // Interface to device manager service
     private IDeviceService deviceProv;
     
+    // Interface to the thread pool, for updating routes off the event thread
+    private IThreadPoolService threadPool;
+    
     // Switch table in which rules should be installed
     public static byte table;
     
@@ -56,6 +67,38 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     // Student made vars
     private Map<IOFSwitch, RuleGenerator> rules;
     private DijkstraList paths;
+    
+    // Whether topology changes only send the rules that changed, instead of
+    // removing and reinstalling every rule
+    private boolean reconcile;
+    
+    // Whether host routes sharing an out port are installed as masked 
+    // prefix rules instead of one rule per host
+    private boolean aggregate;
+    
+    // Flow-mods sent by reprogramming, and flow-mods that removing and 
+    // reinstalling every rule would have sent on top of those
+    private AtomicLong flowModsSent;
+    private AtomicLong flowModsSaved;
+    
+    // Events are gathered until none has arrived for quietWindow ms, or the
+    // oldest has waited maxDelay ms, and then handled in one route update
+    private static final long NO_PENDING_EVENT = Long.MIN_VALUE;
+    private long quietWindow;
+    private long maxDelay;
+    private SingletonTask routeUpdateTask;
+    private AtomicBoolean topologyChanged;
+    private Map<IDevice,Host> changedHosts;
+    private AtomicInteger pendingEvents;
+    private AtomicLong firstPendingEvent;
+    
+    // Threads shortest paths are computed on; with 1 they are computed on
+    // the route update thread
+    private int pathThreads;
+    
+    // Route updates run, and events merged into them
+    private AtomicLong routeUpdates;
+    private AtomicLong eventsMerged;
 
 	/**
      * Loads dependencies and initializes data structures.
@@ -67,13 +110,35 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		log.info(String.format("Initializing %s...", MODULE_NAME));
 		Map<String,String> config = context.getConfigParams(this);
         table = Byte.parseByte(config.get("table"));
+        String reconcileConfig = config.get("reconcile");
+        this.reconcile = (null == reconcileConfig) 
+        		|| Boolean.parseBoolean(reconcileConfig);
+        this.aggregate = Boolean.parseBoolean(config.get("aggregate"));
+        String quietWindowConfig = config.get("quietWindow");
+        this.quietWindow = (null == quietWindowConfig) ? 500 
+        		: Long.parseLong(quietWindowConfig);
+        String maxDelayConfig = config.get("maxDelay");
+        this.maxDelay = (null == maxDelayConfig) ? 4 * this.quietWindow
+        		: Long.parseLong(maxDelayConfig);
+        String pathThreadsConfig = config.get("pathThreads");
+        this.pathThreads = (null == pathThreadsConfig) ? 1
+        		: Math.max(1, Integer.parseInt(pathThreadsConfig));
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
         this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.threadPool = context.getServiceImpl(IThreadPoolService.class);
         
         this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
+        this.flowModsSent = new AtomicLong();
+        this.flowModsSaved = new AtomicLong();
+        this.topologyChanged = new AtomicBoolean();
+        this.changedHosts = new ConcurrentHashMap<IDevice,Host>();
+        this.pendingEvents = new AtomicInteger();
+        this.firstPendingEvent = new AtomicLong(NO_PENDING_EVENT);
+        this.routeUpdates = new AtomicLong();
+        this.eventsMerged = new AtomicLong();
 	}
 
 	/**
@@ -84,16 +149,36 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			throws FloodlightModuleException 
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
-		this.floodlightProv.addOFSwitchListener(this);
-		this.linkDiscProv.addListener(this);
-		this.deviceProv.addListener(this);
 		
 		/*********************************************************************/
 		/* Initialize variables or perform startup tasks, if necessary */
-		rules = new HashMap<IOFSwitch, RuleGenerator>();
+		rules = new ConcurrentHashMap<IOFSwitch, RuleGenerator>();
 		paths = new DijkstraList(this.getHosts(), this.getSwitches().values(), this.getLinks());
+		if (this.pathThreads > 1)
+		{
+			// Daemon threads, so an idle pool does not keep the controller alive
+			final AtomicInteger threadId = new AtomicInteger();
+			ThreadFactory f = new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread t = new Thread(runnable,
+							"L3PathCompute-" + threadId.getAndIncrement());
+					t.setDaemon(true);
+					return t;
+				}
+			};
+			paths.setExecutor(Executors.newFixedThreadPool(this.pathThreads, f),
+					this.pathThreads);
+		}
 		paths.computePaths();
+		this.routeUpdateTask = new SingletonTask(
+				this.threadPool.getScheduledExecutor(), new RouteUpdateWorker());
 		/*********************************************************************/
+		
+		this.floodlightProv.addOFSwitchListener(this);
+		this.linkDiscProv.addListener(this);
+		this.deviceProv.addListener(this);
 	}
 	
     /**
@@ -114,6 +199,264 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
     private Collection<Link> getLinks()
     { return linkDiscProv.getLinks().keySet(); }
+    
+    /**
+     * Get the number of routing flow-mods sent to switches after topology 
+     * changes.
+     */
+    public long getFlowModsSent()
+    { return this.flowModsSent.get(); }
+    
+    /**
+     * Get the number of routing flow-mods that were not sent because only 
+     * changed rules were reprogrammed, compared to removing and reinstalling 
+     * every rule.
+     */
+    public long getFlowModsSaved()
+    { return this.flowModsSaved.get(); }
+    
+    /**
+     * Get the number of routing rules installed across all switches.
+     */
+    public int getRouteRuleCount()
+    {
+    	int count = 0;
+    	for (RuleGenerator generator : rules.values())
+    	{ count += generator.getRuleCount(); }
+    	return count;
+    }
+    
+    /**
+     * Get the number of routing rules all switches would need with one rule 
+     * per host; this equals getRouteRuleCount() unless aggregating.
+     */
+    public int getHostRouteCount()
+    {
+    	int count = 0;
+    	for (RuleGenerator generator : rules.values())
+    	{ count += generator.getHostRouteCount(); }
+    	return count;
+    }
+    
+    /**
+     * Get the number of route updates that have run.
+     */
+    public long getRouteUpdates()
+    { return this.routeUpdates.get(); }
+    
+    /**
+     * Get the number of switch, link and host events handled by route 
+     * updates; divided by getRouteUpdates(), this is how many events each
+     * update merged on average.
+     */
+    public long getEventsMerged()
+    { return this.eventsMerged.get(); }
+    
+    /**
+     * Note that the switches or links changed, and schedule a route update.
+     */
+    private void topologyChanged()
+    {
+    	this.topologyChanged.set(true);
+    	this.scheduleRouteUpdate();
+    }
+    
+    /**
+     * Note that a host joined, moved or left, and schedule a route update.
+     * @param device the host's device
+     * @param host the host; if it left, the host as it was last known
+     */
+    private void hostChanged(IDevice device, Host host)
+    {
+    	this.changedHosts.put(device, host);
+    	this.scheduleRouteUpdate();
+    }
+    
+    /**
+     * Schedule a route update for after the quiet window, unless the oldest
+     * event not yet handled would then have waited longer than maxDelay.
+     */
+    private void scheduleRouteUpdate()
+    {
+    	this.pendingEvents.incrementAndGet();
+    	long now = System.nanoTime();
+    	this.firstPendingEvent.compareAndSet(NO_PENDING_EVENT, now);
+    	long first = this.firstPendingEvent.get();
+    	long waited = (NO_PENDING_EVENT == first) ? 0 : now - first;
+    	long delay = Math.min(TimeUnit.MILLISECONDS.toNanos(this.quietWindow),
+    			TimeUnit.MILLISECONDS.toNanos(this.maxDelay) - waited);
+    	this.routeUpdateTask.reschedule(Math.max(0, delay), 
+    			TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Handles every event gathered since the last route update. Runs on the
+     * thread pool, never more than one at a time, so it is the only code 
+     * that touches the rule generators and paths.
+     */
+    private class RouteUpdateWorker implements Runnable
+    {
+    	@Override
+    	public void run()
+    	{
+    		firstPendingEvent.set(NO_PENDING_EVENT);
+    		int events = pendingEvents.getAndSet(0);
+    		boolean topology = topologyChanged.getAndSet(false);
+    		Map<IDevice,Host> hosts = new HashMap<IDevice,Host>();
+    		for (Map.Entry<IDevice,Host> entry : changedHosts.entrySet())
+    		{
+    			if (changedHosts.remove(entry.getKey(), entry.getValue()))
+    			{ hosts.put(entry.getKey(), entry.getValue()); }
+    		}
+    		
+    		if (topology)
+    		{
+    			// A full reprogram also brings every host's routes up to date
+    			updateRuleGenerators();
+    			reprogramRoutes();
+    		}
+    		else
+    		{
+    			for (Map.Entry<IDevice,Host> entry : hosts.entrySet())
+    			{
+    				Host current = knownHosts.get(entry.getKey());
+    				if (null == current)
+    				{ removeHostRoutes(entry.getValue()); }
+    				else
+    				{ updateHostRoutes(current); }
+    			}
+    		}
+    		
+    		routeUpdates.incrementAndGet();
+    		eventsMerged.addAndGet(events);
+    		log.info(String.format("Updated routes for %d events (%s, %d hosts)",
+    				events, topology ? "topology changed" : "topology unchanged",
+    				hosts.size()));
+    	}
+    }
+    
+    /**
+     * Create rule generators for new switches and drop those for switches 
+     * that are gone.
+     */
+    private void updateRuleGenerators()
+    {
+    	Collection<IOFSwitch> switches = this.getSwitches().values();
+    	for (IOFSwitch sw : switches)
+    	{
+    		if (!rules.containsKey(sw))
+    		{
+    			rules.put(sw, new RuleGenerator(sw, paths, this.getLinks(), 
+    					this.aggregate));
+    		}
+    	}
+    	rules.keySet().retainAll(switches);
+    }
+    
+    /**
+     * Remove the routes to a host which left from every switch.
+     */
+    private void removeHostRoutes(Host host)
+    {
+    	for (RuleGenerator generator : rules.values())
+    	{ generator.removeRuleRouteIP(host); }
+    }
+    
+    /**
+     * Bring the routes to a host which joined or moved up to date in every
+     * switch.
+     */
+    private void updateHostRoutes(Host host)
+    {
+		if (this.reconcile) {
+			// Point each switch's rule for the host at its new port.
+			long sent = 0;
+			for (RuleGenerator generator : rules.values()) {
+				sent += generator.reconcileHost(host);
+			}
+			this.flowModsSent.addAndGet(sent);
+			this.flowModsSaved.addAndGet(2 * rules.size() - sent);
+			return;
+		}
+		
+		// Remove the routing rule for the host from every switch, then add
+		// it back.
+		for (RuleGenerator generator : rules.values()) {
+			generator.removeRuleRouteIP(host);
+			generator.addRuleRouteIP(host);
+		}
+    }
+    
+    /**
+     * Recompute paths and bring the routing rules in every switch up to date.
+     * In reconcile mode only the rules that changed are sent; otherwise every
+     * rule is removed and installed again.
+     */
+    private void reprogramRoutes()
+    {
+    	Collection<Link> links = this.getLinks();
+    	Collection<IOFSwitch> switches = this.getSwitches().values();
+    	
+    	if (!this.reconcile)
+    	{
+    		// Iterate through all switches and get rid of all rules 
+    		for (IOFSwitch swtch : switches) {
+    			if (rules.containsKey(swtch)) {
+    				rules.get(swtch).reset();
+    				rules.get(swtch).updateLinks(links);
+    			}
+    		}
+    	}
+    	
+    	// Update the switches and links we will determine routes for.
+    	paths.setSwitches(switches);
+    	paths.setLinks(links);
+    	paths.computePaths();
+    	
+    	if (!this.reconcile)
+    	{
+    		// Recreate rules for each host in each switch.
+    		for (IOFSwitch swtch : switches) {
+    			for (Host h : this.getHosts()) {
+    				if (rules.containsKey(swtch))
+    					rules.get(swtch).addRuleRouteIP(h);
+    			}
+    		}
+    		this.logOccupancy();
+    		return;
+    	}
+    	
+    	// Send each switch just the rules that differ from what it has.
+    	long sent = 0;
+    	long baseline = 0;
+    	for (IOFSwitch swtch : switches) {
+    		RuleGenerator generator = rules.get(swtch);
+    		if (null == generator)
+    		{ continue; }
+    		generator.updateLinks(links);
+    		baseline += generator.getRuleCount();
+    		sent += generator.reconcile(this.getHosts());
+    		baseline += generator.getRuleCount();
+    	}
+    	this.flowModsSent.addAndGet(sent);
+    	this.flowModsSaved.addAndGet(baseline - sent);
+    	log.info(String.format("Reprogrammed routes with %d flow-mods (%d saved;"
+    			+ " %d sent and %d saved in total)", sent, baseline - sent,
+    			this.flowModsSent.get(), this.flowModsSaved.get()));
+    	this.logOccupancy();
+    }
+    
+    /**
+     * Log how many routing rules are installed, and how many there would be 
+     * without aggregation.
+     */
+    private void logOccupancy()
+    {
+    	if (!this.aggregate)
+    	{ return; }
+    	log.info(String.format("Routing tables hold %d prefix rules for %d host"
+    			+ " routes", this.getRouteRuleCount(), this.getHostRouteCount()));
+    }
 
     /**
      * Event handler called when a host joins the network.
@@ -131,12 +474,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			
 			/*****************************************************************/
 			/* TODO: Update routing: add rules to route to new host */
-			
-			// Add a rule to every switch that creates a route rule for the specified host.
-			for (IOFSwitch swtch : this.getSwitches().values()) {
-				if (rules.containsKey(swtch))
-					rules.get(swtch).addRuleRouteIP(host);
-			}
+			this.hostChanged(device, host);
 			/*****************************************************************/
 		}
 	}
@@ -158,12 +496,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: remove rules to route to host               */
-		
-		// Iterate through all switches and remove the route rule for the given host.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			if (rules.containsKey(swtch))
-				rules.get(swtch).removeRuleRouteIP(host);
-		}
+		this.hostChanged(device, host);
 		/*********************************************************************/
 	}
 
@@ -191,18 +524,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change rules to route to host               */
-		
-		// Iterate through all switches and remove the routing rule for the given host.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			if (rules.containsKey(swtch))
-				rules.get(swtch).removeRuleRouteIP(host);
-		}
-		
-		// Iterate through all switches once again and read a routing rule for the given host.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			if (rules.containsKey(swtch))
-				rules.get(swtch).addRuleRouteIP(host);
-		}
+		this.hostChanged(device, host);
 		/*********************************************************************/
 	}
 	
@@ -213,41 +535,14 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override		
 	public void switchAdded(long switchId) 
 	{
-		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d added", switchId));
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
 		
-		// Sleep a bit so that links for new switch definitely show up.
-		try {
-			Thread.sleep(500);
-		} catch (Exception e) {
-			// gonna bank on this not happening
-		}
-		
-		// First create a new RuleGenerator for our new switch.
-		rules.put(sw, new RuleGenerator(sw, paths, this.getLinks()));
-		
-		// Iterate through all switches and get rid of all rules 
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			if (rules.containsKey(swtch)) {
-				rules.get(swtch).reset();
-				rules.get(swtch).updateLinks(this.getLinks());
-			}
-		}
-		
-		// Update the switches we will determine routes for.
-		paths.setSwitches(this.getSwitches().values());
-		paths.computePaths();
-		
-		// Recreate rules for each host in each switch.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			for (Host h : this.getHosts()) {
-				if (rules.containsKey(swtch))
-					rules.get(swtch).addRuleRouteIP(h);
-			}
-		}
+		// Links for the new switch show up over the next moments, so this 
+		// is merged with them into one route update.
+		this.topologyChanged();
 		
 		/*********************************************************************/
 	}
@@ -259,34 +554,11 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void switchRemoved(long switchId) 
 	{
-		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d removed", switchId));
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		
-		// Remove the switch's RuleGenerator.
-		rules.remove(sw);
-		
-		// Iterate through all switches and reset all rules.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			if (rules.containsKey(swtch)) {
-				rules.get(swtch).reset();
-				rules.get(swtch).updateLinks(this.getLinks());
-			}
-		}
-		
-		// Update the switches we will determine routes for.
-		paths.setSwitches(this.getSwitches().values());
-		paths.computePaths();
-		
-		// Iterate through all switches and add a rule for each host.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			for (Host h : this.getHosts()) {
-				if (rules.containsKey(swtch))
-					rules.get(swtch).addRuleRouteIP(h);
-			}
-		}
+		this.topologyChanged();
 		/*********************************************************************/
 	}
 
@@ -318,25 +590,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
 		
-		// Iterate through all switches and remove all routing rules.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			if (rules.containsKey(swtch)) {
-				rules.get(swtch).updateLinks(this.getLinks());
-				rules.get(swtch).reset();
-			}
-		}
-		
-		// Update the links for switches and recompute paths.
-		paths.setLinks(this.getLinks());
-		paths.computePaths();
-		
-		// Iterate through all switches and add a routing rule for each host.
-		for (IOFSwitch swtch : this.getSwitches().values()) {
-			for (Host h : this.getHosts()) {
-				if (rules.containsKey(swtch))
-					rules.get(swtch).addRuleRouteIP(h);
-			}
-		}
+		this.topologyChanged();
 		/*********************************************************************/
 	}
 
@@ -443,6 +697,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
         floodlightService.add(IFloodlightProviderService.class);
         floodlightService.add(ILinkDiscoveryService.class);
         floodlightService.add(IDeviceService.class);
+        floodlightService.add(IThreadPoolService.class);
         return floodlightService;
 	}
 }
@@ -0,0 +1,169 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Split of a virtual IP's clients into buckets by the low bits of the client
+ * IP, with each bucket sent to one host. Buckets are shared out in
+ * proportion to host weights, and rebalancing after the hosts change only
+ * moves the buckets it has to.
+ */
+public class BucketTable
+{
+	// Host IP for each bucket, 0 if the bucket has no host
+	private int[] hostIPs;
+
+	/**
+	 * Create a table with no hosts.
+	 * @param bucketCount number of buckets; must be a power of two
+	 */
+	public BucketTable(int bucketCount)
+	{
+		if (bucketCount < 1 || Integer.bitCount(bucketCount) != 1)
+		{
+			throw new IllegalArgumentException(
+					"Bucket count must be a power of two: " + bucketCount);
+		}
+		this.hostIPs = new int[bucketCount];
+	}
+
+	/**
+	 * Get the number of buckets.
+	 */
+	public int getBucketCount()
+	{ return this.hostIPs.length; }
+
+	/**
+	 * Get the mask which selects the client IP bits that pick a bucket.
+	 */
+	public int getMask()
+	{ return this.hostIPs.length - 1; }
+
+	/**
+	 * Get the bucket a client falls in.
+	 * @param clientIP the client's IP address
+	 */
+	public int getBucket(int clientIP)
+	{ return clientIP & this.getMask(); }
+
+	/**
+	 * Get the host for a bucket.
+	 * @return the host's IP address, 0 if the bucket has no host
+	 */
+	public synchronized int getHostIP(int bucket)
+	{ return this.hostIPs[bucket]; }
+
+	/**
+	 * Get the host for every bucket, in bucket order.
+	 */
+	public synchronized int[] getAssignment()
+	{ return Arrays.copyOf(this.hostIPs, this.hostIPs.length); }
+
+	/**
+	 * Get the number of buckets each host has, in host order.
+	 */
+	public synchronized Map<Integer,Integer> getDistribution()
+	{
+		Map<Integer,Integer> distribution =
+				new LinkedHashMap<Integer,Integer>();
+		for (int hostIP : this.hostIPs)
+		{
+			Integer count = distribution.get(hostIP);
+			distribution.put(hostIP, (null == count) ? 1 : count + 1);
+		}
+		return distribution;
+	}
+
+	/**
+	 * Share the buckets out among a new set of hosts. Each host's share is
+	 * in proportion to its weight, rounded by largest remainder. A bucket
+	 * stays with its host unless the host is gone or has more than its
+	 * share.
+	 * @param hosts IPs for the hosts
+	 * @param weights weight for each host, in the same order as hosts
+	 * @return the buckets whose host changed
+	 */
+	public synchronized List<Integer> rebalance(List<Integer> hosts,
+			List<Integer> weights)
+	{
+		int n = hosts.size();
+		int bucketCount = this.hostIPs.length;
+		List<Integer> changed = new ArrayList<Integer>();
+		if (0 == n)
+		{
+			for (int b = 0; b < bucketCount; b++)
+			{
+				if (this.hostIPs[b] != 0)
+				{
+					this.hostIPs[b] = 0;
+					changed.add(b);
+				}
+			}
+			return changed;
+		}
+
+		// Work out how many buckets each host should have
+		long totalWeight = 0;
+		for (Integer weight : weights)
+		{ totalWeight += weight; }
+		int[] quota = new int[n];
+		long[] remainder = new long[n];
+		int assigned = 0;
+		for (int i = 0; i < n; i++)
+		{
+			long share = (long)bucketCount * weights.get(i);
+			quota[i] = (int)(share / totalWeight);
+			remainder[i] = share % totalWeight;
+			assigned += quota[i];
+		}
+		for (; assigned < bucketCount; assigned++)
+		{
+			int best = 0;
+			for (int i = 1; i < n; i++)
+			{
+				if (remainder[i] > remainder[best])
+				{ best = i; }
+			}
+			quota[best]++;
+			remainder[best] = -1;
+		}
+
+		// Keep buckets whose host still has room for them
+		Map<Integer,Integer> index = new HashMap<Integer,Integer>();
+		for (int i = 0; i < n; i++)
+		{ index.put(hosts.get(i), i); }
+		int[] count = new int[n];
+		boolean[] keep = new boolean[bucketCount];
+		for (int b = 0; b < bucketCount; b++)
+		{
+			Integer i = index.get(this.hostIPs[b]);
+			if (i != null && count[i] < quota[i])
+			{
+				count[i]++;
+				keep[b] = true;
+			}
+		}
+
+		// Give the rest to hosts that are short of their share
+		int host = 0;
+		for (int b = 0; b < bucketCount; b++)
+		{
+			if (keep[b])
+			{ continue; }
+			while (count[host] >= quota[host])
+			{ host++; }
+			count[host]++;
+			if (this.hostIPs[b] != hosts.get(host))
+			{
+				this.hostIPs[b] = hosts.get(host);
+				changed.add(b);
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,151 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections a load balancer instance has sent to its hosts, from the TCP
+ * SYN that opened each one until the switch reports its rule removed, or
+ * the switch leaves. Safe to use from several threads at once.
+ */
+public class ConnectionTable 
+{
+	// Host and switch for each connection, keyed by client IP, client port
+	// and server port
+	private ConcurrentMap<Long,Connection> connections;
+	
+	// Number of connections for each host
+	private ConcurrentMap<Integer,AtomicInteger> hostCounts;
+	
+	public ConnectionTable()
+	{
+		this.connections = new ConcurrentHashMap<Long,Connection>();
+		this.hostCounts = new ConcurrentHashMap<Integer,AtomicInteger>();
+	}
+	
+	/**
+	 * Get the host a connection was sent to.
+	 * @return the host's IP address, null if the connection is not known
+	 */
+	public Integer getHostIP(int clientIP, short clientPort, short serverPort)
+	{
+		Connection connection = this.connections.get(
+				key(clientIP, clientPort, serverPort));
+		return (null == connection) ? null : connection.hostIP;
+	}
+	
+	/**
+	 * Record a new connection; does nothing if the connection is already 
+	 * known.
+	 * @param switchId the switch that holds the connection's rules
+	 * @return the host the connection is sent to, which is the earlier host
+	 *         if the connection was already known
+	 */
+	public int add(int clientIP, short clientPort, short serverPort, 
+			int hostIP, long switchId)
+	{
+		Connection existing = this.connections.putIfAbsent(
+				key(clientIP, clientPort, serverPort),
+				new Connection(hostIP, switchId));
+		if (existing != null)
+		{ return existing.hostIP; }
+		this.getCount(hostIP).incrementAndGet();
+		return hostIP;
+	}
+	
+	/**
+	 * Forget a connection that has closed.
+	 * @return the host the connection was sent to, null if it was not known
+	 */
+	public Integer remove(int clientIP, short clientPort, short serverPort)
+	{
+		Connection connection = this.connections.remove(
+				key(clientIP, clientPort, serverPort));
+		if (null == connection)
+		{ return null; }
+		this.getCount(connection.hostIP).decrementAndGet();
+		return connection.hostIP;
+	}
+	
+	/**
+	 * Forget the connections whose rules were in a switch that has left; 
+	 * the switch will never report those rules removed.
+	 * @return the number of connections forgotten
+	 */
+	public int removeSwitch(long switchId)
+	{
+		int removed = 0;
+		for (Map.Entry<Long,Connection> entry : this.connections.entrySet())
+		{
+			Connection connection = entry.getValue();
+			if (connection.switchId == switchId
+					&& this.connections.remove(entry.getKey(), connection))
+			{
+				this.getCount(connection.hostIP).decrementAndGet();
+				removed++;
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Get the number of open connections sent to a host.
+	 */
+	public int getConnectionCount(int hostIP)
+	{
+		AtomicInteger count = this.hostCounts.get(hostIP);
+		return (null == count) ? 0 : count.get();
+	}
+	
+	/**
+	 * Get the number of open connections for each host that has had one.
+	 */
+	public Map<Integer,Integer> getConnectionCounts()
+	{
+		Map<Integer,Integer> counts = new HashMap<Integer,Integer>();
+		for (Map.Entry<Integer,AtomicInteger> entry : 
+				this.hostCounts.entrySet())
+		{ counts.put(entry.getKey(), entry.getValue().get()); }
+		return counts;
+	}
+	
+	/**
+	 * Get the number of open connections.
+	 */
+	public int size()
+	{ return this.connections.size(); }
+	
+	private AtomicInteger getCount(int hostIP)
+	{
+		AtomicInteger count = this.hostCounts.get(hostIP);
+		if (null == count)
+		{
+			AtomicInteger created = new AtomicInteger();
+			count = this.hostCounts.putIfAbsent(hostIP, created);
+			if (null == count)
+			{ count = created; }
+		}
+		return count;
+	}
+	
+	private static class Connection
+	{
+		private final int hostIP;
+		private final long switchId;
+		
+		private Connection(int hostIP, long switchId)
+		{
+			this.hostIP = hostIP;
+			this.switchId = switchId;
+		}
+	}
+	
+	private static long key(int clientIP, short clientPort, short serverPort)
+	{
+		return ((long)clientIP << 32) | ((clientPort & 0xffffL) << 16) 
+				| (serverPort & 0xffffL);
+	}
+}
@@ -0,0 +1,31 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+import java.util.List;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface ILoadBalancerService extends IFloodlightService 
+{
+	/**
+	 * Check whether connections to virtual IPs are balanced by rules 
+	 * installed ahead of time, instead of by the controller per connection.
+	 */
+	public boolean isProactive();
+	
+	/**
+	 * Get all load balancer instances.
+	 */
+	public Collection<LoadBalancerInstance> getInstances();
+	
+	/**
+	 * Change the hosts behind a virtual IP. In proactive mode, the rules for
+	 * buckets that move to another host are rewritten in every switch.
+	 * @param virtualIP the virtual IP
+	 * @param hostIPs IPs for the hosts
+	 * @param weights weight for each host, in the same order as hostIPs
+	 * @return false if the virtual IP is not known, otherwise true
+	 */
+	public boolean setHosts(int virtualIP, List<Integer> hostIPs, 
+			List<Integer> weights);
+}
@@ -0,0 +1,31 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.List;
+
+/**
+ * Strategy a load balancer instance uses to choose the host that serves a new
+ * connection. Selectors are only called while holding the instance's lock,
+ * so they do not need to be thread-safe themselves.
+ */
+public interface IServerSelector 
+{
+	/**
+	 * Set the hosts the selector chooses between. Called before the first
+	 * selection and again whenever the hosts change.
+	 * @param hostIPs IPs for the hosts
+	 * @param weights relative share of connections each host should get, in
+	 *        the same order as hostIPs; every weight is at least 1
+	 */
+	public void setHosts(List<Integer> hostIPs, List<Integer> weights);
+	
+	/**
+	 * Choose the host for a new connection. Only called when there is at 
+	 * least one host.
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param connections the connections the instance is tracking
+	 * @return the IP address for the chosen host
+	 */
+	public int selectHost(int clientIP, short clientPort, 
+			ConnectionTable connections);
+}
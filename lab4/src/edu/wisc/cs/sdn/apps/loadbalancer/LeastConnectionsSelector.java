@@ -0,0 +1,66 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.List;
+
+/**
+ * Sends each new connection to the host with the fewest open connections
+ * for its weight. Ties go to hosts in turn, so idle hosts still share new
+ * connections evenly.
+ */
+public class LeastConnectionsSelector implements IServerSelector 
+{
+	public static final String NAME = "least-connections";
+	
+	// IPs for the hosts and their weights
+	private int[] hostIPs;
+	private int[] weights;
+	
+	// Where the next search for the least loaded host starts
+	private int start;
+	
+	public LeastConnectionsSelector()
+	{
+		this.hostIPs = new int[0];
+		this.weights = new int[0];
+		this.start = 0;
+	}
+	
+	@Override
+	public void setHosts(List<Integer> hostIPs, List<Integer> weights)
+	{
+		this.hostIPs = new int[hostIPs.size()];
+		this.weights = new int[hostIPs.size()];
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{
+			this.hostIPs[i] = hostIPs.get(i);
+			this.weights[i] = weights.get(i);
+		}
+		this.start = 0;
+	}
+	
+	@Override
+	public int selectHost(int clientIP, short clientPort, 
+			ConnectionTable connections)
+	{
+		int n = hostIPs.length;
+		int best = start % n;
+		long bestLoad = connections.getConnectionCount(hostIPs[best]);
+		for (int k = 1; k < n; k++)
+		{
+			int i = (start + k) % n;
+			long load = connections.getConnectionCount(hostIPs[i]);
+			// Compare load / weight without dividing
+			if (load * weights[best] < bestLoad * weights[i])
+			{
+				best = i;
+				bestLoad = load;
+			}
+		}
+		start = best + 1;
+		return hostIPs[best];
+	}
+	
+	@Override
+	public String toString()
+	{ return NAME; }
+}
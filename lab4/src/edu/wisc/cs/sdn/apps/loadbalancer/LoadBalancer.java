@@ -1,11 +1,15 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFOXMFieldType;
@@ -23,6 +27,7 @@ import org.slf4j.LoggerFactory;
 
 import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
 import edu.wisc.cs.sdn.apps.util.ArpServer;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -41,11 +46,11 @@ import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
-import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.util.MACAddress;
 
 public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
-		IOFMessageListener
+		IOFMessageListener, ILoadBalancerService
 {
 	public static final String MODULE_NAME = LoadBalancer.class.getSimpleName();
 	
@@ -53,6 +58,38 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	
 	private static final short IDLE_TIMEOUT = 20;
 	
+	// Priority for bucket rules: above sending new connections to the 
+	// controller, below per-connection rules
+	private static final short BUCKET_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 2);
+	
+	// Cookie of bucket rules, which tells copies of packets they send to the
+	// controller apart from packets of new connections
+	private static final long BUCKET_COOKIE = 0x4c42L;
+	
+	// Bytes of each packet a bucket rule copies to the controller; enough
+	// for the Ethernet, VLAN, IP and TCP headers
+	private static final short BUCKET_COPY_LEN = 128;
+	
+	private static final int DEFAULT_BUCKETS = 16;
+	
+	private static final String DEFAULT_SERVICE_PORTS = "80";
+	
+	// Header lengths and field offsets for reading packet-ins without 
+	// decoding them
+	private static final int ETH_HEADER_LEN = 14;
+	private static final short ETH_TYPE_VLAN = (short)0x8100;
+	private static final int VLAN_TAG_LEN = 4;
+	private static final int ARP_LEN = 28;
+	private static final int ARP_OPCODE = 6;
+	private static final int ARP_TARGET_IP = 24;
+	private static final int IPV4_MIN_LEN = 20;
+	private static final int IPV4_PROTOCOL = 9;
+	private static final int IPV4_SRC = 12;
+	private static final int IPV4_DST = 16;
+	private static final int TCP_MIN_LEN = 20;
+	private static final int TCP_FLAGS = 13;
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
@@ -62,12 +99,25 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
     // Interface to device manager service
     private IDeviceService deviceProv;
     
+    // Interface to the REST API
+    private IRestApiService restApi;
+    
     // Switch table in which rules should be installed
     private byte table;
     
     // Set of virtual IPs and the load balancer instances they correspond with
     private Map<Integer,LoadBalancerInstance> instances;
     
+    // The same instances, for lookups on the packet-in path
+    private VirtualIPMap virtualIPs;
+    
+    // Whether rules for buckets of clients are installed ahead of time
+    private boolean proactive;
+    
+    // TCP ports of the virtual IPs that bucket rules are installed for; 
+    // connections to other ports are balanced per connection
+    private short[] servicePorts;
+    
     /**
      * Loads dependencies and initializes data structures.
      */
@@ -81,26 +131,97 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		Map<String,String> config = context.getConfigParams(this);
         this.table = Byte.parseByte(config.get("table"));
         
-        // Create instances from config
+        // Obtain the default server selection strategy from config
+        String defaultStrategy = config.get("strategy");
+        if (null == defaultStrategy)
+        { defaultStrategy = RoundRobinSelector.NAME; }
+        
+        // Create instances from config; each is a virtual IP, a virtual MAC,
+        // hosts with optional weights, and optionally a strategy
         this.instances = new HashMap<Integer,LoadBalancerInstance>();
+        this.virtualIPs = new VirtualIPMap();
         String[] instanceConfigs = config.get("instances").split(";");
         for (String instanceConfig : instanceConfigs)
         {
         	String[] configItems = instanceConfig.split(" ");
-        	if (configItems.length != 3)
+        	if (configItems.length != 3 && configItems.length != 4)
         	{ 
         		log.error("Ignoring bad instance config: " + instanceConfig);
         		continue;
         	}
-        	LoadBalancerInstance instance = new LoadBalancerInstance(
-        			configItems[0], configItems[1], configItems[2].split(","));
+        	IServerSelector selector = LoadBalancerInstance.createSelector(
+        			(configItems.length > 3) ? configItems[3] : defaultStrategy);
+        	if (null == selector)
+        	{ 
+        		log.error("Ignoring instance config with unknown strategy: " 
+        				+ instanceConfig);
+        		continue;
+        	}
+        	LoadBalancerInstance instance;
+        	try
+        	{
+        		instance = new LoadBalancerInstance(configItems[0], 
+        				configItems[1], configItems[2].split(","), selector);
+        	}
+        	catch (IllegalArgumentException e)
+        	{
+        		log.error("Ignoring bad instance config: " + instanceConfig);
+        		continue;
+        	}
             this.instances.put(instance.getVirtualIP(), instance);
+            this.virtualIPs.put(instance);
             log.info("Added load balancer instance: " + instance);
         }
         
+        // Split the clients of each virtual IP into buckets, if configured
+        this.proactive = Boolean.parseBoolean(config.get("proactive"));
+        if (this.proactive)
+        {
+        	String bucketConfig = config.get("buckets");
+        	int bucketCount = (null == bucketConfig) ? DEFAULT_BUCKETS
+        			: Integer.parseInt(bucketConfig);
+        	if (bucketCount < 1 || bucketCount > 0x10000
+        			|| Integer.bitCount(bucketCount) != 1)
+        	{
+        		throw new FloodlightModuleException(
+        				"Bucket count must be a power of two up to 65536: " 
+        				+ bucketCount);
+        	}
+        	
+        	// Connections to other ports are balanced per connection
+        	String portConfig = config.get("ports");
+        	String[] ports = ((null == portConfig) ? DEFAULT_SERVICE_PORTS 
+        			: portConfig).split(",");
+        	this.servicePorts = new short[ports.length];
+        	for (int i = 0; i < ports.length; i++)
+        	{ this.servicePorts[i] = (short)Integer.parseInt(ports[i].trim()); }
+        	
+        	// A host's connections on a service port must all belong to one
+        	// virtual IP, so a host may not be behind two of them
+        	Map<Integer,LoadBalancerInstance> owners =
+        			new HashMap<Integer,LoadBalancerInstance>();
+        	for (LoadBalancerInstance instance : this.instances.values())
+        	{
+        		for (Integer hostIP : instance.getHostIPs())
+        		{
+        			LoadBalancerInstance owner = owners.put(hostIP, instance);
+        			if (owner != null && owner != instance)
+        			{
+        				throw new FloodlightModuleException(String.format(
+        						"Host %s serves both %s and %s on the same ports",
+        						IPv4.fromIPv4Address(hostIP),
+        						IPv4.fromIPv4Address(owner.getVirtualIP()),
+        						IPv4.fromIPv4Address(instance.getVirtualIP())));
+        			}
+        		}
+        		instance.enableBuckets(bucketCount);
+        	}
+        }
+        
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.restApi = context.getServiceImpl(IRestApiService.class);
         
         /*********************************************************************/
         /* TODO: Initialize other class variables, if necessary              */
@@ -117,6 +238,8 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFSwitchListener(this);
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, this);
+		this.restApi.addRestletRoutable(new LoadBalancerWebRoutable());
 		
 		/*********************************************************************/
 		/* TODO: Perform other tasks, if necessary                           */
@@ -160,12 +283,14 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		ArrayList<OFInstruction> instrList = new ArrayList<OFInstruction>();
 		instrList.add(instruction);
 		
+		// Collect every rule and send them to the switch in one write
+		FlowModBatch batch = new FlowModBatch(sw);
 		for (Integer ip : instances.keySet()) {
 			tcp.setNetworkDestination(ip);
 			arp.setNetworkDestination(ip);
-			SwitchCommands.installRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), tcp, instrList);
+			batch.installRule(this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), tcp, instrList);
 			/*       (2) ARP packets to the controller, and                      */
-			SwitchCommands.installRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), arp, instrList);
+			batch.installRule(this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), arp, instrList);
 
 		}
 		
@@ -174,7 +299,17 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		OFMatch general = new OFMatch();
 		ArrayList<OFInstruction> genInstruction = new ArrayList<OFInstruction>();
 		genInstruction.add(new OFInstructionGotoTable(L3Routing.table));
-		SwitchCommands.installRule(sw, this.table, SwitchCommands.DEFAULT_PRIORITY, general, genInstruction);
+		batch.installRule(this.table, SwitchCommands.DEFAULT_PRIORITY, general, genInstruction);
+		
+		// Send new connections straight to a host, where buckets are used
+		for (LoadBalancerInstance instance : instances.values()) {
+			BucketTable buckets = instance.getBuckets();
+			if (null == buckets)
+			{ continue; }
+			for (int bucket = 0; bucket < buckets.getBucketCount(); bucket++)
+			{ this.installBucket(batch, instance, bucket, buckets.getHostIP(bucket)); }
+		}
+		batch.send();
 
 		/*********************************************************************/
 	}
@@ -190,16 +325,18 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	public net.floodlightcontroller.core.IListener.Command receive(
 			IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
 	{
-		// We're only interested in packet-in messages
+		// Connection rules that expired mean the connection has closed
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{
+			this.flowRemoved((OFFlowRemoved)msg);
+			return Command.CONTINUE;
+		}
+		
+		// Otherwise we're only interested in packet-in messages
 		if (msg.getType() != OFType.PACKET_IN)
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
 		
-		// Handle the packet
-		Ethernet ethPkt = new Ethernet();
-		ethPkt.deserialize(pktIn.getPacketData(), 0,
-				pktIn.getPacketData().length);
-		
 		/*********************************************************************/
 		/* TODO: Send an ARP reply for ARP requests for virtual IPs; for TCP */
 		/*       SYNs sent to a virtual IP, select a host and install        */
@@ -208,118 +345,327 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		
+		// Read only the header fields needed to tell whether the packet is
+		// for a virtual IP; the packet is only fully decoded if it is
+		ByteBuffer data = pktIn.getPacketDataView();
+		if (data.remaining() < ETH_HEADER_LEN)
+		{ return Command.CONTINUE; }
+		int l3 = ETH_HEADER_LEN;
+		short etherType = data.getShort(l3 - 2);
+		if (ETH_TYPE_VLAN == etherType)
+		{
+			l3 += VLAN_TAG_LEN;
+			if (data.remaining() < l3)
+			{ return Command.CONTINUE; }
+			etherType = data.getShort(l3 - 2);
+		}
 		
-		System.out.println("WARNING: Here1\t" + ethPkt.getEtherType());
-		if (ethPkt.getEtherType() == Ethernet.TYPE_ARP) {
-			ARP arpPacket = (ARP) ethPkt.getPayload();
-			System.out.println("WARNING: Here2");
-
-			
+		if (Ethernet.TYPE_ARP == etherType) {
 			// Test if ARP request is associated with virtual IP
-			for (LoadBalancerInstance i : instances.values()) {
-				System.out.println("WARNING: virIp: " + i.getVirtualIP() + " otherIp: " + IPv4.toIPv4Address(arpPacket.getSenderProtocolAddress()));
-				if (i.getVirtualIP() == IPv4.toIPv4Address(arpPacket.getTargetProtocolAddress())) {
-					// construct ethernet packet
-					arpPacket.setOpCode(ARP.OP_REPLY);
-					arpPacket.setTargetHardwareAddress(arpPacket.getSenderHardwareAddress());
-					arpPacket.setTargetProtocolAddress(arpPacket.getSenderProtocolAddress());
-					arpPacket.setSenderHardwareAddress(i.getVirtualMAC());
-					arpPacket.setSenderProtocolAddress(IPv4.toIPv4AddressBytes(i.getVirtualIP()));
-					ethPkt.setDestinationMACAddress(ethPkt.getSourceMACAddress());
-					ethPkt.setSourceMACAddress(i.getVirtualMAC());
-					// send packet
-					System.out.println("DEBUG: Sending ARP Packet from Sw: " + sw.getStringId() + " on port: " + pktIn.getInPort());
-					SwitchCommands.sendPacket(sw, (short)pktIn.getInPort(), ethPkt);
-
-					return Command.STOP;
-				}
-			}
+			if (data.remaining() < l3 + ARP_LEN
+					|| data.getShort(l3 + ARP_OPCODE) != ARP.OP_REQUEST)
+			{ return Command.CONTINUE; }
+			LoadBalancerInstance i = this.virtualIPs.get(
+					data.getInt(l3 + ARP_TARGET_IP));
+			if (null == i)
+			{ return Command.CONTINUE; }
 			
+			// construct ethernet packet
+			Ethernet ethPkt = new Ethernet();
+			byte[] bytes = pktIn.getPacketData();
+			ethPkt.deserialize(bytes, 0, bytes.length);
+			ARP arpPacket = (ARP) ethPkt.getPayload();
+			arpPacket.setOpCode(ARP.OP_REPLY);
+			arpPacket.setTargetHardwareAddress(arpPacket.getSenderHardwareAddress());
+			arpPacket.setTargetProtocolAddress(arpPacket.getSenderProtocolAddress());
+			arpPacket.setSenderHardwareAddress(i.getVirtualMAC());
+			arpPacket.setSenderProtocolAddress(IPv4.toIPv4AddressBytes(i.getVirtualIP()));
+			ethPkt.setDestinationMACAddress(ethPkt.getSourceMACAddress());
+			ethPkt.setSourceMACAddress(i.getVirtualMAC());
+			// send packet
+			log.debug("Sending ARP reply for {} from s{} on port {}", 
+					new Object[] { IPv4.fromIPv4Address(i.getVirtualIP()), 
+					sw.getId(), pktIn.getInPort() });
+			SwitchCommands.sendPacket(sw, (short)pktIn.getInPort(), ethPkt);
+			return Command.STOP;
 			
-		} else if (ethPkt.getEtherType() == Ethernet.TYPE_IPv4 && ((IPv4)ethPkt.getPayload()).getProtocol() == IPv4.PROTOCOL_TCP) {
-			// tcp packet
-			
-			// Get client and server connection info
-			IPv4 ipPacket = (IPv4) ethPkt.getPayload();
-			TCP tcpPkt = (TCP)ipPacket.getPayload();
-			int clientIp = ipPacket.getSourceAddress();
-			short clientPort = tcpPkt.getSourcePort();
+		} else if (Ethernet.TYPE_IPv4 == etherType) {
+			if (data.remaining() < l3 + IPV4_MIN_LEN
+					|| data.get(l3 + IPV4_PROTOCOL) != IPv4.PROTOCOL_TCP)
+			{ return Command.CONTINUE; }
+			int l4 = l3 + (data.get(l3) & 0x0f) * 4;
+			if (data.remaining() < l4 + TCP_MIN_LEN)
+			{ return Command.CONTINUE; }
 			
 			// Look for the load balancer that matches our virtual IP
-			LoadBalancerInstance serverInst = null;
-			for (LoadBalancerInstance i : instances.values()) {
-				if (i.getVirtualIP() == ipPacket.getDestinationAddress()) {
-					// found our matching LoadBalancerInstance
-					serverInst = i;
-					break;
-				}
-			}
+			LoadBalancerInstance serverInst = this.virtualIPs.get(
+					data.getInt(l3 + IPV4_DST));
+			if (null == serverInst)
+			{ return Command.CONTINUE; }
 			
-			// get our next Host in queue
-			int serverIp = serverInst.getNextHostIP();
+			// Get client and server connection info
+			int clientIp = data.getInt(l3 + IPV4_SRC);
+			short clientPort = data.getShort(l4);
 			
 			// set serverPort to same as packet's
-			short serverPort = tcpPkt.getDestinationPort();
-			
-			// Set up client to server Match criteria
-			OFMatch clientToServer = new OFMatch();
-			clientToServer.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			clientToServer.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-			clientToServer.setNetworkDestination(serverInst.getVirtualIP());
-			clientToServer.setNetworkSource(clientIp);
-			clientToServer.setTransportSource(OFMatch.IP_PROTO_TCP, clientPort);
-			clientToServer.setTransportDestination(OFMatch.IP_PROTO_TCP, serverPort);
-			
-			// Set up client to server instructions
-			ArrayList<OFInstruction> clientToServInst = new ArrayList<OFInstruction>();
-			ArrayList<OFAction> clientToServActions = new ArrayList<OFAction>();
-			
-			// First rewrite Ethernet and IP destinations, then send the packet to the next table
-			// TODO first action might need MAC addr in long form, not byte[]
-			clientToServActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, serverIp));
-			clientToServActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, this.getHostMACAddress(serverIp)));
-			clientToServInst.add(new OFInstructionApplyActions(clientToServActions));
-			clientToServInst.add(new OFInstructionGotoTable(L3Routing.table));
-			
-			// Install the rule in the switch
-			SwitchCommands.installRule(sw, this.table, SwitchCommands.MAX_PRIORITY,
-					clientToServer, clientToServInst, SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
-			
-			// Setup server to client match criteria
-			OFMatch serverToClient = new OFMatch();
-			serverToClient.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			serverToClient.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-			serverToClient.setNetworkDestination(clientIp);
-			serverToClient.setNetworkSource(serverIp);
-			serverToClient.setTransportSource(OFMatch.IP_PROTO_TCP, serverPort);
-			serverToClient.setTransportDestination(OFMatch.IP_PROTO_TCP, clientPort);
+			short serverPort = data.getShort(l4 + 2);
 			
-			// Set up server to client instructions
-			ArrayList<OFInstruction> servToClientInst = new ArrayList<OFInstruction>();
-			ArrayList<OFAction> servToClientActions = new ArrayList<OFAction>();
+			// A bucket rule already sent the packet to a host, and copies
+			// every packet of a connection until the connection has rules of
+			// its own; otherwise only TCP SYNs start a new connection
+			BucketTable buckets = serverInst.getBuckets();
+			boolean bucketed = buckets != null 
+					&& this.isServicePort(serverPort);
+			boolean copied = bucketed 
+					&& BUCKET_COOKIE == pktIn.getCookie();
+			if (!copied && (data.get(l4 + TCP_FLAGS) & TCP_FLAG_SYN) == 0)
+			{ return Command.CONTINUE; }
 			
-			// First rewrite Ethernet and IP destinations, then send the packet to the next table
-			// TODO first action might need MAC addr in long form, not byte[]
-			servToClientActions.add(new OFActionSetField(OFOXMFieldType.IPV4_SRC, serverInst.getVirtualIP()));
-			servToClientActions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, serverInst.getVirtualMAC()));
-			servToClientInst.add(new OFInstructionApplyActions(servToClientActions));
-			servToClientInst.add(new OFInstructionGotoTable(L3Routing.table));
-			
-			// install the rule
-			SwitchCommands.installRule(sw, this.table, SwitchCommands.MAX_PRIORITY, serverToClient, servToClientInst, SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
+			// get the Host for this connection; a repeated SYN gets the 
+			// same Host as the first one
+			int serverIp;
+			if (bucketed) {
+				serverIp = serverInst.getBucketHostIP(clientIp, clientPort, 
+						serverPort, sw.getId());
+				
+				// If the client's bucket has no rule in this switch yet, 
+				// because the host's MAC was not known when the switch 
+				// joined, add it
+				if (!copied && serverIp != 0) {
+					int bucket = buckets.getBucket(clientIp);
+					FlowModBatch batch = new FlowModBatch(sw);
+					this.installBucket(batch, serverInst, bucket, 
+							buckets.getHostIP(bucket));
+					batch.send();
+				}
+			} else {
+				serverIp = serverInst.getHostIP(clientIp, clientPort, 
+						serverPort, sw.getId());
+			}
+			if (0 == serverIp)
+			{ return Command.CONTINUE; }
 			
-			System.out.println("DEBUG: Installed TCP rule in Sw: " + sw.getId() + " for Client: " + clientIp + " and Serv: " + serverIp);
+			if (!this.installConnection(sw, serverInst, clientIp, 
+					clientPort, serverPort, serverIp)) {
+				serverInst.connectionClosed(clientIp, clientPort, serverPort);
+				return Command.CONTINUE;
+			}
 			return Command.STOP;
 		}
 		
+		// We don't care about other packets
+		return Command.CONTINUE;
+	}
+	
+	/**
+	 * Install the rules for one connection in a switch: one sends the 
+	 * client's packets to the host, and one makes the host's replies come 
+	 * from the virtual IP.
+	 * @param sw the switch
+	 * @param serverInst the load balancer instance
+	 * @param clientIp the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param serverPort the TCP port the client connected to
+	 * @param serverIp the connection's host
+	 * @return false if the host's MAC address is not known yet, so no rules
+	 *         were installed, otherwise true
+	 */
+	private boolean installConnection(IOFSwitch sw, 
+			LoadBalancerInstance serverInst, int clientIp, short clientPort, 
+			short serverPort, int serverIp)
+	{
+		byte[] serverMAC = this.getHostMACAddress(serverIp);
+		if (null == serverMAC)
+		{ return false; }
 		
+		// Set up client to server Match criteria
+		OFMatch clientToServer = new OFMatch();
+		clientToServer.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		clientToServer.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		clientToServer.setNetworkDestination(serverInst.getVirtualIP());
+		clientToServer.setNetworkSource(clientIp);
+		clientToServer.setTransportSource(OFMatch.IP_PROTO_TCP, clientPort);
+		clientToServer.setTransportDestination(OFMatch.IP_PROTO_TCP, serverPort);
 		
+		// Set up client to server instructions
+		ArrayList<OFInstruction> clientToServInst = new ArrayList<OFInstruction>();
+		ArrayList<OFAction> clientToServActions = new ArrayList<OFAction>();
 		
+		// First rewrite Ethernet and IP destinations, then send the packet to the next table
+		clientToServActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, serverIp));
+		clientToServActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, serverMAC));
+		clientToServInst.add(new OFInstructionApplyActions(clientToServActions));
+		clientToServInst.add(new OFInstructionGotoTable(L3Routing.table));
 		
-		// We don't care about other packets
-		return Command.CONTINUE;
+		// Add the rule to the batch for the switch; the switch tells us
+		// when it expires, so the connection can be forgotten
+		FlowModBatch batch = new FlowModBatch(sw);
+		batch.installRuleNotifyRemoval(this.table, SwitchCommands.MAX_PRIORITY,
+				clientToServer, clientToServInst, SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
+		
+		// Setup server to client match criteria
+		OFMatch serverToClient = new OFMatch();
+		serverToClient.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		serverToClient.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		serverToClient.setNetworkDestination(clientIp);
+		serverToClient.setNetworkSource(serverIp);
+		serverToClient.setTransportSource(OFMatch.IP_PROTO_TCP, serverPort);
+		serverToClient.setTransportDestination(OFMatch.IP_PROTO_TCP, clientPort);
+		
+		// Set up server to client instructions
+		ArrayList<OFInstruction> servToClientInst = new ArrayList<OFInstruction>();
+		ArrayList<OFAction> servToClientActions = new ArrayList<OFAction>();
+		
+		// First rewrite Ethernet and IP sources, then send the packet to the next table
+		servToClientActions.add(new OFActionSetField(OFOXMFieldType.IPV4_SRC, serverInst.getVirtualIP()));
+		servToClientActions.add(new OFActionSetField(OFOXMFieldType.ETH_SRC, serverInst.getVirtualMAC()));
+		servToClientInst.add(new OFInstructionApplyActions(servToClientActions));
+		servToClientInst.add(new OFInstructionGotoTable(L3Routing.table));
+		
+		// install both rules
+		batch.installRule(this.table, SwitchCommands.MAX_PRIORITY, serverToClient, servToClientInst, SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
+		batch.send();
+		
+		log.debug("Installed connection rules in s{} for client {} and server {}",
+				new Object[] { sw.getId(), IPv4.fromIPv4Address(clientIp), 
+				IPv4.fromIPv4Address(serverIp) });
+		return true;
 	}
 	
+	/**
+	 * Check whether bucket rules are installed for a TCP port.
+	 */
+	private boolean isServicePort(short port)
+	{
+		for (short servicePort : this.servicePorts)
+		{
+			if (servicePort == port)
+			{ return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * Add the rules for a bucket of clients to a batch, one for each service
+	 * port, that send the clients' connections to the virtual IP to the 
+	 * bucket's host. The rules also copy the packets to the controller, 
+	 * which installs rules for each connection, so replies are only 
+	 * rewritten for connections that went through the virtual IP.
+	 * @param batch the batch for the switch
+	 * @param instance the load balancer instance
+	 * @param bucket the bucket
+	 * @param hostIP the bucket's host
+	 * @return false if the host's MAC address is not known yet, so no rules
+	 *         were added, otherwise true
+	 */
+	private boolean installBucket(FlowModBatch batch, 
+			LoadBalancerInstance instance, int bucket, int hostIP)
+	{
+		byte[] hostMAC = (0 == hostIP) ? null : this.getHostMACAddress(hostIP);
+		if (null == hostMAC)
+		{ return false; }
+		int mask = instance.getBuckets().getMask();
+		
+		// Copy the packet before rewriting it, so the controller sees the 
+		// virtual IP
+		ArrayList<OFAction> toHostActions = new ArrayList<OFAction>();
+		toHostActions.add(new OFActionOutput(OFPort.OFPP_CONTROLLER, 
+				BUCKET_COPY_LEN));
+		toHostActions.add(new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP));
+		toHostActions.add(new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC));
+		ArrayList<OFInstruction> toHostInst = new ArrayList<OFInstruction>();
+		toHostInst.add(new OFInstructionApplyActions(toHostActions));
+		toHostInst.add(new OFInstructionGotoTable(L3Routing.table));
+		for (short port : this.servicePorts)
+		{
+			batch.installRule(this.table, BUCKET_PRIORITY, getBucketMatch(
+					instance.getVirtualIP(), port, bucket, mask), toHostInst,
+					BUCKET_COOKIE);
+		}
+		return true;
+	}
+	
+	/**
+	 * Match TCP packets from a bucket of clients to a port of a virtual IP.
+	 */
+	private static OFMatch getBucketMatch(int virtualIP, short port, 
+			int bucket, int mask)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		match.setNetworkDestination(virtualIP);
+		match.setNetworkSourceMask(bucket, mask);
+		match.setTransportDestination(OFMatch.IP_PROTO_TCP, port);
+		return match;
+	}
+	
+	@Override
+	public boolean isProactive()
+	{ return this.proactive; }
+	
+	@Override
+	public Collection<LoadBalancerInstance> getInstances()
+	{ return Collections.unmodifiableCollection(this.instances.values()); }
+	
+	@Override
+	public boolean setHosts(int virtualIP, List<Integer> hostIPs, 
+			List<Integer> weights)
+	{
+		LoadBalancerInstance instance = this.virtualIPs.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		synchronized (instance)
+		{
+			instance.setHosts(hostIPs, weights);
+			BucketTable buckets = instance.getBuckets();
+			if (null == buckets)
+			{ return true; }
+			
+			// Rewrite the rules for buckets that moved to another host; open
+			// connections keep their own rules
+			List<Integer> moved = buckets.rebalance(hostIPs, weights);
+			if (moved.isEmpty())
+			{ return true; }
+			int mask = buckets.getMask();
+			for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+			{
+				FlowModBatch batch = new FlowModBatch(sw);
+				for (int bucket : moved)
+				{
+					for (short port : this.servicePorts)
+					{
+						batch.removeRule(this.table, BUCKET_PRIORITY, 
+								getBucketMatch(virtualIP, port, bucket, mask));
+					}
+					this.installBucket(batch, instance, bucket, 
+							buckets.getHostIP(bucket));
+				}
+				batch.send();
+			}
+			log.info(String.format("Moved %d of %d buckets for %s", 
+					moved.size(), buckets.getBucketCount(), instance));
+		}
+		return true;
+	}
+	
+	/**
+	 * Forget the connection whose client to server rule was removed.
+	 * @param flowRemoved message from the switch
+	 */
+	private void flowRemoved(OFFlowRemoved flowRemoved)
+	{
+		OFMatch match = flowRemoved.getMatch();
+		if (flowRemoved.getTableId() != this.table
+				|| flowRemoved.getPriority() != SwitchCommands.MAX_PRIORITY)
+		{ return; }
+		LoadBalancerInstance instance = this.virtualIPs.get(
+				match.getNetworkDestination());
+		if (null == instance)
+		{ return; }
+		instance.connectionClosed(match.getNetworkSource(), 
+				match.getTransportSource(), match.getTransportDestination());
+	}
 	
 	/**
 	 * Returns the MAC address for a host, given the host's IP address.
@@ -342,7 +688,18 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public void switchRemoved(long switchId) 
-	{ /* Nothing we need to do, since the switch is no longer active */ }
+	{
+		// The switch's connection rules are gone, and it will never report
+		// them removed
+		int forgotten = 0;
+		for (LoadBalancerInstance instance : instances.values())
+		{ forgotten += instance.switchRemoved(switchId); }
+		if (forgotten > 0)
+		{
+			log.debug(String.format("Forgot %d connections of switch s%d",
+					forgotten, switchId));
+		}
+	}
 
 	/**
 	 * Event handler called when the controller becomes the master for a switch.
@@ -377,7 +734,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(ILoadBalancerService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -385,7 +747,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, IFloodlightService>();
+		services.put(ILoadBalancerService.class, this);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -398,6 +765,7 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
         floodlightService.add(IDeviceService.class);
+        floodlightService.add(IRestApiService.class);
         return floodlightService;
 	}
 
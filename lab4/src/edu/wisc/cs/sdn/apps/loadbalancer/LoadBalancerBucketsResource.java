@@ -0,0 +1,64 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Return the client buckets for each virtual IP and the host each bucket is 
+ * sent to.
+ */
+public class LoadBalancerBucketsResource extends ServerResource 
+{
+	@Get("json")
+	public Map<String,Object> retrieve() 
+	{
+		ILoadBalancerService loadBalancer = 
+				(ILoadBalancerService)getContext().getAttributes().
+				get(ILoadBalancerService.class.getCanonicalName());
+		
+		Map<String,Object> result = new HashMap<String,Object>();
+		result.put("proactive", loadBalancer.isProactive());
+		List<Map<String,Object>> instances = 
+				new ArrayList<Map<String,Object>>();
+		for (LoadBalancerInstance instance : loadBalancer.getInstances())
+		{
+			Map<String,Object> info = new LinkedHashMap<String,Object>();
+			info.put("virtualIP", IPv4.fromIPv4Address(instance.getVirtualIP()));
+			BucketTable buckets = instance.getBuckets();
+			if (null == buckets)
+			{
+				info.put("bucketCount", 0);
+				instances.add(info);
+				continue;
+			}
+			info.put("bucketCount", buckets.getBucketCount());
+			info.put("mask", IPv4.fromIPv4Address(buckets.getMask()));
+			
+			Map<String,Integer> distribution = 
+					new LinkedHashMap<String,Integer>();
+			for (Map.Entry<Integer,Integer> entry : 
+					buckets.getDistribution().entrySet())
+			{
+				distribution.put(IPv4.fromIPv4Address(entry.getKey()), 
+						entry.getValue());
+			}
+			info.put("distribution", distribution);
+			
+			List<String> assignment = new ArrayList<String>();
+			for (int hostIP : buckets.getAssignment())
+			{ assignment.add(IPv4.fromIPv4Address(hostIP)); }
+			info.put("buckets", assignment);
+			instances.add(info);
+		}
+		result.put("instances", instances);
+		return result;
+	}
+}
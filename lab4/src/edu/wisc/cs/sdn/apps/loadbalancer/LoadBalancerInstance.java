@@ -1,90 +1,294 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
-public class LoadBalancerInstance 
+public class LoadBalancerInstance
 {
 	// Virtual IP for this load balancer instance
 	private int virtualIP;
-	
+
 	// Virtual MAC address for this load balancer instance
 	private byte[] virtualMAC;
-	
-	// IPs for the hosts to which a flow could be sent
+
+	// IPs for the hosts to which a flow could be sent, and their weights
 	private List<Integer> hostIPs;
-	
-	// The index for the last host to which a flow was sent;
-	private int lastHost;
-	
+	private List<Integer> weights;
+
+	// Strategy for choosing the host for a new connection
+	private IServerSelector selector;
+
+	// Connections that have been sent to hosts and not yet closed
+	private ConnectionTable connections;
+
+	// Client buckets and their hosts, if rules for them are installed ahead
+	// of time; otherwise null
+	private BucketTable buckets;
+
 	/**
-	 * Create a load balancer instance.
+	 * Create a load balancer instance which chooses hosts in round-robin
+	 * order.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced
 	 */
-	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC, 
+	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC,
 			List<Integer> hostIPs)
+	{
+		this(virtualIP, virtualMAC, hostIPs,
+				Collections.nCopies(hostIPs.size(), 1),
+				new RoundRobinSelector());
+	}
+
+	/**
+	 * Create a load balancer instance.
+	 * @param virtualIP virtual IP address for the load balancer instance
+	 * @param virtualMAC virtual MAC address for the load balancer instances
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param weights relative share of connections for each host, in the
+	 *        same order as hostIPs
+	 * @param selector strategy for choosing the host for a new connection
+	 */
+	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC,
+			List<Integer> hostIPs, List<Integer> weights,
+			IServerSelector selector)
 	{
 		this.virtualIP = virtualIP;
 		this.virtualMAC = virtualMAC;
-		this.hostIPs = hostIPs;
-		this.lastHost = -1;
+		this.selector = selector;
+		this.connections = new ConnectionTable();
+		this.setHosts(hostIPs, weights);
 	}
-	
+
 	/**
-	 * Create a load balancer instance.
+	 * Create a load balancer instance which chooses hosts in round-robin
+	 * order.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced
 	 */
 	public LoadBalancerInstance(String virtualIP, String virtualMAC,
 			String[] hostIPs)
+	{ this(virtualIP, virtualMAC, hostIPs, new RoundRobinSelector()); }
+
+	/**
+	 * Create a load balancer instance.
+	 * @param virtualIP virtual IP address for the load balancer instance
+	 * @param virtualMAC virtual MAC address for the load balancer instances
+	 * @param hostIPs IPs for hosts to which requests should be balanced, each
+	 *        optionally followed by a colon and the host's weight
+	 * @param selector strategy for choosing the host for a new connection
+	 */
+	public LoadBalancerInstance(String virtualIP, String virtualMAC,
+			String[] hostIPs, IServerSelector selector)
 	{
 		this.virtualIP = IPv4.toIPv4Address(virtualIP);
 		this.virtualMAC = MACAddress.valueOf(virtualMAC).toBytes();
-		this.hostIPs = new ArrayList<Integer>();
+		this.selector = selector;
+		this.connections = new ConnectionTable();
+		List<Integer> ips = new ArrayList<Integer>();
+		List<Integer> weights = new ArrayList<Integer>();
 		for (String hostIP : hostIPs)
-		{ this.hostIPs.add(IPv4.toIPv4Address(hostIP)); }
-		this.lastHost = -1;
+		{
+			String[] parts = hostIP.split(":");
+			ips.add(IPv4.toIPv4Address(parts[0]));
+			weights.add((parts.length > 1) ? Integer.parseInt(parts[1]) : 1);
+		}
+		this.setHosts(ips, weights);
+	}
+
+	/**
+	 * Create the server selector with the given name.
+	 * @param name round-robin, least-connections, weighted or maglev
+	 * @return the selector, null if the name is not known
+	 */
+	public static IServerSelector createSelector(String name)
+	{
+		if (RoundRobinSelector.NAME.equals(name))
+		{ return new RoundRobinSelector(); }
+		if (LeastConnectionsSelector.NAME.equals(name))
+		{ return new LeastConnectionsSelector(); }
+		if (WeightedSelector.NAME.equals(name))
+		{ return new WeightedSelector(); }
+		if (MaglevSelector.NAME.equals(name))
+		{ return new MaglevSelector(); }
+		return null;
 	}
-	
+
 	/**
 	 * Get the virtual IP address for this load balancer instance.
 	 */
 	public int getVirtualIP()
 	{ return this.virtualIP; }
-	
+
 	/**
 	 * Get the virtual MAC address for this load balancer instance.
 	 */
 	public byte[] getVirtualMAC()
 	{ return this.virtualMAC; }
-	
+
+	/**
+	 * Get the IPs for the hosts to which requests are balanced.
+	 */
+	public synchronized List<Integer> getHostIPs()
+	{ return this.hostIPs; }
+
+	/**
+	 * Get the strategy for choosing the host for a new connection.
+	 */
+	public IServerSelector getSelector()
+	{ return this.selector; }
+
+	/**
+	 * Get the connections that have been sent to hosts and not yet closed.
+	 */
+	public ConnectionTable getConnections()
+	{ return this.connections; }
+
+	/**
+	 * Get the client buckets and their hosts.
+	 * @return the buckets, null if rules are installed per connection
+	 */
+	public BucketTable getBuckets()
+	{ return this.buckets; }
+
 	/**
-	 * Get the IP address for the next host in round-robin order.
-	 * @return the IP address for the next host
+	 * Install rules for client buckets ahead of time, instead of per
+	 * connection. The buckets are shared out among the current hosts.
+	 * @param bucketCount number of buckets; must be a power of two
 	 */
-	public int getNextHostIP()
+	public synchronized void enableBuckets(int bucketCount)
 	{
-		lastHost++;
-		if (lastHost >= hostIPs.size())
-		{ lastHost = 0; }
-		return hostIPs.get(lastHost);
+		this.buckets = new BucketTable(bucketCount);
+		this.buckets.rebalance(this.hostIPs, this.weights);
 	}
-	
+
+	/**
+	 * Get the weight for each host, in the same order as getHostIPs().
+	 */
+	public synchronized List<Integer> getWeights()
+	{ return this.weights; }
+
+	/**
+	 * Change the hosts to which requests are balanced. Open connections stay
+	 * with the host they were sent to.
+	 * @param hostIPs IPs for the hosts
+	 * @param weights relative share of connections for each host, in the
+	 *        same order as hostIPs; must be at least 1
+	 */
+	public synchronized void setHosts(List<Integer> hostIPs,
+			List<Integer> weights)
+	{
+		if (hostIPs.size() != weights.size())
+		{ throw new IllegalArgumentException("Need one weight per host"); }
+		for (Integer weight : weights)
+		{
+			if (weight < 1)
+			{ throw new IllegalArgumentException("Bad weight: " + weight); }
+		}
+		this.hostIPs = Collections.unmodifiableList(
+				new ArrayList<Integer>(hostIPs));
+		this.weights = Collections.unmodifiableList(
+				new ArrayList<Integer>(weights));
+		this.selector.setHosts(this.hostIPs, this.weights);
+	}
+
+	/**
+	 * Get the IP address for the next host, without regard to which
+	 * connection it is for.
+	 * @return the IP address for the next host, 0 if there are no hosts
+	 */
+	public synchronized int getNextHostIP()
+	{
+		if (this.hostIPs.isEmpty())
+		{ return 0; }
+		return this.selector.selectHost(0, (short)0, this.connections);
+	}
+
+	/**
+	 * Get the host for a connection, choosing one and recording the
+	 * connection if it is new.
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param serverPort the TCP port the client connected to
+	 * @param switchId the switch the connection's rules are installed in
+	 * @return the IP address for the host, 0 if there are no hosts
+	 */
+	public synchronized int getHostIP(int clientIP, short clientPort,
+			short serverPort, long switchId)
+	{
+		Integer hostIP = this.connections.getHostIP(clientIP, clientPort,
+				serverPort);
+		if (hostIP != null)
+		{ return hostIP; }
+		if (this.hostIPs.isEmpty())
+		{ return 0; }
+		return this.connections.add(clientIP, clientPort, serverPort,
+				this.selector.selectHost(clientIP, clientPort,
+						this.connections), switchId);
+	}
+
+	/**
+	 * Get the host for a connection from a client bucket, recording the
+	 * connection with the bucket's host if it is new.
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param serverPort the TCP port the client connected to
+	 * @param switchId the switch the connection's rules are installed in
+	 * @return the IP address for the host, 0 if the bucket has no host
+	 */
+	public synchronized int getBucketHostIP(int clientIP, short clientPort,
+			short serverPort, long switchId)
+	{
+		Integer hostIP = this.connections.getHostIP(clientIP, clientPort,
+				serverPort);
+		if (hostIP != null)
+		{ return hostIP; }
+		int bucketHostIP = this.buckets.getHostIP(
+				this.buckets.getBucket(clientIP));
+		if (0 == bucketHostIP)
+		{ return 0; }
+		return this.connections.add(clientIP, clientPort, serverPort,
+				bucketHostIP, switchId);
+	}
+
+	/**
+	 * Forget a connection whose rules have been removed from the switch.
+	 * @param clientIP the client's IP address
+	 * @param clientPort the client's TCP port
+	 * @param serverPort the TCP port the client connected to
+	 */
+	public void connectionClosed(int clientIP, short clientPort,
+			short serverPort)
+	{ this.connections.remove(clientIP, clientPort, serverPort); }
+
+	/**
+	 * Forget the connections whose rules were in a switch that has left.
+	 * @param switchId the switch's DPID
+	 * @return the number of connections forgotten
+	 */
+	public int switchRemoved(long switchId)
+	{ return this.connections.removeSwitch(switchId); }
+
 	@Override
 	public String toString()
 	{
 		String result = IPv4.fromIPv4Address(this.virtualIP);
 		result += " " + MACAddress.valueOf(this.virtualMAC).toString() + " ";
-		for (Integer hostIP : this.hostIPs)
-		{ result += IPv4.fromIPv4Address(hostIP) + ","; }
+		List<Integer> hostIPs = this.getHostIPs();
+		for (int i = 0; i < hostIPs.size(); i++)
+		{
+			result += IPv4.fromIPv4Address(hostIPs.get(i));
+			if (this.weights.get(i) != 1)
+			{ result += ":" + this.weights.get(i); }
+			result += ",";
+		}
 		if (',' == result.charAt(result.length()-1))
 		{ result = result.substring(0, result.length()-1); }
-		return result;
+		return result + " " + this.selector;
 	}
 }
@@ -0,0 +1,22 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.routing.Router;
+
+import net.floodlightcontroller.restserver.RestletRoutable;
+
+public class LoadBalancerWebRoutable implements RestletRoutable 
+{
+	@Override
+	public Restlet getRestlet(Context context) 
+	{
+		Router router = new Router(context);
+		router.attach("/buckets/json", LoadBalancerBucketsResource.class);
+		return router;
+	}
+	
+	@Override
+	public String basePath() 
+	{ return "/wm/loadbalancer"; }
+}
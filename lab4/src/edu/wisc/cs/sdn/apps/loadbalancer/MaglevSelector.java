@@ -0,0 +1,108 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.List;
+
+/**
+ * Consistent hashing with a Maglev lookup table (Eisenbud et al., "Maglev: A
+ * Fast and Reliable Software Network Load Balancer"). Each host fills slots
+ * of the table in its own pseudo-random order, and a connection is sent to
+ * the host that owns the slot its client address and port hash to. The same
+ * connection always gets the same host, though a client's other connections
+ * may not, since the client port is hashed too. Hosts own close to equal
+ * shares of the table (scaled by weight), and adding or removing a host
+ * moves few slots that belonged to other hosts.
+ */
+public class MaglevSelector implements IServerSelector 
+{
+	public static final String NAME = "maglev";
+	
+	// Size of the lookup table; must be prime, and much larger than the 
+	// number of hosts for shares to come out even
+	public static final int TABLE_SIZE = 65537;
+	
+	// Host IP for each slot of the lookup table
+	private int[] lookup;
+	
+	public MaglevSelector()
+	{ this.lookup = new int[0]; }
+	
+	@Override
+	public void setHosts(List<Integer> hostIPs, List<Integer> weights)
+	{
+		int n = hostIPs.size();
+		int[] lookup = new int[TABLE_SIZE];
+		if (0 == n)
+		{
+			this.lookup = new int[0];
+			return;
+		}
+		
+		// Each host visits slots in the order offset, offset + skip, ...
+		int[] offset = new int[n];
+		int[] skip = new int[n];
+		int[] next = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			int ip = hostIPs.get(i);
+			offset[i] = (mix(ip, 0x2545F491) & 0x7fffffff) % TABLE_SIZE;
+			skip[i] = (mix(ip, 0x6C8E9CF5) & 0x7fffffff) % (TABLE_SIZE - 1) + 1;
+		}
+		
+		// Hosts take turns claiming their next free slot; a host claims as 
+		// many slots per turn as its weight
+		boolean[] taken = new boolean[TABLE_SIZE];
+		int filled = 0;
+		while (true)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				for (int w = weights.get(i); w > 0; w--)
+				{
+					int slot = (int)((offset[i] + (long)next[i] * skip[i]) 
+							% TABLE_SIZE);
+					while (taken[slot])
+					{
+						next[i]++;
+						slot = (int)((offset[i] + (long)next[i] * skip[i]) 
+								% TABLE_SIZE);
+					}
+					taken[slot] = true;
+					lookup[slot] = hostIPs.get(i);
+					next[i]++;
+					if (++filled == TABLE_SIZE)
+					{
+						this.lookup = lookup;
+						return;
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public int selectHost(int clientIP, short clientPort, 
+			ConnectionTable connections)
+	{
+		int hash = mix(mix(clientIP, 0x1B873593) ^ (clientPort & 0xffff), 
+				0xCC9E2D51);
+		return lookup[(hash & 0x7fffffff) % lookup.length];
+	}
+	
+	/**
+	 * Hash an int with a seed, using the MurmurHash3 finalizer.
+	 */
+	private static int mix(int value, int seed)
+	{
+		int h = value * seed;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+	
+	@Override
+	public String toString()
+	{ return NAME; }
+}
@@ -0,0 +1,45 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.List;
+
+/**
+ * Sends each new connection to the next host in turn.
+ */
+public class RoundRobinSelector implements IServerSelector 
+{
+	public static final String NAME = "round-robin";
+	
+	// IPs for the hosts to which a flow could be sent
+	private int[] hostIPs;
+	
+	// The index for the last host to which a flow was sent
+	private int lastHost;
+	
+	public RoundRobinSelector()
+	{
+		this.hostIPs = new int[0];
+		this.lastHost = -1;
+	}
+	
+	@Override
+	public void setHosts(List<Integer> hostIPs, List<Integer> weights)
+	{
+		this.hostIPs = new int[hostIPs.size()];
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{ this.hostIPs[i] = hostIPs.get(i); }
+	}
+	
+	@Override
+	public int selectHost(int clientIP, short clientPort, 
+			ConnectionTable connections)
+	{
+		lastHost++;
+		if (lastHost >= hostIPs.length)
+		{ lastHost = 0; }
+		return hostIPs[lastHost];
+	}
+	
+	@Override
+	public String toString()
+	{ return NAME; }
+}
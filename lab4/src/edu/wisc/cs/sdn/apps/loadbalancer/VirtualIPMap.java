@@ -0,0 +1,104 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Arrays;
+
+/**
+ * Map from virtual IP to load balancer instance, keyed by the primitive
+ * address so lookups neither box the key nor allocate. Uses open addressing
+ * with linear probing, kept at most half full.
+ *
+ * The map is filled when the module is initialized and only read after that,
+ * so lookups from packet-in threads need no locking.
+ */
+public class VirtualIPMap
+{
+	// Keys and values; a slot is empty when its value is null
+	private int[] keys;
+	private LoadBalancerInstance[] values;
+
+	// Number of instances in the map
+	private int size;
+
+	/**
+	 * Create an empty map.
+	 */
+	public VirtualIPMap()
+	{
+		this.keys = new int[8];
+		this.values = new LoadBalancerInstance[8];
+		this.size = 0;
+	}
+
+	/**
+	 * Add an instance under its virtual IP, replacing any instance already
+	 * there.
+	 * @param instance the load balancer instance
+	 */
+	public void put(LoadBalancerInstance instance)
+	{
+		if (2 * (this.size + 1) > this.keys.length)
+		{ this.resize(2 * this.keys.length); }
+		int slot = this.find(instance.getVirtualIP());
+		if (null == this.values[slot])
+		{ this.size++; }
+		this.keys[slot] = instance.getVirtualIP();
+		this.values[slot] = instance;
+	}
+
+	/**
+	 * Get the instance for a virtual IP.
+	 * @param virtualIP the virtual IP
+	 * @return the instance, null if the IP is not a virtual IP
+	 */
+	public LoadBalancerInstance get(int virtualIP)
+	{ return this.values[this.find(virtualIP)]; }
+
+	/**
+	 * Get the number of instances in the map.
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Find the slot that holds a key, or the empty slot where it would go.
+	 */
+	private int find(int key)
+	{
+		int mask = this.keys.length - 1;
+		int hash = key * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (this.values[slot] != null && this.keys[slot] != key)
+		{ slot = (slot + 1) & mask; }
+		return slot;
+	}
+
+	private void resize(int capacity)
+	{
+		int[] oldKeys = this.keys;
+		LoadBalancerInstance[] oldValues = this.values;
+		this.keys = new int[capacity];
+		this.values = new LoadBalancerInstance[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] != null)
+			{
+				int slot = this.find(oldKeys[i]);
+				this.keys[slot] = oldKeys[i];
+				this.values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		LoadBalancerInstance[] instances = new LoadBalancerInstance[this.size];
+		int i = 0;
+		for (LoadBalancerInstance instance : this.values)
+		{
+			if (instance != null)
+			{ instances[i++] = instance; }
+		}
+		return Arrays.toString(instances);
+	}
+}
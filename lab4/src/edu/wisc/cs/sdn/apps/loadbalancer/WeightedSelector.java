@@ -0,0 +1,60 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Round-robin where each host gets new connections in proportion to its
+ * weight. Uses smooth weighted round-robin, so a heavy host's turns are
+ * spread out instead of coming in a burst.
+ */
+public class WeightedSelector implements IServerSelector 
+{
+	public static final String NAME = "weighted";
+	
+	// IPs for the hosts, their weights, and how far each is owed a turn
+	private int[] hostIPs;
+	private int[] weights;
+	private int[] current;
+	private int totalWeight;
+	
+	public WeightedSelector()
+	{
+		List<Integer> none = Collections.emptyList();
+		this.setHosts(none, none);
+	}
+	
+	@Override
+	public void setHosts(List<Integer> hostIPs, List<Integer> weights)
+	{
+		this.hostIPs = new int[hostIPs.size()];
+		this.weights = new int[hostIPs.size()];
+		this.current = new int[hostIPs.size()];
+		this.totalWeight = 0;
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{
+			this.hostIPs[i] = hostIPs.get(i);
+			this.weights[i] = weights.get(i);
+			this.totalWeight += this.weights[i];
+		}
+	}
+	
+	@Override
+	public int selectHost(int clientIP, short clientPort, 
+			ConnectionTable connections)
+	{
+		int best = 0;
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			current[i] += weights[i];
+			if (current[i] > current[best])
+			{ best = i; }
+		}
+		current[best] -= totalWeight;
+		return hostIPs[best];
+	}
+	
+	@Override
+	public String toString()
+	{ return NAME; }
+}
@@ -0,0 +1,203 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.openflow.protocol.OFBarrierReply;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Collects rule installs, changes and removals for one switch so they can be
+ * sent together. The SwitchCommands methods write and flush every rule on its
+ * own; a batch is sent with a single write that ends in a barrier request, and
+ * the future returned by send() completes once the switch has applied every
+ * rule in the batch.
+ */
+public class FlowModBatch 
+{
+	// Interface to the logging system
+    private static Logger log =
+            LoggerFactory.getLogger(FlowModBatch.class.getSimpleName());
+    
+    // Switch to which the batch will be sent
+    private IOFSwitch sw;
+    
+    // Flow-mods collected so far, in the order they will be sent
+    private List<OFMessage> rules;
+    
+    /**
+     * Create an empty batch.
+     * @param sw the switch to which the batch will be sent
+     */
+    public FlowModBatch(IOFSwitch sw)
+    {
+    	this.sw = sw;
+    	this.rules = new ArrayList<OFMessage>();
+    }
+    
+    /**
+     * Get the switch to which the batch will be sent.
+     */
+    public IOFSwitch getSwitch()
+    { return this.sw; }
+    
+    /**
+     * Get the number of flow-mods collected so far.
+     */
+    public int size()
+    { return this.rules.size(); }
+    
+    /**
+     * Checks whether any flow-mods have been collected.
+     */
+    public boolean isEmpty()
+    { return this.rules.isEmpty(); }
+    
+    /**
+     * Add a rule install to the batch; see SwitchCommands.installRule.
+     * @return this batch
+     */
+    public FlowModBatch installRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout, int bufferId)
+    {
+    	this.rules.add(SwitchCommands.buildInstallRule(table, priority, 
+    			matchCriteria, instructions, hardTimeout, idleTimeout, 
+    			bufferId));
+    	return this;
+    }
+    
+    /**
+     * Add a rule install to the batch; see SwitchCommands.installRule.
+     * @return this batch
+     */
+    public FlowModBatch installRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout)
+    {
+    	return this.installRule(table, priority, matchCriteria, instructions, 
+    			hardTimeout, idleTimeout, OFPacketOut.BUFFER_ID_NONE);
+    }
+    
+    /**
+     * Add a rule install with no timeout to the batch; see 
+     * SwitchCommands.installRule.
+     * @return this batch
+     */
+    public FlowModBatch installRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+    	return this.installRule(table, priority, matchCriteria, instructions, 
+    			SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT);
+    }
+    
+    /**
+     * Add a rule install with no timeout to the batch, tagged with a cookie
+     * that the switch puts in packet-ins the rule sends to the controller;
+     * see SwitchCommands.installRule.
+     * @return this batch
+     */
+    public FlowModBatch installRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions,
+            long cookie)
+    {
+    	OFFlowMod rule = SwitchCommands.buildInstallRule(table, priority,
+    			matchCriteria, instructions, SwitchCommands.NO_TIMEOUT,
+    			SwitchCommands.NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE);
+    	rule.setCookie(cookie);
+    	this.rules.add(rule);
+    	return this;
+    }
+    
+    /**
+     * Add a rule install to the batch, asking the switch to send a 
+     * flow-removed message when the rule times out or is deleted; see 
+     * SwitchCommands.installRule.
+     * @return this batch
+     */
+    public FlowModBatch installRuleNotifyRemoval(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout)
+    {
+    	OFFlowMod rule = SwitchCommands.buildInstallRule(table, priority, 
+    			matchCriteria, instructions, hardTimeout, idleTimeout, 
+    			OFPacketOut.BUFFER_ID_NONE);
+    	rule.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM);
+    	this.rules.add(rule);
+    	return this;
+    }
+    
+    /**
+     * Add a rule change to the batch; see SwitchCommands.modifyRule.
+     * @return this batch
+     */
+    public FlowModBatch modifyRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+    	this.rules.add(SwitchCommands.buildModifyRule(table, priority, 
+    			matchCriteria, instructions));
+    	return this;
+    }
+    
+    /**
+     * Add a single rule removal to the batch; see SwitchCommands.removeRule.
+     * @return this batch
+     */
+    public FlowModBatch removeRule(byte table, short priority, 
+    		OFMatch matchCriteria)
+    {
+    	this.rules.add(SwitchCommands.buildRemoveRule(table, priority, 
+    			matchCriteria));
+    	return this;
+    }
+    
+    /**
+     * Add a removal of all matching rules to the batch; see 
+     * SwitchCommands.removeRules.
+     * @return this batch
+     */
+    public FlowModBatch removeRules(byte table, OFMatch matchCriteria)
+    {
+    	this.rules.add(SwitchCommands.buildRemoveRules(table, matchCriteria));
+    	return this;
+    }
+    
+    /**
+     * Send every collected flow-mod to the switch in one write, followed by a
+     * barrier request, and empty the batch.
+     * @return a future that completes when the switch replies to the barrier,
+     *         or null if the batch was empty or could not be sent
+     */
+    public Future<OFBarrierReply> send()
+    {
+    	if (this.rules.isEmpty())
+    	{ return null; }
+    	
+    	List<OFMessage> batch = this.rules;
+    	this.rules = new ArrayList<OFMessage>();
+    	try
+    	{
+    		Future<OFBarrierReply> future = this.sw.writeWithBarrier(batch, 
+    				null);
+    		log.debug(String.format("Sent %d flow-mods to s%d", batch.size(),
+    				this.sw.getId()));
+    		return future;
+    	}
+    	catch (IOException e)
+    	{
+    		log.error(String.format("Failed to send %d flow-mods to s%d", 
+    				batch.size(), this.sw.getId()));
+    		return null;
+    	}
+    }
+}
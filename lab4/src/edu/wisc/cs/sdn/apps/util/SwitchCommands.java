@@ -49,20 +49,8 @@ public class SwitchCommands
             OFMatch matchCriteria, List<OFInstruction> instructions, 
             short hardTimeout, short idleTimeout, int bufferId)
     {
-        OFFlowMod rule = new OFFlowMod();
-        rule.setHardTimeout(hardTimeout);
-        rule.setIdleTimeout(idleTimeout);
-        rule.setPriority(priority);
-        rule.setTableId(table);
-        rule.setBufferId(bufferId);
-
-        rule.setMatch(matchCriteria.clone());
-        rule.setInstructions(instructions);
-        
-        int length = OFFlowMod.MINIMUM_LENGTH;
-        for (OFInstruction instruction : instructions)
-        { length += instruction.getLengthU(); }
-        rule.setLength((short)length);
+        OFFlowMod rule = buildInstallRule(table, priority, matchCriteria, 
+        		instructions, hardTimeout, idleTimeout, bufferId);
 
         try
         {
@@ -120,6 +108,68 @@ public class SwitchCommands
     			NO_TIMEOUT, NO_TIMEOUT);
     }
     
+    /**
+     * Changes the instructions of a rule already in a switch's flow table. 
+     * Only the rule with exactly the same match criteria and priority is 
+     * changed; if there is no such rule, nothing happens.
+     * @param sw the switch in which the rule should be changed
+     * @param table the table in which the rule should be changed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria for the rule
+     * @param instructions the new actions to apply to packets matching the 
+     *         rule
+     * @return true if the change was sent to the switch, otherwise false
+     */
+    public static boolean modifyRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+        OFFlowMod rule = buildModifyRule(table, priority, matchCriteria, 
+        		instructions);
+
+        try
+        {
+            sw.write(rule, null);
+            sw.flush();
+            log.debug("Modifying rule: "+rule);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to modify rule: "+rule);
+            return false;
+        }
+
+        return true;
+    }
+    
+    /**
+     * Remove a single rule from a switch's flow table. Only the rule with 
+     * exactly the same match criteria and priority is removed.
+     * @param sw the switch from which the rule should be removed
+     * @param table the table from which the rule should be removed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria for the rule
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = buildRemoveRule(table, priority, matchCriteria);
+
+        try
+        {
+            sw.write(rule, null);
+            sw.flush();
+            log.debug("Removing rule: "+rule);
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to remove rule: "+rule);
+            return false;
+        }
+
+        return true;
+    }
+    
     /**
      * Remove a rule from a switch's flow table.
      * @param sw the switch from which the rule should be removed
@@ -130,12 +180,7 @@ public class SwitchCommands
     public static boolean removeRules(IOFSwitch sw, byte table, 
     		OFMatch matchCriteria)
     {
-        OFFlowMod rule = new OFFlowMod();
-        rule.setCommand(OFFlowMod.OFPFC_DELETE);
-        rule.setTableId(table);
-
-        rule.setMatch(matchCriteria.clone());
-        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+        OFFlowMod rule = buildRemoveRules(table, matchCriteria);
 
         try
         {
@@ -152,6 +197,85 @@ public class SwitchCommands
         return true;
     }
     
+    /**
+     * Creates the flow-mod which installs a rule; see installRule.
+     */
+    static OFFlowMod buildInstallRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout, int bufferId)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setHardTimeout(hardTimeout);
+        rule.setIdleTimeout(idleTimeout);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+        rule.setBufferId(bufferId);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setInstructions(instructions);
+        rule.setLength((short)getLength(instructions));
+        return rule;
+    }
+    
+    /**
+     * Creates the flow-mod which modifies a rule; see modifyRule.
+     */
+    static OFFlowMod buildModifyRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+        rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setInstructions(instructions);
+        rule.setLength((short)getLength(instructions));
+        return rule;
+    }
+    
+    /**
+     * Creates the flow-mod which removes a single rule; see removeRule.
+     */
+    static OFFlowMod buildRemoveRule(byte table, short priority, 
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+        return rule;
+    }
+    
+    /**
+     * Creates the flow-mod which removes matching rules; see removeRules.
+     */
+    static OFFlowMod buildRemoveRules(byte table, OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE);
+        rule.setTableId(table);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+        return rule;
+    }
+    
+    /**
+     * Computes the length of a flow-mod carrying the given instructions.
+     */
+    private static int getLength(List<OFInstruction> instructions)
+    {
+        int length = OFFlowMod.MINIMUM_LENGTH;
+        for (OFInstruction instruction : instructions)
+        { length += instruction.getLengthU(); }
+        return length;
+    }
+    
 	/**
 	 * Sends a packet out of a switch.
 	 * @param outSw the switch out which the packet should be forwarded
@@ -1,14 +1,21 @@
 package studentCode;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import edu.wisc.cs.sdn.apps.util.Host;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.routing.Link;
+import studentCode.ShortestPathEngine.NextHopChange;
 
 /**
  * The DijkstraList class is used to produce a Dijkstra table for each switch, so that routing
@@ -17,16 +24,31 @@ import net.floodlightcontroller.routing.Link;
  * 
  * After constructing a DijkstraList object, computePaths must be called to run the algorithm.
  * 
+ * The paths are kept by a ShortestPathEngine, so computePaths only feeds it the switches and links
+ * that came or went since the last call. Only the tables of switches whose shortest path tree
+ * actually changed are rebuilt, and the next hops that changed can be read with getNextHopChanges.
+ * 
+ * Given an executor with setExecutor, the trees and the tables are computed on several threads. The
+ * results of each computePaths call are published together as one read-only snapshot, so readers on
+ * other threads never see the tables of one call mixed with the next hops of another.
+ * 
  * @author cworm
  *
  */
 public class DijkstraList {
 	
-	private Map<IOFSwitch, Map<Long, DijkstraNode>> hostPaths;
+	private volatile Snapshot snapshot;
 	private Collection<Host> hosts;
 	private Collection<IOFSwitch> switches;
 	private Collection<Link> links;
 	
+	private ShortestPathEngine engine;
+	private Map<Long, Long> builtVersions;
+	private List<NextHopChange> lastChanges;
+	
+	private ExecutorService executor;
+	private int parallelism;
+	
 	/**
 	 * Constructor for a DijkstraList.
 	 * 
@@ -35,16 +57,34 @@ public class DijkstraList {
 	 * @param linkList - The list of links in the network.
 	 */
 	public DijkstraList(Collection<Host> hostList, Collection<IOFSwitch> switchList, Collection<Link> linkList) {
-		this.hostPaths = new HashMap<IOFSwitch, Map<Long, DijkstraNode>>();
+		this.snapshot = new Snapshot(new HashMap<IOFSwitch, Map<Long, DijkstraNode>>(),
+				new HashMap<Long, int[]>(), new HashMap<Long, Integer>());
 		
 		this.hosts = hostList;
 		this.switches = switchList;
 		this.links = linkList;
 		
+		this.engine = new ShortestPathEngine();
+		this.builtVersions = new HashMap<Long, Long>();
+		this.lastChanges = new ArrayList<NextHopChange>();
+		this.parallelism = 1;
+		
 		System.out.println("DEBUG: Init DijkstraList object with " + hosts.size() + " hosts, " + switches.size() + " switches, " +
 				links.size() + " links.");
 	}
 	
+	/**
+	 * Lets computePaths spread its work over several threads.
+	 * 
+	 * @param executor - The pool to run on, or null to do all of the work on the calling thread.
+	 * @param parallelism - The number of tasks to split the work into.
+	 */
+	public void setExecutor(ExecutorService executor, int parallelism) {
+		this.executor = executor;
+		this.parallelism = Math.max(1, parallelism);
+		this.engine.setExecutor(executor, parallelism);
+	}
+	
 	/**
 	 * Sets the list of hosts for this DijkstraList object.
 	 * 
@@ -78,127 +118,262 @@ public class DijkstraList {
 	/**
 	 * Returns the Map containing each switch and the paths to all other switches.
 	 * Can return an empty Map if DijkstraList is passed bad parameters or computePaths() has
-	 * not been run.
+	 * not been run. The Map is read-only.
 	 * @return - The Map of switches and paths.
 	 */
 	public Map<IOFSwitch, Map<Long, DijkstraNode>> getPaths() {
-		return this.hostPaths;
+		return this.snapshot.paths;
+	}
+	
+	/**
+	 * Returns the ShortestPathEngine which holds the paths, for callers that want to look up
+	 * next hops by DPID directly.
+	 * 
+	 * @return - The engine.
+	 */
+	public ShortestPathEngine getEngine() {
+		return this.engine;
+	}
+	
+	/**
+	 * Returns the port a switch should send packets for another switch out of, as of the last call to
+	 * computePaths(). This is two hash lookups and an array read, with no path walking, and reads only
+	 * the published snapshot, never the engine.
+	 * 
+	 * @param src - The DPID of the switch the packets are on.
+	 * @param dst - The DPID of the switch the packets are headed for.
+	 * @return - The egress port, or ShortestPathEngine.NO_PORT if there is no path.
+	 */
+	public int getNextHopPort(long src, long dst) {
+		Snapshot s = this.snapshot;
+		int[] row = s.nextHops.get(src);
+		Integer x = s.switchIndices.get(dst);
+		if (row == null || x == null || x >= row.length) {
+			return ShortestPathEngine.NO_PORT;
+		}
+		return row[x];
+	}
+	
+	/**
+	 * Returns a switch's egress port for every destination, indexed by the switch index (see
+	 * getSwitchIndex()), as of the last call to computePaths(). The array must not be modified.
+	 * 
+	 * @param src - The DPID of the switch.
+	 * @return - The ports, ShortestPathEngine.NO_PORT where there is no path, or null if the switch is
+	 *         unknown.
+	 */
+	public int[] getNextHopTable(long src) {
+		return this.snapshot.nextHops.get(src);
+	}
+	
+	/**
+	 * Returns a switch's index into the rows of getNextHopTable(), as of the last call to
+	 * computePaths().
+	 * 
+	 * @param dpid - The DPID of the switch.
+	 * @return - The index, or -1 if the switch is unknown.
+	 */
+	public int getSwitchIndex(long dpid) {
+		Integer x = this.snapshot.switchIndices.get(dpid);
+		return (x == null) ? -1 : x;
+	}
+	
+	/**
+	 * Returns the (switch, destination) pairs whose next hop changed during the last call to
+	 * computePaths().
+	 * 
+	 * @return - The list of changed next hops.
+	 */
+	public List<NextHopChange> getNextHopChanges() {
+		return this.lastChanges;
 	}
 	
 	/**
 	 * Performs Dijkstra's Shortest Path algorithm to determine the most efficient way to route
 	 * packets in the network. Returns the Map of switches and paths after it finishes.
 	 * 
+	 * Only the switches and links which changed since the last call are given to the engine, and
+	 * only the tables of switches whose paths changed are rebuilt. Switches which cannot reach each
+	 * other are left with a distance of Integer.MAX_VALUE and no previous switch.
+	 * 
 	 * @return - The Map of switches and paths.
 	 */
 	public Map<IOFSwitch, Map<Long, DijkstraNode>> computePaths() {
+		List<NextHopChange> changes = new ArrayList<NextHopChange>();
 		
-		// Must compute a Dijkstra table for each switch, so iterate through each switch.
+		// Index the current switches and links by what the engine knows them by.
+		Map<Long, IOFSwitch> switchMap = new HashMap<Long, IOFSwitch>();
 		for (IOFSwitch sw : switches) {
-			// Init the Map which we will use for a Dijkstra table and the list of visited nodes.
-			Map<Long, DijkstraNode> mapForSw = new HashMap<Long, DijkstraNode>();
-			ArrayList<IOFSwitch> visitedSwitches = new ArrayList<IOFSwitch>();
-			
-			// Iterate through all switches to add them to the Dijkstra table.
-			for (IOFSwitch sw1 : switches) {
-				mapForSw.put(sw1.getId(), new DijkstraNode(sw1, Integer.MAX_VALUE, null));
-				
-				// If the switch we are on is the same as the one we are calculating the table for,
-				// we set the distance to 0.
-				if (sw1.equals(sw)) {
-					mapForSw.get(sw1.getId()).setDist(0);
-				}
+			switchMap.put(sw.getId(), sw);
+		}
+		Set<Link> linkSet = new HashSet<Link>();
+		for (Link l : links) {
+			if (switchMap.containsKey(l.getSrc()) && switchMap.containsKey(l.getDst())) {
+				linkSet.add(l);
 			}
-			
-//			System.out.println("DEBUG: Dump DijkstraList for Sw: " + sw.getId());
-//			for (DijkstraNode o : mapForSw.values()) {
-//				String prevStr = "";
-//				if (o.getPrevSwitch() == null)
-//					prevStr = "NULL";
-//				else
-//					prevStr = "" + o.getPrevSwitch().getId();
-//				System.out.println("DEBUG: Node: " + o.getDest().getStringId() + "\t" + o.getDist() + "\t" + prevStr);
-//			}
-			
-			// Declares and sets the current switch we are visiting in Dijkstra's algorithm.
-			IOFSwitch currentSw = sw;
+		}
+		
+		// Take away what is gone first, so paths never run over a removed link.
+		for (Long dpid : engine.getSwitches()) {
+			if (!switchMap.containsKey(dpid)) {
+				changes.addAll(engine.removeSwitch(dpid));
+				builtVersions.remove(dpid);
+			}
+		}
+		for (Link l : engine.getLinks()) {
+			if (!linkSet.contains(l)) {
+				changes.addAll(engine.removeLink(l));
+			}
+		}
+		
+		// Then add what is new.
+		for (Long dpid : switchMap.keySet()) {
+			engine.addSwitch(dpid);
+		}
+		List<Link> newLinks = new ArrayList<Link>();
+		for (Link l : linkSet) {
+			if (!engine.containsLink(l)) {
+				newLinks.add(l);
+			}
+		}
+		changes.addAll(engine.addLinks(newLinks));
+		
+		// Rebuild the tables of switches whose tree changed, and keep the rest as they are.
+		Snapshot old = this.snapshot;
+		Map<IOFSwitch, Map<Long, DijkstraNode>> newPaths = new HashMap<IOFSwitch, Map<Long, DijkstraNode>>();
+		Map<Long, int[]> newNextHops = new HashMap<Long, int[]>();
+		List<IOFSwitch> stale = new ArrayList<IOFSwitch>();
+		for (IOFSwitch sw : switchMap.values()) {
+			long version = engine.getTreeVersion(sw.getId());
+			Long builtVersion = builtVersions.get(sw.getId());
+			Map<Long, DijkstraNode> mapForSw = old.paths.get(sw);
+			if (mapForSw == null || builtVersion == null || builtVersion != version) {
+				stale.add(sw);
+				builtVersions.put(sw.getId(), version);
+			} else {
+				newPaths.put(sw, mapForSw);
+			}
+		}
+		buildTables(stale, switchMap, newPaths, newNextHops);
+		int rebuilt = stale.size();
+		
+		// Switches added since the rows were copied have indices past their end, so any row not rebuilt
+		// is padded out to the current number of indices.
+		int indices = 0;
+		Map<Long, Integer> newIndices = new HashMap<Long, Integer>();
+		for (Long dpid : switchMap.keySet()) {
+			int x = engine.getSwitchIndex(dpid);
+			newIndices.put(dpid, x);
+			indices = Math.max(indices, x + 1);
+		}
+		for (Long dpid : switchMap.keySet()) {
+			int[] row = newNextHops.get(dpid);
+			if (row == null) {
+				row = old.nextHops.get(dpid);
+			}
+			if (row.length < indices) {
+				int length = row.length;
+				row = Arrays.copyOf(row, indices);
+				Arrays.fill(row, length, indices, ShortestPathEngine.NO_PORT);
+			}
+			newNextHops.put(dpid, row);
+		}
+		
+		this.snapshot = new Snapshot(Collections.unmodifiableMap(newPaths),
+				Collections.unmodifiableMap(newNextHops), Collections.unmodifiableMap(newIndices));
+		this.lastChanges = ShortestPathEngine.coalesce(changes);
+		
+		System.out.println("DEBUG: Computed DijkstraList, rebuilt " + rebuilt + " of " + switchMap.size()
+				+ " tables, " + lastChanges.size() + " next hops changed.");
+		
+		// After the algorithm finishes, return all Dijkstra tables created.
+		return this.snapshot.paths;
+	}
 	
-			// Continues the algorithm while all switches have not been visited.
-			while (!visitedSwitches.containsAll(switches)) {
-				
-				// Iterates through all links to find the switches which currentSw is connected to.
-				Iterator<Link> e = links.iterator();
-				while (e.hasNext()) {
-					Link currentLink = e.next();
-					
-					// Find a link which is connected to currentSw and is not visited yet. If the link shows a
-					// shorter path than the one currently recorded, update its distance and prevSwitch fields.
-					if (sw == null) {
-						System.out.println("WARNING: sw NULL in Dijkstra");
-						return null;
-					} else if (currentSw == null) {
-						System.out.println("WARNING: currentSw NULL in Dijkstra");
-						return null;
-					} else if (currentLink == null) {
-						System.out.println("WARNING: pathMap NULL!");
-						return null;
-					}
-					
-					if (currentLink.getSrc() == currentSw.getId() 
-							&& !visitedSwitches.contains(mapForSw.get(currentLink.getDst()).getDest()) &&
-							mapForSw.get(currentSw.getId()).getDist() + 1 < mapForSw.get(currentLink.getDst()).getDist()) {
-						mapForSw.get(currentLink.getDst()).setPrevSwitch(currentSw);
-						mapForSw.get(currentLink.getDst()).setDist(mapForSw.get(currentSw.getId()).getDist() + 1);
-					}
-				}
-				
-				// Now that we have checked all paths from currentSw, we add it to visitedSwitches.
-				visitedSwitches.add(currentSw);
-				
-				// Determine the next switch to move to.
-				// Iterate through all DijkstraNodes in this switch's table and choose the unvisited one
-				// with the minimum distance from the starting switch.
-				IOFSwitch nextSw = null;
-				int minDist = Integer.MAX_VALUE;
-				for (DijkstraNode tempNode : mapForSw.values()) {
-					if (!visitedSwitches.contains(tempNode.getDest()) && tempNode.getDist() < minDist) {
-						minDist = tempNode.getDist();
-						nextSw = tempNode.getDest();
+	/**
+	 * Builds the Dijkstra table and next hop row of each switch in a list. The engine is only read
+	 * here, so with an executor the switches are split among several tasks.
+	 * 
+	 * @param stale - The switches to build tables for.
+	 * @param switchMap - All switches, keyed by DPID.
+	 * @param paths - The Map the tables are put in.
+	 * @param nextHops - The Map the next hop rows are put in.
+	 */
+	private void buildTables(final List<IOFSwitch> stale, final Map<Long, IOFSwitch> switchMap,
+			Map<IOFSwitch, Map<Long, DijkstraNode>> paths, Map<Long, int[]> nextHops) {
+		if (this.executor == null || this.parallelism < 2 || stale.size() < 2) {
+			for (IOFSwitch sw : stale) {
+				paths.put(sw, buildTable(sw, switchMap));
+				nextHops.put(sw.getId(), engine.copyNextHopPorts(sw.getId()));
+			}
+			return;
+		}
+		
+		List<Callable<Snapshot>> tasks = new ArrayList<Callable<Snapshot>>();
+		for (int w = 0; w < this.parallelism; w++) {
+			final int first = w;
+			tasks.add(new Callable<Snapshot>() {
+				@Override
+				public Snapshot call() {
+					Snapshot part = new Snapshot(new HashMap<IOFSwitch, Map<Long, DijkstraNode>>(),
+							new HashMap<Long, int[]>(), null);
+					for (int i = first; i < stale.size(); i += parallelism) {
+						IOFSwitch sw = stale.get(i);
+						part.paths.put(sw, buildTable(sw, switchMap));
+						part.nextHops.put(sw.getId(), engine.copyNextHopPorts(sw.getId()));
 					}
+					return part;
 				}
-				
-				// Check if we have actually found another switch to travel to.
-				if (nextSw != null) {
-					// In this case, the algorithm has not yet finished and we must check paths from another
-					// switch.
-					currentSw = nextSw;
-				} else if (visitedSwitches.containsAll(switches)) {
-					// Nothing wrong here, all switches visited, so no next switch. Outer while loop will end.
-				} else {
-					// Something wrong, we should have an unvisited switch to visit.
-					System.out.println("WARNING: Incomplete DijkstraList encountered.");
-					return null;
-				}
-				
-//				System.out.println("DEBUG: Dump DijkstraList for Sw: " + sw.getId());
-//				for (DijkstraNode o : mapForSw.values()) {
-//					String prevStr = "";
-//					if (o.getPrevSwitch() == null)
-//						prevStr = "NULL";
-//					else
-//						prevStr = "" + o.getPrevSwitch().getId();
-//					System.out.println("DEBUG: Node: " + o.getDest().getStringId() + "\t" + o.getDist() + "\t" + prevStr);
-//				}
-			}
-			
-			// Finally put the Dijkstra path Map for this particular switch into the hostPaths Map with the 
-			// starting switch as a key.
-			System.out.println("DEBUG: Computed DijkstraList for switchID: " + sw.getId());
-			hostPaths.put(sw, mapForSw);
+			});
+		}
+		for (Snapshot part : ShortestPathEngine.invokeAll(this.executor, tasks)) {
+			paths.putAll(part.paths);
+			nextHops.putAll(part.nextHops);
+		}
+	}
+	
+	/**
+	 * Builds the Dijkstra table for one switch from the engine.
+	 * 
+	 * @param sw - The switch to build the table for.
+	 * @param switchMap - All switches, keyed by DPID.
+	 * @return - The Dijkstra table.
+	 */
+	private Map<Long, DijkstraNode> buildTable(IOFSwitch sw, Map<Long, IOFSwitch> switchMap) {
+		Map<Long, DijkstraNode> mapForSw = new HashMap<Long, DijkstraNode>();
+		for (IOFSwitch sw1 : switchMap.values()) {
+			int dist = engine.getDistance(sw.getId(), sw1.getId());
+			Long prev = engine.getPredecessor(sw.getId(), sw1.getId());
+			IOFSwitch prevSw = (prev == null) ? null : switchMap.get(prev);
+			mapForSw.put(sw1.getId(), new DijkstraNode(sw1,
+					(dist == ShortestPathEngine.INFINITY) ? Integer.MAX_VALUE : dist, prevSw));
 		}
+		return mapForSw;
+	}
+	
+	/**
+	 * The results of one call to computePaths. The parts are read-only once the snapshot is published.
+	 * 
+	 * @author cworm
+	 *
+	 */
+	private static class Snapshot {
+		// Each switch's Dijkstra table, keyed by switch.
+		private final Map<IOFSwitch, Map<Long, DijkstraNode>> paths;
 		
-		// After the algorithm finishes, return all Dijkstra tables created.
-		return this.hostPaths;
+		// Each switch's egress port for every destination, indexed by the engine's switch index.
+		private final Map<Long, int[]> nextHops;
+		
+		// Each switch's index into the next hop rows, keyed by DPID. The engine's own map changes as
+		// switches come and go, so readers use this copy.
+		private final Map<Long, Integer> switchIndices;
+		
+		Snapshot(Map<IOFSwitch, Map<Long, DijkstraNode>> paths, Map<Long, int[]> nextHops,
+				Map<Long, Integer> switchIndices) {
+			this.paths = paths;
+			this.nextHops = nextHops;
+			this.switchIndices = switchIndices;
+		}
 	}
 	
 	/**
@@ -0,0 +1,228 @@
+package studentCode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The PrefixAggregator class compresses a switch's host routes (one /32 per host) into the smallest set
+ * of masked prefix routes that forwards every address exactly the same way, assuming the rules are
+ * matched longest prefix first.
+ *
+ * Addresses that do not belong to a host have no route, which behaves like a table miss. That is kept
+ * as a DROP next hop so that aggregation never sends traffic for an unknown address somewhere the
+ * original table would not have. A DROP prefix is only emitted when it is needed to carve a hole out of
+ * a shorter prefix.
+ *
+ * This is the ORTC algorithm (Draves et al., "Constructing Optimal IP Routing Tables"): normalize the
+ * binary trie of routes so every node has zero or two children, compute bottom up the set of next hops
+ * that could be used for each subtree, then pick next hops top down, emitting a route only where the
+ * inherited next hop is not in that set.
+ *
+ * @author cworm
+ *
+ */
+public class PrefixAggregator {
+
+	/** Next hop for addresses which should not be forwarded. */
+	public static final int DROP = -1;
+
+	private static final int NONE = -2;
+
+	// Binary trie, one entry per node. Sets of next hops are sorted arrays.
+	private int[] zero;
+	private int[] one;
+	private int[] nextHop;
+	private int[][] sets;
+	private int size;
+
+	// The routes chosen, as prefix key -> next hop.
+	private Map<Long, Integer> result;
+
+	private PrefixAggregator(int capacity) {
+		this.zero = new int[capacity];
+		this.one = new int[capacity];
+		this.nextHop = new int[capacity];
+		this.size = 0;
+		newNode();
+	}
+
+	/**
+	 * Computes the smallest set of prefix routes equivalent to a set of host routes.
+	 *
+	 * @param hostRoutes - Host IPv4 address -> out port. Ports must not be negative.
+	 * @return - Prefix key (see prefixKey) -> out port or DROP.
+	 */
+	public static Map<Long, Integer> aggregate(Map<Integer, Integer> hostRoutes) {
+		PrefixAggregator trie = new PrefixAggregator(Math.max(16, hostRoutes.size() * 33));
+		for (Map.Entry<Integer, Integer> route : hostRoutes.entrySet()) {
+			trie.insert(route.getKey(), route.getValue());
+		}
+		trie.normalize(0, DROP);
+		trie.sets = new int[trie.size][];
+		trie.computeSets(0);
+		trie.result = new HashMap<Long, Integer>();
+		trie.choose(0, 0, 0, NONE);
+		return trie.result;
+	}
+
+	/**
+	 * Packs a prefix into a single key.
+	 *
+	 * @param address - The address; bits past the prefix length are ignored.
+	 * @param length - The prefix length, 0 to 32.
+	 * @return - The key.
+	 */
+	public static long prefixKey(int address, int length) {
+		return ((getMask(length) & address & 0xffffffffL) << 8) | length;
+	}
+
+	/**
+	 * Returns the address of a prefix key.
+	 */
+	public static int getAddress(long key) {
+		return (int) (key >>> 8);
+	}
+
+	/**
+	 * Returns the prefix length of a prefix key.
+	 */
+	public static int getLength(long key) {
+		return (int) (key & 0xff);
+	}
+
+	/**
+	 * Returns the network mask for a prefix length.
+	 */
+	public static int getMask(int length) {
+		return (length == 0) ? 0 : (int) (0xffffffffL << (32 - length));
+	}
+
+	private int newNode() {
+		if (this.size == this.zero.length) {
+			int capacity = this.size * 2;
+			this.zero = Arrays.copyOf(this.zero, capacity);
+			this.one = Arrays.copyOf(this.one, capacity);
+			this.nextHop = Arrays.copyOf(this.nextHop, capacity);
+		}
+		this.zero[this.size] = -1;
+		this.one[this.size] = -1;
+		this.nextHop[this.size] = NONE;
+		return this.size++;
+	}
+
+	private void insert(int address, int port) {
+		int node = 0;
+		for (int bit = 31; bit >= 0; bit--) {
+			if (((address >>> bit) & 1) == 0) {
+				if (this.zero[node] < 0) {
+					int child = newNode();
+					this.zero[node] = child;
+				}
+				node = this.zero[node];
+			} else {
+				if (this.one[node] < 0) {
+					int child = newNode();
+					this.one[node] = child;
+				}
+				node = this.one[node];
+			}
+		}
+		this.nextHop[node] = port;
+	}
+
+	/**
+	 * Pass one: give every node zero or two children, and push next hops down to the leaves.
+	 */
+	private void normalize(int node, int inherited) {
+		int hop = (this.nextHop[node] == NONE) ? inherited : this.nextHop[node];
+		if (this.zero[node] < 0 && this.one[node] < 0) {
+			this.nextHop[node] = hop;
+			return;
+		}
+		if (this.zero[node] < 0) {
+			int child = newNode();
+			this.zero[node] = child;
+		}
+		if (this.one[node] < 0) {
+			int child = newNode();
+			this.one[node] = child;
+		}
+		this.nextHop[node] = NONE;
+		normalize(this.zero[node], hop);
+		normalize(this.one[node], hop);
+	}
+
+	/**
+	 * Pass two: the set for a leaf is its next hop, and the set for an inner node is the intersection of
+	 * its children's sets, or their union if they do not intersect.
+	 */
+	private void computeSets(int node) {
+		if (this.zero[node] < 0) {
+			this.sets[node] = new int[] { this.nextHop[node] };
+			return;
+		}
+		computeSets(this.zero[node]);
+		computeSets(this.one[node]);
+		int[] a = this.sets[this.zero[node]];
+		int[] b = this.sets[this.one[node]];
+		int[] both = intersect(a, b);
+		this.sets[node] = (both.length > 0) ? both : union(a, b);
+	}
+
+	/**
+	 * Pass three: keep the inherited next hop where the subtree can use it, otherwise pick one and emit a
+	 * route for the node.
+	 */
+	private void choose(int node, int address, int length, int inherited) {
+		int[] set = this.sets[node];
+		int hop;
+		if (inherited != NONE && Arrays.binarySearch(set, inherited) >= 0) {
+			hop = inherited;
+		} else if (inherited == NONE && Arrays.binarySearch(set, DROP) >= 0) {
+			// Dropping is what happens with no rule at all, so the root never needs one for it.
+			hop = DROP;
+		} else {
+			hop = set[0];
+			this.result.put(prefixKey(address, length), hop);
+		}
+		if (this.zero[node] >= 0) {
+			choose(this.zero[node], address, length + 1, hop);
+			choose(this.one[node], address | (1 << (31 - length)), length + 1, hop);
+		}
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] out = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return (n == out.length) ? out : Arrays.copyOf(out, n);
+	}
+
+	private static int[] union(int[] a, int[] b) {
+		int[] out = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			if (j >= b.length || (i < a.length && a[i] < b[j])) {
+				out[n++] = a[i++];
+			} else if (i >= a.length || b[j] < a[i]) {
+				out[n++] = b[j++];
+			} else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return (n == out.length) ? out : Arrays.copyOf(out, n);
+	}
+}
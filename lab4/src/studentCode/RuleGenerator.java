@@ -2,6 +2,8 @@ package studentCode;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.openflow.protocol.OFMatch;
@@ -11,130 +13,358 @@ import org.openflow.protocol.instruction.OFInstruction;
 import org.openflow.protocol.instruction.OFInstructionApplyActions;
 
 import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
 import edu.wisc.cs.sdn.apps.util.Host;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.routing.Link;
-import studentCode.DijkstraList.DijkstraNode;
 
 public class RuleGenerator {
-	
+
 	private IOFSwitch sw;
 	private DijkstraList paths;
 	private Collection<Link> links;
-	
-	private Collection<OFMatch> l3Rules;
-	
-	
+
+	// The rules this switch has been told to install, as host IP -> out port.
+	private Map<Integer, Integer> l3Rules;
+
+	// When aggregating, l3Rules is the per-host routing table and these are the prefix rules actually
+	// installed for it, as PrefixAggregator prefix key -> out port or PrefixAggregator.DROP.
+	private boolean aggregate;
+	private Map<Long, Integer> prefixRules;
+
+
 	public RuleGenerator(IOFSwitch sw, DijkstraList pathList, Collection<Link> linkList) {
+		this(sw, pathList, linkList, false);
+	}
+
+	/**
+	 * @param aggregate - If true, host routes which share an out port are installed as the fewest
+	 *     masked prefix rules that forward every address the same way (see PrefixAggregator).
+	 */
+	public RuleGenerator(IOFSwitch sw, DijkstraList pathList, Collection<Link> linkList, boolean aggregate) {
 		this.sw = sw;
 		this.paths = pathList;
 		this.links = linkList;
-		l3Rules = new ArrayList<OFMatch>();
+		this.aggregate = aggregate;
+		l3Rules = new HashMap<Integer, Integer>();
+		prefixRules = new HashMap<Long, Integer>();
 	}
-	
+
 	public void updateLinks(Collection<Link> newLinks) {
 		this.links = newLinks;
 	}
-	
+
+	/**
+	 * Returns the number of routing rules this switch currently has installed.
+	 *
+	 * @return - The number of rules.
+	 */
+	public int getRuleCount() {
+		return aggregate ? prefixRules.size() : l3Rules.size();
+	}
+
+	/**
+	 * Returns the number of hosts this switch has a route to. Without aggregation this is the same as
+	 * getRuleCount(); with it, this is how many rules the switch would need without aggregation.
+	 *
+	 * @return - The number of host routes.
+	 */
+	public int getHostRouteCount() {
+		return l3Rules.size();
+	}
+
 	public void addRuleRouteIP(Host h) {
-		if (!h.isAttachedToSwitch()) {
+		if (!h.isAttachedToSwitch() || h.getIPv4Address() == null) {
 			// host is not attached to switch, do not make a rule
 			return;
 		}
-		
-		// Create an OFMatch object which matches IPv4 packets with a Host's IP
-		OFMatch temp = new OFMatch();
-		temp.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-		temp.setNetworkDestination(h.getIPv4Address());
-		
+
+		int targetPort = getOutPort(h);
+		if (targetPort < 0) {
+			return;
+		}
+
 		// Track the rules we add
-		l3Rules.add(temp);
-		
-		int targetPort = -1;
-		IOFSwitch targetSw = h.getSwitch();
-		
-		if (targetSw.equals(sw)) {
-			// the host is connected to this switch. add a rule to route to host port.
-			targetPort = h.getPort();
-		} else {
-			// the host is connected to another switch. Use the given DijkstraList to determine
-			// routing for this host.
-			Map<Long, DijkstraNode> pathMap = paths.getPaths().get(sw);
-			long currentSwID = targetSw.getId();
-			if (pathMap == null) {
-				System.out.println("WARNING: pathMap NULL!");
-				return;
-			} else if (pathMap.get(currentSwID) == null) {
-				System.out.println("WARNING: pathMap.get() NULL!");
-				return;
-			} else if (pathMap.get(currentSwID).getPrevSwitch() == null) {
-				System.out.println("WARNING: pathMap.get().getPrevSwitch() NULL!");
-				return;
-			} else if (sw == null) {
-				System.out.println("WARNING: sw NULL!");
-				return;
-			}
-			while (!pathMap.get(currentSwID).getPrevSwitch().equals(sw)) {
-				currentSwID = pathMap.get(currentSwID).getPrevSwitch().getId();
-			}
-			// after this loop, currentSwID contains the ID of the next switch in the path to this host.
-			
-			// Find the link between our switch and the target switch to determine the right port to send the 
-			// packet out of.
-			System.out.println("DEBUG: Searching for link between Sw: " + sw.getId() + " and Sw: " + currentSwID);
-			for (Link l : links) {
-				if (l.getSrc() == sw.getId() && l.getDst() == currentSwID) {
-					targetPort = l.getSrcPort();
-					break;
-				} else if (l.getDst() == sw.getId() && l.getSrc() == currentSwID) {
-					targetPort = l.getDstPort();
-					break;
-				}
-			}
+		l3Rules.put(h.getIPv4Address(), targetPort);
+		if (aggregate) {
+			syncPrefixes();
+			return;
 		}
-		
-		// After we find our port, construct our action to execute.
-		OFActionOutput outPort = new OFActionOutput(targetPort);
-		ArrayList<OFAction> actList = new ArrayList<OFAction>();
-		actList.add(outPort);
-		OFInstructionApplyActions instruction = new OFInstructionApplyActions(actList);
-		ArrayList<OFInstruction> instrList = new ArrayList<OFInstruction>();
-		instrList.add(instruction);
-		
-		System.out.println("DEBUG: Adding rule to Switch: " + sw.getId() + " for Host: " + h.getIPv4Address() + " at Port: " + outPort);
-		SwitchCommands.installRule(sw, L3Routing.table, SwitchCommands.DEFAULT_PRIORITY, temp, instrList);
+
+		System.out.println("DEBUG: Adding rule to Switch: " + sw.getId() + " for Host: " + h.getIPv4Address() + " at Port: " + targetPort);
+		SwitchCommands.installRule(sw, L3Routing.table, SwitchCommands.DEFAULT_PRIORITY,
+				getMatch(h.getIPv4Address()), getInstructions(targetPort));
 	}
-	
+
 	public void removeRuleRouteIP(Host h) {
-		// Create the rule that we need to remove.
-		OFMatch temp = new OFMatch();
-		temp.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-		temp.setNetworkDestination(h.getIPv4Address());
-		
+		if (h.getIPv4Address() == null) {
+			return;
+		}
+
 		// Remove the rule from our tracked list.
-		l3Rules.remove(temp);
-		
+		if (l3Rules.remove(h.getIPv4Address()) != null && aggregate) {
+			syncPrefixes();
+			return;
+		}
+
 		// Use the SwitchCommands class to remove the rule from the table.
-		
-		if(SwitchCommands.removeRules(sw, L3Routing.table, temp)) {
+
+		if(SwitchCommands.removeRules(sw, L3Routing.table, getMatch(h.getIPv4Address()))) {
 			System.out.println("DEBUG: Removing rule from Switch: " + sw.getId() + " for Host: " + h.getIPv4Address());
 		}
 	}
-	
+
 	public void reset() {
-		if (l3Rules.isEmpty()) {
+		if (l3Rules.isEmpty() && prefixRules.isEmpty()) {
 			return;
 		}
-		
-		int count = 0;
-		for (OFMatch m : l3Rules) {
-			SwitchCommands.removeRules(sw, L3Routing.table, m);
-			count += 1;
+
+		FlowModBatch batch = new FlowModBatch(sw);
+		if (aggregate) {
+			for (Long prefix : prefixRules.keySet()) {
+				batch.removeRule(L3Routing.table, getPrefixPriority(prefix), getPrefixMatch(prefix));
+			}
+		} else {
+			for (Integer ip : l3Rules.keySet()) {
+				batch.removeRules(L3Routing.table, getMatch(ip));
+			}
 		}
-		
+		int count = batch.size();
+		batch.send();
+
 		l3Rules.clear();
-		
+		prefixRules.clear();
+
 		System.out.println("DEBUG: Removed " + count + " rules from Switch: " + sw.getId());
 	}
+
+	/**
+	 * Brings the rules in this switch in line with the current paths, sending only the changes.
+	 * Rules for new hosts are added, rules whose out port moved are modified in place, and rules for
+	 * hosts that are gone or can no longer be reached are deleted. Rules that are already right are
+	 * left alone. The changes are sent to the switch as one FlowModBatch.
+	 *
+	 * @param hosts - All hosts in the network.
+	 * @return - The number of flow-mods sent to the switch.
+	 */
+	public int reconcile(Collection<Host> hosts) {
+		// Work out what the table should look like.
+		Map<Integer, Integer> desired = new HashMap<Integer, Integer>();
+		for (Host h : hosts) {
+			if (!h.isAttachedToSwitch() || h.getIPv4Address() == null) {
+				continue;
+			}
+			int port = getOutPort(h);
+			if (port >= 0) {
+				desired.put(h.getIPv4Address(), port);
+			}
+		}
+		if (aggregate) {
+			l3Rules = desired;
+			return syncPrefixes();
+		}
+
+		int adds = 0;
+		int modifies = 0;
+		int deletes = 0;
+		FlowModBatch batch = new FlowModBatch(sw);
+
+		// Delete rules for hosts we no longer have a route to.
+		Iterator<Map.Entry<Integer, Integer>> it = l3Rules.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Integer> entry = it.next();
+			if (!desired.containsKey(entry.getKey())) {
+				batch.removeRule(L3Routing.table, SwitchCommands.DEFAULT_PRIORITY, getMatch(entry.getKey()));
+				it.remove();
+				deletes++;
+			}
+		}
+
+		// Add rules for new hosts and point moved ones at their new port.
+		for (Map.Entry<Integer, Integer> entry : desired.entrySet()) {
+			Integer oldPort = l3Rules.put(entry.getKey(), entry.getValue());
+			if (oldPort == null) {
+				batch.installRule(L3Routing.table, SwitchCommands.DEFAULT_PRIORITY,
+						getMatch(entry.getKey()), getInstructions(entry.getValue()));
+				adds++;
+			} else if (!oldPort.equals(entry.getValue())) {
+				batch.modifyRule(L3Routing.table, SwitchCommands.DEFAULT_PRIORITY,
+						getMatch(entry.getKey()), getInstructions(entry.getValue()));
+				modifies++;
+			}
+		}
+
+		// All of the changes go to the switch in one write.
+		batch.send();
+
+		if (adds + modifies + deletes > 0) {
+			System.out.println("DEBUG: Reconciled Switch: " + sw.getId() + " with " + adds + " adds, "
+					+ modifies + " modifies, " + deletes + " deletes.");
+		}
+		return adds + modifies + deletes;
+	}
+
+	/**
+	 * Brings the rule for a single host in line with the current paths. This is reconcile() for one
+	 * host, used when a host moves or joins.
+	 *
+	 * @param h - The host whose rule should be checked.
+	 * @return - The number of flow-mods sent to the switch.
+	 */
+	public int reconcileHost(Host h) {
+		Integer ip = h.getIPv4Address();
+		if (ip == null) {
+			return 0;
+		}
+
+		int port = h.isAttachedToSwitch() ? getOutPort(h) : -1;
+		if (aggregate) {
+			Integer oldPort = (port < 0) ? l3Rules.remove(ip) : l3Rules.put(ip, port);
+			if (oldPort == null ? port < 0 : oldPort == port) {
+				return 0;
+			}
+			return syncPrefixes();
+		}
+
+		Integer oldPort = l3Rules.get(ip);
+		if (port < 0) {
+			if (oldPort == null) {
+				return 0;
+			}
+			l3Rules.remove(ip);
+			SwitchCommands.removeRule(sw, L3Routing.table, SwitchCommands.DEFAULT_PRIORITY, getMatch(ip));
+		} else if (oldPort == null) {
+			l3Rules.put(ip, port);
+			SwitchCommands.installRule(sw, L3Routing.table, SwitchCommands.DEFAULT_PRIORITY,
+					getMatch(ip), getInstructions(port));
+		} else if (oldPort != port) {
+			l3Rules.put(ip, port);
+			SwitchCommands.modifyRule(sw, L3Routing.table, SwitchCommands.DEFAULT_PRIORITY,
+					getMatch(ip), getInstructions(port));
+		} else {
+			return 0;
+		}
+		return 1;
+	}
+
+	/**
+	 * Aggregates the host routes in l3Rules and brings the prefix rules in the switch in line with the
+	 * result, sending only the prefixes that changed as one FlowModBatch.
+	 *
+	 * @return - The number of flow-mods sent to the switch.
+	 */
+	private int syncPrefixes() {
+		Map<Long, Integer> desired = PrefixAggregator.aggregate(l3Rules);
+		FlowModBatch batch = new FlowModBatch(sw);
+
+		Iterator<Map.Entry<Long, Integer>> it = prefixRules.entrySet().iterator();
+		while (it.hasNext()) {
+			Long prefix = it.next().getKey();
+			if (!desired.containsKey(prefix)) {
+				batch.removeRule(L3Routing.table, getPrefixPriority(prefix), getPrefixMatch(prefix));
+				it.remove();
+			}
+		}
+
+		for (Map.Entry<Long, Integer> entry : desired.entrySet()) {
+			Long prefix = entry.getKey();
+			Integer oldPort = prefixRules.put(prefix, entry.getValue());
+			if (oldPort == null) {
+				batch.installRule(L3Routing.table, getPrefixPriority(prefix), getPrefixMatch(prefix),
+						getInstructions(entry.getValue()));
+			} else if (!oldPort.equals(entry.getValue())) {
+				batch.modifyRule(L3Routing.table, getPrefixPriority(prefix), getPrefixMatch(prefix),
+						getInstructions(entry.getValue()));
+			}
+		}
+
+		int count = batch.size();
+		batch.send();
+
+		if (count > 0) {
+			System.out.println("DEBUG: Aggregated " + l3Rules.size() + " host routes on Switch: " + sw.getId()
+					+ " into " + prefixRules.size() + " prefix rules with " + count + " flow-mods.");
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the port on this switch that packets for a host should be sent out of. The port comes from
+	 * the next hop table DijkstraList builds when it computes paths, so this is O(1).
+	 *
+	 * @param h - The host, which must be attached to a switch.
+	 * @return - The port, or -1 if there is no path to the host.
+	 */
+	private int getOutPort(Host h) {
+		IOFSwitch targetSw = h.getSwitch();
+		if (targetSw.equals(sw)) {
+			// the host is connected to this switch. add a rule to route to host port.
+			return h.getPort();
+		}
+
+		// the host is connected to another switch, so send it towards that switch.
+		int targetPort = paths.getNextHopPort(sw.getId(), targetSw.getId());
+		if (targetPort == ShortestPathEngine.NO_PORT) {
+			System.out.println("WARNING: no path from Switch: " + sw.getId() + " to Switch: " + targetSw.getId());
+			return -1;
+		}
+		return targetPort;
+	}
+
+	/**
+	 * Creates an OFMatch object which matches IPv4 packets with a Host's IP.
+	 */
+	private static OFMatch getMatch(int hostIP) {
+		OFMatch temp = new OFMatch();
+		temp.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		temp.setNetworkDestination(hostIP);
+		return temp;
+	}
+
+	/**
+	 * Creates an OFMatch object which matches IPv4 packets within a prefix.
+	 */
+	private static OFMatch getPrefixMatch(Long prefix) {
+		int length = PrefixAggregator.getLength(prefix);
+		if (length == 32) {
+			return getMatch(PrefixAggregator.getAddress(prefix));
+		}
+		OFMatch temp = new OFMatch();
+		temp.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		if (length > 0) {
+			temp.setNetworkDestinationMask(PrefixAggregator.getAddress(prefix), PrefixAggregator.getMask(length));
+		}
+		return temp;
+	}
+
+	/**
+	 * Longer prefixes get higher priorities, so the switch matches them longest prefix first.
+	 */
+	private static short getPrefixPriority(Long prefix) {
+		return (short) (SwitchCommands.DEFAULT_PRIORITY + PrefixAggregator.getLength(prefix));
+	}
+
+	/**
+	 * Creates the instructions which send a packet out of the given port. A DROP prefix gets no
+	 * instructions, so matching packets are dropped.
+	 * 
+	 * A DROP prefix stands for the table miss an unknown address gets without aggregation, and the
+	 * aggregator only emits one to carve a hole out of a shorter prefix. Dropping matches the table miss
+	 * only because the routing table has no table-miss rule, so a miss drops under OpenFlow 1.3. If a
+	 * table-miss rule is ever added to that table (to send misses to the controller, say), DROP prefixes
+	 * must get its instructions instead.
+	 */
+	private static ArrayList<OFInstruction> getInstructions(int port) {
+		if (port == PrefixAggregator.DROP) {
+			return new ArrayList<OFInstruction>();
+		}
+		OFActionOutput outPort = new OFActionOutput(port);
+		ArrayList<OFAction> actList = new ArrayList<OFAction>();
+		actList.add(outPort);
+		OFInstructionApplyActions instruction = new OFInstructionApplyActions(actList);
+		ArrayList<OFInstruction> instrList = new ArrayList<OFInstruction>();
+		instrList.add(instruction);
+		return instrList;
+	}
 }
@@ -0,0 +1,1031 @@
+package studentCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * The ShortestPathEngine class keeps a shortest path tree rooted at every switch in the network and
+ * repairs only the trees that are affected when a switch or link comes or goes.
+ *
+ * Switches are keyed on their DPID and mapped to dense indices, so all of the per-tree state and the
+ * adjacency lists are kept in primitive arrays. Each tree is grown with a binary heap frontier. When a
+ * link is added, a tree is only searched again from the far end of the link, and only if the link gives
+ * a strictly shorter path. When a link is removed, only the trees that used it are touched, and in
+ * those trees only the subtree hanging below the link is recomputed.
+ *
+ * Every update returns the (switch, destination) pairs whose egress port actually changed, so callers
+ * can reprogram just those entries.
+ *
+ * This class is not thread safe. Callers must serialize updates and queries. Given an executor, a full
+ * recompute grows the trees on several threads, each with its own heap and change tracking; the trees
+ * write disjoint rows, so they need no locking between them.
+ *
+ * @author cworm
+ *
+ */
+public class ShortestPathEngine {
+
+	/** Port value reported when a destination cannot be reached (or is the switch itself). */
+	public static final int NO_PORT = -1;
+
+	/** Distance value reported when a destination cannot be reached. */
+	public static final int INFINITY = Integer.MAX_VALUE;
+
+	/** Weight given to links added without an explicit weight. */
+	public static final int DEFAULT_WEIGHT = 1;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NO_EDGE = -1;
+
+	// Switch bookkeeping. Indices of removed switches are reused.
+	private Map<Long, Integer> switchIndex;
+	private long[] dpids;
+	private boolean[] live;
+	private int[] freeSwitches;
+	private int freeSwitchCount;
+	private int switchHighWater;
+	private int switchCount;
+	private int switchCapacity;
+
+	// Edge bookkeeping. Indices of removed edges are reused.
+	private Map<Link, Integer> edgeIndex;
+	private int[] edgeSrc;
+	private int[] edgeDst;
+	private int[] edgeSrcPort;
+	private int[] edgeWeight;
+	private Link[] edgeLinks;
+	private int[] freeEdges;
+	private int freeEdgeCount;
+	private int edgeHighWater;
+	private int edgeCapacity;
+
+	// Adjacency lists of edge indices, per switch index.
+	private int[][] outEdges;
+	private int[] outDegree;
+	private int[][] inEdges;
+	private int[] inDegree;
+
+	// Shortest path trees, indexed [root][switch].
+	private int[][] dist;
+	private int[][] parentEdge;
+	private int[][] firstHopPort;
+	private long[] treeVersion;
+
+	// Scratch space reused by every update.
+	private TreeScratch scratch;
+	private int stamp;
+	private int[] affectedStamp;
+	private int[] stack;
+	private int[] subtree;
+
+	// Threads a full recompute is spread over, and the scratch space for each, kept between calls.
+	private ExecutorService executor;
+	private int parallelism;
+	private TreeScratch[] workerScratch;
+
+	/**
+	 * Constructor for an empty ShortestPathEngine.
+	 */
+	public ShortestPathEngine() {
+		this.switchIndex = new HashMap<Long, Integer>();
+		this.edgeIndex = new HashMap<Link, Integer>();
+		this.switchCapacity = 0;
+		this.edgeCapacity = 0;
+		growSwitches(INITIAL_CAPACITY);
+		growEdges(INITIAL_CAPACITY);
+		this.parallelism = 1;
+	}
+
+	/**
+	 * Lets recomputeAll() grow the trees on several threads at once. Updates and queries must still be
+	 * serialized by the caller; the executor is only used while an update is running.
+	 *
+	 * @param executor - The pool to grow trees on, or null to grow them all on the calling thread.
+	 * @param parallelism - The number of tasks to split the trees into.
+	 */
+	public void setExecutor(ExecutorService executor, int parallelism) {
+		this.executor = executor;
+		this.parallelism = Math.max(1, parallelism);
+		this.workerScratch = null;
+	}
+
+	/**
+	 * Returns the number of switches currently known to the engine.
+	 *
+	 * @return - The number of switches.
+	 */
+	public int getSwitchCount() {
+		return this.switchCount;
+	}
+
+	/**
+	 * Returns the number of links currently known to the engine.
+	 *
+	 * @return - The number of links.
+	 */
+	public int getLinkCount() {
+		return this.edgeIndex.size();
+	}
+
+	/**
+	 * Checks whether a switch is known to the engine.
+	 *
+	 * @param dpid - The DPID of the switch.
+	 * @return - true if the switch is known, false otherwise.
+	 */
+	public boolean containsSwitch(long dpid) {
+		return this.switchIndex.containsKey(dpid);
+	}
+
+	/**
+	 * Checks whether a link is known to the engine.
+	 *
+	 * @param link - The link to look for.
+	 * @return - true if the link is known, false otherwise.
+	 */
+	public boolean containsLink(Link link) {
+		return this.edgeIndex.containsKey(link);
+	}
+
+	/**
+	 * Returns the DPIDs of all switches known to the engine.
+	 *
+	 * @return - A new list holding the DPIDs.
+	 */
+	public List<Long> getSwitches() {
+		return new ArrayList<Long>(this.switchIndex.keySet());
+	}
+
+	/**
+	 * Returns all links known to the engine.
+	 *
+	 * @return - A new list holding the links.
+	 */
+	public List<Link> getLinks() {
+		return new ArrayList<Link>(this.edgeIndex.keySet());
+	}
+
+	/**
+	 * Returns the number of hops on the shortest path between two switches.
+	 *
+	 * @param src - The DPID of the switch the path starts at.
+	 * @param dst - The DPID of the switch the path ends at.
+	 * @return - The distance, or INFINITY if either switch is unknown or there is no path.
+	 */
+	public int getDistance(long src, long dst) {
+		Integer r = this.switchIndex.get(src);
+		Integer x = this.switchIndex.get(dst);
+		if (r == null || x == null) {
+			return INFINITY;
+		}
+		return this.dist[r][x];
+	}
+
+	/**
+	 * Returns the port on a switch that packets for another switch should be sent out of.
+	 *
+	 * @param src - The DPID of the switch the packet is on.
+	 * @param dst - The DPID of the switch the packet is headed for.
+	 * @return - The egress port, or NO_PORT if the switches are the same, unknown, or not connected.
+	 */
+	public int getNextHopPort(long src, long dst) {
+		Integer r = this.switchIndex.get(src);
+		Integer x = this.switchIndex.get(dst);
+		if (r == null || x == null) {
+			return NO_PORT;
+		}
+		return this.firstHopPort[r][x];
+	}
+
+	/**
+	 * Returns the dense index the engine keeps a switch under. Indices are stable while the switch is
+	 * known, and can be used with copyNextHopPorts() to look up next hops without hashing.
+	 *
+	 * @param dpid - The DPID of the switch.
+	 * @return - The index, or -1 if the switch is unknown.
+	 */
+	public int getSwitchIndex(long dpid) {
+		Integer x = this.switchIndex.get(dpid);
+		return (x == null) ? -1 : x;
+	}
+
+	/**
+	 * Returns a copy of a switch's next hop ports, indexed by destination switch index.
+	 *
+	 * @param src - The DPID of the switch the packets are on.
+	 * @return - The egress port for every destination index, NO_PORT where there is none, or null if the
+	 *         switch is unknown.
+	 */
+	public int[] copyNextHopPorts(long src) {
+		Integer r = this.switchIndex.get(src);
+		if (r == null) {
+			return null;
+		}
+		return Arrays.copyOf(this.firstHopPort[r], this.switchHighWater);
+	}
+
+	/**
+	 * Returns the switch right before the destination on the shortest path between two switches.
+	 *
+	 * @param src - The DPID of the switch the path starts at.
+	 * @param dst - The DPID of the switch the path ends at.
+	 * @return - The DPID of the previous switch, or null if there is no such switch.
+	 */
+	public Long getPredecessor(long src, long dst) {
+		Integer r = this.switchIndex.get(src);
+		Integer x = this.switchIndex.get(dst);
+		if (r == null || x == null) {
+			return null;
+		}
+		int e = this.parentEdge[r][x];
+		if (e == NO_EDGE) {
+			return null;
+		}
+		return this.dpids[this.edgeSrc[e]];
+	}
+
+	/**
+	 * Returns a counter that goes up every time the shortest path tree of a switch is modified. Callers
+	 * which cache something derived from a tree can compare versions to see if it is stale.
+	 *
+	 * @param dpid - The DPID of the root switch.
+	 * @return - The version of the tree, or -1 if the switch is unknown.
+	 */
+	public long getTreeVersion(long dpid) {
+		Integer r = this.switchIndex.get(dpid);
+		if (r == null) {
+			return -1;
+		}
+		return this.treeVersion[r];
+	}
+
+	/**
+	 * Adds a switch with no links to the engine. Nothing changes for any other switch until links to
+	 * the new switch are added.
+	 *
+	 * @param dpid - The DPID of the new switch.
+	 * @return - true if the switch was added, false if it was already known.
+	 */
+	public boolean addSwitch(long dpid) {
+		if (this.switchIndex.containsKey(dpid)) {
+			return false;
+		}
+
+		int idx;
+		if (this.freeSwitchCount > 0) {
+			idx = this.freeSwitches[--this.freeSwitchCount];
+		} else {
+			if (this.switchHighWater == this.switchCapacity) {
+				growSwitches(this.switchCapacity * 2);
+			}
+			idx = this.switchHighWater++;
+		}
+
+		this.switchIndex.put(dpid, idx);
+		this.dpids[idx] = dpid;
+		this.live[idx] = true;
+		this.outDegree[idx] = 0;
+		this.inDegree[idx] = 0;
+		this.switchCount++;
+
+		// The new switch can reach only itself and nobody can reach it yet.
+		Arrays.fill(this.dist[idx], 0, this.switchHighWater, INFINITY);
+		Arrays.fill(this.parentEdge[idx], 0, this.switchHighWater, NO_EDGE);
+		Arrays.fill(this.firstHopPort[idx], 0, this.switchHighWater, NO_PORT);
+		this.dist[idx][idx] = 0;
+		for (int r = 0; r < this.switchHighWater; r++) {
+			if (r != idx) {
+				this.dist[r][idx] = INFINITY;
+				this.parentEdge[r][idx] = NO_EDGE;
+				this.firstHopPort[r][idx] = NO_PORT;
+			}
+		}
+		this.treeVersion[idx]++;
+
+		return true;
+	}
+
+	/**
+	 * Removes a switch and every link to or from it.
+	 *
+	 * @param dpid - The DPID of the switch to remove.
+	 * @return - The next hops that changed at the remaining switches.
+	 */
+	public List<NextHopChange> removeSwitch(long dpid) {
+		List<NextHopChange> changes = new ArrayList<NextHopChange>();
+		Integer idx = this.switchIndex.get(dpid);
+		if (idx == null) {
+			return changes;
+		}
+
+		// Taking the links away first lets the other trees repair themselves as usual.
+		while (this.outDegree[idx] > 0) {
+			removeEdge(this.outEdges[idx][this.outDegree[idx] - 1], changes);
+		}
+		while (this.inDegree[idx] > 0) {
+			removeEdge(this.inEdges[idx][this.inDegree[idx] - 1], changes);
+		}
+
+		// Entries owned by the removed switch go away with it, so do not report them.
+		int kept = 0;
+		for (NextHopChange c : changes) {
+			if (c.getSwitch() != dpid) {
+				changes.set(kept++, c);
+			}
+		}
+		while (changes.size() > kept) {
+			changes.remove(changes.size() - 1);
+		}
+
+		changes = coalesce(changes);
+		this.switchIndex.remove(dpid);
+		this.live[idx] = false;
+		this.treeVersion[idx]++;
+		this.freeSwitches[this.freeSwitchCount++] = idx;
+		this.switchCount--;
+
+		return changes;
+	}
+
+	/**
+	 * Adds a link with the default weight. The link is ignored if either end is not a known switch.
+	 *
+	 * @param link - The directed link to add.
+	 * @return - The next hops that changed.
+	 */
+	public List<NextHopChange> addLink(Link link) {
+		return addLink(link, DEFAULT_WEIGHT);
+	}
+
+	/**
+	 * Adds a link. The link is ignored if either end is not a known switch or it is already known.
+	 *
+	 * @param link - The directed link to add.
+	 * @param weight - The cost of crossing the link. Must be positive.
+	 * @return - The next hops that changed.
+	 */
+	public List<NextHopChange> addLink(Link link, int weight) {
+		List<NextHopChange> changes = new ArrayList<NextHopChange>();
+		int e = insertEdge(link, weight);
+		if (e == NO_EDGE) {
+			return changes;
+		}
+		int u = this.edgeSrc[e];
+		int v = this.edgeDst[e];
+
+		// A new link can only shorten paths, and only in trees where it beats the current way to v.
+		for (int r = 0; r < this.switchHighWater; r++) {
+			if (!this.live[r] || this.dist[r][u] == INFINITY
+					|| this.dist[r][u] + weight >= this.dist[r][v]) {
+				continue;
+			}
+			this.scratch.beginTree();
+			this.scratch.relax(r, e, this.dist[r][u] + weight);
+			this.scratch.runDijkstra(r);
+			this.scratch.endTree(r, changes);
+		}
+
+		return changes;
+	}
+
+	/**
+	 * Adds many links with the default weight. If there are more new links than switches, the links are
+	 * all put in the graph first and the trees are recomputed once, instead of once per link.
+	 *
+	 * @param links - The directed links to add.
+	 * @return - The next hops that changed.
+	 */
+	public List<NextHopChange> addLinks(Collection<Link> links) {
+		if (links.size() <= this.switchCount) {
+			List<NextHopChange> changes = new ArrayList<NextHopChange>();
+			for (Link link : links) {
+				changes.addAll(addLink(link));
+			}
+			return changes;
+		}
+		for (Link link : links) {
+			insertEdge(link, DEFAULT_WEIGHT);
+		}
+		return recomputeAll();
+	}
+
+	/**
+	 * Removes a link.
+	 *
+	 * @param link - The directed link to remove.
+	 * @return - The next hops that changed.
+	 */
+	public List<NextHopChange> removeLink(Link link) {
+		List<NextHopChange> changes = new ArrayList<NextHopChange>();
+		Integer e = this.edgeIndex.get(link);
+		if (e != null) {
+			removeEdge(e, changes);
+		}
+		return changes;
+	}
+
+	/**
+	 * Throws away every tree and computes them all again from scratch. This is cheaper than a long run of
+	 * single link updates when most of the network changed at once.
+	 *
+	 * @return - The next hops that changed.
+	 */
+	public List<NextHopChange> recomputeAll() {
+		if (this.executor == null || this.parallelism < 2 || this.switchCount < 2) {
+			List<NextHopChange> changes = new ArrayList<NextHopChange>();
+			for (int r = 0; r < this.switchHighWater; r++) {
+				recomputeTree(r, this.scratch, changes);
+			}
+			return changes;
+		}
+
+		if (this.workerScratch == null) {
+			this.workerScratch = new TreeScratch[this.parallelism];
+			for (int w = 0; w < this.parallelism; w++) {
+				this.workerScratch[w] = new TreeScratch(this.switchCapacity);
+			}
+		}
+
+		// Deal the roots out in turn, so every task gets a similar share of live switches.
+		List<Callable<List<NextHopChange>>> tasks = new ArrayList<Callable<List<NextHopChange>>>();
+		for (int w = 0; w < this.parallelism; w++) {
+			final int first = w;
+			final TreeScratch s = this.workerScratch[w];
+			tasks.add(new Callable<List<NextHopChange>>() {
+				@Override
+				public List<NextHopChange> call() {
+					List<NextHopChange> changes = new ArrayList<NextHopChange>();
+					for (int r = first; r < switchHighWater; r += parallelism) {
+						recomputeTree(r, s, changes);
+					}
+					return changes;
+				}
+			});
+		}
+		List<NextHopChange> changes = new ArrayList<NextHopChange>();
+		for (List<NextHopChange> part : invokeAll(this.executor, tasks)) {
+			changes.addAll(part);
+		}
+		return changes;
+	}
+
+	/**
+	 * Runs tasks on an executor and waits for all of them. Waiting is not cut short by an interrupt,
+	 * since the caller's data is only consistent again once every task is done; the interrupt is kept
+	 * for the caller to see.
+	 *
+	 * @param executor - The executor to run the tasks on.
+	 * @param tasks - The tasks.
+	 * @return - The results, in the same order as the tasks.
+	 */
+	static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (Callable<T> task : tasks) {
+			futures.add(executor.submit(task));
+		}
+		List<T> results = new ArrayList<T>();
+		boolean interrupted = false;
+		try {
+			for (Future<T> future : futures) {
+				while (true) {
+					try {
+						results.add(future.get());
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException e) {
+						throw new IllegalStateException("Path computation failed", e.getCause());
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Combines a list of next hop changes so that each (switch, destination) pair is reported once,
+	 * going from its first old port to its last new port. Pairs that ended up where they started are
+	 * dropped.
+	 *
+	 * @param changes - The changes, oldest first.
+	 * @return - The combined list.
+	 */
+	public static List<NextHopChange> coalesce(List<NextHopChange> changes) {
+		Map<List<Long>, NextHopChange> merged = new LinkedHashMap<List<Long>, NextHopChange>();
+		for (NextHopChange c : changes) {
+			List<Long> key = Arrays.asList(c.getSwitch(), c.getDestination());
+			NextHopChange prev = merged.get(key);
+			int oldPort = (prev == null) ? c.getOldPort() : prev.getOldPort();
+			merged.put(key, new NextHopChange(c.getSwitch(), c.getDestination(), oldPort, c.getNewPort()));
+		}
+		List<NextHopChange> result = new ArrayList<NextHopChange>();
+		for (NextHopChange c : merged.values()) {
+			if (c.getOldPort() != c.getNewPort()) {
+				result.add(c);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Throws away one tree and grows it again from its root.
+	 *
+	 * @param r - The index of the root switch; nothing is done if it is not live.
+	 * @param s - The scratch space to grow the tree with.
+	 * @param changes - The list that changed next hops are added to.
+	 */
+	private void recomputeTree(int r, TreeScratch s, List<NextHopChange> changes) {
+		if (!this.live[r]) {
+			return;
+		}
+		s.beginTree();
+		for (int x = 0; x < this.switchHighWater; x++) {
+			if (this.live[x]) {
+				s.touch(r, x);
+				this.dist[r][x] = INFINITY;
+				this.parentEdge[r][x] = NO_EDGE;
+				this.firstHopPort[r][x] = NO_PORT;
+			}
+		}
+		this.dist[r][r] = 0;
+		s.heap.insertOrDecrease(r, 0);
+		s.runDijkstra(r);
+		s.endTree(r, changes);
+	}
+
+	/**
+	 * Puts a link in the graph without touching any tree.
+	 *
+	 * @param link - The directed link to add.
+	 * @param weight - The cost of crossing the link.
+	 * @return - The index of the new edge, or NO_EDGE if the link was ignored.
+	 */
+	private int insertEdge(Link link, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("Link weight must be positive: " + weight);
+		}
+		if (this.edgeIndex.containsKey(link)) {
+			return NO_EDGE;
+		}
+		Integer u = this.switchIndex.get(link.getSrc());
+		Integer v = this.switchIndex.get(link.getDst());
+		if (u == null || v == null || u.intValue() == v.intValue()) {
+			return NO_EDGE;
+		}
+
+		int e;
+		if (this.freeEdgeCount > 0) {
+			e = this.freeEdges[--this.freeEdgeCount];
+		} else {
+			if (this.edgeHighWater == this.edgeCapacity) {
+				growEdges(this.edgeCapacity * 2);
+			}
+			e = this.edgeHighWater++;
+		}
+		this.edgeIndex.put(link, e);
+		this.edgeLinks[e] = link;
+		this.edgeSrc[e] = u;
+		this.edgeDst[e] = v;
+		this.edgeSrcPort[e] = link.getSrcPort();
+		this.edgeWeight[e] = weight;
+		this.outEdges[u] = append(this.outEdges[u], this.outDegree[u]++, e);
+		this.inEdges[v] = append(this.inEdges[v], this.inDegree[v]++, e);
+		return e;
+	}
+
+	/**
+	 * Unlinks an edge from the graph and repairs every tree that used it.
+	 *
+	 * @param e - The index of the edge.
+	 * @param changes - The list that changed next hops are added to.
+	 */
+	private void removeEdge(int e, List<NextHopChange> changes) {
+		int u = this.edgeSrc[e];
+		int v = this.edgeDst[e];
+		this.outDegree[u] = detach(this.outEdges[u], this.outDegree[u], e);
+		this.inDegree[v] = detach(this.inEdges[v], this.inDegree[v], e);
+		this.edgeIndex.remove(this.edgeLinks[e]);
+		this.edgeLinks[e] = null;
+		this.freeEdges[this.freeEdgeCount++] = e;
+
+		for (int r = 0; r < this.switchHighWater; r++) {
+			// Trees that did not use the link are still shortest path trees.
+			if (!this.live[r] || this.parentEdge[r][v] != e) {
+				continue;
+			}
+			this.scratch.beginTree();
+
+			// Everything below v in this tree lost its path. Collect and reset it.
+			int affected = ++this.stamp;
+			int top = 0;
+			int count = 0;
+			this.stack[top++] = v;
+			while (top > 0) {
+				int x = this.stack[--top];
+				this.affectedStamp[x] = affected;
+				this.subtree[count++] = x;
+				for (int i = 0; i < this.outDegree[x]; i++) {
+					int f = this.outEdges[x][i];
+					int y = this.edgeDst[f];
+					if (this.parentEdge[r][y] == f) {
+						this.stack[top++] = y;
+					}
+				}
+			}
+
+			for (int i = 0; i < count; i++) {
+				int x = this.subtree[i];
+				this.scratch.touch(r, x);
+				this.dist[r][x] = INFINITY;
+				this.parentEdge[r][x] = NO_EDGE;
+				this.firstHopPort[r][x] = NO_PORT;
+			}
+
+			// Seed each reset switch with its best way in from the part of the tree that is still valid.
+			for (int i = 0; i < count; i++) {
+				int x = this.subtree[i];
+				for (int j = 0; j < this.inDegree[x]; j++) {
+					int f = this.inEdges[x][j];
+					int y = this.edgeSrc[f];
+					if (this.affectedStamp[y] != affected && this.dist[r][y] != INFINITY
+							&& this.dist[r][y] + this.edgeWeight[f] < this.dist[r][x]) {
+						this.scratch.relax(r, f, this.dist[r][y] + this.edgeWeight[f]);
+					}
+				}
+			}
+			this.scratch.runDijkstra(r);
+			this.scratch.endTree(r, changes);
+		}
+	}
+
+	/**
+	 * Grows every per-switch array so it can hold the given number of switches.
+	 *
+	 * @param capacity - The new capacity.
+	 */
+	private void growSwitches(int capacity) {
+		int old = this.switchCapacity;
+		this.dpids = grow(this.dpids, capacity);
+		this.live = grow(this.live, capacity);
+		this.freeSwitches = grow(this.freeSwitches, capacity);
+		this.outDegree = grow(this.outDegree, capacity);
+		this.inDegree = grow(this.inDegree, capacity);
+		this.treeVersion = grow(this.treeVersion, capacity);
+		this.affectedStamp = grow(this.affectedStamp, capacity);
+		this.stack = grow(this.stack, capacity);
+		this.subtree = grow(this.subtree, capacity);
+
+		int[][] newOut = new int[capacity][];
+		int[][] newIn = new int[capacity][];
+		int[][] newDist = new int[capacity][];
+		int[][] newParent = new int[capacity][];
+		int[][] newPort = new int[capacity][];
+		for (int r = 0; r < capacity; r++) {
+			newOut[r] = (r < old) ? this.outEdges[r] : new int[4];
+			newIn[r] = (r < old) ? this.inEdges[r] : new int[4];
+			newDist[r] = grow((r < old) ? this.dist[r] : null, capacity);
+			newParent[r] = grow((r < old) ? this.parentEdge[r] : null, capacity);
+			newPort[r] = grow((r < old) ? this.firstHopPort[r] : null, capacity);
+		}
+		this.outEdges = newOut;
+		this.inEdges = newIn;
+		this.dist = newDist;
+		this.parentEdge = newParent;
+		this.firstHopPort = newPort;
+
+		this.scratch = new TreeScratch(capacity);
+		this.workerScratch = null;
+		this.switchCapacity = capacity;
+	}
+
+	/**
+	 * Grows every per-edge array so it can hold the given number of edges.
+	 *
+	 * @param capacity - The new capacity.
+	 */
+	private void growEdges(int capacity) {
+		this.edgeSrc = grow(this.edgeSrc, capacity);
+		this.edgeDst = grow(this.edgeDst, capacity);
+		this.edgeSrcPort = grow(this.edgeSrcPort, capacity);
+		this.edgeWeight = grow(this.edgeWeight, capacity);
+		this.freeEdges = grow(this.freeEdges, capacity);
+		Link[] links = new Link[capacity];
+		if (this.edgeLinks != null) {
+			System.arraycopy(this.edgeLinks, 0, links, 0, this.edgeLinks.length);
+		}
+		this.edgeLinks = links;
+		this.edgeCapacity = capacity;
+	}
+
+	private static int[] grow(int[] a, int capacity) {
+		return (a == null) ? new int[capacity] : Arrays.copyOf(a, capacity);
+	}
+
+	private static long[] grow(long[] a, int capacity) {
+		return (a == null) ? new long[capacity] : Arrays.copyOf(a, capacity);
+	}
+
+	private static boolean[] grow(boolean[] a, int capacity) {
+		return (a == null) ? new boolean[capacity] : Arrays.copyOf(a, capacity);
+	}
+
+	/**
+	 * Stores a value at the end of an adjacency list, growing the list if it is full.
+	 */
+	private static int[] append(int[] list, int size, int value) {
+		if (size == list.length) {
+			list = Arrays.copyOf(list, size * 2);
+		}
+		list[size] = value;
+		return list;
+	}
+
+	/**
+	 * Removes a value from an adjacency list by moving the last entry into its place.
+	 *
+	 * @return - The new size of the list.
+	 */
+	private static int detach(int[] list, int size, int value) {
+		for (int i = 0; i < size; i++) {
+			if (list[i] == value) {
+				list[i] = list[size - 1];
+				return size - 1;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Describes a switch whose egress port toward a destination switch changed.
+	 *
+	 * @author cworm
+	 *
+	 */
+	public static class NextHopChange {
+		private final long sw;
+		private final long destination;
+		private final int oldPort;
+		private final int newPort;
+
+		/**
+		 * Constructor for a NextHopChange.
+		 *
+		 * @param sw - The DPID of the switch whose forwarding changed.
+		 * @param destination - The DPID of the destination switch.
+		 * @param oldPort - The egress port before the change, or NO_PORT.
+		 * @param newPort - The egress port after the change, or NO_PORT.
+		 */
+		public NextHopChange(long sw, long destination, int oldPort, int newPort) {
+			this.sw = sw;
+			this.destination = destination;
+			this.oldPort = oldPort;
+			this.newPort = newPort;
+		}
+
+		/**
+		 * Returns the DPID of the switch whose forwarding changed.
+		 */
+		public long getSwitch() {
+			return this.sw;
+		}
+
+		/**
+		 * Returns the DPID of the destination switch.
+		 */
+		public long getDestination() {
+			return this.destination;
+		}
+
+		/**
+		 * Returns the egress port before the change, or NO_PORT if the destination was unreachable.
+		 */
+		public int getOldPort() {
+			return this.oldPort;
+		}
+
+		/**
+		 * Returns the egress port after the change, or NO_PORT if the destination is now unreachable.
+		 */
+		public int getNewPort() {
+			return this.newPort;
+		}
+
+		@Override
+		public String toString() {
+			return "NextHopChange [sw=" + this.sw + ", dst=" + this.destination + ", " + this.oldPort
+					+ " -> " + this.newPort + "]";
+		}
+	}
+
+	/**
+	 * The heap and change tracking one tree is grown with. Each tree writes only its own row of dist,
+	 * parentEdge, firstHopPort and treeVersion, so threads with their own scratch can grow different
+	 * trees at once. The graph itself is read through the engine's fields.
+	 *
+	 * @author cworm
+	 *
+	 */
+	private class TreeScratch {
+		private IndexedHeap heap;
+		private int[] touchStamp;
+		private int[] touched;
+		private int[] oldPorts;
+		private int touchedCount;
+		private int stamp;
+
+		TreeScratch(int capacity) {
+			this.heap = new IndexedHeap(capacity);
+			this.touchStamp = new int[capacity];
+			this.touched = new int[capacity];
+			this.oldPorts = new int[capacity];
+		}
+
+		/**
+		 * Runs Dijkstra's algorithm for one tree from whatever is currently on the heap.
+		 *
+		 * @param r - The index of the root switch.
+		 */
+		void runDijkstra(int r) {
+			while (!this.heap.isEmpty()) {
+				int x = this.heap.pop();
+				int d = dist[r][x];
+				for (int i = 0; i < outDegree[x]; i++) {
+					int f = outEdges[x][i];
+					int nd = d + edgeWeight[f];
+					if (nd < dist[r][edgeDst[f]]) {
+						relax(r, f, nd);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Makes an edge the tree edge of its far end and puts that end on the heap.
+		 *
+		 * @param r - The index of the root switch.
+		 * @param f - The index of the edge.
+		 * @param nd - The new distance of the far end.
+		 */
+		void relax(int r, int f, int nd) {
+			int y = edgeDst[f];
+			int x = edgeSrc[f];
+			touch(r, y);
+			dist[r][y] = nd;
+			parentEdge[r][y] = f;
+			firstHopPort[r][y] = (x == r) ? edgeSrcPort[f] : firstHopPort[r][x];
+			this.heap.insertOrDecrease(y, nd);
+		}
+
+		/**
+		 * Starts recording the switches modified in a tree.
+		 */
+		void beginTree() {
+			this.stamp++;
+			this.touchedCount = 0;
+		}
+
+		/**
+		 * Remembers the next hop a switch had before its tree entry is first modified.
+		 *
+		 * @param r - The index of the root switch.
+		 * @param x - The index of the switch about to be modified.
+		 */
+		void touch(int r, int x) {
+			if (this.touchStamp[x] != this.stamp) {
+				this.touchStamp[x] = this.stamp;
+				this.oldPorts[x] = firstHopPort[r][x];
+				this.touched[this.touchedCount++] = x;
+			}
+		}
+
+		/**
+		 * Reports every switch recorded since beginTree() whose next hop is now different.
+		 *
+		 * @param r - The index of the root switch.
+		 * @param changes - The list that changed next hops are added to.
+		 */
+		void endTree(int r, List<NextHopChange> changes) {
+			if (this.touchedCount == 0) {
+				return;
+			}
+			treeVersion[r]++;
+			for (int i = 0; i < this.touchedCount; i++) {
+				int x = this.touched[i];
+				if (this.oldPorts[x] != firstHopPort[r][x]) {
+					changes.add(new NextHopChange(dpids[r], dpids[x], this.oldPorts[x],
+							firstHopPort[r][x]));
+				}
+			}
+			this.touchedCount = 0;
+		}
+	}
+
+	/**
+	 * A binary min heap of switch indices keyed on distance, which supports lowering the key of an
+	 * index that is already on the heap.
+	 *
+	 * @author cworm
+	 *
+	 */
+	private static class IndexedHeap {
+		private int[] nodes;
+		private int[] keys;
+		private int[] position;
+		private int size;
+
+		IndexedHeap(int capacity) {
+			this.nodes = new int[capacity];
+			this.keys = new int[capacity];
+			this.position = new int[capacity];
+			Arrays.fill(this.position, -1);
+			this.size = 0;
+		}
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		void insertOrDecrease(int node, int key) {
+			int i = this.position[node];
+			if (i < 0) {
+				i = this.size++;
+				this.nodes[i] = node;
+				this.position[node] = i;
+			} else if (key >= this.keys[i]) {
+				return;
+			}
+			this.keys[i] = key;
+			siftUp(i);
+		}
+
+		int pop() {
+			int top = this.nodes[0];
+			this.position[top] = -1;
+			this.size--;
+			if (this.size > 0) {
+				this.nodes[0] = this.nodes[this.size];
+				this.keys[0] = this.keys[this.size];
+				this.position[this.nodes[0]] = 0;
+				siftDown(0);
+			}
+			return top;
+		}
+
+		private void siftUp(int i) {
+			int node = this.nodes[i];
+			int key = this.keys[i];
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (this.keys[parent] <= key) {
+					break;
+				}
+				move(parent, i);
+				i = parent;
+			}
+			this.nodes[i] = node;
+			this.keys[i] = key;
+			this.position[node] = i;
+		}
+
+		private void siftDown(int i) {
+			int node = this.nodes[i];
+			int key = this.keys[i];
+			int half = this.size >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				if (child + 1 < this.size && this.keys[child + 1] < this.keys[child]) {
+					child++;
+				}
+				if (key <= this.keys[child]) {
+					break;
+				}
+				move(child, i);
+				i = child;
+			}
+			this.nodes[i] = node;
+			this.keys[i] = key;
+			this.position[node] = i;
+		}
+
+		private void move(int from, int to) {
+			this.nodes[to] = this.nodes[from];
+			this.keys[to] = this.keys[from];
+			this.position[this.nodes[to]] = to;
+		}
+	}
+}
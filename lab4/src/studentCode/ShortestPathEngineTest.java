@@ -0,0 +1,304 @@
+package studentCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.floodlightcontroller.routing.Link;
+import studentCode.ShortestPathEngine.NextHopChange;
+
+/**
+ * Checks a ShortestPathEngine against Dijkstra's algorithm run from scratch. Random switches and links
+ * are added and removed, and after every update each pair of switches is checked: the distance must be
+ * the shortest, the next hop port and the predecessor must lie on a shortest path, and every next hop
+ * that changed must have been reported as changed.
+ *
+ * Run with: java studentCode.ShortestPathEngineTest [seed] [rounds]
+ *
+ * @author cworm
+ *
+ */
+public class ShortestPathEngineTest {
+
+	private static final int SWITCHES = 12;
+	private static final int PORTS = 6;
+	private static final int MAX_WEIGHT = 4;
+
+	private final Random random;
+	private final ShortestPathEngine engine;
+
+	// The graph as the test sees it, to check the engine against.
+	private final List<Long> switches;
+	private final Map<Link, Integer> links;
+
+	private int checks;
+
+	/**
+	 * Constructor for a ShortestPathEngineTest.
+	 *
+	 * @param seed - The seed for the random updates.
+	 * @param executor - The pool for the engine to recompute on, or null.
+	 */
+	public ShortestPathEngineTest(long seed, ExecutorService executor) {
+		this.random = new Random(seed);
+		this.engine = new ShortestPathEngine();
+		this.engine.setExecutor(executor, 3);
+		this.switches = new ArrayList<Long>();
+		this.links = new LinkedHashMap<Link, Integer>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		long seed = (args.length > 0) ? Long.parseLong(args[0]) : 1;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			ShortestPathEngineTest serial = new ShortestPathEngineTest(seed, null);
+			serial.run(rounds);
+			ShortestPathEngineTest parallel = new ShortestPathEngineTest(seed + 1, executor);
+			parallel.run(rounds);
+			System.out.println("OK: " + rounds + " updates each, " + (serial.checks + parallel.checks)
+					+ " pairs checked");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Applies random updates, checking the engine after each one.
+	 *
+	 * @param rounds - The number of updates.
+	 */
+	public void run(int rounds) {
+		for (int round = 0; round < rounds; round++) {
+			Map<Long, int[]> before = copyPorts();
+			Map<Long, Integer> indices = copyIndices();
+			String update;
+			List<NextHopChange> changes = new ArrayList<NextHopChange>();
+			int op = this.random.nextInt(20);
+			if (op < 2 || this.switches.size() < 2) {
+				long dpid = 1 + this.random.nextInt(SWITCHES);
+				update = "add switch " + dpid;
+				if (this.engine.addSwitch(dpid) != !this.switches.contains(dpid)) {
+					fail(update + ": wrong result");
+				}
+				if (!this.switches.contains(dpid)) {
+					this.switches.add(dpid);
+				}
+			} else if (op < 3) {
+				Long dpid = pick(this.switches);
+				update = "remove switch " + dpid;
+				changes.addAll(this.engine.removeSwitch(dpid));
+				this.switches.remove(dpid);
+				for (Link link : new ArrayList<Link>(this.links.keySet())) {
+					if (link.getSrc() == dpid || link.getDst() == dpid) {
+						this.links.remove(link);
+					}
+				}
+			} else if (op < 12) {
+				Link link = randomLink();
+				int weight = 1 + this.random.nextInt(MAX_WEIGHT);
+				update = "add " + link + " weight " + weight;
+				changes.addAll(this.engine.addLink(link, weight));
+				if (link.getSrc() != link.getDst() && !this.links.containsKey(link)) {
+					this.links.put(link, weight);
+				}
+			} else if (op < 13) {
+				// Enough links at once makes the engine recompute every tree.
+				List<Link> batch = new ArrayList<Link>();
+				for (int i = 0; i <= this.switches.size(); i++) {
+					batch.add(randomLink());
+				}
+				update = "add " + batch.size() + " links";
+				changes.addAll(this.engine.addLinks(batch));
+				for (Link link : batch) {
+					if (link.getSrc() != link.getDst() && !this.links.containsKey(link)) {
+						this.links.put(link, ShortestPathEngine.DEFAULT_WEIGHT);
+					}
+				}
+			} else {
+				if (this.links.isEmpty()) {
+					continue;
+				}
+				Link link = pick(new ArrayList<Link>(this.links.keySet()));
+				update = "remove " + link;
+				changes.addAll(this.engine.removeLink(link));
+				this.links.remove(link);
+			}
+			check(update, before, indices, changes);
+		}
+	}
+
+	/**
+	 * Checks every pair of switches against Dijkstra's algorithm run from scratch.
+	 *
+	 * @param update - The update just applied, for error messages.
+	 * @param before - The next hop ports of each switch before the update.
+	 * @param indices - The index of each switch before the update.
+	 * @param changes - The next hop changes the engine reported for the update.
+	 */
+	private void check(String update, Map<Long, int[]> before, Map<Long, Integer> indices,
+			List<NextHopChange> changes) {
+		if (this.engine.getSwitchCount() != this.switches.size()
+				|| this.engine.getLinkCount() != this.links.size()) {
+			fail(update + ": engine has " + this.engine.getSwitchCount() + " switches and "
+					+ this.engine.getLinkCount() + " links, expected " + this.switches.size() + " and "
+					+ this.links.size());
+		}
+
+		// The last change reported for each pair is the one that counts.
+		Map<List<Long>, Integer> reported = new HashMap<List<Long>, Integer>();
+		for (NextHopChange c : changes) {
+			reported.put(Arrays.asList(c.getSwitch(), c.getDestination()), c.getNewPort());
+		}
+
+		for (long src : this.switches) {
+			Map<Long, Integer> dist = dijkstra(src);
+			int[] oldRow = before.get(src);
+			for (long dst : this.switches) {
+				this.checks++;
+				String pair = update + ": " + src + " -> " + dst;
+				Integer expected = dist.get(dst);
+				int actual = this.engine.getDistance(src, dst);
+				int port = this.engine.getNextHopPort(src, dst);
+				Long prev = this.engine.getPredecessor(src, dst);
+				if (expected == null) {
+					if (actual != ShortestPathEngine.INFINITY || port != ShortestPathEngine.NO_PORT
+							|| prev != null) {
+						fail(pair + ": unreachable, but engine says distance " + actual + " port " + port
+								+ " prev " + prev);
+					}
+				} else if (actual != expected) {
+					fail(pair + ": distance " + actual + ", expected " + expected);
+				} else if (src == dst) {
+					if (port != ShortestPathEngine.NO_PORT || prev != null) {
+						fail(pair + ": port " + port + " prev " + prev + " to itself");
+					}
+				} else {
+					if (!isFirstHop(src, port, dst, expected)) {
+						fail(pair + ": port " + port + " is not on a shortest path");
+					}
+					if (prev == null || !isLastHop(dist, prev, dst, expected)) {
+						fail(pair + ": predecessor " + prev + " is not on a shortest path");
+					}
+				}
+
+				// Pairs that existed before must report any change of port.
+				Integer oldIndex = indices.get(dst);
+				if (oldRow != null && oldIndex != null && oldIndex < oldRow.length && oldRow[oldIndex] != port) {
+					Integer newPort = reported.get(Arrays.asList(src, dst));
+					if (newPort == null || newPort != port) {
+						fail(pair + ": port changed from " + oldRow[oldIndex] + " to " + port
+								+ " but the change reported was " + newPort);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a port of src leads over a link to a switch that is on a shortest path to dst.
+	 */
+	private boolean isFirstHop(long src, int port, long dst, int distance) {
+		for (Map.Entry<Link, Integer> e : this.links.entrySet()) {
+			Link link = e.getKey();
+			if (link.getSrc() != src || link.getSrcPort() != port) {
+				continue;
+			}
+			Integer rest = (link.getDst() == dst) ? Integer.valueOf(0) : dijkstra(link.getDst()).get(dst);
+			if (rest != null && e.getValue() + rest == distance) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether a link from prev to dst finishes a shortest path.
+	 */
+	private boolean isLastHop(Map<Long, Integer> dist, long prev, long dst, int distance) {
+		Integer toPrev = dist.get(prev);
+		if (toPrev == null) {
+			return false;
+		}
+		for (Map.Entry<Link, Integer> e : this.links.entrySet()) {
+			Link link = e.getKey();
+			if (link.getSrc() == prev && link.getDst() == dst && toPrev + e.getValue() == distance) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Dijkstra's algorithm from scratch, with a linear scan for the closest switch.
+	 *
+	 * @param src - The DPID of the switch to start from.
+	 * @return - The distance to every reachable switch.
+	 */
+	private Map<Long, Integer> dijkstra(long src) {
+		Map<Long, Integer> dist = new HashMap<Long, Integer>();
+		Map<Long, Integer> frontier = new HashMap<Long, Integer>();
+		frontier.put(src, 0);
+		while (!frontier.isEmpty()) {
+			long u = 0;
+			int best = Integer.MAX_VALUE;
+			for (Map.Entry<Long, Integer> e : frontier.entrySet()) {
+				if (e.getValue() < best) {
+					u = e.getKey();
+					best = e.getValue();
+				}
+			}
+			frontier.remove(u);
+			dist.put(u, best);
+			for (Map.Entry<Link, Integer> e : this.links.entrySet()) {
+				Link link = e.getKey();
+				if (link.getSrc() != u || dist.containsKey(link.getDst())) {
+					continue;
+				}
+				Integer old = frontier.get(link.getDst());
+				if (old == null || best + e.getValue() < old) {
+					frontier.put(link.getDst(), best + e.getValue());
+				}
+			}
+		}
+		return dist;
+	}
+
+	private Map<Long, int[]> copyPorts() {
+		Map<Long, int[]> ports = new HashMap<Long, int[]>();
+		for (long dpid : this.switches) {
+			ports.put(dpid, this.engine.copyNextHopPorts(dpid));
+		}
+		return ports;
+	}
+
+	// The rows are indexed by switch index, and a removed switch's index may be reused.
+	private Map<Long, Integer> copyIndices() {
+		Map<Long, Integer> indices = new HashMap<Long, Integer>();
+		for (long dpid : this.switches) {
+			indices.put(dpid, this.engine.getSwitchIndex(dpid));
+		}
+		return indices;
+	}
+
+	private Link randomLink() {
+		long src = pick(this.switches);
+		long dst = pick(this.switches);
+		return new Link(src, 1 + this.random.nextInt(PORTS), dst, 1 + this.random.nextInt(PORTS));
+	}
+
+	private <T> T pick(List<T> list) {
+		return list.get(this.random.nextInt(list.size()));
+	}
+
+	private static void fail(String message) {
+		throw new AssertionError(message);
+	}
+}